@@ -79,10 +79,13 @@ public class IO {
             dest.put(src);
             return bytes;
         } else if(dest.remaining() < src.remaining()) {
-            byte[] buffer = new byte[dest.remaining()];
-            src.get(buffer);
-            dest.put(buffer);
-            return buffer.length;
+            //Copies through a narrowed limit rather than a temporary array, so reads do not allocate
+            int bytes = dest.remaining();
+            int limit = src.limit();
+            src.limit(src.position() + bytes);
+            dest.put(src);
+            src.limit(limit);
+            return bytes;
         }
 
         return 0;
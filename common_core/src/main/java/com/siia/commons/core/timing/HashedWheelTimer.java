@@ -0,0 +1,293 @@
+package com.siia.commons.core.timing;
+
+import android.support.annotation.NonNull;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.LongSupplier;
+
+import static com.siia.commons.core.check.Check.checkState;
+import static java.util.Objects.isNull;
+import static java.util.Objects.nonNull;
+
+/**
+ * A hashed timing wheel that is driven by the thread that owns it rather than by its own thread.
+ * Timeouts are hashed into a fixed number of buckets by their deadline tick so scheduling and cancelling
+ * are O(1) and expiring is proportional to the number of buckets passed, regardless of the number of
+ * timeouts held. This makes it suitable for tracking a very large number of coarse grained deadlines
+ * such as idle connections.
+ *
+ * {@link #schedule(Runnable, long, TimeUnit)} and {@link Timeout#cancel()} may be called from any thread,
+ * they are only applied to the wheel the next time {@link #advance()} is called. {@link #advance()} must
+ * only ever be called from a single thread and expired tasks are run on that thread.
+ *
+ * An owning thread that blocks (e.g. a selector) should block for no longer than {@link #nanosUntilNextTick()}.
+ */
+public class HashedWheelTimer {
+    public static final long NO_PENDING_TIMEOUTS = -1;
+
+    private static final int MAX_TICKS_PER_WHEEL = 1 << 30;
+
+    private final Bucket[] wheel;
+    private final int mask;
+    private final long tickNanos;
+    private final long startNanos;
+    private final LongSupplier nanoClock;
+    private final Queue<Timeout> timeoutsToAdd;
+    private final Queue<Timeout> timeoutsToCancel;
+    private final AtomicInteger pendingTimeouts;
+    private long lastProcessedTick;
+
+    public HashedWheelTimer(long tickDuration, @NonNull TimeUnit unit, int ticksPerWheel) {
+        this(tickDuration, unit, ticksPerWheel, System::nanoTime);
+    }
+
+    public HashedWheelTimer(long tickDuration, @NonNull TimeUnit unit, int ticksPerWheel, @NonNull LongSupplier nanoClock) {
+        checkState(tickDuration > 0, "Tick duration must be positive : %d", tickDuration);
+        checkState(ticksPerWheel > 0 && ticksPerWheel <= MAX_TICKS_PER_WHEEL, "Invalid ticks per wheel : %d", ticksPerWheel);
+        this.tickNanos = unit.toNanos(tickDuration);
+        this.nanoClock = nanoClock;
+        this.wheel = new Bucket[roundUpToPowerOfTwo(ticksPerWheel)];
+        for (int i = 0; i < wheel.length; i++) {
+            wheel[i] = new Bucket();
+        }
+        this.mask = wheel.length - 1;
+        this.timeoutsToAdd = new ConcurrentLinkedQueue<>();
+        this.timeoutsToCancel = new ConcurrentLinkedQueue<>();
+        this.pendingTimeouts = new AtomicInteger();
+        this.startNanos = nanoClock.getAsLong();
+        this.lastProcessedTick = 0;
+    }
+
+    /**
+     * Schedules a task to run once the delay has passed. The task will run on the thread calling
+     * {@link #advance()} within one tick after its deadline.
+     *
+     * @param task The task to run
+     * @param delay The delay after which the task should run
+     * @param unit The unit of the delay
+     * @return A handle which can be used to cancel the task
+     */
+    public Timeout schedule(@NonNull Runnable task, long delay, @NonNull TimeUnit unit) {
+        Timeout timeout = new Timeout(this, task, nanoClock.getAsLong() + Math.max(0, unit.toNanos(delay)));
+        pendingTimeouts.incrementAndGet();
+        timeoutsToAdd.offer(timeout);
+        return timeout;
+    }
+
+    /**
+     * Moves the wheel forward to the current time, running any tasks whose deadline has passed.
+     * Must only be called by the thread that owns this timer.
+     *
+     * @return The number of tasks that were run
+     */
+    public int advance() {
+        long now = nanoClock.getAsLong();
+        long currentTick = (now - startNanos) / tickNanos;
+
+        transferTimeoutsToBuckets();
+        removeCancelledTimeouts();
+
+        int expired = 0;
+        long ticksToProcess = Math.min(currentTick - lastProcessedTick, wheel.length);
+        for (long i = 1; i <= ticksToProcess; i++) {
+            expired += wheel[(int) ((lastProcessedTick + i) & mask)].expireTimeouts(currentTick);
+        }
+
+        lastProcessedTick = Math.max(lastProcessedTick, currentTick);
+        return expired;
+    }
+
+    /**
+     * The amount of time the owning thread can block for before it needs to call {@link #advance()} again.
+     *
+     * @return Nanoseconds until the next tick, or {@link #NO_PENDING_TIMEOUTS} if nothing is scheduled
+     */
+    public long nanosUntilNextTick() {
+        if (pendingTimeouts.get() == 0) {
+            return NO_PENDING_TIMEOUTS;
+        }
+
+        long nextTickNanos = startNanos + (lastProcessedTick + 1) * tickNanos;
+        return Math.max(0, nextTickNanos - nanoClock.getAsLong());
+    }
+
+    /**
+     * @return The number of timeouts that are scheduled and have not expired or been cancelled
+     */
+    public int pendingTimeouts() {
+        return pendingTimeouts.get();
+    }
+
+    /**
+     * Drops every scheduled timeout without running it.
+     */
+    public void clear() {
+        timeoutsToAdd.clear();
+        timeoutsToCancel.clear();
+        for (Bucket bucket : wheel) {
+            bucket.clear();
+        }
+        pendingTimeouts.set(0);
+    }
+
+    private void transferTimeoutsToBuckets() {
+        Timeout timeout;
+        while ((timeout = timeoutsToAdd.poll()) != null) {
+            if (timeout.isCancelled()) {
+                continue;
+            }
+
+            long deadlineTick = (timeout.deadlineNanos - startNanos + tickNanos - 1) / tickNanos;
+            timeout.deadlineTick = Math.max(deadlineTick, lastProcessedTick + 1);
+            wheel[(int) (timeout.deadlineTick & mask)].add(timeout);
+        }
+    }
+
+    private void removeCancelledTimeouts() {
+        Timeout timeout;
+        while ((timeout = timeoutsToCancel.poll()) != null) {
+            if (nonNull(timeout.bucket)) {
+                timeout.bucket.remove(timeout);
+            }
+        }
+    }
+
+    private static int roundUpToPowerOfTwo(int value) {
+        int powerOfTwo = 1;
+        while (powerOfTwo < value) {
+            powerOfTwo <<= 1;
+        }
+        return powerOfTwo;
+    }
+
+    /**
+     * Handle to a task scheduled on a {@link HashedWheelTimer}.
+     */
+    public static final class Timeout {
+        private static final int STATE_PENDING = 0;
+        private static final int STATE_CANCELLED = 1;
+        private static final int STATE_EXPIRED = 2;
+
+        private final HashedWheelTimer timer;
+        private final Runnable task;
+        private final long deadlineNanos;
+        private final AtomicInteger state;
+        private long deadlineTick;
+        private Bucket bucket;
+        private Timeout next;
+        private Timeout prev;
+
+        private Timeout(HashedWheelTimer timer, Runnable task, long deadlineNanos) {
+            this.timer = timer;
+            this.task = task;
+            this.deadlineNanos = deadlineNanos;
+            this.state = new AtomicInteger(STATE_PENDING);
+        }
+
+        /**
+         * Cancels the task if it has not already run. Safe to call from any thread.
+         *
+         * @return True if the task was cancelled, false if it had already run or been cancelled
+         */
+        public boolean cancel() {
+            if (!state.compareAndSet(STATE_PENDING, STATE_CANCELLED)) {
+                return false;
+            }
+            timer.pendingTimeouts.decrementAndGet();
+            timer.timeoutsToCancel.offer(this);
+            return true;
+        }
+
+        public boolean isCancelled() {
+            return state.get() == STATE_CANCELLED;
+        }
+
+        public boolean isExpired() {
+            return state.get() == STATE_EXPIRED;
+        }
+
+        private void expire() {
+            if (!state.compareAndSet(STATE_PENDING, STATE_EXPIRED)) {
+                return;
+            }
+            timer.pendingTimeouts.decrementAndGet();
+            task.run();
+        }
+    }
+
+    /**
+     * Doubly linked list of the timeouts hashed to a single slot of the wheel.
+     */
+    private static final class Bucket {
+        private Timeout head;
+        private Timeout tail;
+
+        void add(Timeout timeout) {
+            timeout.bucket = this;
+            if (isNull(head)) {
+                head = tail = timeout;
+            } else {
+                tail.next = timeout;
+                timeout.prev = tail;
+                tail = timeout;
+            }
+        }
+
+        void remove(Timeout timeout) {
+            if (timeout.bucket != this) {
+                return;
+            }
+
+            Timeout next = timeout.next;
+            if (nonNull(timeout.prev)) {
+                timeout.prev.next = next;
+            }
+            if (nonNull(next)) {
+                next.prev = timeout.prev;
+            }
+
+            if (timeout == head) {
+                head = next;
+            }
+            if (timeout == tail) {
+                tail = timeout.prev;
+            }
+
+            timeout.prev = null;
+            timeout.next = null;
+            timeout.bucket = null;
+        }
+
+        int expireTimeouts(long currentTick) {
+            int expired = 0;
+            Timeout timeout = head;
+            while (nonNull(timeout)) {
+                Timeout next = timeout.next;
+                if (timeout.isCancelled()) {
+                    remove(timeout);
+                } else if (timeout.deadlineTick <= currentTick) {
+                    remove(timeout);
+                    timeout.expire();
+                    expired++;
+                }
+                timeout = next;
+            }
+            return expired;
+        }
+
+        void clear() {
+            Timeout timeout = head;
+            while (nonNull(timeout)) {
+                Timeout next = timeout.next;
+                timeout.prev = null;
+                timeout.next = null;
+                timeout.bucket = null;
+                timeout = next;
+            }
+            head = tail = null;
+        }
+    }
+}
@@ -0,0 +1,66 @@
+package com.siia.commons.core.timing;
+
+import android.support.annotation.NonNull;
+
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+
+import static com.siia.commons.core.check.Check.checkState;
+
+/**
+ * A token bucket rate limiter that allows a sustained rate of permits with bursts of up to a fixed number
+ * of permits. Rather than refilling tokens it keeps the time at which all permits handed out so far would
+ * have been paid for at the sustained rate, so acquiring is a couple of arithmetic operations without any
+ * allocation or background thread.
+ *
+ * Not thread safe, it is intended to be used from a single thread such as an event loop.
+ */
+public class TokenBucket {
+    private final long nanosPerPermit;
+    private final long burstNanos;
+    private final LongSupplier nanoClock;
+    private long paidUntilNanos;
+
+    /**
+     * @param permits The number of permits allowed per period
+     * @param period The period over which the permits are allowed
+     * @param unit The unit of the period
+     * @param burst The maximum number of permits that can be acquired at once after a quiet period
+     */
+    public TokenBucket(long permits, long period, @NonNull TimeUnit unit, int burst) {
+        this(permits, period, unit, burst, System::nanoTime);
+    }
+
+    public TokenBucket(long permits, long period, @NonNull TimeUnit unit, int burst, @NonNull LongSupplier nanoClock) {
+        checkState(permits > 0, "Permits must be positive : %d", permits);
+        checkState(period > 0, "Period must be positive : %d", period);
+        checkState(burst > 0, "Burst must be positive : %d", burst);
+        this.nanosPerPermit = Math.max(1, unit.toNanos(period) / permits);
+        this.burstNanos = nanosPerPermit * burst;
+        this.nanoClock = nanoClock;
+        this.paidUntilNanos = nanoClock.getAsLong();
+    }
+
+    /**
+     * @return True if a permit was available and has been taken, false otherwise
+     */
+    public boolean tryAcquire() {
+        long now = nanoClock.getAsLong();
+        long paidUntil = Math.max(paidUntilNanos, now) + nanosPerPermit;
+
+        if (paidUntil - now > burstNanos) {
+            return false;
+        }
+
+        paidUntilNanos = paidUntil;
+        return true;
+    }
+
+    /**
+     * @return The time until a permit will next be available, 0 if one is available now
+     */
+    public long nanosUntilNextPermit() {
+        long now = nanoClock.getAsLong();
+        return Math.max(0, Math.max(paidUntilNanos, now) + nanosPerPermit - burstNanos - now);
+    }
+}
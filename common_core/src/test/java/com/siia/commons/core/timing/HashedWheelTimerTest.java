@@ -0,0 +1,143 @@
+package com.siia.commons.core.timing;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class HashedWheelTimerTest {
+
+    private long now;
+    private HashedWheelTimer timer;
+
+    @Before
+    public void setup() {
+        now = 0;
+        timer = new HashedWheelTimer(10, TimeUnit.MILLISECONDS, 8, () -> now);
+    }
+
+    @Test
+    public void shouldNotRunTaskBeforeDeadline() {
+        AtomicInteger runs = new AtomicInteger();
+        timer.schedule(runs::incrementAndGet, 50, TimeUnit.MILLISECONDS);
+
+        advanceTo(49);
+
+        assertThat(runs.get()).isZero();
+        assertThat(timer.pendingTimeouts()).isEqualTo(1);
+    }
+
+    @Test
+    public void shouldRunTaskOnceDeadlinePassed() {
+        AtomicInteger runs = new AtomicInteger();
+        timer.schedule(runs::incrementAndGet, 50, TimeUnit.MILLISECONDS);
+
+        advanceTo(50);
+        advanceTo(100);
+
+        assertThat(runs.get()).isEqualTo(1);
+        assertThat(timer.pendingTimeouts()).isZero();
+    }
+
+    @Test
+    public void shouldRunTasksWithDeadlinesBeyondOneRotation() {
+        AtomicInteger runs = new AtomicInteger();
+        timer.schedule(runs::incrementAndGet, 250, TimeUnit.MILLISECONDS);
+
+        advanceTo(80);
+        advanceTo(170);
+        assertThat(runs.get()).isZero();
+
+        advanceTo(250);
+        assertThat(runs.get()).isEqualTo(1);
+    }
+
+    @Test
+    public void shouldRunAllOverdueTasksAfterLongPause() {
+        List<Integer> order = new ArrayList<>();
+        timer.schedule(() -> order.add(1), 15, TimeUnit.MILLISECONDS);
+        timer.schedule(() -> order.add(2), 35, TimeUnit.MILLISECONDS);
+        timer.schedule(() -> order.add(3), 500, TimeUnit.MILLISECONDS);
+
+        advanceTo(10_000);
+
+        assertThat(order).containsOnly(1, 2, 3);
+    }
+
+    @Test
+    public void shouldNotRunCancelledTask() {
+        AtomicInteger runs = new AtomicInteger();
+        HashedWheelTimer.Timeout timeout = timer.schedule(runs::incrementAndGet, 20, TimeUnit.MILLISECONDS);
+        advanceTo(10);
+
+        assertThat(timeout.cancel()).isTrue();
+        advanceTo(100);
+
+        assertThat(runs.get()).isZero();
+        assertThat(timeout.isCancelled()).isTrue();
+        assertThat(timer.pendingTimeouts()).isZero();
+    }
+
+    @Test
+    public void shouldNotCancelExpiredTask() {
+        HashedWheelTimer.Timeout timeout = timer.schedule(() -> {}, 20, TimeUnit.MILLISECONDS);
+        advanceTo(20);
+
+        assertThat(timeout.isExpired()).isTrue();
+        assertThat(timeout.cancel()).isFalse();
+    }
+
+    @Test
+    public void shouldAllowTasksToReschedule() {
+        AtomicInteger runs = new AtomicInteger();
+        timer.schedule(new Runnable() {
+            @Override
+            public void run() {
+                if (runs.incrementAndGet() < 3) {
+                    timer.schedule(this, 20, TimeUnit.MILLISECONDS);
+                }
+            }
+        }, 20, TimeUnit.MILLISECONDS);
+
+        for (int time = 0; time <= 100; time += 10) {
+            advanceTo(time);
+        }
+
+        assertThat(runs.get()).isEqualTo(3);
+    }
+
+    @Test
+    public void shouldReportNoPendingTimeoutsWhenEmpty() {
+        assertThat(timer.nanosUntilNextTick()).isEqualTo(HashedWheelTimer.NO_PENDING_TIMEOUTS);
+    }
+
+    @Test
+    public void shouldReportTimeUntilNextTick() {
+        timer.schedule(() -> {}, 100, TimeUnit.MILLISECONDS);
+        now = TimeUnit.MILLISECONDS.toNanos(4);
+        assertThat(timer.nanosUntilNextTick()).isEqualTo(TimeUnit.MILLISECONDS.toNanos(6));
+    }
+
+    @Test
+    public void shouldDropAllTimeoutsWhenCleared() {
+        AtomicInteger runs = new AtomicInteger();
+        timer.schedule(runs::incrementAndGet, 20, TimeUnit.MILLISECONDS);
+        advanceTo(10);
+
+        timer.clear();
+        advanceTo(100);
+
+        assertThat(runs.get()).isZero();
+        assertThat(timer.pendingTimeouts()).isZero();
+    }
+
+    private void advanceTo(long millis) {
+        now = TimeUnit.MILLISECONDS.toNanos(millis);
+        timer.advance();
+    }
+}
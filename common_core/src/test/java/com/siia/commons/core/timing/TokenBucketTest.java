@@ -0,0 +1,69 @@
+package com.siia.commons.core.timing;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class TokenBucketTest {
+
+    private long now;
+    private TokenBucket bucket;
+
+    @Before
+    public void setup() {
+        now = 0;
+        bucket = new TokenBucket(10, 1, TimeUnit.SECONDS, 3, () -> now);
+    }
+
+    @Test
+    public void shouldAllowBurstThenRefuse() {
+        assertThat(bucket.tryAcquire()).isTrue();
+        assertThat(bucket.tryAcquire()).isTrue();
+        assertThat(bucket.tryAcquire()).isTrue();
+        assertThat(bucket.tryAcquire()).isFalse();
+    }
+
+    @Test
+    public void shouldAllowPermitsAtSustainedRate() {
+        acquireAll();
+
+        advanceTo(99);
+        assertThat(bucket.tryAcquire()).isFalse();
+
+        advanceTo(100);
+        assertThat(bucket.tryAcquire()).isTrue();
+        assertThat(bucket.tryAcquire()).isFalse();
+    }
+
+    @Test
+    public void shouldNotSaveUpMoreThanBurst() {
+        advanceTo(10_000);
+
+        assertThat(acquireAll()).isEqualTo(3);
+    }
+
+    @Test
+    public void shouldReportTimeUntilNextPermit() {
+        assertThat(bucket.nanosUntilNextPermit()).isZero();
+
+        acquireAll();
+        advanceTo(40);
+
+        assertThat(bucket.nanosUntilNextPermit()).isEqualTo(TimeUnit.MILLISECONDS.toNanos(60));
+    }
+
+    private int acquireAll() {
+        int acquired = 0;
+        while (bucket.tryAcquire()) {
+            acquired++;
+        }
+        return acquired;
+    }
+
+    private void advanceTo(long millis) {
+        now = TimeUnit.MILLISECONDS.toNanos(millis);
+    }
+}
@@ -0,0 +1,62 @@
+package org.postman.server;
+
+import android.support.annotation.NonNull;
+
+import com.siia.commons.core.timing.TokenBucket;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.IntSupplier;
+
+import static java.util.Objects.nonNull;
+
+/**
+ * Decides whether a {@link PostmanServer} should admit a new connection, using the maximum connections and
+ * accept rate of a {@link PostmanConfig}. Connections that are not admitted should be closed straight away
+ * without any per connection setup so that a burst of reconnecting clients costs the server as little as
+ * possible.
+ *
+ * The same instance can be shared by several threads accepting connections for one server, e.g. the event
+ * loops of each listener when {@link PostmanConfig#listeners()} is greater than 1, so the limits apply to the
+ * server as a whole.
+ */
+public final class AdmissionControl {
+    private final int maxConnections;
+    private final TokenBucket acceptRate;
+    private final IntSupplier connectedClients;
+    private final AtomicLong refusedConnections;
+
+    /**
+     * @param connectedClients Supplies the number of clients currently connected to the server
+     */
+    public AdmissionControl(@NonNull PostmanConfig config, @NonNull IntSupplier connectedClients) {
+        this.maxConnections = config.maxConnections();
+        this.connectedClients = connectedClients;
+        this.acceptRate = config.isAcceptRateLimited()
+                ? new TokenBucket(config.acceptRatePermits(), config.acceptRatePeriodNanos(), TimeUnit.NANOSECONDS,
+                config.acceptRateBurst())
+                : null;
+        this.refusedConnections = new AtomicLong();
+    }
+
+    /**
+     * @return True if another connection can be accepted, false if it should be refused in which case it is
+     * counted as refused
+     */
+    public synchronized boolean tryAdmit() {
+        if ((maxConnections > 0 && connectedClients.getAsInt() >= maxConnections)
+                || (nonNull(acceptRate) && !acceptRate.tryAcquire())) {
+            refusedConnections.incrementAndGet();
+            return false;
+        }
+
+        return true;
+    }
+
+    /**
+     * @return The number of connections refused since the server was created
+     */
+    public long refusedConnections() {
+        return refusedConnections.get();
+    }
+}
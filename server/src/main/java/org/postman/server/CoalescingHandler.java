@@ -0,0 +1,144 @@
+package org.postman.server;
+
+import com.google.protobuf.AbstractMessageLite;
+import com.google.protobuf.ByteString;
+import com.google.protobuf.MessageLite;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.function.Function;
+import java.util.function.LongSupplier;
+
+import io.reactivex.Single;
+
+import static java.util.Objects.isNull;
+import static java.util.Objects.nonNull;
+
+/**
+ * Handles the requests of a type registered with {@link RequestCoalescing#inFlight()} or
+ * {@link RequestCoalescing#cached(long, java.util.concurrent.TimeUnit, int)}. Identical requests are keyed by
+ * the type and serialised bytes from the envelope they arrived in, so a cached response is found without
+ * parsing the request. Responses are kept serialised and only wrapped in a new envelope carrying the id of
+ * each request they answer.
+ */
+final class CoalescingHandler implements RequestHandlers.Handler {
+    private final Function<AbstractMessageLite, Single<? extends MessageLite>> handler;
+    private final ConcurrentMap<RequestKey, Single<PostmanMessage>> inFlight;
+    private final ResponseCache cache;
+
+    CoalescingHandler(Function<AbstractMessageLite, Single<? extends MessageLite>> handler,
+                      RequestCoalescing coalescing, LongSupplier nanoClock) {
+        this.handler = handler;
+        this.inFlight = new ConcurrentHashMap<>();
+        this.cache = coalescing.isCaching() ? new ResponseCache(coalescing, nanoClock) : null;
+    }
+
+    @Override
+    public Single<PostmanMessage> handle(PostmanMessage msg, long requestId) throws Exception {
+        RequestKey key = new RequestKey(msg.envelope());
+
+        PostmanMessage cached = nonNull(cache) ? cache.get(key) : null;
+        if (nonNull(cached)) {
+            return Single.just(PostmanMessage.response(cached, requestId));
+        }
+
+        return inFlight.computeIfAbsent(key, k -> execute(k, msg))
+                .map(encoded -> PostmanMessage.response(encoded, requestId));
+    }
+
+    /**
+     * @return The response, encoded once however many requests wait for it
+     */
+    private Single<PostmanMessage> execute(RequestKey key, PostmanMessage msg) {
+        return Single.defer(() -> handler.apply(msg.getProtoObj()))
+                .map(response -> new PostmanMessage(response))
+                .doOnSuccess(encoded -> {
+                    //Cached before leaving the in flight requests so an identical request always finds one or the other
+                    if (nonNull(cache)) {
+                        cache.put(key, encoded);
+                    }
+                })
+                .doFinally(() -> inFlight.remove(key))
+                .cache();
+    }
+
+    /**
+     * The type and serialised bytes of a request. {@link ByteString} caches its hash so it is only computed
+     * once per request.
+     */
+    private static final class RequestKey {
+        private final String type;
+        private final ByteString data;
+
+        RequestKey(MessageOuterClass.Message envelope) {
+            this.type = envelope.getType();
+            this.data = envelope.getData();
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * type.hashCode() + data.hashCode();
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (!(obj instanceof RequestKey)) {
+                return false;
+            }
+
+            RequestKey other = (RequestKey) obj;
+            return type.equals(other.type) && data.equals(other.data);
+        }
+    }
+
+    /**
+     * Least recently used responses up to a maximum number, each expiring a fixed time after it was added
+     */
+    private static final class ResponseCache {
+        private final long ttlNanos;
+        private final LongSupplier nanoClock;
+        private final Map<RequestKey, CachedResponse> responses;
+
+        ResponseCache(RequestCoalescing coalescing, LongSupplier nanoClock) {
+            this.ttlNanos = coalescing.cacheTtlNanos();
+            this.nanoClock = nanoClock;
+            int maxResponses = coalescing.maxCachedResponses();
+            this.responses = new LinkedHashMap<RequestKey, CachedResponse>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<RequestKey, CachedResponse> eldest) {
+                    return size() > maxResponses;
+                }
+            };
+        }
+
+        synchronized PostmanMessage get(RequestKey key) {
+            CachedResponse cached = responses.get(key);
+            if (isNull(cached)) {
+                return null;
+            }
+
+            if (nanoClock.getAsLong() - cached.expiresAtNanos >= 0) {
+                responses.remove(key);
+                return null;
+            }
+
+            return cached.response;
+        }
+
+        synchronized void put(RequestKey key, PostmanMessage response) {
+            responses.put(key, new CachedResponse(response, nanoClock.getAsLong() + ttlNanos));
+        }
+    }
+
+    private static final class CachedResponse {
+        private final PostmanMessage response;
+        private final long expiresAtNanos;
+
+        CachedResponse(PostmanMessage response, long expiresAtNanos) {
+            this.response = response;
+            this.expiresAtNanos = expiresAtNanos;
+        }
+    }
+}
@@ -35,10 +35,50 @@ public interface Connection extends Comparable<Connection> {
      * Queues up a {@link PostmanMessage} to send over the connection to the client.
      * The message may be sent after this method returns in a non blocking way so the caller
      * should not expect that the message is sent straight away.
-     * If this method is called while not connected, an exception is thrown
+     * If this method is called while not connected, an exception is thrown. A message from a {@link MessagePool},
+     * e.g. one received being passed on, is copied so it can be released as soon as this returns.
      * @param msg The message to send
+     * @return Whether the message was queued, which depends on the {@link SlowConsumerPolicy} once the queue
+     * reaches {@link PostmanConfig#sendQueueHighWatermark()}
      */
-    void queueMessageToSend(PostmanMessage msg);
+    SendQueue.Result queueMessageToSend(PostmanMessage msg);
+
+    /**
+     * Same as {@link #queueMessageToSend(PostmanMessage)} with the message waiting in the given lane of the
+     * send queue, see {@link MessagePriority}. A copy of the message is queued, so the same message can be sent
+     * to several connections at different priorities.
+     * @param msg The message to send
+     * @param priority The lane the message waits in to be sent
+     * @return Whether the message was queued
+     */
+    default SendQueue.Result queueMessageToSend(PostmanMessage msg, MessagePriority priority) {
+        return queueMessageToSend(new PostmanMessage(msg).setPriority(priority));
+    }
+
+    /**
+     * Overrides {@link PostmanConfig#slowConsumerPolicy()} for this connection, applying to messages queued from now on
+     * @param policy What to do with messages sent while the send queue is at its high watermark
+     */
+    void slowConsumerPolicy(SlowConsumerPolicy policy);
+
+    /**
+     * @return The number of messages queued to this connection that were dropped instead of sent because their
+     * time to live passed, see {@link PostmanMessage#setTimeToLive(long, java.util.concurrent.TimeUnit)}
+     */
+    long expiredMessages();
+
+    /**
+     * @return The number of messages queued to this connection that were dropped instead of sent by its
+     * {@link SlowConsumerPolicy}, or replaced by a newer message with the same conflation key
+     */
+    long droppedMessages();
+
+    /**
+     * Round trip time statistics for this connection. Samples are only recorded while heartbeats are
+     * enabled, see {@link PostmanConfig#heartbeatIntervalNanos()}.
+     * @return The round trip time of this connection
+     */
+    RoundTripTime roundTripTime();
 
     @Override
     default int compareTo(@NonNull Connection o) {
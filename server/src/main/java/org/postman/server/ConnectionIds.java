@@ -0,0 +1,27 @@
+package org.postman.server;
+
+import java.util.UUID;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Generates the {@link Connection#getConnectionId()} of new connections. The ids are random version 4
+ * {@link UUID}s like {@link UUID#randomUUID()} but use {@link ThreadLocalRandom} rather than a shared
+ * {@link java.security.SecureRandom}, so generating one never blocks or contends when many clients connect
+ * at once. They are not suitable as secrets, only as identifiers.
+ */
+public final class ConnectionIds {
+    private static final long VERSION_MASK = 0xffffffffffff0fffL;
+    private static final long VERSION_4 = 0x0000000000004000L;
+    private static final long VARIANT_MASK = 0x3fffffffffffffffL;
+    private static final long VARIANT_IETF = 0x8000000000000000L;
+
+    private ConnectionIds() {
+    }
+
+    public static UUID next() {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        long mostSigBits = (random.nextLong() & VERSION_MASK) | VERSION_4;
+        long leastSigBits = (random.nextLong() & VARIANT_MASK) | VARIANT_IETF;
+        return new UUID(mostSigBits, leastSigBits);
+    }
+}
@@ -0,0 +1,191 @@
+package org.postman.server;
+
+import android.support.annotation.NonNull;
+
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static com.siia.commons.core.check.Check.checkState;
+import static java.util.Objects.isNull;
+import static java.util.Objects.nonNull;
+
+/**
+ * Direct memory for the frames of messages read from peers, so the bulk of the bytes received never reaches the
+ * Java heap or the garbage collector, see {@link MessagePool#MessagePool(int, int, int, DirectArena)}.
+ *
+ * The memory is reserved in chunks, and the frames are carved out of the current chunk one after the other. A chunk
+ * counts the frames still in use, and once the arena has moved on to another chunk and the last of them is freed
+ * the whole chunk is reused. At most {@code maxBytes} are ever reserved. Once that is reached and every chunk is
+ * in use the arena is exhausted: frames are read onto the heap instead, the event loops stop reading from peers
+ * until a chunk is freed, see {@link #whenAvailable(Runnable)}.
+ *
+ * Frames are taken by the threads reading from peers and freed by whichever thread releases the message.
+ */
+public final class DirectArena {
+    public static final int DEFAULT_CHUNK_BYTES = 1024 * 1024;
+
+    private final int chunkBytes;
+    private final int maxChunks;
+    private final Queue<Chunk> freeChunks;
+    private final List<Runnable> availableListeners;
+    private final AtomicBoolean exhausted;
+    private int reservedChunks;
+    private Chunk current;
+
+    /**
+     * @param maxBytes The most direct memory reserved, at least one chunk
+     */
+    public DirectArena(long maxBytes) {
+        this(DEFAULT_CHUNK_BYTES, maxBytes);
+    }
+
+    /**
+     * @param chunkBytes The memory reserved at a time, frames bigger than a chunk are read onto the heap
+     * @param maxBytes The most direct memory reserved, at least one chunk
+     */
+    public DirectArena(int chunkBytes, long maxBytes) {
+        checkState(chunkBytes > 0, "Invalid chunk size : %d", chunkBytes);
+        checkState(maxBytes >= chunkBytes, "Max bytes %d less than a chunk", maxBytes);
+        this.chunkBytes = chunkBytes;
+        this.maxChunks = (int) Math.min(Integer.MAX_VALUE, maxBytes / chunkBytes);
+        this.freeChunks = new ConcurrentLinkedQueue<>();
+        this.availableListeners = new CopyOnWriteArrayList<>();
+        this.exhausted = new AtomicBoolean(false);
+    }
+
+    /**
+     * @return The frame memory, null if the frame is bigger than a chunk or the arena is exhausted
+     */
+    synchronized Slice allocate(int length) {
+        if (length > chunkBytes) {
+            return null;
+        }
+
+        if (isNull(current) || chunkBytes - current.offset < length) {
+            if (nonNull(current)) {
+                //The arena no longer takes frames from it, so it is reused as soon as its frames are freed
+                Chunk full = current;
+                current = null;
+                full.free();
+            }
+
+            current = nextChunk();
+            if (isNull(current)) {
+                exhausted.set(true);
+                //A chunk freed before the flag was set would not have cleared it
+                current = freeChunks.poll();
+                if (isNull(current)) {
+                    return null;
+                }
+                available();
+            }
+        }
+
+        ByteBuffer memory = current.memory.duplicate();
+        memory.position(current.offset);
+        memory.limit(current.offset + length);
+        current.offset += length;
+        current.inUse.incrementAndGet();
+        return new Slice(current, memory.slice());
+    }
+
+    private Chunk nextChunk() {
+        Chunk chunk = freeChunks.poll();
+        if (isNull(chunk) && reservedChunks < maxChunks) {
+            reservedChunks++;
+            chunk = new Chunk(ByteBuffer.allocateDirect(chunkBytes));
+        }
+        return chunk;
+    }
+
+    /**
+     * @return True from when a frame could not be allocated until a chunk is freed
+     */
+    public boolean isExhausted() {
+        return exhausted.get();
+    }
+
+    /**
+     * @return The direct memory reserved so far
+     */
+    public synchronized long reservedBytes() {
+        return (long) reservedChunks * chunkBytes;
+    }
+
+    /**
+     * Runs the listener, on the thread freeing the memory, each time the arena stops being exhausted
+     */
+    public void whenAvailable(@NonNull Runnable listener) {
+        availableListeners.add(listener);
+    }
+
+    public void removeAvailableListener(@NonNull Runnable listener) {
+        availableListeners.remove(listener);
+    }
+
+    private void recycle(Chunk chunk) {
+        freeChunks.offer(chunk);
+        available();
+    }
+
+    private void available() {
+        if (exhausted.compareAndSet(true, false)) {
+            availableListeners.forEach(Runnable::run);
+        }
+    }
+
+    private final class Chunk {
+        private final ByteBuffer memory;
+        //The frames in use, plus one while the arena takes frames from the chunk
+        private final AtomicInteger inUse;
+        private int offset;
+
+        Chunk(ByteBuffer memory) {
+            this.memory = memory;
+            this.inUse = new AtomicInteger(1);
+        }
+
+        void free() {
+            if (inUse.decrementAndGet() == 0) {
+                offset = 0;
+                inUse.set(1);
+                recycle(this);
+            }
+        }
+    }
+
+    /**
+     * The memory of a single frame
+     */
+    static final class Slice {
+        private final Chunk chunk;
+        private final ByteBuffer memory;
+        private final AtomicBoolean freed;
+
+        private Slice(Chunk chunk, ByteBuffer memory) {
+            this.chunk = chunk;
+            this.memory = memory;
+            this.freed = new AtomicBoolean(false);
+        }
+
+        /**
+         * @return The memory, with its position at zero and limit at the frame length
+         */
+        ByteBuffer memory() {
+            return memory;
+        }
+
+        /**
+         * Hands the memory back, after which it may be reused for another frame
+         */
+        void free() {
+            checkState(freed.compareAndSet(false, true), "Slice already freed");
+            chunk.free();
+        }
+    }
+}
@@ -0,0 +1,199 @@
+package org.postman.server;
+
+import android.support.annotation.NonNull;
+
+import com.siia.commons.core.log.Logcat;
+
+import org.postman.server.MessageOuterClass.Heartbeat;
+import org.postman.server.MessageOuterClass.HeartbeatAck;
+import org.postman.server.MessageOuterClass.WindowUpdate;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Credit based flow control of a {@link Connection}, like HTTP/2's. A peer starts with a window of credit for the
+ * connection and for each of its streams, and the bytes of each message it sends use up credit. The receiver grants
+ * the credit back with a {@link WindowUpdate} once its subscriber has consumed half a window of messages, so a
+ * sender pauses when the receiver's subscriber falls behind instead of filling the receiver's memory, and its own
+ * {@link SendQueue} fills up instead so that the {@link SlowConsumerPolicy} applies.
+ *
+ * Protocol messages such as heartbeats and window updates are sent on the {@link PostmanMessage#CONTROL_STREAM}
+ * and are never paused or counted. Without flow control configured, see
+ * {@link PostmanConfig.Builder#flowControlWindows(int, int)}, everything can always be sent.
+ *
+ * The sending side is used by the thread writing to the peer and the receiving side by the thread reading from
+ * it. Never calls out while holding its lock, so it can be used while holding the {@link SendQueue}'s.
+ */
+public final class FlowControl {
+    private static final String TAG = Logcat.getTag();
+
+    private final Map<Integer, Integer> creditByStream;
+    private final Map<Integer, Integer> consumedByStream;
+    private volatile boolean enabled;
+    private int connectionWindow;
+    private int streamWindow;
+    private int connectionCredit;
+    private int connectionConsumed;
+
+    /**
+     * Creates flow control that never pauses the sender
+     */
+    public FlowControl() {
+        this.creditByStream = new HashMap<>();
+        this.consumedByStream = new HashMap<>();
+    }
+
+    /**
+     * Limits the connection using the windows of the config, only called before the connection is first read or
+     * written. The stream windows only apply while streams are multiplexed, see {@link PostmanConfig#maxFrameSize()}.
+     */
+    public synchronized void limit(@NonNull PostmanConfig config) {
+        connectionWindow = connectionCredit = config.connectionWindow();
+        streamWindow = config.maxFrameSize() > 0 ? config.streamWindow() : 0;
+        enabled = connectionWindow > 0 || streamWindow > 0;
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * @return True if at least a byte of a message on the stream can be sent
+     */
+    public synchronized boolean canSend(int streamId) {
+        if (!enabled || streamId == PostmanMessage.CONTROL_STREAM) {
+            return true;
+        }
+        return (connectionWindow == 0 || connectionCredit > 0) && (streamWindow == 0 || streamCredit(streamId) > 0);
+    }
+
+    /**
+     * @return How many of the bytes to send on the stream there is credit for
+     */
+    public synchronized int sendable(int streamId, int bytes) {
+        if (!enabled || streamId == PostmanMessage.CONTROL_STREAM) {
+            return bytes;
+        }
+        int sendable = bytes;
+        if (connectionWindow > 0) {
+            sendable = Math.min(sendable, Math.max(connectionCredit, 0));
+        }
+        if (streamWindow > 0) {
+            sendable = Math.min(sendable, Math.max(streamCredit(streamId), 0));
+        }
+        return sendable;
+    }
+
+    /**
+     * Uses up the credit for bytes sent on the stream. Whole messages are sent once {@link #canSend(int)}, so the
+     * credit can go below zero by up to one message.
+     */
+    public synchronized void onSent(int streamId, int bytes) {
+        if (!enabled || streamId == PostmanMessage.CONTROL_STREAM) {
+            return;
+        }
+        connectionCredit -= bytes;
+        if (streamWindow > 0) {
+            creditByStream.put(streamId, streamCredit(streamId) - bytes);
+        }
+    }
+
+    /**
+     * Handles window update control messages by granting the credit in them
+     *
+     * @return True if the message was a window update and should not be passed on
+     */
+    public boolean handleMessage(@NonNull PostmanMessage msg) {
+        try {
+            if (!msg.isOfType(WindowUpdate.class)) {
+                return false;
+            }
+
+            WindowUpdate update = msg.getProtoObj();
+            grant(update.hasStreamId() ? update.getStreamId() : PostmanMessage.CONTROL_STREAM, update.getCredit());
+            return true;
+        } catch (Exception e) {
+            Logcat.w(TAG, "Could not handle possible window update", e);
+            return false;
+        }
+    }
+
+    /**
+     * Counts a message received from the peer as consumed, once the subscriber has asked for it rather than when it
+     * was read
+     *
+     * @return The window updates to send to the peer, usually none
+     */
+    public List<PostmanMessage> consumed(@NonNull PostmanMessage msg) {
+        if (!enabled || isControl(msg)) {
+            return Collections.emptyList();
+        }
+
+        List<PostmanMessage> updates = Collections.emptyList();
+        int bytes = msg.getFrameLength();
+        synchronized (this) {
+            if (streamWindow > 0) {
+                int consumed = consumedByStream.getOrDefault(msg.getStreamId(), 0) + bytes;
+                if (consumed >= streamWindow / 2) {
+                    consumedByStream.remove(msg.getStreamId());
+                    updates = new ArrayList<>(2);
+                    updates.add(PostmanMessage.control(WindowUpdate.newBuilder()
+                            .setStreamId(msg.getStreamId())
+                            .setCredit(consumed)
+                            .build()));
+                } else {
+                    consumedByStream.put(msg.getStreamId(), consumed);
+                }
+            }
+
+            if (connectionWindow > 0) {
+                connectionConsumed += bytes;
+                if (connectionConsumed >= connectionWindow / 2) {
+                    if (updates.isEmpty()) {
+                        updates = new ArrayList<>(1);
+                    }
+                    updates.add(PostmanMessage.control(WindowUpdate.newBuilder()
+                            .setCredit(connectionConsumed)
+                            .build()));
+                    connectionConsumed = 0;
+                }
+            }
+        }
+        return updates;
+    }
+
+    private synchronized void grant(int streamId, int credit) {
+        if (streamId == PostmanMessage.CONTROL_STREAM) {
+            connectionCredit += credit;
+            return;
+        }
+
+        int streamCredit = streamCredit(streamId) + credit;
+        if (streamCredit == streamWindow) {
+            //Back to a full window, the same as a stream not yet seen
+            creditByStream.remove(streamId);
+        } else {
+            creditByStream.put(streamId, streamCredit);
+        }
+    }
+
+    private int streamCredit(int streamId) {
+        return creditByStream.getOrDefault(streamId, streamWindow);
+    }
+
+    /**
+     * Whole messages do not carry their stream, so protocol messages are also told apart by their type
+     */
+    private static boolean isControl(PostmanMessage msg) {
+        try {
+            return msg.getStreamId() == PostmanMessage.CONTROL_STREAM || msg.isOfType(Heartbeat.class)
+                    || msg.isOfType(HeartbeatAck.class) || msg.isOfType(WindowUpdate.class);
+        } catch (Exception e) {
+            return false;
+        }
+    }
+}
@@ -0,0 +1,182 @@
+package org.postman.server;
+
+import com.siia.commons.core.inject.Provider;
+import com.siia.commons.core.log.Logcat;
+
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+import static com.siia.commons.core.check.Check.checkState;
+import static java.util.Objects.nonNull;
+
+/**
+ * A {@link Provider} of the messages read from peers that reuses the messages, and the bytes of their frames,
+ * once they are handed back with {@link PostmanMessage#release()}. Each thread reading from peers, e.g. each event
+ * loop, gets messages from a pool of its own, and a released message goes back to the pool of the thread that
+ * read it on a wait free {@link MpscQueue}, so subscribers on any thread can release messages. While messages are
+ * released as fast as they are read, reading them allocates next to nothing.
+ *
+ * With a {@link DirectArena} the frames are read into direct memory instead, which is handed back to the arena
+ * when the message is released, see {@link PostmanMessage#retain()}.
+ *
+ * A message never released is simply garbage collected. To find the code not releasing them every nth message
+ * handed out is tracked, and those collected without being released are logged and counted, see
+ * {@link #leakedMessages()}. With an arena every message is tracked, so the direct memory of a leaked message is
+ * handed back to the arena once it is found rather than lost.
+ */
+public final class MessagePool implements Provider<PostmanMessage> {
+    private static final String TAG = Logcat.getTag();
+    public static final int DEFAULT_CAPACITY = 256;
+    public static final int DEFAULT_MAX_RETAINED_BYTES = 64 * 1024;
+    public static final int DEFAULT_LEAK_SAMPLING = 128;
+
+    private final int capacity;
+    private final int maxRetainedBytes;
+    private final int leakSampling;
+    private final DirectArena arena;
+    private final ThreadLocal<LocalPool> localPools;
+    private final ReferenceQueue<PostmanMessage> collected;
+    private final Set<LeakTracker> tracked;
+    private final AtomicLong leaks;
+
+    public MessagePool() {
+        this(DEFAULT_CAPACITY, DEFAULT_MAX_RETAINED_BYTES, DEFAULT_LEAK_SAMPLING);
+    }
+
+    /**
+     * @param capacity The most released messages kept by each reading thread
+     * @param maxRetainedBytes Released messages with a bigger frame are dropped rather than kept
+     * @param leakSampling Tracks every nth message handed out, 0 to not track any
+     */
+    public MessagePool(int capacity, int maxRetainedBytes, int leakSampling) {
+        this(capacity, maxRetainedBytes, leakSampling, null);
+    }
+
+    /**
+     * @param capacity The most released messages kept by each reading thread
+     * @param maxRetainedBytes Released messages with a bigger heap frame are dropped rather than kept
+     * @param leakSampling Tracks every nth message handed out, 0 to not track any, ignored with an arena
+     * @param arena The direct memory to read frames into, null to read them onto the heap
+     */
+    public MessagePool(int capacity, int maxRetainedBytes, int leakSampling, DirectArena arena) {
+        checkState(capacity > 0, "Invalid capacity : %d", capacity);
+        checkState(leakSampling >= 0, "Invalid leak sampling : %d", leakSampling);
+        this.capacity = capacity;
+        this.maxRetainedBytes = maxRetainedBytes;
+        this.leakSampling = nonNull(arena) ? 1 : leakSampling;
+        this.arena = arena;
+        this.localPools = ThreadLocal.withInitial(LocalPool::new);
+        this.collected = new ReferenceQueue<>();
+        this.tracked = ConcurrentHashMap.newKeySet();
+        this.leaks = new AtomicLong();
+    }
+
+    @Override
+    public PostmanMessage get() {
+        reportLeaks();
+        return localPools.get().take();
+    }
+
+    /**
+     * @return The direct memory frames are read into, null if they are read onto the heap
+     */
+    public DirectArena arena() {
+        return arena;
+    }
+
+    /**
+     * @return The number of tracked messages garbage collected without being released
+     */
+    public long leakedMessages() {
+        reportLeaks();
+        return leaks.get();
+    }
+
+    private void reportLeaks() {
+        Reference<? extends PostmanMessage> leaked;
+        while (nonNull(leaked = collected.poll())) {
+            LeakTracker tracker = (LeakTracker) leaked;
+            if (tracked.remove(tracker)) {
+                //Nothing can use the frame of a collected message
+                tracker.frameBuilder.free();
+                leaks.incrementAndGet();
+                Logcat.w(TAG, "PostmanMessage garbage collected without being released, " +
+                        "call release() once done with each message read from a peer");
+            }
+        }
+    }
+
+    /**
+     * The messages of a single reading thread
+     */
+    private final class LocalPool {
+        private final MpscQueue<PostmanMessage> released;
+        private final AtomicInteger size;
+        private final Consumer<PostmanMessage> recycler;
+        private int handedOut;
+
+        LocalPool() {
+            this.released = new MpscQueue<>();
+            this.size = new AtomicInteger();
+            this.recycler = this::recycle;
+        }
+
+        /**
+         * Only called by the thread the pool belongs to
+         */
+        PostmanMessage take() {
+            PostmanMessage msg = released.poll();
+            if (nonNull(msg)) {
+                size.decrementAndGet();
+            } else {
+                msg = new PostmanMessage(recycler, arena);
+            }
+
+            msg.handOut();
+            if (leakSampling > 0 && ++handedOut % leakSampling == 0) {
+                LeakTracker tracker = new LeakTracker(msg, collected);
+                msg.leakTracker = tracker;
+                tracked.add(tracker);
+            }
+            return msg;
+        }
+
+        /**
+         * Called by any thread releasing a message
+         */
+        void recycle(PostmanMessage msg) {
+            WeakReference<PostmanMessage> leakTracker = msg.leakTracker;
+            if (nonNull(leakTracker)) {
+                tracked.remove(leakTracker);
+                leakTracker.clear();
+                msg.leakTracker = null;
+            }
+
+            msg.reset();
+            if (msg.retainedBytes() > maxRetainedBytes) {
+                return;
+            }
+            if (size.incrementAndGet() > capacity) {
+                size.decrementAndGet();
+                return;
+            }
+            released.offer(msg);
+        }
+    }
+
+    private static final class LeakTracker extends WeakReference<PostmanMessage> {
+        //Does not refer back to the message
+        private final PostmanMessage.FrameBuilder frameBuilder;
+
+        LeakTracker(PostmanMessage msg, ReferenceQueue<PostmanMessage> collected) {
+            super(msg, collected);
+            this.frameBuilder = msg.frameBuilder();
+        }
+    }
+}
@@ -0,0 +1,28 @@
+package org.postman.server;
+
+/**
+ * The lane a message waits in to be written to a peer, see {@link PostmanMessage#setPriority(MessagePriority)}.
+ * The lanes of a {@link SendQueue} are drained by weighted round robin, so while the peer is busy each round sends
+ * up to the weight of each lane in messages, most important first. A lane with messages is never starved however
+ * busy the lanes above it are.
+ */
+public enum MessagePriority {
+    //Control plane messages, e.g. heartbeats, acks and window updates, which should not wait behind bulk data
+    HIGH(4),
+    NORMAL(2),
+    //Bulk data that can wait, e.g. telemetry
+    LOW(1);
+
+    private final int weight;
+
+    MessagePriority(int weight) {
+        this.weight = weight;
+    }
+
+    /**
+     * @return The most messages taken from the lane in each round
+     */
+    public int weight() {
+        return weight;
+    }
+}
@@ -0,0 +1,118 @@
+package org.postman.server;
+
+import android.support.annotation.NonNull;
+
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
+import java.util.function.Consumer;
+
+import static java.util.Objects.isNull;
+import static java.util.Objects.requireNonNull;
+
+/**
+ * An unbounded multi producer single consumer queue, a linked list in the style of Dmitry Vyukov's. Any number of
+ * threads can {@link #offer(Object)}, which is wait free as it takes a single atomic swap whatever the other
+ * producers are doing, while only one thread, e.g. an event loop, may take from it. The consumer never needs an
+ * atomic instruction and takes a whole batch with {@link #drain(Consumer)}.
+ *
+ * A producer links its element in just after swapping it in, so for that moment the consumer sees the queue end
+ * at the element before and takes the rest in its next drain. Nodes are not reused, as handing a node back to the
+ * producers would need a compare and swap loop that is not wait free.
+ */
+public final class MpscQueue<E> {
+
+    private final AtomicReference<Node<E>> tail;
+    //Only used by the consumer, the node holding the element last taken
+    private Node<E> head;
+
+    public MpscQueue() {
+        Node<E> stub = new Node<>(null);
+        this.head = stub;
+        this.tail = new AtomicReference<>(stub);
+    }
+
+    /**
+     * Adds the element to the tail of the queue, can be called from any thread
+     */
+    public void offer(@NonNull E element) {
+        Node<E> node = new Node<>(requireNonNull(element));
+        tail.getAndSet(node).lazySetNext(node);
+    }
+
+    /**
+     * Takes the element at the head of the queue, only called by the consumer
+     *
+     * @return The element or null if there is none
+     */
+    public E poll() {
+        Node<E> next = head.next;
+        if (isNull(next)) {
+            return null;
+        }
+        head = next;
+        return next.take();
+    }
+
+    /**
+     * Takes the elements offered before the drain started and passes them to the consumer in the order they were
+     * offered, only called by the consumer. Elements offered while draining are left for the next drain so a busy
+     * producer cannot keep the consumer here.
+     *
+     * @return The number of elements taken
+     */
+    public int drain(@NonNull Consumer<? super E> consumer) {
+        Node<E> last = tail.get();
+        int drained = 0;
+        Node<E> current = head;
+        while (current != last) {
+            Node<E> next = current.next;
+            if (isNull(next)) {
+                //Swapped in but not yet linked
+                break;
+            }
+            head = current = next;
+            drained++;
+            consumer.accept(next.take());
+        }
+        return drained;
+    }
+
+    /**
+     * Drops the queued elements, only called by the consumer
+     */
+    public void clear() {
+        drain(element -> {
+        });
+    }
+
+    /**
+     * Only exact for the consumer, to other threads it may have changed by the time it returns
+     */
+    public boolean isEmpty() {
+        return head == tail.get();
+    }
+
+    private static final class Node<E> {
+        @SuppressWarnings("rawtypes")
+        private static final AtomicReferenceFieldUpdater<Node, Node> NEXT =
+                AtomicReferenceFieldUpdater.newUpdater(Node.class, Node.class, "next");
+
+        private E element;
+        private volatile Node<E> next;
+
+        Node(E element) {
+            this.element = element;
+        }
+
+        void lazySetNext(Node<E> next) {
+            NEXT.lazySet(this, next);
+        }
+
+        E take() {
+            E taken = element;
+            //The node stays as the head until the next is taken, so do not hold on to the element
+            element = null;
+            return taken;
+        }
+    }
+}
@@ -0,0 +1,159 @@
+package org.postman.server;
+
+import android.support.annotation.NonNull;
+
+import com.google.protobuf.AbstractMessageLite;
+import com.google.protobuf.MessageLite;
+import com.siia.commons.core.log.Logcat;
+import com.siia.commons.core.timing.HashedWheelTimer;
+
+import org.postman.server.MessageOuterClass.RpcError;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+import io.reactivex.Single;
+import io.reactivex.SingleEmitter;
+
+import static java.util.Objects.isNull;
+import static java.util.Objects.nonNull;
+
+/**
+ * The requests a {@link PostmanClient} has sent and not yet had a response to. Each request is given an id
+ * which is sent in the envelope of the request and echoed in the envelope of the response, so any number of
+ * requests can be in flight on a connection at once and their responses can arrive in any order.
+ *
+ * Requests are kept in a {@link ConcurrentHashMap} by id so sending and completing requests from different
+ * threads never blocks. Timeouts are scheduled on the {@link HashedWheelTimer} of the client so they cost
+ * nothing until they expire and are cancelled when the response arrives.
+ */
+public final class PendingRequests {
+    private static final String TAG = Logcat.getTag();
+
+    private final HashedWheelTimer timer;
+    private final AtomicLong lastRequestId;
+    private final ConcurrentMap<Long, PendingRequest<?>> requestsById;
+
+    /**
+     * @param timer The timer to schedule request timeouts on, timed out requests fail on the thread advancing it
+     */
+    public PendingRequests(@NonNull HashedWheelTimer timer) {
+        this.timer = timer;
+        this.lastRequestId = new AtomicLong(PostmanMessage.NO_REQUEST_ID);
+        this.requestsById = new ConcurrentHashMap<>();
+    }
+
+    /**
+     * @param sender Sends the request, called when the returned {@link Single} is subscribed to
+     * @return A {@link Single} that sends the request when subscribed to and succeeds with the response. Disposing
+     * it before the response arrives drops the response.
+     */
+    public <T extends AbstractMessageLite> Single<T> request(@NonNull MessageLite msg, @NonNull Class<T> responseType,
+                                                     long timeout, @NonNull TimeUnit unit,
+                                                     @NonNull Consumer<PostmanMessage> sender) {
+        return Single.create(emitter -> {
+            long requestId = lastRequestId.incrementAndGet();
+            PendingRequest<T> request = new PendingRequest<>(emitter, responseType);
+            requestsById.put(requestId, request);
+            //Scheduled before sending so that a loop woken up by the send sees the timeout
+            request.timeout = timer.schedule(() -> fail(requestId,
+                    new TimeoutException(String.format("No response to request %d within %d %s", requestId, timeout, unit))),
+                    timeout, unit);
+            emitter.setCancellable(() -> remove(requestId));
+            sender.accept(PostmanMessage.request(msg, requestId));
+        });
+    }
+
+    /**
+     * Completes the request a response is for
+     *
+     * @return True if the message was a response and should not be passed on, it has been read by the time this
+     * returns so can then be released
+     */
+    public boolean handleMessage(@NonNull PostmanMessage msg) {
+        long requestId;
+        try {
+            requestId = msg.getResponseTo();
+        } catch (Exception e) {
+            Logcat.w(TAG, "Could not handle possible response", e);
+            return false;
+        }
+
+        if (requestId == PostmanMessage.NO_REQUEST_ID) {
+            return false;
+        }
+
+        PendingRequest<?> request = remove(requestId);
+        if (isNull(request)) {
+            Logcat.v(TAG, "Dropping response to request %d that timed out or was disposed", requestId);
+            return true;
+        }
+
+        request.complete(msg);
+        return true;
+    }
+
+    /**
+     * Fails every pending request, called when the connection is lost
+     */
+    public void failAll(@NonNull Throwable error) {
+        List<Long> requestIds = new ArrayList<>(requestsById.keySet());
+        requestIds.forEach(requestId -> fail(requestId, error));
+    }
+
+    /**
+     * @return The number of requests waiting for a response
+     */
+    public int size() {
+        return requestsById.size();
+    }
+
+    private void fail(long requestId, Throwable error) {
+        PendingRequest<?> request = remove(requestId);
+        if (nonNull(request)) {
+            request.emitter.tryOnError(error);
+        }
+    }
+
+    private PendingRequest<?> remove(long requestId) {
+        PendingRequest<?> request = requestsById.remove(requestId);
+        if (nonNull(request) && nonNull(request.timeout)) {
+            request.timeout.cancel();
+        }
+        return request;
+    }
+
+    private static final class PendingRequest<T extends AbstractMessageLite> {
+        private final SingleEmitter<T> emitter;
+        private final Class<T> responseType;
+        private volatile HashedWheelTimer.Timeout timeout;
+
+        PendingRequest(SingleEmitter<T> emitter, Class<T> responseType) {
+            this.emitter = emitter;
+            this.responseType = responseType;
+        }
+
+        void complete(PostmanMessage response) {
+            try {
+                if (response.isOfType(RpcError.class)) {
+                    RpcError error = response.getProtoObj();
+                    emitter.tryOnError(new RpcException(error.getMessage()));
+                } else if (response.isOfType(responseType)) {
+                    emitter.onSuccess(response.getProtoObj());
+                } else {
+                    emitter.tryOnError(new RpcException(String.format("Expected a %s response but got %s",
+                            responseType.getName(), response)));
+                }
+            } catch (Exception e) {
+                emitter.tryOnError(new IOException("Could not read response", e));
+            }
+        }
+    }
+}
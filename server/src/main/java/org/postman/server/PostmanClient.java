@@ -4,13 +4,17 @@ package org.postman.server;
 import android.support.annotation.AnyThread;
 import android.support.annotation.NonNull;
 
+import com.google.protobuf.AbstractMessageLite;
 import com.google.protobuf.MessageLite;
 
 import java.net.InetAddress;
 import java.nio.channels.SocketChannel;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
 
 
 import io.reactivex.Flowable;
+import io.reactivex.Single;
 
 /**
  * Class to be used when wanting to make a client connection to a {@link PostmanServer}.
@@ -38,6 +42,20 @@ public interface PostmanClient {
     @AnyThread
     Flowable<PostmanClientEvent> connect(@NonNull SocketChannel socketChannel, @NonNull InetAddress host, int port);
 
+    /**
+     * Same as {@link #connect(SocketChannel, InetAddress, int)} but events are emitted in batches rather
+     * than one at a time, reducing the overhead per event when receiving many small messages. A batch holds
+     * the events that occurred together, e.g. every message read in one pass of the event loop, in the order
+     * they occurred. Batches are never empty.
+     *
+     * @param socketChannel The socket channel to use when connecting to the client
+     * @param host The host to connect to
+     * @param port The post to connect to on the host.
+     * @return A Flowable that when subscribed will attempt to connect to the specified server
+     */
+    @AnyThread
+    Flowable<List<PostmanClientEvent>> connectBatched(@NonNull SocketChannel socketChannel, @NonNull InetAddress host, int port);
+
     /**
      * Add message to be sent. Messages are not guaranteed to be sent once this method returns (thus sending messages
      * are asynchronous operations).
@@ -59,6 +77,47 @@ public interface PostmanClient {
     @AnyThread
     void sendMessage(@NonNull MessageLite msg);
 
+    /**
+     * Sends a request which the server answers using the handler registered for its type, see
+     * {@link PostmanServer#handleRequests(Class, java.util.function.Function)}. Each request carries an id that
+     * the response echoes so any number of requests can be in flight at once, there is no need to wait for
+     * the response to one request before sending the next.
+     *
+     * @param msg The request to send
+     * @param responseType The type of the response
+     * @param timeout How long to wait for the response
+     * @param unit The unit of the timeout
+     * @return A {@link Single} that sends the request when subscribed to and succeeds with the response on the
+     * thread reading from the server. It fails with a {@link java.util.concurrent.TimeoutException} if the
+     * response does not arrive in time, an {@link RpcException} if the server could not handle the request and
+     * an {@link java.io.IOException} if the connection is lost first.
+     */
+    @AnyThread
+    <T extends AbstractMessageLite> Single<T> request(@NonNull MessageLite msg, @NonNull Class<T> responseType,
+                                                      long timeout, @NonNull TimeUnit unit);
+
+    /**
+     * Asks the server to send this client the messages published to the topic, see
+     * {@link PostmanServer#publish(String, MessageLite)}. The subscription is sent as a message so it is
+     * asynchronous and only applies to messages published after the server has read it.
+     *
+     * @param topic The topic to subscribe to, which can contain the wildcards described in {@link TopicSubscriptions}
+     */
+    @AnyThread
+    default void subscribe(@NonNull String topic) {
+        sendMessage(MessageOuterClass.Subscribe.newBuilder().setTopic(topic).build());
+    }
+
+    /**
+     * Asks the server to stop sending this client the messages published to the topic
+     *
+     * @param topic The topic to unsubscribe from
+     */
+    @AnyThread
+    default void unsubscribe(@NonNull String topic) {
+        sendMessage(MessageOuterClass.Unsubscribe.newBuilder().setTopic(topic).build());
+    }
+
     /**
      * Disconnects the client and cleans up any resources.
      */
@@ -72,4 +131,13 @@ public interface PostmanClient {
     @AnyThread
     boolean isConnected();
 
+    /**
+     * Round trip time statistics to the server, only recorded while heartbeats are enabled.
+     * See {@link PostmanConfig#heartbeatIntervalNanos()}.
+     * @return The round trip time of the current connection, which will have no samples if not connected
+     */
+    @AnyThread
+    @NonNull
+    RoundTripTime roundTripTime();
+
 }
@@ -13,7 +13,9 @@ import static java.util.Objects.nonNull;
  * One should pay attention to what methods are called on the event. e.g No message will be present if the
  * event represents a connected event.
  */
-public class PostmanClientEvent {
+public final class PostmanClientEvent {
+    private static final PostmanClientEvent CONNECTED = new PostmanClientEvent(Type.CONNECTED, null);
+
 
     public enum Type {
         //Sent once the client has successfully connected
@@ -22,18 +24,14 @@ public class PostmanClientEvent {
         NEW_MESSAGE,
     }
 
-    private Type type;
-    private PostmanMessage msg;
+    private final Type type;
+    private final PostmanMessage msg;
 
     private PostmanClientEvent(@NonNull Type type, PostmanMessage msg) {
         this.type = type;
         this.msg = msg;
     }
 
-    private PostmanClientEvent(Type type) {
-        this.type = type;
-    }
-
     public Type type() {
         return type;
     }
@@ -48,7 +46,7 @@ public class PostmanClientEvent {
     }
 
     public static PostmanClientEvent isConnectedEvent() {
-        return new PostmanClientEvent(Type.CONNECTED);
+        return CONNECTED;
     }
 
     public static PostmanClientEvent newMessage(@NonNull PostmanMessage msg) {
@@ -58,7 +56,7 @@ public class PostmanClientEvent {
     @Override
     public boolean equals(Object o) {
         return nonNull(o) && o instanceof PostmanClientEvent &&
-                Objects.equals(type, ((PostmanClientEvent) o).type) &&
+                type == ((PostmanClientEvent) o).type &&
                 Objects.equals(msg, ((PostmanClientEvent) o).msg);
     }
 
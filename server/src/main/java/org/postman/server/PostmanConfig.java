@@ -0,0 +1,437 @@
+package org.postman.server;
+
+import android.support.annotation.NonNull;
+
+import java.util.concurrent.TimeUnit;
+
+import static com.siia.commons.core.check.Check.checkState;
+
+/**
+ * Tuning options shared by {@link PostmanServer} and {@link PostmanClient} implementations.
+ * Every option has a default that matches the behaviour of a server/client created without a config
+ * so only the options that need changing have to be set. Time based options that are set to zero
+ * are disabled.
+ *
+ * <pre>
+ * PostmanConfig config = PostmanConfig.builder()
+ *         .readerIdleTime(30, TimeUnit.SECONDS)
+ *         .readTimeout(2, TimeUnit.MINUTES)
+ *         .heartbeatInterval(5, TimeUnit.SECONDS)
+ *         .build();
+ * </pre>
+ */
+public final class PostmanConfig {
+    private static final PostmanConfig DEFAULTS = builder().build();
+
+    private final long readerIdleTimeNanos;
+    private final long writerIdleTimeNanos;
+    private final long allIdleTimeNanos;
+    private final long readTimeoutNanos;
+    private final long heartbeatIntervalNanos;
+    private final int maxMissedHeartbeats;
+    private final long timerTickNanos;
+    private final int timerTicksPerWheel;
+    private final int maxConnections;
+    private final long acceptRatePermits;
+    private final long acceptRatePeriodNanos;
+    private final int acceptRateBurst;
+    private final int acceptBacklog;
+    private final int listeners;
+    private final int sendQueueHighWatermark;
+    private final int sendQueueLowWatermark;
+    private final SlowConsumerPolicy slowConsumerPolicy;
+    private final int maxFrameSize;
+    private final int connectionWindow;
+    private final int streamWindow;
+    private final int passBudgetBytes;
+    private final int passBudgetMessages;
+
+    private PostmanConfig(Builder builder) {
+        this.readerIdleTimeNanos = builder.readerIdleTimeNanos;
+        this.writerIdleTimeNanos = builder.writerIdleTimeNanos;
+        this.allIdleTimeNanos = builder.allIdleTimeNanos;
+        this.readTimeoutNanos = builder.readTimeoutNanos;
+        this.heartbeatIntervalNanos = builder.heartbeatIntervalNanos;
+        this.maxMissedHeartbeats = builder.maxMissedHeartbeats;
+        this.timerTickNanos = builder.timerTickNanos;
+        this.timerTicksPerWheel = builder.timerTicksPerWheel;
+        this.maxConnections = builder.maxConnections;
+        this.acceptRatePermits = builder.acceptRatePermits;
+        this.acceptRatePeriodNanos = builder.acceptRatePeriodNanos;
+        this.acceptRateBurst = builder.acceptRateBurst;
+        this.acceptBacklog = builder.acceptBacklog;
+        this.listeners = builder.listeners;
+        this.sendQueueHighWatermark = builder.sendQueueHighWatermark;
+        this.sendQueueLowWatermark = builder.sendQueueLowWatermark;
+        this.slowConsumerPolicy = builder.slowConsumerPolicy;
+        this.maxFrameSize = builder.maxFrameSize;
+        this.connectionWindow = builder.connectionWindow;
+        this.streamWindow = builder.streamWindow;
+        this.passBudgetBytes = builder.passBudgetBytes;
+        this.passBudgetMessages = builder.passBudgetMessages;
+    }
+
+    public static PostmanConfig defaults() {
+        return DEFAULTS;
+    }
+
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    /**
+     * @return Time without any data being read after which a connection is reported as reader idle, 0 if disabled
+     */
+    public long readerIdleTimeNanos() {
+        return readerIdleTimeNanos;
+    }
+
+    /**
+     * @return Time without any data being written after which a connection is reported as writer idle, 0 if disabled
+     */
+    public long writerIdleTimeNanos() {
+        return writerIdleTimeNanos;
+    }
+
+    /**
+     * @return Time without any data being read or written after which a connection is reported as idle, 0 if disabled
+     */
+    public long allIdleTimeNanos() {
+        return allIdleTimeNanos;
+    }
+
+    /**
+     * @return Time without any data being read after which a connection is closed, 0 if disabled
+     */
+    public long readTimeoutNanos() {
+        return readTimeoutNanos;
+    }
+
+    /**
+     * @return The interval at which heartbeats are sent to the peer to check liveness and measure
+     * the {@link RoundTripTime}, 0 if disabled. Heartbeats from the peer are always answered.
+     */
+    public long heartbeatIntervalNanos() {
+        return heartbeatIntervalNanos;
+    }
+
+    /**
+     * @return The number of consecutive heartbeats that can go unanswered before the peer is considered stalled
+     * and disconnected
+     */
+    public int maxMissedHeartbeats() {
+        return maxMissedHeartbeats;
+    }
+
+    /**
+     * @return The resolution of the timer used to track timeouts
+     */
+    public long timerTickNanos() {
+        return timerTickNanos;
+    }
+
+    /**
+     * @return The number of buckets in the timer used to track timeouts
+     */
+    public int timerTicksPerWheel() {
+        return timerTicksPerWheel;
+    }
+
+    /**
+     * @return The maximum number of clients a server will have connected at once, further connections are
+     * refused until a client leaves. 0 if unlimited
+     */
+    public int maxConnections() {
+        return maxConnections;
+    }
+
+    /**
+     * @return The number of connections a server will accept per {@link #acceptRatePeriodNanos()}, connections
+     * over the rate are refused. 0 if unlimited
+     */
+    public long acceptRatePermits() {
+        return acceptRatePermits;
+    }
+
+    /**
+     * @return The period over which {@link #acceptRatePermits()} connections are accepted
+     */
+    public long acceptRatePeriodNanos() {
+        return acceptRatePeriodNanos;
+    }
+
+    /**
+     * @return The number of connections that can be accepted at once after a quiet period when the accept
+     * rate is limited
+     */
+    public int acceptRateBurst() {
+        return acceptRateBurst;
+    }
+
+    /**
+     * @return The number of pending connections the operating system queues for the listening socket before
+     * refusing them, 0 for the platform default
+     */
+    public int acceptBacklog() {
+        return acceptBacklog;
+    }
+
+    /**
+     * @return The number of listening sockets a server binds to the same port using SO_REUSEPORT, each with
+     * its own event loop, so the operating system spreads new connections across them. Servers fall back to
+     * a single listener where SO_REUSEPORT is not supported
+     */
+    public int listeners() {
+        return listeners;
+    }
+
+    /**
+     * @return The number of messages queued to send to a peer at which the peer is considered a slow consumer
+     * and {@link #slowConsumerPolicy()} applies to further messages. 0 if unlimited
+     */
+    public int sendQueueHighWatermark() {
+        return sendQueueHighWatermark;
+    }
+
+    /**
+     * @return The number of messages queued to send to a slow consumer below which it is no longer considered slow
+     */
+    public int sendQueueLowWatermark() {
+        return sendQueueLowWatermark;
+    }
+
+    /**
+     * @return What to do with messages sent to a peer whose send queue is at {@link #sendQueueHighWatermark()}
+     */
+    public SlowConsumerPolicy slowConsumerPolicy() {
+        return slowConsumerPolicy;
+    }
+
+    /**
+     * @return The most bytes of a message written at once before moving on to the next stream, 0 if streams
+     * are not multiplexed and messages are written whole, see {@link StreamMultiplexer}
+     */
+    public int maxFrameSize() {
+        return maxFrameSize;
+    }
+
+    /**
+     * @return The most bytes a peer can send over a connection before it is granted more credit, 0 if unlimited,
+     * see {@link FlowControl}
+     */
+    public int connectionWindow() {
+        return connectionWindow;
+    }
+
+    /**
+     * @return The most bytes a peer can send on a stream before it is granted more credit, 0 if unlimited. Only
+     * applies while streams are multiplexed, see {@link #maxFrameSize()}
+     */
+    public int streamWindow() {
+        return streamWindow;
+    }
+
+    /**
+     * @return The most bytes read from, and the most written to, each connection in one pass of an NIO server's
+     * event loop, 0 if unlimited
+     */
+    public int passBudgetBytes() {
+        return passBudgetBytes;
+    }
+
+    /**
+     * @return The most messages read from, and the most written to, each connection in one pass of an NIO server's
+     * event loop, 0 if unlimited
+     */
+    public int passBudgetMessages() {
+        return passBudgetMessages;
+    }
+
+    /**
+     * @return True if the accept rate has been limited
+     */
+    public boolean isAcceptRateLimited() {
+        return acceptRatePermits > 0;
+    }
+
+    /**
+     * @return True if any of the idle or timeout options have been enabled
+     */
+    public boolean isIdleTrackingEnabled() {
+        return readerIdleTimeNanos > 0 || writerIdleTimeNanos > 0 || allIdleTimeNanos > 0 || readTimeoutNanos > 0;
+    }
+
+    public static final class Builder {
+        private long readerIdleTimeNanos = 0;
+        private long writerIdleTimeNanos = 0;
+        private long allIdleTimeNanos = 0;
+        private long readTimeoutNanos = 0;
+        private long heartbeatIntervalNanos = 0;
+        private int maxMissedHeartbeats = 3;
+        private long timerTickNanos = TimeUnit.MILLISECONDS.toNanos(100);
+        private int timerTicksPerWheel = 512;
+        private int maxConnections = 0;
+        private long acceptRatePermits = 0;
+        private long acceptRatePeriodNanos = 0;
+        private int acceptRateBurst = 0;
+        private int acceptBacklog = 0;
+        private int listeners = 1;
+        private int sendQueueHighWatermark = 0;
+        private int sendQueueLowWatermark = 0;
+        private SlowConsumerPolicy slowConsumerPolicy = SlowConsumerPolicy.DISCONNECT;
+        private int maxFrameSize = 0;
+        private int connectionWindow = 0;
+        private int streamWindow = 0;
+        private int passBudgetBytes = 0;
+        private int passBudgetMessages = 0;
+
+        private Builder() {
+        }
+
+        public Builder readerIdleTime(long time, @NonNull TimeUnit unit) {
+            readerIdleTimeNanos = toNanos(time, unit);
+            return this;
+        }
+
+        public Builder writerIdleTime(long time, @NonNull TimeUnit unit) {
+            writerIdleTimeNanos = toNanos(time, unit);
+            return this;
+        }
+
+        public Builder allIdleTime(long time, @NonNull TimeUnit unit) {
+            allIdleTimeNanos = toNanos(time, unit);
+            return this;
+        }
+
+        public Builder readTimeout(long time, @NonNull TimeUnit unit) {
+            readTimeoutNanos = toNanos(time, unit);
+            return this;
+        }
+
+        public Builder heartbeatInterval(long time, @NonNull TimeUnit unit) {
+            heartbeatIntervalNanos = toNanos(time, unit);
+            return this;
+        }
+
+        public Builder maxMissedHeartbeats(int missedHeartbeats) {
+            checkState(missedHeartbeats > 0, "Max missed heartbeats must be positive");
+            maxMissedHeartbeats = missedHeartbeats;
+            return this;
+        }
+
+        public Builder timerTick(long time, @NonNull TimeUnit unit) {
+            checkState(time > 0, "Timer tick must be positive");
+            timerTickNanos = unit.toNanos(time);
+            return this;
+        }
+
+        public Builder timerTicksPerWheel(int ticksPerWheel) {
+            checkState(ticksPerWheel > 0, "Ticks per wheel must be positive");
+            timerTicksPerWheel = ticksPerWheel;
+            return this;
+        }
+
+        public Builder maxConnections(int connections) {
+            checkState(connections >= 0, "Max connections cannot be negative : %d", connections);
+            maxConnections = connections;
+            return this;
+        }
+
+        /**
+         * Limits the rate at which connections are accepted, e.g. {@code acceptRate(500, 1, TimeUnit.SECONDS, 50)}
+         * accepts 500 connections a second with at most 50 at once.
+         */
+        public Builder acceptRate(long permits, long period, @NonNull TimeUnit unit, int burst) {
+            checkState(permits >= 0, "Accept rate permits cannot be negative : %d", permits);
+            checkState(permits == 0 || period > 0, "Accept rate period must be positive : %d", period);
+            checkState(permits == 0 || burst > 0, "Accept rate burst must be positive : %d", burst);
+            acceptRatePermits = permits;
+            acceptRatePeriodNanos = unit.toNanos(period);
+            acceptRateBurst = burst;
+            return this;
+        }
+
+        public Builder acceptBacklog(int backlog) {
+            checkState(backlog >= 0, "Accept backlog cannot be negative : %d", backlog);
+            acceptBacklog = backlog;
+            return this;
+        }
+
+        public Builder listeners(int count) {
+            checkState(count > 0, "Listeners must be positive : %d", count);
+            listeners = count;
+            return this;
+        }
+
+        /**
+         * Bounds the queue of messages to send to each peer, e.g. {@code sendQueueWatermarks(1000, 100)} applies
+         * the {@link #slowConsumerPolicy(SlowConsumerPolicy)} once 1000 messages are queued until the queue
+         * drains to 100.
+         */
+        public Builder sendQueueWatermarks(int high, int low) {
+            checkState(high >= 0, "High watermark cannot be negative : %d", high);
+            checkState(low >= 0 && (high == 0 || low < high), "Low watermark must be below the high watermark : %d", low);
+            sendQueueHighWatermark = high;
+            sendQueueLowWatermark = low;
+            return this;
+        }
+
+        public Builder slowConsumerPolicy(@NonNull SlowConsumerPolicy policy) {
+            slowConsumerPolicy = policy;
+            return this;
+        }
+
+        /**
+         * Multiplexes the streams of messages sent over each connection, see {@link PostmanMessage#getStreamId()},
+         * splitting messages into frames of up to the given size and interleaving the frames of different streams.
+         * Both the server and its clients have to use the same setting, e.g. {@code maxFrameSize(16 * 1024)}.
+         */
+        public Builder maxFrameSize(int bytes) {
+            checkState(bytes >= 0, "Max frame size cannot be negative : %d", bytes);
+            maxFrameSize = bytes;
+            return this;
+        }
+
+        /**
+         * Limits how much a peer can send before the receiver has passed on what it sent, e.g.
+         * {@code flowControlWindows(1024 * 1024, 256 * 1024)}. The windows should cover the bandwidth delay
+         * product of the link to keep it busy. Both the server and its clients have to use the same setting.
+         *
+         * @param connectionBytes The window of each connection, 0 if unlimited
+         * @param streamBytes The window of each stream of a connection, 0 if unlimited
+         */
+        public Builder flowControlWindows(int connectionBytes, int streamBytes) {
+            checkState(connectionBytes >= 0, "Connection window cannot be negative : %d", connectionBytes);
+            checkState(streamBytes >= 0, "Stream window cannot be negative : %d", streamBytes);
+            connectionWindow = connectionBytes;
+            streamWindow = streamBytes;
+            return this;
+        }
+
+        /**
+         * Limits how much an NIO server reads from and writes to each client in one pass of its event loop, so
+         * that a client sending or receiving a flood of messages cannot hold up the others. A client with more
+         * to read or write once its budget is spent carries on in the next pass. Reads stop after the read from
+         * the socket that uses up the budget, writes after the message, or frame, that does.
+         *
+         * @param bytes The byte budget each way, 0 if unlimited
+         * @param messages The message budget each way, 0 if unlimited
+         */
+        public Builder passBudget(int bytes, int messages) {
+            checkState(bytes >= 0, "Byte budget cannot be negative : %d", bytes);
+            checkState(messages >= 0, "Message budget cannot be negative : %d", messages);
+            passBudgetBytes = bytes;
+            passBudgetMessages = messages;
+            return this;
+        }
+
+        public PostmanConfig build() {
+            return new PostmanConfig(this);
+        }
+
+        private static long toNanos(long time, TimeUnit unit) {
+            checkState(time >= 0, "Time cannot be negative : %d", time);
+            return unit.toNanos(time);
+        }
+    }
+}
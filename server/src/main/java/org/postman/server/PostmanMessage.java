@@ -1,16 +1,19 @@
 package org.postman.server;
 
 import com.google.protobuf.AbstractMessageLite;
-import com.google.protobuf.ByteString;
+import com.google.protobuf.CodedInputStream;
 import com.google.protobuf.InvalidProtocolBufferException;
 import com.google.protobuf.MessageLite;
 import com.siia.commons.core.io.IO;
 import com.siia.commons.core.log.Logcat;
 
 import java.io.IOException;
+import java.lang.ref.WeakReference;
 import java.lang.reflect.InvocationTargetException;
 import java.nio.ByteBuffer;
-import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import java.util.function.Consumer;
 
 import static com.siia.commons.core.check.Check.checkState;
 import static java.util.Objects.isNull;
@@ -32,20 +35,53 @@ import static java.util.Objects.nonNull;
  *
  * The default constructor creates an instance which still has to be initalised with a buffer
  * using the read method. The read method can be called multiple times with buffers as they arrive and
- * the data will be copied in as needed until the amount of bytes as specified in the header is read in
+ * the data will be copied in as needed until the amount of bytes as specified in the header is read in.
+ * Only the thread reading the message from the peer calls read, the partly read bytes are kept by a
+ * {@link FrameBuilder} which is dropped once the message is complete.
  *
- * 2 Byte buffers used to represent the data.
+ * A complete message holds its header and body in a single frame buffer that is never written to again, so any
+ * number of threads, e.g. the connections a message is broadcast to, can take read only views of it with
+ * {@link #getFrame()}, {@link #getHeader()} and {@link #getBody()} without locking or copying.
  *
- * header   : 4 byte buffer that represents that size of the message. This means that the max message size is Integer.MAX_SIZE
- * body     : The body of the message whose size will be equal to that of what is in the header buffer.
+ * header   : 4 bytes that represent the size of the body. This means that the max message size is Integer.MAX_SIZE
+ * body     : The body of the message whose size will be equal to that of what is in the header.
  */
 public class PostmanMessage {
     private static final String TAG = Logcat.getTag();
     private static final int HEADER_LENGTH = Integer.BYTES;
-    private final AtomicBoolean hasFilledFrame;
-
-    private ByteBuffer body;
-    private ByteBuffer header;
+    private static final AtomicIntegerFieldUpdater<PostmanMessage> REF_COUNT =
+            AtomicIntegerFieldUpdater.newUpdater(PostmanMessage.class, "refCount");
+    /**
+     * The request id of messages that are not requests or responses
+     */
+    public static final long NO_REQUEST_ID = 0;
+    /**
+     * The stream of messages not sent on a stream of their own
+     */
+    public static final int DEFAULT_STREAM = 0;
+    /**
+     * The stream of protocol messages such as heartbeats, which are never held up by flow control
+     */
+    public static final int CONTROL_STREAM = -1;
+    /**
+     * The expiry of messages that are sent however long they wait
+     */
+    public static final long NO_EXPIRY = Long.MAX_VALUE;
+
+    //Read only, null until the message is complete
+    private volatile ByteBuffer frame;
+    //The bytes of a heap frame, set before it is published, null for a direct frame
+    private byte[] frameBytes;
+    private FrameBuilder frameBuilder;
+    //Takes the message back once released, null unless the message came from a MessagePool
+    private final Consumer<PostmanMessage> recycler;
+    private volatile int refCount;
+    WeakReference<PostmanMessage> leakTracker;
+    private volatile MessageOuterClass.Message envelope;
+    private String conflationKey;
+    private int streamId;
+    private MessagePriority priority = MessagePriority.NORMAL;
+    private long expiryNanos = NO_EXPIRY;
 
 
     /**
@@ -53,7 +89,15 @@ public class PostmanMessage {
      * is called and the buffers are filled as expected
      */
     public PostmanMessage() {
-        hasFilledFrame = new AtomicBoolean(false);
+        this.recycler = null;
+    }
+
+    /**
+     * Constructs an empty message of a {@link MessagePool}, which reads into memory of the arena when it has one
+     */
+    PostmanMessage(Consumer<PostmanMessage> recycler, DirectArena arena) {
+        this.recycler = recycler;
+        this.frameBuilder = new FrameBuilder(arena);
     }
 
     /**
@@ -62,77 +106,154 @@ public class PostmanMessage {
      * @param msg The protobuf message to use to initialise this object.
      */
     public PostmanMessage(MessageLite msg) {
+        this(msg, null);
+    }
+
+    /**
+     * Constructs a postman message from a Protobuf instance published to a topic. The message is serialised
+     * once here so the same instance can be sent to every subscriber of the topic.
+     * @param msg The protobuf message to use to initialise this object.
+     * @param topic The topic the message is published to, null if it is not published to a topic
+     */
+    public PostmanMessage(MessageLite msg, String topic) {
+        this(nonNull(topic) ? envelopeOf(msg).setTopic(topic) : envelopeOf(msg));
+    }
+
+    private PostmanMessage(MessageOuterClass.Message.Builder builder) {
+        MessageOuterClass.Message innerFrameMsg = builder.build();
+        byte[] body = innerFrameMsg.toByteArray();
+
+        ByteBuffer filled = ByteBuffer.allocate(HEADER_LENGTH + body.length);
+        filled.putInt(body.length);
+        filled.put(body);
+        filled.flip();
+        envelope = innerFrameMsg;
+        recycler = null;
+        publish(filled.array(), filled.asReadOnlyBuffer());
+    }
+
+    /**
+     * Constructs a request which the receiver is expected to answer with a {@link #response(MessageLite, long)}
+     * carrying the same id, see {@link PostmanClient#request(MessageLite, Class, long, java.util.concurrent.TimeUnit)}
+     * @param msg The protobuf message to use to initialise this object.
+     * @param requestId The id of the request, which cannot be {@link #NO_REQUEST_ID}
+     */
+    public static PostmanMessage request(MessageLite msg, long requestId) {
+        checkState(requestId != NO_REQUEST_ID, "Invalid request id : %d", requestId);
+        return new PostmanMessage(envelopeOf(msg).setRequestId(requestId));
+    }
+
+    /**
+     * Constructs the response to a request
+     * @param msg The protobuf message to use to initialise this object.
+     * @param requestId The id of the request being answered, see {@link #getRequestId()}
+     */
+    public static PostmanMessage response(MessageLite msg, long requestId) {
+        checkState(requestId != NO_REQUEST_ID, "Invalid request id : %d", requestId);
+        return new PostmanMessage(envelopeOf(msg).setResponseTo(requestId));
+    }
+
+    /**
+     * Constructs a message carrying state of which only the latest value matters, e.g. the current value of a
+     * gauge. While it waits to be sent it is replaced by any newer message queued to the same connection with
+     * the same conflation key, so a slow peer receives the latest state rather than a backlog of stale updates.
+     * @param msg The protobuf message to use to initialise this object.
+     * @param topic The topic the message is published to, null if it is not published to a topic
+     * @param conflationKey The key of the state carried by the message
+     */
+    public static PostmanMessage conflated(MessageLite msg, String topic, String conflationKey) {
+        checkState(nonNull(conflationKey), "Conflation key cannot be null");
+        PostmanMessage message = new PostmanMessage(msg, topic);
+        message.conflationKey = conflationKey;
+        return message;
+    }
+
+    /**
+     * Constructs a protocol message sent on the {@link #CONTROL_STREAM} with {@link MessagePriority#HIGH} priority
+     * @param msg The protobuf message to use to initialise this object.
+     */
+    public static PostmanMessage control(MessageLite msg) {
+        PostmanMessage message = new PostmanMessage(msg);
+        message.streamId = CONTROL_STREAM;
+        message.priority = MessagePriority.HIGH;
+        return message;
+    }
+
+    /**
+     * Constructs the response to a request from a message already serialised, e.g. one response shared by
+     * several requests, without serialising the protobuf object again
+     * @param msg The message to respond with
+     * @param requestId The id of the request being answered, see {@link #getRequestId()}
+     */
+    static PostmanMessage response(PostmanMessage msg, long requestId) throws InvalidProtocolBufferException {
+        checkState(requestId != NO_REQUEST_ID, "Invalid request id : %d", requestId);
+        return new PostmanMessage(msg.envelope().toBuilder().setResponseTo(requestId));
+    }
+
+    private static MessageOuterClass.Message.Builder envelopeOf(MessageLite msg) {
         checkState(msg.isInitialized(), "Cannot initialise postman message with invalid protobuf object");
-        MessageOuterClass.Message innerFrameMsg = MessageOuterClass.Message.newBuilder()
+        return MessageOuterClass.Message.newBuilder()
                 .setType(msg.getClass().getName())
-                .setData(ByteString.copyFrom(msg.toByteArray())).build();
-
-        body = ByteBuffer.wrap(innerFrameMsg.toByteArray());
-        hasFilledFrame = new AtomicBoolean(true);
+                .setData(msg.toByteString());
     }
 
     /**
-     * Creates a copy of the postman message with a copy of the buffers from he msg parameter.
+     * Creates a copy of the postman message, sharing its frame as neither ever writes to it. The frame of a
+     * message from a {@link MessagePool} is copied, as it is read into again once the message is released.
      * @param msg The PostmanMessage to copy
      */
     public PostmanMessage(PostmanMessage msg) {
         checkState(msg.isInitialised(), "Cannot initialise postman message with uninitialised postman messaage");
-        this.body = msg.getBody();
-        this.header = msg.getHeader();
-        hasFilledFrame = new AtomicBoolean(true);
-
+        this.recycler = null;
+        if (nonNull(msg.recycler)) {
+            ByteBuffer copy = ByteBuffer.allocate(msg.getFrameLength());
+            copy.put(msg.getFrame());
+            copy.flip();
+            publish(copy.array(), copy.asReadOnlyBuffer());
+        } else {
+            this.frameBytes = msg.frameBytes;
+            this.frame = msg.frame;
+        }
+        this.envelope = msg.envelope;
+        this.conflationKey = msg.conflationKey;
+        this.streamId = msg.streamId;
+        this.priority = msg.priority;
+        this.expiryNanos = msg.expiryNanos;
     }
 
     /**
      * Returns a bytebuffer that contains the full frame of this PostmanMessage, that is
      * the header and body. Will throw an exception of the message
-     * has not been properly initialised. The buffer returned will have been flipped
-     * meaning its position will be at zero
-     * @return A ByteBuffer with the bytes in this message's body+header
+     * has not been properly initialised. The buffer returned will have its position at zero.
+     *
+     * Each call returns a read only view of the same bytes with its own position so a message sent to many
+     * connections is not copied for each of them.
+     * @return A ByteBuffer with the bytes in this message's header+body
      */
-    public synchronized ByteBuffer getFrame() {
-        checkState(hasFilledFrame.get(), "Frame not filled");
-        ByteBuffer frame = ByteBuffer.allocate(HEADER_LENGTH + body.limit());
-        frame.putInt(body.limit());
-        frame.put(body);
-        frame.flip();
-        body.rewind();
-        return frame;
+    public ByteBuffer getFrame() {
+        return filledFrame().duplicate();
     }
 
     /**
-     * Returns a copy of the header buffer. Throws an Exception if the postman message
-     * has not been properly initialised. The buffer returned will have been flipped
-     * meaning its position will be at zero
+     * Returns a read only view of the header. Throws an Exception if the postman message
+     * has not been properly initialised. The buffer returned will have its position at zero
      * @return A ByteBuffer with the bytes in this message's header
      */
-    public synchronized ByteBuffer getHeader() {
-        checkState(hasFilledFrame.get(), "Frame not filled");
-        header.rewind();
-
-        ByteBuffer headerCopy = ByteBuffer.allocate(HEADER_LENGTH);
-        headerCopy.put(header);
-        headerCopy.flip();
-        header.rewind();
-        return headerCopy;
-
+    public ByteBuffer getHeader() {
+        ByteBuffer header = filledFrame().duplicate();
+        header.limit(HEADER_LENGTH);
+        return header.slice();
     }
 
     /**
-     * Returns a copy of the body buffer. Throws an Exception if the postman message
-     * has not been properly initialised. The buffer returned will have been flipped
-     * meaning its position will be at zero
+     * Returns a read only view of the body. Throws an Exception if the postman message
+     * has not been properly initialised. The buffer returned will have its position at zero
      * @return A ByteBuffer with the bytes in this message's body
      */
-    public synchronized ByteBuffer getBody() {
-        checkState(hasFilledFrame.get(), "Frame not filled");
-        body.rewind();
-        ByteBuffer copy = ByteBuffer.allocate(body.limit());
-        copy.put(body);
-        copy.flip();
-        body.rewind();
-        return copy;
-
+    public ByteBuffer getBody() {
+        ByteBuffer body = filledFrame().duplicate();
+        body.position(HEADER_LENGTH);
+        return body.slice();
     }
 
     /**
@@ -151,12 +272,7 @@ public class PostmanMessage {
     @SuppressWarnings("unchecked")
     public <T extends AbstractMessageLite> T getProtoObj() throws InvalidProtocolBufferException,
             IllegalAccessException, InvocationTargetException, ClassNotFoundException, NoSuchMethodException {
-        checkState(hasFilledFrame.get(), "Frame not filled");
-
-        //TODO improve the perf here by reusing the body buffer field directly
-        ByteBuffer body = getBody();
-
-        MessageOuterClass.Message innerFrameMsg = MessageOuterClass.Message.parseFrom(body.array());
+        MessageOuterClass.Message innerFrameMsg = envelope();
             return (T)Class.forName(innerFrameMsg.getType())
                     .getMethod("parseFrom", byte[].class)
                     .invoke(null, (Object) innerFrameMsg.getData().toByteArray());
@@ -174,10 +290,168 @@ public class PostmanMessage {
     public boolean isOfType(Class<? extends AbstractMessageLite> type) throws InvalidProtocolBufferException {
 
         //TODO improve performance here by splitting out the type from the body and only reading in that
-        ByteBuffer body = getBody();
-        MessageOuterClass.Message innerFrameMsg = MessageOuterClass.Message.parseFrom(body.array());
+        return envelope().getType().equalsIgnoreCase(type.getName());
+    }
 
-        return innerFrameMsg.getType().equalsIgnoreCase(type.getName());
+    /**
+     * Returns the topic this message was published to. Throws an exception if the message has not been
+     * initialised fully.
+     *
+     * @return The topic, null if the message was not published to a topic
+     * @throws InvalidProtocolBufferException
+     */
+    public String getTopic() throws InvalidProtocolBufferException {
+        MessageOuterClass.Message innerFrameMsg = envelope();
+        return innerFrameMsg.hasTopic() ? innerFrameMsg.getTopic() : null;
+    }
+
+    /**
+     * The expiry is only used while the message is queued to be sent and is not sent to the peer
+     * @return The {@link System#nanoTime()} after which the message is no longer worth sending, {@link #NO_EXPIRY}
+     * unless set
+     */
+    public long getExpiryNanos() {
+        return expiryNanos;
+    }
+
+    /**
+     * Drops the message instead of sending it if it is still waiting in the send queue once the time to live has
+     * passed, e.g. for a sensor reading that is stale by then. A message being written when it expires is still
+     * written whole.
+     * @param timeToLive How long the message is worth sending for from now
+     * @param unit The unit of the timeToLive
+     * @return This message
+     */
+    public PostmanMessage setTimeToLive(long timeToLive, TimeUnit unit) {
+        checkState(timeToLive >= 0, "Time to live cannot be negative : %d", timeToLive);
+        this.expiryNanos = System.nanoTime() + unit.toNanos(timeToLive);
+        return this;
+    }
+
+    /**
+     * @param nowNanos The current {@link System#nanoTime()}
+     * @return True if the message has a time to live that has passed
+     */
+    public boolean isExpired(long nowNanos) {
+        return expiryNanos != NO_EXPIRY && nowNanos - expiryNanos > 0;
+    }
+
+    /**
+     * The conflation key is only used while the message is queued to be sent and is not sent to the peer
+     * @return The key set by {@link #conflated(MessageLite, String, String)}, null if the message is not conflated
+     */
+    public String getConflationKey() {
+        return conflationKey;
+    }
+
+    /**
+     * Messages are delivered in the order they were sent within their stream. Messages on different streams
+     * are independent of each other, so when streams are multiplexed, see {@link PostmanConfig#maxFrameSize()},
+     * a large message on one stream does not hold up messages on the others.
+     * @return The stream the message is sent on, or was received on
+     */
+    public int getStreamId() {
+        return streamId;
+    }
+
+    /**
+     * Sets the stream the message is sent on, which has to be done before the message is sent
+     * @param streamId The stream, {@link #DEFAULT_STREAM} unless set
+     * @return This message
+     */
+    public PostmanMessage setStreamId(int streamId) {
+        checkState(streamId >= 0, "Invalid stream id : %d", streamId);
+        this.streamId = streamId;
+        return this;
+    }
+
+    /**
+     * The priority is only used while the message is queued to be sent and is not sent to the peer
+     * @return The lane the message waits in to be sent, {@link MessagePriority#NORMAL} unless set
+     */
+    public MessagePriority getPriority() {
+        return priority;
+    }
+
+    /**
+     * Sets the lane the message waits in to be sent, which has to be done before the message is queued
+     * @return This message
+     */
+    public PostmanMessage setPriority(MessagePriority priority) {
+        checkState(nonNull(priority), "Priority cannot be null");
+        this.priority = priority;
+        return this;
+    }
+
+    /**
+     * Sets the stream a message was received on, which can be the {@link #CONTROL_STREAM}
+     */
+    PostmanMessage receivedOn(int streamId) {
+        this.streamId = streamId;
+        return this;
+    }
+
+    /**
+     * @return The number of bytes of the message's frame, see {@link #getFrame()}, without copying it
+     */
+    public int getFrameLength() {
+        return filledFrame().limit();
+    }
+
+    /**
+     * Returns the id of the request if this message is a request. Throws an exception if the message has
+     * not been initialised fully.
+     *
+     * @return The id of the request, {@link #NO_REQUEST_ID} if the message is not a request
+     * @throws InvalidProtocolBufferException
+     */
+    public long getRequestId() throws InvalidProtocolBufferException {
+        MessageOuterClass.Message innerFrameMsg = envelope();
+        return innerFrameMsg.hasRequestId() ? innerFrameMsg.getRequestId() : NO_REQUEST_ID;
+    }
+
+    /**
+     * Returns the id of the request this message answers if this message is a response. Throws an exception
+     * if the message has not been initialised fully.
+     *
+     * @return The id of the request, {@link #NO_REQUEST_ID} if the message is not a response
+     * @throws InvalidProtocolBufferException
+     */
+    public long getResponseTo() throws InvalidProtocolBufferException {
+        MessageOuterClass.Message innerFrameMsg = envelope();
+        return innerFrameMsg.hasResponseTo() ? innerFrameMsg.getResponseTo() : NO_REQUEST_ID;
+    }
+
+    /**
+     * Parses the {@link MessageOuterClass.Message} envelope of the body the first time it is needed and
+     * caches it so that checking the type and then extracting the protobuf object only parses the body once.
+     */
+    MessageOuterClass.Message envelope() throws InvalidProtocolBufferException {
+        ByteBuffer filled = filledFrame();
+        MessageOuterClass.Message parsed = envelope;
+        if (isNull(parsed)) {
+            //Racing threads may both parse, either result will do
+            byte[] bytes = frameBytes;
+            parsed = nonNull(bytes)
+                    ? MessageOuterClass.Message.parser().parseFrom(bytes, HEADER_LENGTH, filled.limit() - HEADER_LENGTH)
+                    : MessageOuterClass.Message.parser().parseFrom(CodedInputStream.newInstance(getBody()));
+            envelope = parsed;
+        }
+        return parsed;
+    }
+
+    private ByteBuffer filledFrame() {
+        ByteBuffer filled = frame;
+        checkState(nonNull(filled), "Frame not filled");
+        return filled;
+    }
+
+    /**
+     * Makes the complete frame visible to other threads, after which its bytes are never written to
+     */
+    private void publish(byte[] bytes, ByteBuffer readOnlyFrame) {
+        frameBytes = bytes;
+        frame = readOnlyFrame;
     }
 
 
@@ -196,55 +470,118 @@ public class PostmanMessage {
      * 0 or less bytes.
      */
     public boolean read(ByteBuffer buffer) throws InvalidPostmanMessageException {
-        checkState(!hasFilledFrame.get(), "Frame filled");
+        checkState(isNull(frame), "Frame filled");
 
         if (!buffer.hasRemaining()) {
             Logcat.w(TAG, "Empty frame not being read");
             return false;
         }
 
-        if (isNull(header)) {
-            header = ByteBuffer.allocate(HEADER_LENGTH);
+        if (isNull(frameBuilder)) {
+            frameBuilder = new FrameBuilder();
         }
 
-        if (header.hasRemaining()) {
-            IO.copyUntilDestinationFull(buffer, header);
+        FrameBuilder builder = frameBuilder;
+        if (!builder.read(buffer)) {
+            return false;
         }
 
-        if (isNull(body) && !header.hasRemaining()) {
+        if (isNull(recycler)) {
+            //Only pooled messages keep the builder, to read the next message into the same bytes
+            frameBuilder = null;
+        }
+        publish(builder.heapBytes(), builder.readOnlyFrame());
+        return true;
+    }
 
-            int bodyLength = header.getInt(0);
+    /**
+     * @return True once the header has been read and until the body has been, i.e. while the message holds
+     * the memory of a frame that is only partly filled
+     */
+    public boolean isReadingBody() {
+        return nonNull(frameBuilder) && frameBuilder.readingBody;
+    }
 
-            if (bodyLength <= 0) {
-                throw new InvalidPostmanMessageException(String.format("Invalid frame value %s", bodyLength));
-            }
+    /**
+     * Checks to see if the frame has been filled and this message can be used.
+     * {@see #read(ByteBuffer)}
+     * @return True if the message has been initialised, otherwise false
+     */
+    public boolean isInitialised() {
+        return nonNull(frame);
+    }
 
-            body = ByteBuffer.allocate(bodyLength);
-        }
+    /**
+     * @return True if the message is from a {@link MessagePool}, so its frame is read into again once released
+     */
+    public boolean isPooled() {
+        return nonNull(recycler);
+    }
 
-        if (nonNull(body)) {
-            if (buffer.hasRemaining()) {
-                IO.copyUntilDestinationFull(buffer, body);
-            }
+    /**
+     * Counts another holder of a message from a {@link MessagePool}, e.g. a second thread it is handed to, which
+     * has to {@link #release()} it too. Does nothing for messages not from a pool. Can be called from any thread.
+     * @return This message
+     */
+    public PostmanMessage retain() {
+        if (nonNull(recycler)) {
+            int count;
+            do {
+                count = refCount;
+                checkState(count > 0, "Message already released");
+            } while (!REF_COUNT.compareAndSet(this, count, count + 1));
+        }
+        return this;
+    }
 
-            if (!body.hasRemaining()) {
-                hasFilledFrame.set(true);
-                body.flip();
+    /**
+     * Hands a message read from a peer back to the {@link MessagePool} it came from once the subscriber, and
+     * every other holder counted by {@link #retain()}, is done with it, so its bytes are reused for a later
+     * message. Neither the message nor any buffer taken from it can be used afterwards. Does nothing for messages
+     * not from a pool, and messages never released are simply garbage collected. Can be called from any thread.
+     */
+    public void release() {
+        if (nonNull(recycler)) {
+            int count = REF_COUNT.decrementAndGet(this);
+            checkState(count >= 0 && isInitialised(), "Message not filled or already released");
+            if (count == 0) {
+                recycler.accept(this);
             }
         }
+    }
 
-        return hasFilledFrame.get();
+    /**
+     * Called by the pool each time it hands the message out to be read into
+     */
+    void handOut() {
+        refCount = 1;
+    }
 
+    /**
+     * @return The builder of a pooled message, which holds the memory of its frame
+     */
+    FrameBuilder frameBuilder() {
+        return frameBuilder;
+    }
 
+    /**
+     * Empties a released message so it can be read into again
+     */
+    void reset() {
+        frameBuilder.free();
+        frame = null;
+        envelope = null;
+        conflationKey = null;
+        streamId = DEFAULT_STREAM;
+        priority = MessagePriority.NORMAL;
+        expiryNanos = NO_EXPIRY;
     }
 
     /**
-     * Checks to see if the internal buffers have been filled and this message can be used.
-     * {@see #read(ByteBuffer)}
-     * @return True if the message has been initialised, otherwise false
+     * @return The bytes kept to read the next message into
      */
-    public boolean isInitialised() {
-        return hasFilledFrame.get();
+    int retainedBytes() {
+        return isNull(frameBuilder) ? 0 : frameBuilder.capacity();
     }
 
     @Override
@@ -260,13 +597,127 @@ public class PostmanMessage {
             }
         }
 
+        ByteBuffer filled = frame;
         return "PostmanMessage{" +
-                "bPos=" + body.position() + " " +
-                "bLimit=" + body.limit() + " " +
-                "bCapacity=" + body.capacity() + " " +
+                "fLength=" + (nonNull(filled) ? filled.limit() : 0) + " " +
                 "iF=" + innerMessage + " }";
     }
 
+    /**
+     * The mutable state of a message being read, only used by the reading thread. Reads the header then
+     * the body straight into the frame so the frame is not copied once complete. A pooled message reads into
+     * memory of its {@link DirectArena} when it has one and there is memory left, otherwise into heap bytes that
+     * are reused for the next message read when they are big enough, see {@link MessagePool}.
+     */
+    static final class FrameBuilder {
+        private final DirectArena arena;
+        private final ByteBuffer header = ByteBuffer.allocate(HEADER_LENGTH);
+        private ByteBuffer heapFrame;
+        private ByteBuffer heapReadOnlyFrame;
+        private DirectArena.Slice slice;
+        private ByteBuffer frame;
+        private ByteBuffer readOnlyFrame;
+        private boolean readingBody;
+
+        FrameBuilder() {
+            this(null);
+        }
+
+        FrameBuilder(DirectArena arena) {
+            this.arena = arena;
+        }
+
+        /**
+         * @return True once the body has been read in
+         */
+        boolean read(ByteBuffer buffer) throws InvalidPostmanMessageException {
+            if (header.hasRemaining()) {
+                IO.copyUntilDestinationFull(buffer, header);
+            }
+
+            if (!readingBody && !header.hasRemaining()) {
+
+                int bodyLength = header.getInt(0);
+
+                if (bodyLength <= 0) {
+                    throw new InvalidPostmanMessageException(String.format("Invalid frame value %s", bodyLength));
+                }
+
+                allocate(HEADER_LENGTH + bodyLength);
+                frame.putInt(bodyLength);
+                readingBody = true;
+            }
+
+            if (!readingBody) {
+                return false;
+            }
+
+            if (buffer.hasRemaining()) {
+                IO.copyUntilDestinationFull(buffer, frame);
+            }
+
+            if (frame.hasRemaining()) {
+                return false;
+            }
+
+            //Ready for the next message
+            header.clear();
+            readingBody = false;
+            return true;
+        }
+
+        private void allocate(int frameLength) {
+            if (nonNull(arena)) {
+                slice = arena.allocate(frameLength);
+                if (nonNull(slice)) {
+                    frame = slice.memory();
+                    readOnlyFrame = frame.asReadOnlyBuffer();
+                    return;
+                }
+            }
+
+            if (isNull(heapFrame) || heapFrame.capacity() < frameLength) {
+                heapFrame = ByteBuffer.allocate(frameLength);
+                heapReadOnlyFrame = heapFrame.asReadOnlyBuffer();
+            }
+            heapFrame.clear();
+            heapFrame.limit(frameLength);
+            frame = heapFrame;
+            readOnlyFrame = heapReadOnlyFrame;
+        }
+
+        /**
+         * @return The bytes of the frame last read, null if it is in direct memory
+         */
+        byte[] heapBytes() {
+            return frame == heapFrame ? heapFrame.array() : null;
+        }
+
+        /**
+         * @return The frame last read with its position at zero
+         */
+        ByteBuffer readOnlyFrame() {
+            readOnlyFrame.clear();
+            readOnlyFrame.limit(frame.limit());
+            return readOnlyFrame;
+        }
+
+        /**
+         * Hands the arena memory of the frame back, once the message is released or found to have leaked
+         */
+        void free() {
+            DirectArena.Slice held = slice;
+            if (nonNull(held)) {
+                slice = null;
+                held.free();
+            }
+        }
+
+        int capacity() {
+            return isNull(heapFrame) ? 0 : heapFrame.capacity();
+        }
+    }
+
     public static class InvalidPostmanMessageException extends IOException {
         InvalidPostmanMessageException(String message) {
             super(message);
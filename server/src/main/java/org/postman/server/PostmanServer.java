@@ -3,12 +3,17 @@ package org.postman.server;
 import android.support.annotation.AnyThread;
 import android.support.annotation.NonNull;
 
+import com.google.protobuf.AbstractMessageLite;
 import com.google.protobuf.MessageLite;
 
 import java.net.InetSocketAddress;
+import java.util.List;
 import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
 
 import io.reactivex.Flowable;
+import io.reactivex.Single;
 
 /**
  * A PostmanServer is a server which can accept {@link PostmanClient} connections and communicate using
@@ -32,6 +37,18 @@ public interface PostmanServer {
     @AnyThread
     Flowable<PostmanServerEvent> serverStart(@NonNull InetSocketAddress bindAddress);
 
+    /**
+     * Same as {@link #serverStart(InetSocketAddress)} but events are emitted in batches rather than one at
+     * a time, reducing the overhead per event when clients send many small messages. A batch holds the
+     * events that occurred together, e.g. every message read in one pass of the event loop, in the order
+     * they occurred. Batches are never empty.
+     *
+     * @param bindAddress The socket address to bind to.
+     * @return A flowable that when subscribed to will bind a server socket and stream batches of events
+     */
+    @AnyThread
+    Flowable<List<PostmanServerEvent>> serverStartBatched(@NonNull InetSocketAddress bindAddress);
+
     /**
      * Shuts down the server and disconnects any clients that are connected while releasing
      * any resources. If server is not running, this method does nothing.
@@ -39,6 +56,20 @@ public interface PostmanServer {
     @AnyThread
     void stopServer();
 
+    /**
+     * Gracefully shuts down the server. No more clients are accepted and messages already queued are sent
+     * before each client is disconnected, with progress reported through
+     * {@link PostmanServerEvent.Type#SERVER_DRAINING}, {@link PostmanServerEvent.Type#CLIENT_DISCONNECT} and
+     * {@link PostmanServerEvent.Type#SERVER_DRAINED} events. Clients still not drained once the timeout passes
+     * are disconnected as with {@link #stopServer()}. Returns straight away, the event stream completes once
+     * the server has shut down. If server is not running, this method does nothing.
+     *
+     * @param drainTimeout How long to wait for queued messages to be sent
+     * @param unit The unit of the drainTimeout
+     */
+    @AnyThread
+    void stopServer(long drainTimeout, @NonNull TimeUnit unit);
+
     /**
      * Checks to see if the server is running
      * @return True if running, otherwise false
@@ -52,7 +83,87 @@ public interface PostmanServer {
      * @param msg The message to broadcast to all clients
      */
     @AnyThread
-    void broadcastMessage(MessageLite msg);
+    default void broadcastMessage(MessageLite msg) {
+        broadcastMessage(msg, MessagePriority.NORMAL);
+    }
+
+    /**
+     * Same as {@link #broadcastMessage(MessageLite)} with the message waiting in the given lane of each client's
+     * send queue, see {@link SendQueue}
+     * @param msg The message to broadcast to all clients
+     * @param priority The lane the message waits in to be sent
+     */
+    @AnyThread
+    void broadcastMessage(@NonNull MessageLite msg, @NonNull MessagePriority priority);
+
+    /**
+     * Sends a message to the clients subscribed to the topic, either by calling {@link #subscribe(Connection, String)}
+     * or from the client with {@link PostmanClient#subscribe(String)}. The message is serialised once for all
+     * subscribers and its topic can be read on the client using {@link PostmanMessage#getTopic()}. As with
+     * {@link #broadcastMessage(MessageLite)} sending is asynchronous.
+     * @param topic The topic to publish to, which cannot contain wildcards
+     * @param msg The message to send to the subscribers
+     */
+    @AnyThread
+    void publish(@NonNull String topic, @NonNull MessageLite msg);
+
+    /**
+     * Same as {@link #publish(String, MessageLite)} for messages carrying the latest state of the topic, e.g.
+     * a price or a gauge reading. A message still waiting to be sent to a subscriber is replaced by the next
+     * one published to the topic, see {@link PostmanMessage#conflated(MessageLite, String, String)}.
+     * @param topic The topic to publish to, which cannot contain wildcards
+     * @param msg The message to send to the subscribers
+     */
+    @AnyThread
+    void publishLatest(@NonNull String topic, @NonNull MessageLite msg);
+
+    /**
+     * Subscribes the client to the messages published to the topic. Subscriptions are removed when the client
+     * disconnects.
+     * @param client The client to subscribe
+     * @param topic The topic to subscribe to, which can contain the wildcards described in {@link TopicSubscriptions}
+     */
+    @AnyThread
+    void subscribe(@NonNull Connection client, @NonNull String topic);
+
+    /**
+     * Stops sending the client the messages published to the topic
+     * @param client The client to unsubscribe
+     * @param topic The topic to unsubscribe from
+     */
+    @AnyThread
+    void unsubscribe(@NonNull Connection client, @NonNull String topic);
+
+    /**
+     * Answers the requests of a type sent with {@link PostmanClient#request(MessageLite, Class, long, TimeUnit)}.
+     * Requests are passed to the handler rather than emitted as {@link PostmanServerEvent.Type#NEW_MESSAGE} events
+     * and the handler is called on the thread reading from the client, so it should return straight away with a
+     * {@link Single} that does any slow work elsewhere. The response is sent once the {@link Single} succeeds,
+     * if it fails or there is no handler for a request the client's request fails with an {@link RpcException}.
+     * Registering a handler for a type replaces the previous one.
+     *
+     * @param requestType The type of request to handle
+     * @param handler Returns the response to a request
+     */
+    @AnyThread
+    default <Q extends AbstractMessageLite> void handleRequests(@NonNull Class<Q> requestType,
+                                                                @NonNull Function<Q, Single<? extends MessageLite>> handler) {
+        handleRequests(requestType, handler, RequestCoalescing.none());
+    }
+
+    /**
+     * Same as {@link #handleRequests(Class, Function)} but identical requests can share a call to the handler
+     * and its serialised response, e.g. so that every client fetching the same resource at the same moment
+     * costs a single call
+     *
+     * @param requestType The type of request to handle
+     * @param handler Returns the response to a request
+     * @param coalescing Whether identical requests share responses
+     */
+    @AnyThread
+    <Q extends AbstractMessageLite> void handleRequests(@NonNull Class<Q> requestType,
+                                                        @NonNull Function<Q, Single<? extends MessageLite>> handler,
+                                                        @NonNull RequestCoalescing coalescing);
 
     /**
      * Sends a message to the specified client. This operation is asynchronous.
@@ -72,6 +183,32 @@ public interface PostmanServer {
     @AnyThread
     void sendMessage(@NonNull MessageLite message, @NonNull Connection client);
 
+    /**
+     * Same as {@link #sendMessage(MessageLite, Connection)} with the message waiting in the given lane of the
+     * client's send queue, e.g. {@link MessagePriority#HIGH} for acks that should not wait behind bulk data
+     *
+     * @param msg The message to send
+     * @param client The client to send the message to.
+     * @param priority The lane the message waits in to be sent
+     */
+    @AnyThread
+    default void sendMessage(@NonNull MessageLite msg, @NonNull Connection client, @NonNull MessagePriority priority) {
+        sendMessage(new PostmanMessage(msg).setPriority(priority), client);
+    }
+
+    /**
+     * Sends the client the latest state for the key. A message with the same key still waiting to be sent to
+     * the client is replaced rather than sent, see {@link PostmanMessage#conflated(MessageLite, String, String)}.
+     *
+     * @param msg The message to send
+     * @param conflationKey The key of the state carried by the message
+     * @param client The client to send the message to.
+     */
+    @AnyThread
+    default void sendLatest(@NonNull MessageLite msg, @NonNull String conflationKey, @NonNull Connection client) {
+        sendMessage(PostmanMessage.conflated(msg, null, conflationKey), client);
+    }
+
     /**
      * Check the number of clients connected
      * @return The number of clients currently connected to the server
@@ -79,6 +216,14 @@ public interface PostmanServer {
     @AnyThread
     int numberOfClients();
 
+    /**
+     * Check the number of connections refused because of {@link PostmanConfig#maxConnections()} or
+     * {@link PostmanConfig#acceptRatePermits()}
+     * @return The number of connections refused since the server was created
+     */
+    @AnyThread
+    long refusedConnections();
+
     /**
      * Convenience method to send a message without wrapping it in a PostmanMessage
      * and using the UUID of the client connected. If the UUID specified is invalid,
@@ -1,36 +1,78 @@
 package org.postman.server;
 
-import java.util.HashMap;
-import java.util.Map;
 import java.util.Objects;
 import java.util.UUID;
 
 import static java.util.Objects.nonNull;
 
-public class PostmanServerEvent {
+/**
+ * An event from a {@link PostmanServer}. Events are immutable and only the fields relevant to the
+ * {@link Type} are set, e.g. {@link #message()} is null unless the event is {@link Type#NEW_MESSAGE}.
+ */
+public final class PostmanServerEvent {
 
 
-    private enum Attribute {
-        CLIENT,
-        LISTENING_PORT,
-        IP_ADDRESS,
-        MESSAGE
-    }
-
     public enum Type {
         CLIENT_JOIN,
         SERVER_LISTENING,
         CLIENT_DISCONNECT,
-        NEW_MESSAGE
-    }
-
+        NEW_MESSAGE,
+        //The client has not read and/or written for the configured idle time, see IdleState
+        CLIENT_IDLE,
+        //The client has not sent anything within the configured read timeout or has not answered the configured
+        //number of heartbeats and has been disconnected
+        CLIENT_TIMEOUT,
+        //The server has stopped accepting clients and is sending any queued messages before shutting down,
+        //see pendingClients. Each client is disconnected once its queue is empty
+        SERVER_DRAINING,
+        //The server has finished draining and is about to shut down. pendingClients are the clients whose
+        //queues were not emptied in time and will be disconnected
+        SERVER_DRAINED,
+        //The client is not reading as fast as messages are sent to it and its send queue has reached the high
+        //watermark, see PostmanConfig.sendQueueHighWatermark. Its SlowConsumerPolicy applies to the messages sent
+        //to it until CLIENT_SEND_QUEUE_LOW, or with SlowConsumerPolicy.DISCONNECT it is disconnected
+        CLIENT_SEND_QUEUE_HIGH,
+        //The send queue of a slow client has drained to the low watermark
+        CLIENT_SEND_QUEUE_LOW
+    }
+
+    public enum IdleState {
+        READER_IDLE,
+        WRITER_IDLE,
+        ALL_IDLE
+    }
+
+
+    /**
+     * The port of events other than {@link Type#SERVER_LISTENING}
+     */
+    public static final int NO_PORT = -1;
 
     private final Type type;
-    private final Map<Attribute, Object> attributes;
-
-    private PostmanServerEvent(Type type) {
+    private final Connection connection;
+    private final PostmanMessage message;
+    private final IdleState idleState;
+    private final int listeningPort;
+    private final String hostAddress;
+    private final int pendingClients;
+
+    private PostmanServerEvent(Type type, Connection connection, PostmanMessage message, IdleState idleState,
+                               int listeningPort, String hostAddress, int pendingClients) {
         this.type = type;
-        this.attributes = new HashMap<>();
+        this.connection = connection;
+        this.message = message;
+        this.idleState = idleState;
+        this.listeningPort = listeningPort;
+        this.hostAddress = hostAddress;
+        this.pendingClients = pendingClients;
+    }
+
+    private PostmanServerEvent(Type type, Connection connection) {
+        this(type, connection, null, null, NO_PORT, null, 0);
+    }
+
+    private PostmanServerEvent(Type type, int pendingClients) {
+        this(type, null, null, null, NO_PORT, null, pendingClients);
     }
 
 
@@ -43,67 +85,110 @@ public class PostmanServerEvent {
     }
 
     public Connection connection() {
-        return (Connection) attributes.get(Attribute.CLIENT);
+        return connection;
     }
 
     public UUID connectionId() {
-        return connection().getConnectionId();
+        return connection.getConnectionId();
     }
 
     public PostmanMessage message() {
-        return (PostmanMessage) attributes.get(Attribute.MESSAGE);
+        return message;
     }
 
 
     public int getListeningPort() {
-        return (Integer) attributes.get(Attribute.LISTENING_PORT);
+        return listeningPort;
     }
 
     public String getHostAddress() {
-        return (String) attributes.get(Attribute.IP_ADDRESS);
+        return hostAddress;
     }
 
+    public IdleState idleState() {
+        return idleState;
+    }
 
-    private PostmanServerEvent attribute(Attribute attribute, Object value) {
-        attributes.put(attribute, value);
-        return this;
+    /**
+     * @return For {@link Type#SERVER_DRAINING} the number of clients connected when draining started, for
+     * {@link Type#SERVER_DRAINED} the number of clients that had not drained in time, otherwise 0
+     */
+    public int pendingClients() {
+        return pendingClients;
     }
 
     public static PostmanServerEvent serverListening(int port, String hostAddress) {
-        return new PostmanServerEvent(Type.SERVER_LISTENING).attribute(Attribute.LISTENING_PORT, port)
-                .attribute(Attribute.IP_ADDRESS, hostAddress);
+        return new PostmanServerEvent(Type.SERVER_LISTENING, null, null, null, port, hostAddress, 0);
     }
 
 
     public static PostmanServerEvent newClient(Connection connection) {
-        return new PostmanServerEvent(Type.CLIENT_JOIN).attribute(Attribute.CLIENT, connection);
+        return new PostmanServerEvent(Type.CLIENT_JOIN, connection);
     }
 
     public static PostmanServerEvent clientDisconnected(Connection client) {
-        return new PostmanServerEvent(Type.CLIENT_DISCONNECT).attribute(Attribute.CLIENT, client);
+        return new PostmanServerEvent(Type.CLIENT_DISCONNECT, client);
     }
 
     public static PostmanServerEvent newMessage(PostmanMessage msg, Connection client) {
-        return new PostmanServerEvent(Type.NEW_MESSAGE).attribute(Attribute.MESSAGE, msg).attribute(Attribute.CLIENT, client);
+        return new PostmanServerEvent(Type.NEW_MESSAGE, client, msg, null, NO_PORT, null, 0);
+    }
+
+    public static PostmanServerEvent clientIdle(Connection client, IdleState idleState) {
+        return new PostmanServerEvent(Type.CLIENT_IDLE, client, null, idleState, NO_PORT, null, 0);
+    }
+
+    public static PostmanServerEvent clientTimedOut(Connection client) {
+        return new PostmanServerEvent(Type.CLIENT_TIMEOUT, client);
+    }
+
+    public static PostmanServerEvent clientSendQueueHigh(Connection client) {
+        return new PostmanServerEvent(Type.CLIENT_SEND_QUEUE_HIGH, client);
+    }
+
+    public static PostmanServerEvent clientSendQueueLow(Connection client) {
+        return new PostmanServerEvent(Type.CLIENT_SEND_QUEUE_LOW, client);
+    }
+
+    public static PostmanServerEvent serverDraining(int pendingClients) {
+        return new PostmanServerEvent(Type.SERVER_DRAINING, pendingClients);
+    }
+
+    public static PostmanServerEvent serverDrained(int pendingClients) {
+        return new PostmanServerEvent(Type.SERVER_DRAINED, pendingClients);
     }
 
     @Override
     public int hashCode() {
-        return Objects.hash(type, attributes);
+        return Objects.hash(type, connection, message, idleState, listeningPort, hostAddress, pendingClients);
     }
 
     @Override
     public boolean equals(Object obj) {
-        return nonNull(obj) && obj instanceof PostmanServerEvent &&
-                Objects.equals(type, ((PostmanServerEvent) obj).type) &&
-                Objects.equals(attributes, ((PostmanServerEvent) obj).attributes);
+        if (!(nonNull(obj) && obj instanceof PostmanServerEvent)) {
+            return false;
+        }
+
+        PostmanServerEvent other = (PostmanServerEvent) obj;
+        return type == other.type &&
+                listeningPort == other.listeningPort &&
+                pendingClients == other.pendingClients &&
+                Objects.equals(connection, other.connection) &&
+                Objects.equals(message, other.message) &&
+                idleState == other.idleState &&
+                Objects.equals(hostAddress, other.hostAddress);
     }
 
     @Override
     public String toString() {
         return "PostmanServerEvent{" +
                 "type=" + type +
-                ", attributes=" + attributes +
+                ", connection=" + connection +
+                ", message=" + message +
+                ", idleState=" + idleState +
+                ", listeningPort=" + listeningPort +
+                ", hostAddress=" + hostAddress +
+                ", pendingClients=" + pendingClients +
                 '}';
     }
 }
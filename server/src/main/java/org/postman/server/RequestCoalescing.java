@@ -0,0 +1,80 @@
+package org.postman.server;
+
+import android.support.annotation.NonNull;
+
+import java.util.concurrent.TimeUnit;
+
+import static com.siia.commons.core.check.Check.checkState;
+
+/**
+ * How a {@link PostmanServer} shares the work of answering identical requests, see
+ * {@link PostmanServer#handleRequests(Class, java.util.function.Function, RequestCoalescing)}. Requests are
+ * identical if they have the same type and the same serialised bytes.
+ *
+ * With {@link #inFlight()} a request arriving while an identical one is being handled waits for the same
+ * response rather than calling the handler again, so any number of clients asking for the same thing at the
+ * same moment costs one call. With {@link #cached(long, TimeUnit, int)} the serialised response is also kept
+ * for a while and identical requests arriving later are answered from it without calling the handler or
+ * serialising the response again. Failed responses are never shared with later requests.
+ *
+ * Only suitable for handlers whose response depends on nothing but the request, e.g. not on which client sent it.
+ */
+public final class RequestCoalescing {
+    private static final RequestCoalescing NONE = new RequestCoalescing(false, 0, 0);
+    private static final RequestCoalescing IN_FLIGHT = new RequestCoalescing(true, 0, 0);
+
+    private final boolean coalescing;
+    private final long cacheTtlNanos;
+    private final int maxCachedResponses;
+
+    private RequestCoalescing(boolean coalescing, long cacheTtlNanos, int maxCachedResponses) {
+        this.coalescing = coalescing;
+        this.cacheTtlNanos = cacheTtlNanos;
+        this.maxCachedResponses = maxCachedResponses;
+    }
+
+    /**
+     * Every request calls the handler
+     */
+    public static RequestCoalescing none() {
+        return NONE;
+    }
+
+    /**
+     * Requests arriving while an identical request is being handled share its response
+     */
+    public static RequestCoalescing inFlight() {
+        return IN_FLIGHT;
+    }
+
+    /**
+     * As {@link #inFlight()} and responses are also reused for identical requests arriving until the ttl
+     * passes, keeping the responses of up to maxCachedResponses distinct requests, least recently used first
+     * to go.
+     *
+     * @param ttl How long a response is reused for after it was sent the first time
+     * @param unit The unit of the ttl
+     * @param maxCachedResponses The number of responses to keep
+     */
+    public static RequestCoalescing cached(long ttl, @NonNull TimeUnit unit, int maxCachedResponses) {
+        checkState(ttl > 0, "TTL must be positive : %d", ttl);
+        checkState(maxCachedResponses > 0, "Max cached responses must be positive : %d", maxCachedResponses);
+        return new RequestCoalescing(true, unit.toNanos(ttl), maxCachedResponses);
+    }
+
+    public boolean isCoalescing() {
+        return coalescing;
+    }
+
+    public boolean isCaching() {
+        return maxCachedResponses > 0;
+    }
+
+    public long cacheTtlNanos() {
+        return cacheTtlNanos;
+    }
+
+    public int maxCachedResponses() {
+        return maxCachedResponses;
+    }
+}
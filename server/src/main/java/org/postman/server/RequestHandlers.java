@@ -0,0 +1,126 @@
+package org.postman.server;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.VisibleForTesting;
+
+import com.google.protobuf.AbstractMessageLite;
+import com.google.protobuf.MessageLite;
+import com.siia.commons.core.log.Logcat;
+
+import org.postman.server.MessageOuterClass.RpcError;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.function.BiConsumer;
+import java.util.function.Function;
+import java.util.function.LongSupplier;
+
+import io.reactivex.Single;
+
+import static java.util.Objects.isNull;
+
+/**
+ * The handlers a {@link PostmanServer} answers requests with, see
+ * {@link PostmanServer#handleRequests(Class, Function, RequestCoalescing)}.
+ * Each request is answered with a response carrying its request id, or with an {@link RpcError} if there is no
+ * handler for its type or the handler fails. Handlers return a {@link Single} so a request that takes a while
+ * to answer does not hold up the thread reading the connection, nor the requests that follow it.
+ */
+public final class RequestHandlers {
+    private static final String TAG = Logcat.getTag();
+
+    private final ConcurrentMap<String, Handler> handlersByType;
+    private final LongSupplier nanoClock;
+
+    public RequestHandlers() {
+        this(System::nanoTime);
+    }
+
+    @VisibleForTesting
+    RequestHandlers(LongSupplier nanoClock) {
+        this.handlersByType = new ConcurrentHashMap<>();
+        this.nanoClock = nanoClock;
+    }
+
+    /**
+     * Registers the handler for a type of request, replacing any handler already registered for it
+     *
+     * @param coalescing Whether identical requests share responses
+     */
+    @SuppressWarnings("unchecked")
+    public <Q extends AbstractMessageLite> void register(@NonNull Class<Q> requestType,
+                                                         @NonNull Function<Q, Single<? extends MessageLite>> handler,
+                                                         @NonNull RequestCoalescing coalescing) {
+        Function<AbstractMessageLite, Single<? extends MessageLite>> anyHandler =
+                (Function<AbstractMessageLite, Single<? extends MessageLite>>) handler;
+        handlersByType.put(requestType.getName(), coalescing.isCoalescing()
+                ? new CoalescingHandler(anyHandler, coalescing, nanoClock)
+                : (msg, requestId) -> anyHandler.apply(msg.getProtoObj())
+                .map(response -> PostmanMessage.response(response, requestId)));
+    }
+
+    /**
+     * Passes a request on to its handler
+     *
+     * @param responder Sends the response to the connection, called on whichever thread the handler's
+     *                  {@link Single} succeeds or fails on. The response is on the stream of the request.
+     * @return True if the message was a request and should not be passed on, it has been read by the time this
+     * returns so can then be released
+     */
+    public boolean handleMessage(@NonNull Connection connection, @NonNull PostmanMessage msg,
+                                 @NonNull BiConsumer<PostmanMessage, Connection> responder) {
+        long requestId;
+        String type;
+        try {
+            requestId = msg.getRequestId();
+            type = msg.envelope().getType();
+        } catch (Exception e) {
+            Logcat.w(TAG, "Could not handle possible request", e);
+            return false;
+        }
+
+        if (requestId == PostmanMessage.NO_REQUEST_ID) {
+            return false;
+        }
+
+        int streamId = msg.getStreamId();
+        Handler handler = handlersByType.get(type);
+        if (isNull(handler)) {
+            Logcat.w(TAG, "No handler for request of type %s", type);
+            responder.accept(error(requestId, "No handler for requests of type " + type).setStreamId(streamId), connection);
+            return true;
+        }
+
+        Single<PostmanMessage> response;
+        try {
+            response = handler.handle(msg, requestId);
+        } catch (Exception e) {
+            Logcat.w(TAG, "Request handler failed", e);
+            responder.accept(error(requestId, String.valueOf(e)).setStreamId(streamId), connection);
+            return true;
+        }
+
+        //Nothing to dispose, a response to a client that has gone is dropped when sent
+        response.subscribe(
+                result -> responder.accept(result.setStreamId(streamId), connection),
+                e -> {
+                    Logcat.w(TAG, "Request handler failed", e);
+                    responder.accept(error(requestId, String.valueOf(e)).setStreamId(streamId), connection);
+                });
+        return true;
+    }
+
+    private static PostmanMessage error(long requestId, String message) {
+        return PostmanMessage.response(RpcError.newBuilder().setMessage(message).build(), requestId);
+    }
+
+    /**
+     * Answers the requests of one type
+     */
+    interface Handler {
+        /**
+         * @return The response, with the id of the request
+         */
+        Single<PostmanMessage> handle(PostmanMessage msg, long requestId) throws Exception;
+    }
+}
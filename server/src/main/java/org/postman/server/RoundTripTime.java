@@ -0,0 +1,101 @@
+package org.postman.server;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Round trip time statistics for a {@link Connection}, measured using heartbeats (see
+ * {@link PostmanConfig#heartbeatIntervalNanos()}). The smoothed value is an exponentially weighted
+ * moving average using the same gain as TCP's SRTT (1/8) so a single slow sample does not swing it.
+ *
+ * Samples are recorded by the transport, the statistics can be read from any thread.
+ */
+public final class RoundTripTime {
+    public static final long NO_SAMPLES = -1;
+
+    private static final int SMOOTHING_SHIFT = 3;
+
+    private volatile long smoothedNanos = NO_SAMPLES;
+    private volatile long minNanos = NO_SAMPLES;
+    private volatile long maxNanos = NO_SAMPLES;
+    private volatile long lastNanos = NO_SAMPLES;
+    private volatile long sampleCount = 0;
+
+    /**
+     * Records a new round trip time sample. Negative samples are ignored.
+     *
+     * @param rttNanos The measured round trip time
+     */
+    public synchronized void record(long rttNanos) {
+        if (rttNanos < 0) {
+            return;
+        }
+
+        if (sampleCount == 0) {
+            smoothedNanos = minNanos = maxNanos = rttNanos;
+        } else {
+            smoothedNanos = smoothedNanos + ((rttNanos - smoothedNanos) >> SMOOTHING_SHIFT);
+            minNanos = Math.min(minNanos, rttNanos);
+            maxNanos = Math.max(maxNanos, rttNanos);
+        }
+
+        lastNanos = rttNanos;
+        sampleCount++;
+    }
+
+    /**
+     * @return True if at least one sample has been recorded
+     */
+    public boolean hasSamples() {
+        return sampleCount > 0;
+    }
+
+    public long sampleCount() {
+        return sampleCount;
+    }
+
+    /**
+     * @return The smoothed round trip time or {@link #NO_SAMPLES}
+     */
+    public long smoothedNanos() {
+        return smoothedNanos;
+    }
+
+    /**
+     * @return The lowest round trip time seen or {@link #NO_SAMPLES}
+     */
+    public long minNanos() {
+        return minNanos;
+    }
+
+    /**
+     * @return The highest round trip time seen or {@link #NO_SAMPLES}
+     */
+    public long maxNanos() {
+        return maxNanos;
+    }
+
+    /**
+     * @return The most recent round trip time or {@link #NO_SAMPLES}
+     */
+    public long lastNanos() {
+        return lastNanos;
+    }
+
+    /**
+     * @return The smoothed round trip time in the given unit or {@link #NO_SAMPLES}
+     */
+    public long smoothed(TimeUnit unit) {
+        long smoothed = smoothedNanos;
+        return smoothed == NO_SAMPLES ? NO_SAMPLES : unit.convert(smoothed, TimeUnit.NANOSECONDS);
+    }
+
+    @Override
+    public String toString() {
+        return "RoundTripTime{" +
+                "srtt=" + smoothedNanos +
+                " min=" + minNanos +
+                " max=" + maxNanos +
+                " samples=" + sampleCount +
+                " }";
+    }
+}
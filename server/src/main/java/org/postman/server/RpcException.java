@@ -0,0 +1,15 @@
+package org.postman.server;
+
+import com.google.protobuf.MessageLite;
+
+/**
+ * The error a request made with {@link PostmanClient#request(MessageLite, Class, long, java.util.concurrent.TimeUnit)}
+ * fails with when the server answers it with a {@link MessageOuterClass.RpcError}, e.g. because there is no
+ * handler for the type of the request or the handler failed, or with a response of an unexpected type.
+ */
+public class RpcException extends Exception {
+
+    public RpcException(String message) {
+        super(message);
+    }
+}
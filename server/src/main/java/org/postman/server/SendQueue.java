@@ -0,0 +1,700 @@
+package org.postman.server;
+
+import android.support.annotation.NonNull;
+
+import com.google.protobuf.InvalidProtocolBufferException;
+import com.siia.commons.core.log.Logcat;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Objects;
+import java.util.function.BooleanSupplier;
+import java.util.function.IntPredicate;
+import java.util.function.Predicate;
+
+import static java.util.Objects.isNull;
+import static java.util.Objects.nonNull;
+
+/**
+ * The messages waiting to be written to a peer. Messages can be offered from any thread and are taken by the
+ * one thread writing to the peer.
+ *
+ * Messages {@link #post(PostmanMessage) posted} to the queue are put on a wait free {@link MpscQueue} inbox without
+ * taking the queue's lock, and the writing thread moves the whole inbox into the lanes in one go with
+ * {@link #drainInbox()}, e.g. once per pass of its event loop. Messages {@link #offer(PostmanMessage) offered} go
+ * straight into the lanes under the lock, after those still in the inbox, so the result tells what the slow
+ * consumer policy did with them. Messages posted while the peer is a slow consumer are offered.
+ *
+ * The queue can be bounded with a high and a low watermark. Once the high watermark is reached the peer is
+ * considered a slow consumer and its {@link SlowConsumerPolicy} decides what happens to further messages, until
+ * the writing thread has drained the queue to the low watermark. Crossing either watermark is reported to the
+ * {@link Listener} so that a server can let the application know, e.g. to stop sending to the peer for a while.
+ *
+ * A message with a {@link PostmanMessage#getConflationKey()} replaces the queued message with the same key in
+ * constant time, keeping its place in the queue. The queue holds the first message queued for a key as a
+ * placeholder and looks up the latest one for the key when the placeholder is taken, so replacing does not
+ * search the queue or count towards the watermarks.
+ *
+ * Messages wait in the lane of their {@link PostmanMessage#getPriority()}, and the lanes are drained by weighted
+ * round robin: each round takes up to {@link MessagePriority#weight()} messages from each lane, most important
+ * lane first, and a new round starts once every lane has used its turns or has nothing to take. Control messages
+ * such as heartbeats are not held up behind bulk data, while bulk data still gets its share.
+ *
+ * Messages are only kept in order within their {@link PostmanMessage#getStreamId()} and priority. Within a lane the
+ * writing thread takes from the streams with messages in turn, and can skip streams it is still busy writing a
+ * message of, see {@link StreamMultiplexer}. The slow consumer policies drop and conflate messages within the lane
+ * and stream of the message being queued, then drop from the least important lane. Messages on the
+ * {@link PostmanMessage#CONTROL_STREAM} are always queued.
+ *
+ * Messages whose {@link PostmanMessage#setTimeToLive(long, java.util.concurrent.TimeUnit)} has passed are skipped
+ * when they are taken, so they are neither framed nor written, and counted in {@link #expiredMessages()}.
+ */
+public final class SendQueue {
+    private static final String TAG = Logcat.getTag();
+
+    /**
+     * What happened to a message offered to the queue
+     */
+    public enum Result {
+        QUEUED,
+        //Queued and the oldest queued message was dropped to make room
+        DROPPED_OLDEST,
+        //Queued in place of an earlier message with the same conflation key, or of the same type and topic
+        CONFLATED,
+        //Dropped because the queue is full
+        REJECTED,
+        //Dropped because the queue has been closed
+        CLOSED
+    }
+
+    /**
+     * Called on the thread crossing the watermark, the writing thread for posted messages, which should not block
+     */
+    public interface Listener {
+        void onHighWatermark(SendQueue queue);
+
+        void onLowWatermark(SendQueue queue);
+    }
+
+    private static final Listener NO_LISTENER = new Listener() {
+        @Override
+        public void onHighWatermark(SendQueue queue) {
+        }
+
+        @Override
+        public void onLowWatermark(SendQueue queue) {
+        }
+    };
+
+    private static final IntPredicate ANY_STREAM = streamId -> true;
+    //Threads that are never blocked by SlowConsumerPolicy.BLOCK
+    private static final ThreadLocal<Boolean> EVENT_LOOP_THREAD = ThreadLocal.withInitial(() -> Boolean.FALSE);
+
+    private final Lane[] lanes;
+    private final Map<String, PostmanMessage> latestByConflationKey;
+    //Only drained holding the lock, so by one thread at a time
+    private final MpscQueue<PostmanMessage> inbox;
+    private int size;
+    private int highWatermark;
+    private int lowWatermark;
+    private volatile SlowConsumerPolicy policy;
+    private volatile Listener listener;
+    private volatile Thread writingThread;
+    //Only changed holding the lock, read without it by posting threads
+    private volatile boolean slowConsumer;
+    private volatile boolean closed;
+    private long droppedMessages;
+    private long expiredMessages;
+
+    /**
+     * Creates an unbounded queue
+     */
+    public SendQueue() {
+        MessagePriority[] priorities = MessagePriority.values();
+        this.lanes = new Lane[priorities.length];
+        for (int i = 0; i < lanes.length; i++) {
+            lanes[i] = new Lane(priorities[i]);
+        }
+        this.latestByConflationKey = new HashMap<>();
+        this.inbox = new MpscQueue<>();
+        this.policy = SlowConsumerPolicy.DISCONNECT;
+        this.listener = NO_LISTENER;
+    }
+
+    /**
+     * Bounds the queue using the watermarks and policy of the config
+     */
+    public synchronized void limit(@NonNull PostmanConfig config, @NonNull Listener listener) {
+        this.highWatermark = config.sendQueueHighWatermark();
+        this.lowWatermark = config.sendQueueLowWatermark();
+        this.policy = config.slowConsumerPolicy();
+        this.listener = listener;
+    }
+
+    /**
+     * Changes the policy applied to further messages
+     */
+    public void policy(@NonNull SlowConsumerPolicy policy) {
+        this.policy = policy;
+    }
+
+    public SlowConsumerPolicy policy() {
+        return policy;
+    }
+
+    /**
+     * Sets the thread writing to the peer, e.g. the event loop the connection belongs to, before it first takes
+     * from the queue. Messages it offers are never blocked by {@link SlowConsumerPolicy#BLOCK}.
+     */
+    public void writtenBy(@NonNull Thread thread) {
+        writingThread = thread;
+    }
+
+    /**
+     * Marks the calling thread as an event loop, or no longer one. Messages offered from an event loop to any
+     * queue are never blocked by {@link SlowConsumerPolicy#BLOCK}, as that would stall every peer of the loop
+     * and the loop may be the one writing to the peer.
+     */
+    public static void eventLoopThread(boolean eventLoop) {
+        if (eventLoop) {
+            EVENT_LOOP_THREAD.set(Boolean.TRUE);
+        } else {
+            EVENT_LOOP_THREAD.remove();
+        }
+    }
+
+    public Result offer(@NonNull PostmanMessage msg) {
+        Result result;
+        boolean highWatermarkReached = false;
+
+        synchronized (this) {
+            //Posted messages first, to keep the order of their streams
+            inbox.drain(this::offerPostedLocked);
+            result = offerLocked(msg, false);
+            highWatermarkReached = checkHighWatermarkLocked();
+        }
+
+        if (highWatermarkReached) {
+            listener.onHighWatermark(this);
+        }
+
+        if (result != Result.QUEUED) {
+            Logcat.v(TAG, "Slow consumer, message %s", result);
+        }
+        return result;
+    }
+
+    /**
+     * Queues the message without taking the queue's lock, can be called from any thread. The message waits in the
+     * inbox until the writing thread next calls {@link #drainInbox()}, which is when it is conflated and the
+     * watermarks are checked.
+     *
+     * While the peer is a slow consumer the message is {@link #offer(PostmanMessage) offered} instead, so the slow
+     * consumer policy is applied before returning and the result tells what it did, e.g. {@link Result#REJECTED}
+     * for event loops under {@link SlowConsumerPolicy#BLOCK}. Messages posted just before the peer became one are
+     * only seen by the policy as the inbox is drained, those it drops are counted in {@link #droppedMessages()}.
+     *
+     * Only for queues whose writing thread drains the inbox regularly, e.g. an event loop.
+     */
+    public Result post(@NonNull PostmanMessage msg) {
+        if (slowConsumer && msg.getStreamId() != PostmanMessage.CONTROL_STREAM) {
+            return offer(msg);
+        }
+
+        if (closed) {
+            return Result.CLOSED;
+        }
+
+        inbox.offer(msg);
+        return Result.QUEUED;
+    }
+
+    /**
+     * Moves the messages posted since the last drain into their lanes, as if each were offered in turn, only
+     * called by the thread writing to the peer
+     */
+    public void drainInbox() {
+        if (inbox.isEmpty()) {
+            return;
+        }
+
+        boolean highWatermarkReached;
+        synchronized (this) {
+            inbox.drain(this::offerPostedLocked);
+            highWatermarkReached = checkHighWatermarkLocked();
+        }
+
+        if (highWatermarkReached) {
+            listener.onHighWatermark(this);
+        }
+    }
+
+    /**
+     * Takes the next message to write, only called by the thread writing to the peer
+     *
+     * @return The next message or null if the queue is empty
+     */
+    public PostmanMessage poll() {
+        return poll(ANY_STREAM);
+    }
+
+    /**
+     * Takes the next message to write from the streams accepted by the filter, only called by the thread writing
+     * to the peer
+     *
+     * @param streamFilter Whether a message can be taken from the stream with the given id
+     * @return The next message or null if the accepted streams are empty
+     */
+    public PostmanMessage poll(@NonNull IntPredicate streamFilter) {
+        writingThread = Thread.currentThread();
+        drainInbox();
+        PostmanMessage msg;
+        boolean lowWatermarkReached;
+
+        synchronized (this) {
+            msg = nextLocked(streamFilter);
+            lowWatermarkReached = checkLowWatermarkLocked();
+        }
+
+        if (lowWatermarkReached) {
+            listener.onLowWatermark(this);
+        }
+        return msg;
+    }
+
+    /**
+     * Takes messages from the streams accepted by the filter, in the order {@link #poll(IntPredicate)} would, and
+     * passes them to the consumer until it returns false or none are left, all under a single acquisition of the
+     * queue's lock. Only called by the thread writing to the peer, e.g. to fill a gathering write.
+     *
+     * @param streamFilter Whether a message can be taken from the stream with the given id, tested again after
+     *                     each message is passed on
+     * @param consumer Takes each message, returning false once it wants no more
+     * @return The number of messages taken
+     */
+    public int drain(@NonNull IntPredicate streamFilter, @NonNull Predicate<PostmanMessage> consumer) {
+        writingThread = Thread.currentThread();
+        drainInbox();
+        int taken = 0;
+        boolean lowWatermarkReached;
+
+        synchronized (this) {
+            PostmanMessage msg;
+            while (nonNull(msg = nextLocked(streamFilter))) {
+                taken++;
+                if (!consumer.test(msg)) {
+                    break;
+                }
+            }
+            lowWatermarkReached = checkLowWatermarkLocked();
+        }
+
+        if (lowWatermarkReached) {
+            listener.onLowWatermark(this);
+        }
+        return taken;
+    }
+
+    /**
+     * Waits for the next message to write, only called by the thread writing to the peer
+     *
+     * @return The next message or null once the queue has been closed and emptied
+     */
+    public PostmanMessage take() throws InterruptedException {
+        synchronized (this) {
+            while (size == 0 && !closed) {
+                wait();
+            }
+        }
+        return poll();
+    }
+
+    /**
+     * Waits until the condition holds or the queue is closed, only called by the thread writing to the peer.
+     * The condition is checked holding the queue's lock each time a message is queued or {@link #wakeUp()} is
+     * called, e.g. for a message to be sendable once the peer grants credit, see {@link FlowControl}.
+     */
+    public synchronized void await(@NonNull BooleanSupplier condition) throws InterruptedException {
+        while (!closed && !condition.getAsBoolean()) {
+            wait();
+        }
+    }
+
+    /**
+     * Wakes the writing thread up to check what it is waiting for in {@link #await(BooleanSupplier)} again
+     */
+    public synchronized void wakeUp() {
+        notifyAll();
+    }
+
+    /**
+     * @return True if a message is queued on a stream accepted by the filter, only called by the thread writing
+     * to the peer as it first drains the inbox
+     */
+    public boolean hasMessage(@NonNull IntPredicate streamFilter) {
+        drainInbox();
+        synchronized (this) {
+            for (Lane lane : lanes) {
+                for (Stream stream : lane.readyStreams) {
+                    if (streamFilter.test(stream.id)) {
+                        return true;
+                    }
+                }
+            }
+            return false;
+        }
+    }
+
+    /**
+     * Stops accepting messages, those already queued can still be taken
+     */
+    public synchronized void close() {
+        closed = true;
+        notifyAll();
+    }
+
+    /**
+     * Closes the queue and drops the messages in it, those still in the inbox are dropped when the writing thread
+     * next drains it
+     */
+    public synchronized void clear() {
+        close();
+        for (Lane lane : lanes) {
+            lane.streams.values().forEach(stream -> stream.messages.clear());
+            lane.readyStreams.clear();
+        }
+        latestByConflationKey.clear();
+        size = 0;
+        slowConsumer = false;
+    }
+
+    public synchronized boolean isClosed() {
+        return closed;
+    }
+
+    public synchronized boolean isEmpty() {
+        return size == 0 && inbox.isEmpty();
+    }
+
+    /**
+     * @return The number of messages in the lanes, not counting those posted since the inbox was last drained
+     */
+    public synchronized int size() {
+        return size;
+    }
+
+    /**
+     * @return True between reaching the high watermark and draining to the low watermark
+     */
+    public synchronized boolean isSlowConsumer() {
+        return slowConsumer;
+    }
+
+    /**
+     * @return The number of messages dropped by the slow consumer policy or replaced by a newer message
+     * with the same conflation key
+     */
+    public synchronized long droppedMessages() {
+        return droppedMessages;
+    }
+
+    /**
+     * @return The number of messages skipped because their time to live passed while they were queued
+     */
+    public synchronized long expiredMessages() {
+        return expiredMessages;
+    }
+
+    /**
+     * Called for each posted message as the inbox is drained
+     */
+    private void offerPostedLocked(PostmanMessage msg) {
+        Result result = offerLocked(msg, true);
+        if (result != Result.QUEUED && result != Result.CLOSED) {
+            Logcat.v(TAG, "Slow consumer, posted message %s", result);
+        }
+    }
+
+    private boolean checkHighWatermarkLocked() {
+        if (!slowConsumer && highWatermark > 0 && size >= highWatermark) {
+            slowConsumer = true;
+            return true;
+        }
+        return false;
+    }
+
+    private boolean checkLowWatermarkLocked() {
+        if (slowConsumer && size <= lowWatermark) {
+            slowConsumer = false;
+            notifyAll();
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * @return The next message that has not expired, or null
+     */
+    private PostmanMessage nextLocked(IntPredicate streamFilter) {
+        PostmanMessage msg = latest(pollStream(streamFilter));
+        while (nonNull(msg) && isExpired(msg)) {
+            expiredMessages++;
+            msg = latest(pollStream(streamFilter));
+        }
+        return msg;
+    }
+
+    /**
+     * @param posted True if the message was posted, so its producer cannot be blocked any more
+     */
+    private Result offerLocked(PostmanMessage msg, boolean posted) {
+        if (closed) {
+            return Result.CLOSED;
+        }
+
+        String conflationKey = msg.getConflationKey();
+        if (nonNull(conflationKey) && nonNull(latestByConflationKey.replace(conflationKey, msg))) {
+            droppedMessages++;
+            return Result.CONFLATED;
+        }
+
+        //Protocol messages are small and dropping them could stall the peer, see FlowControl
+        if (highWatermark == 0 || size < highWatermark || msg.getStreamId() == PostmanMessage.CONTROL_STREAM) {
+            enqueue(msg);
+            notifyAll();
+            return Result.QUEUED;
+        }
+
+        switch (policy) {
+            case BLOCK:
+                if (posted) {
+                    //Posted before the peer became a slow consumer, later posts are offered instead
+                    enqueue(msg);
+                    return Result.QUEUED;
+                }
+                if (!mayBlock()) {
+                    droppedMessages++;
+                    return Result.REJECTED;
+                }
+                //Only released by draining to the low watermark, so the queue has room once it is
+                slowConsumer = true;
+                return awaitLowWatermark() ? offerLocked(msg, false) : Result.REJECTED;
+            case DROP_OLDEST:
+                Result dropped = dropOldest(msg);
+                enqueue(msg);
+                droppedMessages++;
+                return dropped;
+            case CONFLATE:
+                Result result = removeLastOfSameType(msg) ? Result.CONFLATED : dropOldest(msg);
+                enqueue(msg);
+                droppedMessages++;
+                return result;
+            case DROP_NEWEST:
+            case DISCONNECT:
+            default:
+                droppedMessages++;
+                return Result.REJECTED;
+        }
+    }
+
+    /**
+     * @return False for the thread writing to the peer and for event loops, which BLOCK never blocks
+     */
+    private boolean mayBlock() {
+        return Thread.currentThread() != writingThread && !EVENT_LOOP_THREAD.get();
+    }
+
+    private boolean awaitLowWatermark() {
+        try {
+            while (slowConsumer && !closed) {
+                wait();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            droppedMessages++;
+            return false;
+        }
+        return true;
+    }
+
+    private void enqueue(PostmanMessage msg) {
+        Lane lane = laneOf(msg);
+        Stream stream = lane.streams.computeIfAbsent(msg.getStreamId(), Stream::new);
+        stream.messages.offer(msg);
+        size++;
+        if (!stream.ready) {
+            stream.ready = true;
+            lane.readyStreams.offer(stream);
+        }
+        if (nonNull(msg.getConflationKey())) {
+            latestByConflationKey.put(msg.getConflationKey(), msg);
+        }
+    }
+
+    /**
+     * @return The latest message queued for the conflation key of the message taken from the queue, which
+     * is no longer conflated with
+     */
+    private PostmanMessage latest(PostmanMessage msg) {
+        if (isNull(msg) || isNull(msg.getConflationKey())) {
+            return msg;
+        }
+        return latestByConflationKey.remove(msg.getConflationKey());
+    }
+
+    /**
+     * Takes the next message from the lanes with turns left in this round, starting the next round if none of
+     * them has a message accepted by the filter
+     */
+    private PostmanMessage pollStream(IntPredicate streamFilter) {
+        PostmanMessage msg = pollLanes(streamFilter);
+        if (isNull(msg) && size > 0) {
+            for (Lane lane : lanes) {
+                lane.turns = lane.priority.weight();
+            }
+            msg = pollLanes(streamFilter);
+        }
+        return msg;
+    }
+
+    private PostmanMessage pollLanes(IntPredicate streamFilter) {
+        for (Lane lane : lanes) {
+            if (lane.turns > 0) {
+                PostmanMessage msg = lane.poll(streamFilter);
+                if (nonNull(msg)) {
+                    lane.turns--;
+                    size--;
+                    return msg;
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Drops the oldest message of the message's lane and stream, or if that is empty of the next stream to be
+     * served in the least important lane with messages. Messages on the control stream are never dropped.
+     */
+    private Result dropOldest(PostmanMessage msg) {
+        Lane lane = laneOf(msg);
+        Stream stream = lane.streams.get(msg.getStreamId());
+        if (isNull(stream) || stream.messages.isEmpty()) {
+            stream = null;
+            for (int i = lanes.length - 1; i >= 0 && isNull(stream); i--) {
+                lane = lanes[i];
+                stream = lane.nextDroppableStream();
+            }
+        }
+        if (nonNull(stream)) {
+            int oldestStreamId = stream.id;
+            latest(lane.poll(id -> id == oldestStreamId));
+            size--;
+        }
+        return Result.DROPPED_OLDEST;
+    }
+
+    private static boolean isExpired(PostmanMessage msg) {
+        //Saves reading the clock for messages without a time to live
+        return msg.getExpiryNanos() != PostmanMessage.NO_EXPIRY && msg.isExpired(System.nanoTime());
+    }
+
+    private Lane laneOf(PostmanMessage msg) {
+        return lanes[msg.getPriority().ordinal()];
+    }
+
+    private boolean removeLastOfSameType(PostmanMessage msg) {
+        try {
+            Lane lane = laneOf(msg);
+            Stream stream = lane.streams.get(msg.getStreamId());
+            if (isNull(stream)) {
+                return false;
+            }
+
+            MessageOuterClass.Message envelope = msg.envelope();
+            Iterator<PostmanMessage> queued = stream.messages.descendingIterator();
+            while (queued.hasNext()) {
+                PostmanMessage placeholder = queued.next();
+                String conflationKey = placeholder.getConflationKey();
+                MessageOuterClass.Message queuedEnvelope = (isNull(conflationKey) ? placeholder
+                        : latestByConflationKey.get(conflationKey)).envelope();
+                if (envelope.getType().equals(queuedEnvelope.getType())
+                        && Objects.equals(topicOf(envelope), topicOf(queuedEnvelope))) {
+                    queued.remove();
+                    size--;
+                    latest(placeholder);
+                    if (stream.messages.isEmpty()) {
+                        stream.ready = false;
+                        lane.readyStreams.remove(stream);
+                    }
+                    return true;
+                }
+            }
+        } catch (InvalidProtocolBufferException e) {
+            Logcat.w(TAG, "Could not conflate message", e);
+        }
+        return false;
+    }
+
+    private static String topicOf(MessageOuterClass.Message envelope) {
+        return envelope.hasTopic() ? envelope.getTopic() : null;
+    }
+
+    private static final class Lane {
+        private final MessagePriority priority;
+        private final Map<Integer, Stream> streams = new HashMap<>();
+        private final ArrayDeque<Stream> readyStreams = new ArrayDeque<>();
+        //Messages left to take from the lane in the current round
+        private int turns;
+
+        Lane(MessagePriority priority) {
+            this.priority = priority;
+            this.turns = priority.weight();
+        }
+
+        /**
+         * @return The next ready stream to be served that is not the control stream, null if there is none
+         */
+        Stream nextDroppableStream() {
+            for (Stream stream : readyStreams) {
+                if (stream.id != PostmanMessage.CONTROL_STREAM) {
+                    return stream;
+                }
+            }
+            return null;
+        }
+
+        /**
+         * Takes the head of the first ready stream accepted by the filter, then moves the stream behind the
+         * other ready streams so that streams are served in turn
+         */
+        PostmanMessage poll(IntPredicate streamFilter) {
+            Iterator<Stream> ready = readyStreams.iterator();
+            while (ready.hasNext()) {
+                Stream stream = ready.next();
+                if (streamFilter.test(stream.id)) {
+                    ready.remove();
+                    PostmanMessage msg = stream.messages.poll();
+                    if (stream.messages.isEmpty()) {
+                        stream.ready = false;
+                    } else {
+                        readyStreams.offer(stream);
+                    }
+                    return msg;
+                }
+            }
+            return null;
+        }
+    }
+
+    private static final class Stream {
+        private final int id;
+        private final ArrayDeque<PostmanMessage> messages = new ArrayDeque<>();
+        private boolean ready;
+
+        Stream(int id) {
+            this.id = id;
+        }
+    }
+}
@@ -0,0 +1,21 @@
+package org.postman.server;
+
+/**
+ * What a {@link SendQueue} does with a message sent to a peer that has stopped keeping up, i.e. whose queue of
+ * messages waiting to be written has reached its high watermark, see {@link PostmanConfig#sendQueueHighWatermark()}.
+ */
+public enum SlowConsumerPolicy {
+    //The sending thread waits until the queue drains to the low watermark. Only applies to threads that are not
+    //event loops: messages sent from an event loop, e.g. by a subscriber of an NIO server, or from the thread
+    //writing to the peer are dropped instead, as waiting there could never end or would stall the loop's other peers
+    BLOCK,
+    //The message is dropped
+    DROP_NEWEST,
+    //The oldest queued message is dropped to make room for the message
+    DROP_OLDEST,
+    //The message replaces the last queued message of the same type and topic, so the peer only gets the latest
+    //value of each. If there is none the oldest queued message is dropped
+    CONFLATE,
+    //The message is dropped and the peer is disconnected
+    DISCONNECT
+}
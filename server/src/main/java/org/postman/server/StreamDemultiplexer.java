@@ -0,0 +1,97 @@
+package org.postman.server;
+
+import android.support.annotation.NonNull;
+
+import com.siia.commons.core.inject.Provider;
+import com.siia.commons.core.io.IO;
+
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.function.Consumer;
+
+import static java.util.Objects.isNull;
+
+/**
+ * Reads the frames written by a {@link StreamMultiplexer} and puts the messages of each stream back together.
+ * Messages are passed on as they complete, which is in order within a stream but not between streams.
+ *
+ * Not thread safe, only used by the thread reading from the peer.
+ */
+public final class StreamDemultiplexer {
+    private final Provider<PostmanMessage> messageProvider;
+    private final ByteBuffer header;
+    private final Map<Integer, PostmanMessage> readingByStream;
+    private int streamId;
+    private int payloadRemaining;
+
+    public StreamDemultiplexer(@NonNull Provider<PostmanMessage> messageProvider) {
+        this.messageProvider = messageProvider;
+        this.header = ByteBuffer.allocate(StreamMultiplexer.FRAME_HEADER_LENGTH);
+        this.readingByStream = new HashMap<>();
+    }
+
+    /**
+     * Reads the frames in the buffer, which can start or end part way through a frame
+     *
+     * @param buffer The bytes read from the peer, which are all consumed
+     * @param messages Called with each message completed by the bytes read, with its stream set
+     * @throws PostmanMessage.InvalidPostmanMessageException If a frame or message is malformed
+     */
+    public void read(@NonNull ByteBuffer buffer, @NonNull Consumer<PostmanMessage> messages)
+            throws PostmanMessage.InvalidPostmanMessageException {
+        while (buffer.hasRemaining()) {
+            if (payloadRemaining == 0) {
+                readHeader(buffer);
+                continue;
+            }
+
+            int length = Math.min(payloadRemaining, buffer.remaining());
+            ByteBuffer payload = buffer.duplicate();
+            payload.limit(payload.position() + length);
+            buffer.position(buffer.position() + length);
+            payloadRemaining -= length;
+
+            while (payload.hasRemaining()) {
+                PostmanMessage msg = readingByStream.get(streamId);
+                if (isNull(msg)) {
+                    msg = messageProvider.get();
+                    readingByStream.put(streamId, msg);
+                }
+
+                if (msg.read(payload)) {
+                    readingByStream.remove(streamId);
+                    messages.accept(msg.receivedOn(streamId));
+                }
+            }
+        }
+    }
+
+    /**
+     * @return True if the message of any stream is part way through its body
+     */
+    public boolean isReadingBody() {
+        for (PostmanMessage msg : readingByStream.values()) {
+            if (msg.isReadingBody()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void readHeader(ByteBuffer buffer) throws PostmanMessage.InvalidPostmanMessageException {
+        IO.copyUntilDestinationFull(buffer, header);
+        if (header.hasRemaining()) {
+            return;
+        }
+
+        streamId = header.getInt(0);
+        payloadRemaining = header.getInt(Integer.BYTES);
+        header.clear();
+
+        if (streamId < PostmanMessage.CONTROL_STREAM || payloadRemaining <= 0) {
+            throw new PostmanMessage.InvalidPostmanMessageException(String.format("Invalid frame header stream %d length %d",
+                    streamId, payloadRemaining));
+        }
+    }
+}
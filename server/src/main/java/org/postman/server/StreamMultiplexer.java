@@ -0,0 +1,124 @@
+package org.postman.server;
+
+import android.support.annotation.NonNull;
+
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.function.IntPredicate;
+
+import static com.siia.commons.core.check.Check.checkState;
+import static java.util.Objects.isNull;
+import static java.util.Objects.nonNull;
+
+/**
+ * Splits the messages of a {@link SendQueue} into frames of a bounded size and interleaves the frames of the
+ * streams being sent, so that a large message only holds up the messages behind it on its own stream, e.g.
+ * requests and heartbeats on {@link PostmanMessage#DEFAULT_STREAM} keep flowing while a bulk transfer is sent
+ * on a stream of its own.
+ *
+ * A frame is a header of the stream id and the length of the payload, both 4 byte ints, followed by the payload,
+ * which is the next part of the {@link PostmanMessage#getFrame()} of the message being sent on the stream. A
+ * stream only starts its next message once the last frame of its current message has been taken, so the frames
+ * of a stream are in order and {@link StreamDemultiplexer} can put the messages back together.
+ *
+ * Frames are cut to the credit left for their stream, see {@link FlowControl}, and streams without credit sit
+ * out their turns until the peer grants them more.
+ *
+ * Not thread safe, only used by the thread writing to the peer.
+ */
+public final class StreamMultiplexer {
+    public static final int FRAME_HEADER_LENGTH = 2 * Integer.BYTES;
+
+    private final SendQueue queue;
+    private final FlowControl flowControl;
+    private final int maxFrameSize;
+    private final Map<Integer, ByteBuffer> sendingByStream;
+    private final IntPredicate sendableIdleStream;
+
+    /**
+     * @param queue The messages to send
+     * @param flowControl The credit granted by the peer
+     * @param maxFrameSize The most bytes of a message in one frame
+     */
+    public StreamMultiplexer(@NonNull SendQueue queue, @NonNull FlowControl flowControl, int maxFrameSize) {
+        checkState(maxFrameSize > 0, "Max frame size must be positive : %d", maxFrameSize);
+        this.queue = queue;
+        this.flowControl = flowControl;
+        this.maxFrameSize = maxFrameSize;
+        //In the order the streams take turns
+        this.sendingByStream = new LinkedHashMap<>();
+        this.sendableIdleStream = streamId -> !sendingByStream.containsKey(streamId) && flowControl.canSend(streamId);
+    }
+
+    /**
+     * Takes the next message from the queue for a stream that is not sending one, then takes a frame from the
+     * first stream in turn that has credit
+     *
+     * @return The header and payload of the frame to write, null if there is nothing that can be sent
+     */
+    public ByteBuffer[] nextFrame() {
+        PostmanMessage msg = queue.poll(sendableIdleStream);
+        if (nonNull(msg)) {
+            sendingByStream.put(msg.getStreamId(), msg.getFrame());
+        }
+
+        Map.Entry<Integer, ByteBuffer> turn = nextSendable();
+        if (isNull(turn)) {
+            return null;
+        }
+
+        int streamId = turn.getKey();
+        ByteBuffer message = turn.getValue();
+
+        int length = flowControl.sendable(streamId, Math.min(maxFrameSize, message.remaining()));
+        flowControl.onSent(streamId, length);
+        ByteBuffer payload = message.duplicate();
+        payload.limit(payload.position() + length);
+        message.position(message.position() + length);
+
+        if (message.hasRemaining()) {
+            //Back of the line for the stream's next frame
+            sendingByStream.put(streamId, message);
+        }
+
+        ByteBuffer header = ByteBuffer.allocate(FRAME_HEADER_LENGTH);
+        header.putInt(streamId).putInt(length).flip();
+        return new ByteBuffer[]{header, payload};
+    }
+
+    /**
+     * @return True while part of a message taken from the queue is still to be framed
+     */
+    public boolean isSending() {
+        return !sendingByStream.isEmpty();
+    }
+
+    /**
+     * @return True if {@link #nextFrame()} would return a frame
+     */
+    public boolean hasFrameToSend() {
+        for (int streamId : sendingByStream.keySet()) {
+            if (flowControl.canSend(streamId)) {
+                return true;
+            }
+        }
+        return queue.hasMessage(sendableIdleStream);
+    }
+
+    /**
+     * Removes the first stream in turn with credit to send, the others keep their place
+     */
+    private Map.Entry<Integer, ByteBuffer> nextSendable() {
+        Iterator<Map.Entry<Integer, ByteBuffer>> sending = sendingByStream.entrySet().iterator();
+        while (sending.hasNext()) {
+            Map.Entry<Integer, ByteBuffer> turn = sending.next();
+            if (flowControl.canSend(turn.getKey())) {
+                sending.remove();
+                return turn;
+            }
+        }
+        return null;
+    }
+}
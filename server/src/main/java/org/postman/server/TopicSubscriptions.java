@@ -0,0 +1,312 @@
+package org.postman.server;
+
+import android.support.annotation.NonNull;
+
+import com.siia.commons.core.log.Logcat;
+
+import org.postman.server.MessageOuterClass.Subscribe;
+import org.postman.server.MessageOuterClass.Unsubscribe;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+
+import static com.siia.commons.core.check.Check.checkState;
+import static java.util.Objects.isNull;
+import static java.util.Objects.nonNull;
+
+/**
+ * The topics each {@link Connection} of a {@link PostmanServer} is subscribed to, used to publish a message to
+ * only the connections subscribed to its topic.
+ *
+ * Topics are hierarchical with levels separated by {@code /}, e.g. {@code site/42/sensor/7/temp}. Subscriptions
+ * can use the wildcards {@code +} to match exactly one level, e.g. {@code site/42/sensor/+/temp}, and {@code #}
+ * as the last level to match any number of levels including none, e.g. {@code site/#} matches {@code site}
+ * and everything below it. As with MQTT, wildcards at the first level do not match topics starting with
+ * {@code $}. Subscriptions are kept in a trie by level so finding the subscribers of a topic takes time
+ * proportional to the depth of the topic rather than the number of subscriptions, and the subscribers found
+ * are cached per topic until a subscription the topic could match changes. The least recently used topics are
+ * evicted once {@value #MAX_CACHED_TOPICS} are cached.
+ *
+ * Finding subscribers never locks, so publishing from any number of threads never blocks subscription
+ * changes and vice versa. Changes are serialised between themselves. A publish running at the same time
+ * as a change may or may not see it.
+ */
+public final class TopicSubscriptions {
+    private static final String TAG = Logcat.getTag();
+    private static final String LEVEL_SEPARATOR = "/";
+    private static final String SINGLE_LEVEL_WILDCARD = "+";
+    private static final String MULTI_LEVEL_WILDCARD = "#";
+    private static final String SYSTEM_TOPIC_PREFIX = "$";
+    static final int MAX_CACHED_TOPICS = 4096;
+
+    private final Node root;
+    private final ConcurrentMap<Connection, Set<String>> filtersByConnection;
+    private final ConcurrentMap<String, CachedSubscribers> subscribersByTopic;
+    private final Queue<String> cachedTopics;
+
+    public TopicSubscriptions() {
+        this.root = new Node();
+        this.filtersByConnection = new ConcurrentHashMap<>();
+        this.subscribersByTopic = new ConcurrentHashMap<>();
+        this.cachedTopics = new ConcurrentLinkedQueue<>();
+    }
+
+    /**
+     * @param filter A topic, which may contain wildcards
+     */
+    public synchronized void subscribe(@NonNull Connection connection, @NonNull String filter) {
+        String[] levels = parseFilter(filter);
+        Node node = root;
+        for (String level : levels) {
+            node = node.children.computeIfAbsent(level, key -> new Node());
+        }
+
+        if (node.subscribers.add(connection)) {
+            node.version++;
+            filtersByConnection.computeIfAbsent(connection, key -> ConcurrentHashMap.newKeySet()).add(filter);
+        }
+    }
+
+    public synchronized void unsubscribe(@NonNull Connection connection, @NonNull String filter) {
+        Set<String> filters = filtersByConnection.get(connection);
+        if (nonNull(filters) && filters.remove(filter)) {
+            if (filters.isEmpty()) {
+                filtersByConnection.remove(connection);
+            }
+            removeSubscriber(root, parseFilter(filter), 0, connection);
+        }
+    }
+
+    /**
+     * Removes every subscription of the connection, called when it disconnects
+     */
+    public synchronized void unsubscribeAll(@NonNull Connection connection) {
+        Set<String> filters = filtersByConnection.remove(connection);
+        if (nonNull(filters)) {
+            filters.forEach(filter -> removeSubscriber(root, parseFilter(filter), 0, connection));
+        }
+    }
+
+    /**
+     * @param topic A topic without wildcards
+     * @return The connections with a subscription matching the topic, each connection only once however
+     * many of its subscriptions match
+     */
+    public Collection<Connection> subscribers(@NonNull String topic) {
+        CachedSubscribers cached = subscribersByTopic.get(topic);
+        if (nonNull(cached) && cached.match.isCurrent()) {
+            if (!cached.used) {
+                cached.used = true;
+            }
+            return cached.subscribers;
+        }
+
+        checkState(!topic.contains(SINGLE_LEVEL_WILDCARD) && !topic.contains(MULTI_LEVEL_WILDCARD),
+                "Cannot publish to a topic with wildcards : %s", topic);
+        Match match = new Match();
+        Set<Connection> subscribers = new HashSet<>();
+        match(root, topic.split(LEVEL_SEPARATOR, -1), 0, match, subscribers);
+        Collection<Connection> matched = subscribers.isEmpty() ? Collections.emptySet()
+                : Collections.unmodifiableSet(subscribers);
+
+        if (isNull(subscribersByTopic.put(topic, new CachedSubscribers(match, matched)))) {
+            cachedTopics.offer(topic);
+            if (subscribersByTopic.size() > MAX_CACHED_TOPICS) {
+                evictLeastRecentlyUsed();
+            }
+        }
+        return matched;
+    }
+
+    /**
+     * Handles the {@link Subscribe} and {@link Unsubscribe} control messages sent by clients
+     *
+     * @return True if the message was a subscription control message and should not be passed on
+     */
+    public boolean handleMessage(@NonNull Connection connection, @NonNull PostmanMessage msg) {
+        try {
+            if (msg.isOfType(Subscribe.class)) {
+                Subscribe subscribe = msg.getProtoObj();
+                subscribe(connection, subscribe.getTopic());
+                return true;
+            }
+
+            if (msg.isOfType(Unsubscribe.class)) {
+                Unsubscribe unsubscribe = msg.getProtoObj();
+                unsubscribe(connection, unsubscribe.getTopic());
+                return true;
+            }
+        } catch (Exception e) {
+            Logcat.w(TAG, "Could not handle possible subscription message", e);
+        }
+
+        return false;
+    }
+
+    /**
+     * Second chance eviction: topics used since they were last considered are kept and considered again later
+     */
+    private void evictLeastRecentlyUsed() {
+        for (int i = 0; i <= MAX_CACHED_TOPICS; i++) {
+            String topic = cachedTopics.poll();
+            if (isNull(topic)) {
+                return;
+            }
+
+            CachedSubscribers cached = subscribersByTopic.get(topic);
+            if (isNull(cached)) {
+                continue;
+            }
+
+            if (cached.used) {
+                cached.used = false;
+                cachedTopics.offer(topic);
+            } else if (subscribersByTopic.remove(topic, cached)) {
+                return;
+            } else {
+                //Replaced since, keep considering it
+                cachedTopics.offer(topic);
+            }
+        }
+    }
+
+    private static void match(Node node, String[] levels, int depth, Match match, Set<Connection> subscribers) {
+        match.visit(node);
+        boolean wildcardsMatch = depth > 0 || !levels[0].startsWith(SYSTEM_TOPIC_PREFIX);
+
+        if (wildcardsMatch) {
+            Node multiLevel = match.child(node, MULTI_LEVEL_WILDCARD);
+            if (nonNull(multiLevel)) {
+                match.visit(multiLevel);
+                subscribers.addAll(multiLevel.subscribers);
+            }
+        }
+
+        if (depth == levels.length) {
+            subscribers.addAll(node.subscribers);
+            return;
+        }
+
+        Node exact = match.child(node, levels[depth]);
+        if (nonNull(exact)) {
+            match(exact, levels, depth + 1, match, subscribers);
+        }
+
+        if (wildcardsMatch) {
+            Node singleLevel = match.child(node, SINGLE_LEVEL_WILDCARD);
+            if (nonNull(singleLevel)) {
+                match(singleLevel, levels, depth + 1, match, subscribers);
+            }
+        }
+    }
+
+    /**
+     * @return True if the node is no longer needed
+     */
+    private static boolean removeSubscriber(Node node, String[] levels, int depth, Connection connection) {
+        if (depth == levels.length) {
+            if (node.subscribers.remove(connection)) {
+                node.version++;
+            }
+        } else {
+            Node child = node.children.get(levels[depth]);
+            if (nonNull(child) && removeSubscriber(child, levels, depth + 1, connection)) {
+                node.children.remove(levels[depth]);
+                //Matches that went through the child need to look again, a new child may take its place
+                child.version++;
+            }
+        }
+
+        return node.subscribers.isEmpty() && node.children.isEmpty();
+    }
+
+    private static String[] parseFilter(String filter) {
+        String[] levels = filter.split(LEVEL_SEPARATOR, -1);
+        for (int i = 0; i < levels.length; i++) {
+            String level = levels[i];
+            checkState(!level.contains(SINGLE_LEVEL_WILDCARD) || level.equals(SINGLE_LEVEL_WILDCARD),
+                    "%s must be a whole level : %s", SINGLE_LEVEL_WILDCARD, filter);
+            checkState(!level.contains(MULTI_LEVEL_WILDCARD) || (level.equals(MULTI_LEVEL_WILDCARD) && i == levels.length - 1),
+                    "%s must be the whole last level : %s", MULTI_LEVEL_WILDCARD, filter);
+        }
+        return levels;
+    }
+
+    private static final class Node {
+        private final ConcurrentMap<String, Node> children = new ConcurrentHashMap<>();
+        private final Set<Connection> subscribers = ConcurrentHashMap.newKeySet();
+        /**
+         * Changed after the subscribers change or the node is removed, only ever by the changes serialised
+         */
+        private volatile long version;
+    }
+
+    /**
+     * The part of the trie matching a topic looked at: the nodes visited and the children found missing. The
+     * subscribers found stay current as long as none of the nodes changed and none of the children were added.
+     */
+    private static final class Match {
+        private final List<Node> visited = new ArrayList<>();
+        private long[] versions = new long[8];
+        private final List<Node> missingFrom = new ArrayList<>();
+        private final List<String> missingChildren = new ArrayList<>();
+
+        /**
+         * Called before reading the node's subscribers so that a change made while matching is seen
+         */
+        void visit(Node node) {
+            int index = visited.size();
+            if (index == versions.length) {
+                versions = Arrays.copyOf(versions, index * 2);
+            }
+            versions[index] = node.version;
+            visited.add(node);
+        }
+
+        Node child(Node node, String level) {
+            Node child = node.children.get(level);
+            if (isNull(child)) {
+                missingFrom.add(node);
+                missingChildren.add(level);
+            }
+            return child;
+        }
+
+        boolean isCurrent() {
+            for (int i = 0; i < visited.size(); i++) {
+                if (visited.get(i).version != versions[i]) {
+                    return false;
+                }
+            }
+            for (int i = 0; i < missingFrom.size(); i++) {
+                if (missingFrom.get(i).children.containsKey(missingChildren.get(i))) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
+    private static final class CachedSubscribers {
+        private final Match match;
+        private final Collection<Connection> subscribers;
+        /**
+         * Set when found in the cache, cleared when considered for eviction
+         */
+        private volatile boolean used;
+
+        CachedSubscribers(Match match, Collection<Connection> subscribers) {
+            this.match = match;
+            this.subscribers = subscribers;
+        }
+    }
+}
@@ -0,0 +1,363 @@
+package org.postman.server.blocking;
+
+import com.siia.commons.core.check.Check;
+import com.siia.commons.core.inject.Provider;
+import com.siia.commons.core.log.Logcat;
+
+import org.postman.server.Connection;
+import org.postman.server.ConnectionIds;
+import org.postman.server.FlowControl;
+import org.postman.server.MessageOuterClass.Heartbeat;
+import org.postman.server.MessageOuterClass.HeartbeatAck;
+import org.postman.server.PostmanMessage;
+import org.postman.server.RoundTripTime;
+import org.postman.server.SendQueue;
+import org.postman.server.SlowConsumerPolicy;
+import org.postman.server.StreamDemultiplexer;
+import org.postman.server.StreamMultiplexer;
+
+import java.io.IOException;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.BooleanSupplier;
+import java.util.function.Consumer;
+import java.util.function.IntPredicate;
+
+import io.reactivex.Scheduler;
+
+import static com.siia.commons.core.io.IO.closeQuietly;
+
+/**
+ * An implementation of {@link Connection} backed by a socket in blocking mode. Each connection is driven by
+ * two threads, one blocked in {@link #readMessages(Consumer)} and one blocked in {@link #writeMessages()},
+ * so unlike {@link org.postman.server.nio.NIOPostmanServer} no selector is involved and a slow connection
+ * can only ever hold up its own threads.
+ *
+ * Heartbeats and window updates from the peer are handled by the reading thread and are not passed on. With
+ * {@link FlowControl} the writing thread waits for credit from the peer, which the reading thread grants back
+ * to the peer as the messages read are passed on.
+ *
+ * Once {@link #multiplexStreams(int)} is called messages are written and read as the frames of a
+ * {@link StreamMultiplexer} rather than whole.
+ *
+ * The channel is read and written directly rather than through the socket's streams as those share a lock
+ * and a thread blocked reading would stop the other from writing. For the same reason read timeouts are
+ * checked on a {@link Scheduler} rather than using SO_TIMEOUT.
+ */
+class BlockingConnection implements Connection {
+    private static final String TAG = Logcat.getTag();
+    private static final int BUFFER_SIZE = 4096;
+
+    private final UUID connectionId;
+    private final SocketChannel socketChannel;
+    private final Provider<PostmanMessage> messageProvider;
+    private final SendQueue messagesToSend;
+    private final RoundTripTime roundTripTime;
+    private final FlowControl flowControl;
+    private final IntPredicate sendableStream;
+    private final BooleanSupplier hasSendableMessage;
+    private final AtomicBoolean connected;
+    private volatile long lastReadNanos;
+    private volatile boolean timedOut;
+    private StreamMultiplexer multiplexer;
+    private StreamDemultiplexer demultiplexer;
+
+    BlockingConnection(SocketChannel socketChannel, Provider<PostmanMessage> messageProvider) {
+        this.connectionId = ConnectionIds.next();
+        this.socketChannel = socketChannel;
+        this.messageProvider = messageProvider;
+        this.messagesToSend = new SendQueue();
+        this.roundTripTime = new RoundTripTime();
+        this.flowControl = new FlowControl();
+        this.sendableStream = flowControl::canSend;
+        this.hasSendableMessage = () -> messagesToSend.hasMessage(sendableStream);
+        this.connected = new AtomicBoolean(true);
+        this.lastReadNanos = System.nanoTime();
+    }
+
+    /**
+     * Multiplexes the streams of messages sent and received, only called before the reading and writing
+     * threads are started
+     */
+    void multiplexStreams(int maxFrameSize) {
+        multiplexer = new StreamMultiplexer(messagesToSend, flowControl, maxFrameSize);
+        demultiplexer = new StreamDemultiplexer(messageProvider);
+    }
+
+    /**
+     * Disconnects this connection if nothing is read for the given time, causing
+     * {@link #readMessages(Consumer)} to throw a {@link SocketTimeoutException}.
+     *
+     * @param timeoutNanos The read timeout, ignored if 0 or less
+     * @param scheduler The scheduler to check the timeout on
+     */
+    void timeoutReadsAfter(long timeoutNanos, Scheduler scheduler) {
+        if (timeoutNanos <= 0) {
+            return;
+        }
+
+        scheduler.scheduleDirect(() -> {
+            if (!isConnected()) {
+                return;
+            }
+
+            long remainingNanos = timeoutNanos - (System.nanoTime() - lastReadNanos);
+            if (remainingNanos <= 0) {
+                Logcat.v(TAG, connectionId, "read timeout");
+                timedOut = true;
+                disconnect();
+            } else {
+                timeoutReadsAfter(remainingNanos, scheduler);
+            }
+        }, timeoutNanos, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Blocks reading messages from the socket until the connection is closed or fails.
+     *
+     * @param messageConsumer Called on the reading thread with the messages completed by each read from the socket,
+     *                        never with an empty list
+     * @throws SocketTimeoutException If the read timeout passed
+     * @throws IOException If the socket fails or the peer closes it. Not thrown if
+     * the connection was closed using {@link #disconnect()}
+     */
+    void readMessages(Consumer<List<PostmanMessage>> messageConsumer) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+        PostmanMessage currentMessage = messageProvider.get();
+
+        try {
+            while (isConnected()) {
+                buffer.clear();
+                int bytesRead = socketChannel.read(buffer);
+
+                if (bytesRead == -1) {
+                    throw new IOException("Invalid bytes read from channel");
+                }
+
+                lastReadNanos = System.nanoTime();
+                Logcat.v(TAG, connectionId, "read %d bytes", bytesRead);
+                buffer.flip();
+                List<PostmanMessage> messages = new ArrayList<>();
+
+                if (demultiplexer != null) {
+                    demultiplexer.read(buffer, msg -> {
+                        if (handleControlMessage(msg)) {
+                            msg.release();
+                        } else {
+                            messages.add(msg);
+                        }
+                    });
+                } else {
+                    while (buffer.hasRemaining()) {
+                        if (currentMessage.read(buffer)) {
+                            if (handleControlMessage(currentMessage)) {
+                                currentMessage.release();
+                            } else {
+                                messages.add(currentMessage);
+                            }
+                            currentMessage = messageProvider.get();
+                        }
+                    }
+                }
+
+                if (!messages.isEmpty()) {
+                    messageConsumer.accept(messages);
+                }
+            }
+        } catch (IOException e) {
+            if (isConnected()) {
+                throw e;
+            }
+        }
+
+        if (timedOut) {
+            throw new SocketTimeoutException("Nothing read within read timeout");
+        }
+    }
+
+    /**
+     * Blocks writing queued messages to the socket until the connection is closed or fails.
+     *
+     * @throws IOException If the socket fails. Not thrown if the connection was closed using {@link #disconnect()}
+     */
+    void writeMessages() throws IOException {
+        if (multiplexer != null) {
+            writeFrames();
+            return;
+        }
+
+        try {
+            while (isConnected()) {
+                messagesToSend.await(hasSendableMessage);
+                PostmanMessage msg = messagesToSend.poll(sendableStream);
+
+                if (msg == null) {
+                    if (messagesToSend.isClosed()) {
+                        //Either disconnected or everything that could be sent before disconnectOnceWritten has been
+                        disconnect();
+                        break;
+                    }
+                    continue;
+                }
+
+                ByteBuffer frame = msg.getFrame();
+                int frameLength = frame.remaining();
+                flowControl.onSent(msg.getStreamId(), frameLength);
+                while (frame.hasRemaining()) {
+                    socketChannel.write(frame);
+                }
+                Logcat.v(TAG, connectionId, "wrote %d bytes", frameLength);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (IOException e) {
+            if (isConnected()) {
+                throw e;
+            }
+        }
+    }
+
+    private void writeFrames() throws IOException {
+        try {
+            while (isConnected()) {
+                ByteBuffer[] frame = multiplexer.nextFrame();
+
+                if (frame == null) {
+                    if (messagesToSend.isClosed()) {
+                        disconnect();
+                        break;
+                    }
+                    //Until a message is queued on a stream that can take one, or the peer grants credit
+                    messagesToSend.await(multiplexer::hasFrameToSend);
+                    continue;
+                }
+
+                ByteBuffer payload = frame[1];
+                int frameLength = frame[0].remaining() + payload.remaining();
+                while (payload.hasRemaining()) {
+                    socketChannel.write(frame);
+                }
+                Logcat.v(TAG, connectionId, "wrote %d byte frame", frameLength);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (IOException e) {
+            if (isConnected()) {
+                throw e;
+            }
+        }
+    }
+
+    /**
+     * Stops queueing messages and disconnects once the writing thread has written those already queued.
+     */
+    void disconnectOnceWritten() {
+        messagesToSend.close();
+    }
+
+    @Override
+    public UUID getConnectionId() {
+        return connectionId;
+    }
+
+    @Override
+    public void disconnect() {
+        if (!connected.compareAndSet(true, false)) {
+            return;
+        }
+
+        closeQuietly(socketChannel);
+        messagesToSend.clear();
+    }
+
+    @Override
+    public boolean isConnected() {
+        return connected.get() && socketChannel.isConnected();
+    }
+
+    @Override
+    public SendQueue.Result queueMessageToSend(PostmanMessage msg) {
+        Check.checkState(isConnected(), "Connection is not valid");
+
+        //Its frame would be read into again once released while still queued
+        SendQueue.Result result = messagesToSend.offer(msg.isPooled() ? new PostmanMessage(msg) : msg);
+        if (result == SendQueue.Result.CLOSED) {
+            Logcat.w(TAG, "Connection closing, dropping message [%s]", msg.toString());
+        }
+        return result;
+    }
+
+    @Override
+    public void slowConsumerPolicy(SlowConsumerPolicy policy) {
+        messagesToSend.policy(policy);
+    }
+
+    SendQueue sendQueue() {
+        return messagesToSend;
+    }
+
+    FlowControl flowControl() {
+        return flowControl;
+    }
+
+    @Override
+    public long expiredMessages() {
+        return messagesToSend.expiredMessages();
+    }
+
+    @Override
+    public long droppedMessages() {
+        return messagesToSend.droppedMessages();
+    }
+
+    @Override
+    public RoundTripTime roundTripTime() {
+        return roundTripTime;
+    }
+
+    private boolean handleControlMessage(PostmanMessage msg) {
+        if (flowControl.isEnabled() && flowControl.handleMessage(msg)) {
+            //The writing thread may be waiting for the credit
+            messagesToSend.wakeUp();
+            return true;
+        }
+
+        try {
+            if (msg.isOfType(Heartbeat.class)) {
+                Heartbeat heartbeat = msg.getProtoObj();
+                queueMessageToSend(PostmanMessage.control(HeartbeatAck.newBuilder()
+                        .setSentNanos(heartbeat.getSentNanos())
+                        .build()));
+                return true;
+            }
+        } catch (Exception e) {
+            Logcat.w(TAG, "Could not handle possible heartbeat message", e);
+        }
+        return false;
+    }
+
+    /**
+     * Grants the peer credit back for a message read, once the subscriber has asked for it or the message was
+     * handled without being passed on. Can be called from any thread.
+     */
+    void consumed(PostmanMessage msg) {
+        if (flowControl.isEnabled()) {
+            flowControl.consumed(msg).forEach(messagesToSend::offer);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "BlockingConnection{" +
+                " co=" + socketChannel.isOpen() +
+                " cc=" + socketChannel.isConnected() +
+                " connectionId=" + connectionId +
+                " }";
+    }
+}
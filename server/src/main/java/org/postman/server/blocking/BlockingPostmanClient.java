@@ -0,0 +1,212 @@
+package org.postman.server.blocking;
+
+import android.support.annotation.NonNull;
+
+import com.google.protobuf.AbstractMessageLite;
+import com.google.protobuf.MessageLite;
+import com.siia.commons.core.inject.Provider;
+import com.siia.commons.core.io.IO;
+import com.siia.commons.core.log.Logcat;
+import com.siia.commons.core.timing.HashedWheelTimer;
+
+import org.postman.server.FlowControl;
+import org.postman.server.PendingRequests;
+import org.postman.server.PostmanClient;
+import org.postman.server.PostmanClientEvent;
+import org.postman.server.PostmanConfig;
+import org.postman.server.PostmanMessage;
+import org.postman.server.RoundTripTime;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+import io.reactivex.BackpressureStrategy;
+import io.reactivex.Flowable;
+import io.reactivex.FlowableEmitter;
+import io.reactivex.Scheduler;
+import io.reactivex.Single;
+import io.reactivex.disposables.Disposable;
+
+import static com.siia.commons.core.check.Check.checkState;
+import static java.util.Collections.singletonList;
+import static java.util.Objects.isNull;
+import static java.util.Objects.nonNull;
+
+/**
+ * A {@link PostmanClient} using a blocking socket. Messages are read on the thread subscribing to the
+ * {@link Flowable} returned from {@link #connect(SocketChannel, InetAddress, int)} and written on a separate
+ * thread from the {@link Scheduler} passed in.
+ *
+ * As with {@link BlockingPostmanServer} heartbeats from the server are answered but none are sent, so
+ * {@link #roundTripTime()} will have no samples. Request timeouts are driven by a timer ticking on a thread from
+ * the {@link Scheduler} while connected.
+ */
+public class BlockingPostmanClient implements PostmanClient {
+    private static final String TAG = Logcat.getTag();
+
+    private final Scheduler scheduler;
+    private final Provider<PostmanMessage> messageProvider;
+    private final PostmanConfig config;
+    private final AtomicBoolean disconnectRequested;
+    private final HashedWheelTimer timer;
+    private final PendingRequests pendingRequests;
+    private volatile BlockingConnection connection;
+
+    BlockingPostmanClient(Scheduler scheduler, Provider<PostmanMessage> messageProvider, PostmanConfig config) {
+        this.scheduler = scheduler;
+        this.messageProvider = messageProvider;
+        this.config = config;
+        this.disconnectRequested = new AtomicBoolean(false);
+        this.timer = new HashedWheelTimer(config.timerTickNanos(), TimeUnit.NANOSECONDS, config.timerTicksPerWheel());
+        this.pendingRequests = new PendingRequests(timer);
+    }
+
+    @Override
+    public Flowable<PostmanClientEvent> connect(@NonNull SocketChannel socketChannel, @NonNull InetAddress host, int port) {
+        return connect(socketChannel, host, port, emitter -> events -> events.forEach(emitter::onNext), this::consumed);
+    }
+
+    @Override
+    public Flowable<List<PostmanClientEvent>> connectBatched(@NonNull SocketChannel socketChannel, @NonNull InetAddress host, int port) {
+        return connect(socketChannel, host, port, emitter -> emitter::onNext, events -> events.forEach(this::consumed));
+    }
+
+    private <T> Flowable<T> connect(SocketChannel socketChannel, InetAddress host, int port,
+                                    Function<FlowableEmitter<T>, Consumer<List<PostmanClientEvent>>> eventConsumerFactory,
+                                    Consumer<T> consumed) {
+        if (isConnected()) {
+            return Flowable.error(new IllegalStateException("Already connected"));
+        }
+
+        disconnectRequested.set(false);
+        return Flowable.<T>create(emitter -> {
+            Consumer<List<PostmanClientEvent>> events = eventConsumerFactory.apply(emitter);
+            BlockingConnection current;
+
+            try {
+                socketChannel.configureBlocking(true);
+                socketChannel.socket().setKeepAlive(true);
+                socketChannel.socket().setTcpNoDelay(true);
+                socketChannel.connect(new InetSocketAddress(host, port));
+                current = new BlockingConnection(socketChannel, messageProvider);
+                current.flowControl().limit(config);
+                if (config.maxFrameSize() > 0) {
+                    current.multiplexStreams(config.maxFrameSize());
+                }
+                connection = current;
+                if (disconnectRequested.get()) {
+                    //Disconnected while connecting
+                    current.disconnect();
+                }
+            } catch (Throwable e) {
+                Logcat.e(TAG, "Problem connecting to server", e);
+                IO.closeQuietly(socketChannel);
+                emitter.onError(e);
+                return;
+            }
+
+            events.accept(singletonList(PostmanClientEvent.isConnectedEvent()));
+            current.timeoutReadsAfter(config.readTimeoutNanos(), scheduler);
+            Disposable timerTicks = scheduler.schedulePeriodicallyDirect(timer::advance, config.timerTickNanos(),
+                    config.timerTickNanos(), TimeUnit.NANOSECONDS);
+
+            scheduler.scheduleDirect(() -> {
+                try {
+                    current.writeMessages();
+                } catch (IOException e) {
+                    Logcat.e(TAG, "Problem sending message", e);
+                    current.disconnect();
+                }
+            });
+
+            try {
+                current.readMessages(messages -> {
+                    List<PostmanClientEvent> messageEvents = new ArrayList<>(messages.size());
+                    messages.forEach(msg -> {
+                        if (pendingRequests.handleMessage(msg)) {
+                            current.consumed(msg);
+                            msg.release();
+                        } else {
+                            messageEvents.add(PostmanClientEvent.newMessage(msg));
+                        }
+                    });
+                    if (!messageEvents.isEmpty()) {
+                        events.accept(messageEvents);
+                    }
+                });
+
+                if (disconnectRequested.get()) {
+                    emitter.onComplete();
+                } else {
+                    emitter.tryOnError(new IOException("Connection closed"));
+                }
+            } catch (Throwable e) {
+                emitter.tryOnError(e);
+            } finally {
+                current.disconnect();
+                timerTicks.dispose();
+                pendingRequests.failAll(new IOException("Disconnected"));
+            }
+        }, BackpressureStrategy.BUFFER)
+                .subscribeOn(scheduler)
+                //Downstream of the buffer, so only once the subscriber has asked for the events
+                .doOnNext(consumed::accept);
+    }
+
+    /**
+     * Grants credit back for the message of an event once the subscriber has asked for it, see {@link FlowControl}
+     */
+    private void consumed(PostmanClientEvent event) {
+        BlockingConnection current = connection;
+        if (event.isNewMessageEvent() && nonNull(current)) {
+            current.consumed(event.msg());
+        }
+    }
+
+    @Override
+    public void sendMessage(@NonNull PostmanMessage msg) {
+        connection.queueMessageToSend(msg);
+    }
+
+    @Override
+    public void sendMessage(@NonNull MessageLite msg) {
+        sendMessage(new PostmanMessage(msg));
+    }
+
+    @Override
+    public <T extends AbstractMessageLite> Single<T> request(@NonNull MessageLite msg, @NonNull Class<T> responseType,
+                                                             long timeout, @NonNull TimeUnit unit) {
+        return pendingRequests.request(msg, responseType, timeout, unit, request -> {
+            checkState(isConnected(), "Not connected");
+            sendMessage(request);
+        });
+    }
+
+    @Override
+    public void disconnect() {
+        disconnectRequested.set(true);
+        if (nonNull(connection)) {
+            connection.disconnect();
+        }
+    }
+
+    @Override
+    public boolean isConnected() {
+        return nonNull(connection) && connection.isConnected();
+    }
+
+    @NonNull
+    @Override
+    public RoundTripTime roundTripTime() {
+        BlockingConnection current = connection;
+        return isNull(current) ? new RoundTripTime() : current.roundTripTime();
+    }
+}
@@ -0,0 +1,399 @@
+package org.postman.server.blocking;
+
+import android.support.annotation.NonNull;
+
+import com.google.protobuf.AbstractMessageLite;
+import com.google.protobuf.MessageLite;
+import com.siia.commons.core.inject.Provider;
+import com.siia.commons.core.io.IO;
+import com.siia.commons.core.log.Logcat;
+
+import org.postman.server.AdmissionControl;
+import org.postman.server.Connection;
+import org.postman.server.FlowControl;
+import org.postman.server.MessagePriority;
+import org.postman.server.PostmanConfig;
+import org.postman.server.PostmanMessage;
+import org.postman.server.PostmanServer;
+import org.postman.server.PostmanServerEvent;
+import org.postman.server.RequestCoalescing;
+import org.postman.server.RequestHandlers;
+import org.postman.server.SendQueue;
+import org.postman.server.SlowConsumerPolicy;
+import org.postman.server.TopicSubscriptions;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.channels.spi.SelectorProvider;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+import io.reactivex.BackpressureStrategy;
+import io.reactivex.Flowable;
+import io.reactivex.FlowableEmitter;
+import io.reactivex.Scheduler;
+import io.reactivex.Single;
+
+import static java.util.Collections.singletonList;
+import static java.util.Objects.isNull;
+import static java.util.Objects.nonNull;
+
+/**
+ * A {@link PostmanServer} using blocking sockets with a reading and a writing thread per connection, rather
+ * than the single selector thread of {@link org.postman.server.nio.NIOPostmanServer}. Threads are taken from
+ * the {@link Scheduler} passed in which should be able to create a thread per task, e.g.
+ * {@link io.reactivex.schedulers.Schedulers#io()}.
+ *
+ * This trades memory per connection for simplicity and suits request/response workloads with a modest number
+ * of connections. Of the {@link PostmanConfig} options only the read timeout, the send queue watermarks, the
+ * max frame size, the flow control windows and the admission options (max connections, accept rate and backlog)
+ * are supported, heartbeats from clients are answered but none are sent.
+ */
+public class BlockingPostmanServer implements PostmanServer {
+    private static final String TAG = Logcat.getTag();
+    private static final long DRAIN_POLL_MILLIS = 10;
+
+    private final SelectorProvider selectorProvider;
+    private final Provider<PostmanMessage> messageProvider;
+    private final Scheduler scheduler;
+    private final PostmanConfig config;
+    private final ConcurrentMap<UUID, BlockingConnection> connections;
+    private final AdmissionControl admissionControl;
+    private final TopicSubscriptions topicSubscriptions;
+    private final RequestHandlers requestHandlers;
+    private final AtomicBoolean running;
+    private ServerSocketChannel serverSocketChannel;
+    private volatile boolean draining;
+    private volatile long drainDeadlineNanos;
+
+    BlockingPostmanServer(SelectorProvider selectorProvider, Provider<PostmanMessage> messageProvider,
+                          Scheduler scheduler, PostmanConfig config) {
+        this.selectorProvider = selectorProvider;
+        this.messageProvider = messageProvider;
+        this.scheduler = scheduler;
+        this.config = config;
+        this.connections = new ConcurrentHashMap<>();
+        this.admissionControl = new AdmissionControl(config, connections::size);
+        this.topicSubscriptions = new TopicSubscriptions();
+        this.requestHandlers = new RequestHandlers();
+        this.running = new AtomicBoolean(false);
+    }
+
+    @Override
+    public Flowable<PostmanServerEvent> serverStart(@NonNull InetSocketAddress bindAddress) {
+        return start(bindAddress, emitter -> events -> events.forEach(emitter::onNext), BlockingPostmanServer::consumed);
+    }
+
+    @Override
+    public Flowable<List<PostmanServerEvent>> serverStartBatched(@NonNull InetSocketAddress bindAddress) {
+        return start(bindAddress, emitter -> emitter::onNext, events -> events.forEach(BlockingPostmanServer::consumed));
+    }
+
+    /**
+     * @param eventConsumerFactory Creates what to pass events on to from the serialised emitter, events are
+     *                             given as the list of events that occurred together
+     * @param consumed             Called with the events the subscriber has asked for, to grant credit back for
+     *                             their messages
+     */
+    private <T> Flowable<T> start(InetSocketAddress bindAddress,
+                                  Function<FlowableEmitter<T>, Consumer<List<PostmanServerEvent>>> eventConsumerFactory,
+                                  Consumer<T> consumed) {
+        if (isRunning()) {
+            Logcat.w(TAG, "Server already running");
+            return Flowable.error(new IllegalStateException("Already running"));
+        }
+
+        return Flowable.<T>create(emitter -> {
+            FlowableEmitter<T> serializedEmitter = emitter.serialize();
+            Consumer<List<PostmanServerEvent>> events = eventConsumerFactory.apply(serializedEmitter);
+
+            try {
+                draining = false;
+                serverSocketChannel = selectorProvider.openServerSocketChannel();
+                serverSocketChannel.socket().bind(bindAddress, config.acceptBacklog());
+                running.set(true);
+            } catch (Exception e) {
+                stopServer();
+                emitter.onError(e);
+                return;
+            }
+
+            events.accept(singletonList(PostmanServerEvent.serverListening(bindAddress.getPort(), bindAddress.getHostName())));
+
+            try {
+                while (running.get()) {
+                    SocketChannel socketChannel = serverSocketChannel.accept();
+                    acceptClientConnection(socketChannel, events);
+                }
+            } catch (Exception e) {
+                if (running.get()) {
+                    serializedEmitter.tryOnError(e);
+                }
+            } finally {
+                if (draining) {
+                    drain(events);
+                }
+                stopServer();
+                if (!serializedEmitter.isCancelled()) {
+                    serializedEmitter.onComplete();
+                }
+            }
+        }, BackpressureStrategy.BUFFER)
+                .subscribeOn(scheduler)
+                //Downstream of the buffer, so only once the subscriber has asked for the events
+                .doOnNext(consumed::accept);
+    }
+
+    /**
+     * Grants credit back for the message of an event once the subscriber has asked for it, see {@link FlowControl}
+     */
+    private static void consumed(PostmanServerEvent event) {
+        if (event.isNewMessage()) {
+            ((BlockingConnection) event.connection()).consumed(event.message());
+        }
+    }
+
+    @Override
+    public void stopServer() {
+        running.set(false);
+        IO.closeQuietly(serverSocketChannel);
+        connections.values().forEach(connection -> {
+            topicSubscriptions.unsubscribeAll(connection);
+            connection.disconnect();
+        });
+        connections.clear();
+    }
+
+    @Override
+    public void stopServer(long drainTimeout, @NonNull TimeUnit unit) {
+        if (!isRunning()) {
+            Logcat.w(TAG, "Server is not running");
+            return;
+        }
+
+        drainDeadlineNanos = System.nanoTime() + unit.toNanos(drainTimeout);
+        draining = true;
+        running.set(false);
+        IO.closeQuietly(serverSocketChannel);
+    }
+
+    @Override
+    public boolean isRunning() {
+        return running.get() && nonNull(serverSocketChannel) && serverSocketChannel.isOpen();
+    }
+
+    @Override
+    public void broadcastMessage(@NonNull MessageLite msg, @NonNull MessagePriority priority) {
+        PostmanMessage message = new PostmanMessage(msg).setPriority(priority);
+        connections.values().forEach(connection -> sendMessage(message, connection));
+    }
+
+    @Override
+    public void publish(@NonNull String topic, @NonNull MessageLite msg) {
+        publish(topic, msg, null);
+    }
+
+    @Override
+    public void publishLatest(@NonNull String topic, @NonNull MessageLite msg) {
+        publish(topic, msg, topic);
+    }
+
+    @Override
+    public void subscribe(@NonNull Connection client, @NonNull String topic) {
+        topicSubscriptions.subscribe(client, topic);
+    }
+
+    @Override
+    public void unsubscribe(@NonNull Connection client, @NonNull String topic) {
+        topicSubscriptions.unsubscribe(client, topic);
+    }
+
+    @Override
+    public <Q extends AbstractMessageLite> void handleRequests(@NonNull Class<Q> requestType,
+                                                               @NonNull Function<Q, Single<? extends MessageLite>> handler,
+                                                               @NonNull RequestCoalescing coalescing) {
+        requestHandlers.register(requestType, handler, coalescing);
+    }
+
+    @Override
+    public void sendMessage(@NonNull PostmanMessage msg, @NonNull Connection client) {
+        if (!client.isConnected()) {
+            Logcat.w(TAG, "Not adding message [%s] to queue with invalid connection [%s]", msg.toString(), client.toString());
+            return;
+        }
+
+        try {
+            client.queueMessageToSend(msg);
+        } catch (IllegalStateException e) {
+            Logcat.w(TAG, "Client %s disconnected while sending", client.getConnectionId());
+        }
+    }
+
+    @Override
+    public void sendMessage(@NonNull MessageLite msg, @NonNull Connection client) {
+        sendMessage(new PostmanMessage(msg), client);
+    }
+
+    @Override
+    public int numberOfClients() {
+        return connections.size();
+    }
+
+    @Override
+    public long refusedConnections() {
+        return admissionControl.refusedConnections();
+    }
+
+    @Override
+    public void sendMessage(MessageLite msg, UUID connectionId) {
+        BlockingConnection connection = connections.get(connectionId);
+
+        if (isNull(connection)) {
+            Logcat.w(TAG, "Client %s does not seem to be connected, not sending message", connectionId.toString());
+            return;
+        }
+
+        sendMessage(new PostmanMessage(msg), connection);
+    }
+
+    /**
+     * Called on the accepting thread once it has stopped accepting. Blocks until the writing thread of every
+     * client has written what was queued and disconnected, or the deadline passes.
+     */
+    private void drain(Consumer<List<PostmanServerEvent>> events) throws InterruptedException {
+        Logcat.d(TAG, "Draining %d client(s)", connections.size());
+        events.accept(singletonList(PostmanServerEvent.serverDraining(connections.size())));
+        connections.values().forEach(BlockingConnection::disconnectOnceWritten);
+
+        while (!connections.isEmpty() && System.nanoTime() - drainDeadlineNanos < 0) {
+            Thread.sleep(DRAIN_POLL_MILLIS);
+        }
+
+        Logcat.d(TAG, "Drained, %d client(s) pending", connections.size());
+        events.accept(singletonList(PostmanServerEvent.serverDrained(connections.size())));
+    }
+
+    private void acceptClientConnection(SocketChannel socketChannel, Consumer<List<PostmanServerEvent>> events) {
+        if (!admissionControl.tryAdmit()) {
+            Logcat.v(TAG, "Refusing connection, %d refused", admissionControl.refusedConnections());
+            refuseConnection(socketChannel);
+            return;
+        }
+
+        BlockingConnection connection;
+
+        try {
+            socketChannel.socket().setKeepAlive(true);
+            socketChannel.socket().setTcpNoDelay(true);
+            connection = new BlockingConnection(socketChannel, messageProvider);
+        } catch (IOException e) {
+            Logcat.w(TAG, "Couldnt accept connection channel", e);
+            IO.closeQuietly(socketChannel);
+            return;
+        }
+
+        connection.flowControl().limit(config);
+        if (config.maxFrameSize() > 0) {
+            connection.multiplexStreams(config.maxFrameSize());
+        }
+        connections.put(connection.getConnectionId(), connection);
+        connection.sendQueue().limit(config, new SendQueue.Listener() {
+            @Override
+            public void onHighWatermark(SendQueue queue) {
+                events.accept(singletonList(PostmanServerEvent.clientSendQueueHigh(connection)));
+                if (queue.policy() == SlowConsumerPolicy.DISCONNECT) {
+                    //The reading thread reports the disconnect
+                    Logcat.d(TAG, "Disconnecting slow client %s", connection.getConnectionId());
+                    connection.disconnect();
+                }
+            }
+
+            @Override
+            public void onLowWatermark(SendQueue queue) {
+                events.accept(singletonList(PostmanServerEvent.clientSendQueueLow(connection)));
+            }
+        });
+        events.accept(singletonList(PostmanServerEvent.newClient(connection)));
+        connection.timeoutReadsAfter(config.readTimeoutNanos(), scheduler);
+
+        scheduler.scheduleDirect(() -> {
+            try {
+                connection.writeMessages();
+            } catch (IOException e) {
+                Logcat.e(TAG, "Problem sending message", e);
+                connection.disconnect();
+            }
+        });
+
+        scheduler.scheduleDirect(() -> {
+            try {
+                connection.readMessages(messages -> {
+                    List<PostmanServerEvent> messageEvents = new ArrayList<>(messages.size());
+                    messages.forEach(msg -> {
+                        if (topicSubscriptions.handleMessage(connection, msg)
+                                || requestHandlers.handleMessage(connection, msg, this::sendMessage)) {
+                            connection.consumed(msg);
+                            msg.release();
+                        } else {
+                            messageEvents.add(PostmanServerEvent.newMessage(msg, connection));
+                        }
+                    });
+                    if (!messageEvents.isEmpty()) {
+                        events.accept(messageEvents);
+                    }
+                });
+            } catch (SocketTimeoutException e) {
+                Logcat.v(TAG, connection.getConnectionId(), "Read timeout");
+                if (nonNull(connections.remove(connection.getConnectionId()))) {
+                    topicSubscriptions.unsubscribeAll(connection);
+                    events.accept(Arrays.asList(PostmanServerEvent.clientTimedOut(connection),
+                            PostmanServerEvent.clientDisconnected(connection)));
+                }
+            } catch (IOException e) {
+                Logcat.e(TAG, "Lost connection", e);
+            }
+
+            if (nonNull(connections.remove(connection.getConnectionId()))) {
+                topicSubscriptions.unsubscribeAll(connection);
+                connection.disconnect();
+                events.accept(singletonList(PostmanServerEvent.clientDisconnected(connection)));
+            }
+        });
+    }
+
+    private void publish(String topic, MessageLite msg, String conflationKey) {
+        Collection<Connection> subscribers = topicSubscriptions.subscribers(topic);
+        if (subscribers.isEmpty()) {
+            return;
+        }
+
+        PostmanMessage message = isNull(conflationKey) ? new PostmanMessage(msg, topic)
+                : PostmanMessage.conflated(msg, topic, conflationKey);
+        subscribers.forEach(connection -> sendMessage(message, connection));
+    }
+
+    /**
+     * Closes the connection with a reset rather than the normal close handshake so nothing is left in TIME_WAIT
+     */
+    private void refuseConnection(SocketChannel socketChannel) {
+        try {
+            socketChannel.socket().setSoLinger(true, 0);
+        } catch (IOException e) {
+            Logcat.w(TAG, "Couldnt set linger on refused connection", e);
+        } finally {
+            IO.closeQuietly(socketChannel);
+        }
+    }
+}
@@ -0,0 +1,57 @@
+package org.postman.server.nio;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import io.reactivex.FlowableEmitter;
+
+/**
+ * Where an event loop sends the events it produces. Events are either passed straight on to the emitter
+ * or collected and passed on as a single list when the loop calls {@link #flush()} at the end of each
+ * pass, which saves the per item cost of the reactive stream when there are many small messages.
+ *
+ * Only to be used from the event loop thread.
+ *
+ * @param <E> The type of event
+ */
+abstract class EventSink<E> {
+
+    abstract void emit(E event);
+
+    /**
+     * Called by the event loop after each pass over the selected keys.
+     */
+    void flush() {
+    }
+
+    static <E> EventSink<E> eachTo(FlowableEmitter<E> emitter) {
+        return new EventSink<E>() {
+            @Override
+            void emit(E event) {
+                emitter.onNext(event);
+            }
+        };
+    }
+
+    static <E> EventSink<E> batchedTo(FlowableEmitter<List<E>> emitter) {
+        return new EventSink<E>() {
+            private List<E> batch = new ArrayList<>();
+
+            @Override
+            void emit(E event) {
+                batch.add(event);
+            }
+
+            @Override
+            void flush() {
+                if (batch.isEmpty()) {
+                    return;
+                }
+
+                List<E> events = batch;
+                batch = new ArrayList<>(events.size());
+                emitter.onNext(events);
+            }
+        };
+    }
+}
@@ -0,0 +1,158 @@
+package org.postman.server.nio;
+
+import com.siia.commons.core.log.Logcat;
+import com.siia.commons.core.timing.HashedWheelTimer;
+
+import org.postman.server.MessageOuterClass.Heartbeat;
+import org.postman.server.MessageOuterClass.HeartbeatAck;
+import org.postman.server.PostmanConfig;
+import org.postman.server.PostmanMessage;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+
+import static java.util.Objects.nonNull;
+
+/**
+ * Sends {@link Heartbeat}s over {@link NIOConnection}s at the configured interval and answers heartbeats
+ * from the peer. Acknowledgements echo the time the heartbeat was sent which is used to record the
+ * connection's {@link org.postman.server.RoundTripTime}. If the configured number of heartbeats go
+ * unanswered the listener is told so that the stalled connection can be evicted.
+ *
+ * Heartbeats are scheduled on a {@link HashedWheelTimer} advanced by the event loop, all methods other
+ * than {@link #untrack(NIOConnection)} must be called from the event loop thread.
+ */
+class HeartbeatMonitor {
+    private static final String TAG = Logcat.getTag();
+
+    interface Listener {
+        /**
+         * Called once when a connection has not acknowledged the configured number of heartbeats
+         */
+        void onHeartbeatsMissed(NIOConnection connection, int missedHeartbeats);
+    }
+
+    private final PostmanConfig config;
+    private final HashedWheelTimer timer;
+    private final LongSupplier nanoClock;
+    private final ConcurrentMap<NIOConnection, HeartbeatTask> tasksByConnection;
+
+    HeartbeatMonitor(PostmanConfig config, HashedWheelTimer timer) {
+        this(config, timer, System::nanoTime);
+    }
+
+    HeartbeatMonitor(PostmanConfig config, HashedWheelTimer timer, LongSupplier nanoClock) {
+        this.config = config;
+        this.timer = timer;
+        this.nanoClock = nanoClock;
+        this.tasksByConnection = new ConcurrentHashMap<>();
+    }
+
+    boolean isEnabled() {
+        return config.heartbeatIntervalNanos() > 0;
+    }
+
+    void track(NIOConnection connection, Listener listener) {
+        if (!isEnabled()) {
+            return;
+        }
+
+        HeartbeatTask task = new HeartbeatTask(connection, listener);
+        tasksByConnection.put(connection, task);
+        task.schedule();
+    }
+
+    void untrack(NIOConnection connection) {
+        HeartbeatTask task = tasksByConnection.remove(connection);
+        if (nonNull(task)) {
+            task.cancel();
+        }
+    }
+
+    void clear() {
+        tasksByConnection.clear();
+    }
+
+    /**
+     * Handles heartbeat control messages. Heartbeats are answered and acknowledgements are used to
+     * record the round trip time.
+     *
+     * @return True if the message was a heartbeat control message and should not be passed on
+     */
+    boolean handleMessage(NIOConnection connection, PostmanMessage msg) {
+        try {
+            if (msg.isOfType(Heartbeat.class)) {
+                Heartbeat heartbeat = msg.getProtoObj();
+                connection.queueMessageToSend(PostmanMessage.control(HeartbeatAck.newBuilder()
+                        .setSentNanos(heartbeat.getSentNanos())
+                        .build()));
+                return true;
+            }
+
+            if (msg.isOfType(HeartbeatAck.class)) {
+                HeartbeatAck ack = msg.getProtoObj();
+                connection.roundTripTime().record(nanoClock.getAsLong() - ack.getSentNanos());
+                HeartbeatTask task = tasksByConnection.get(connection);
+                if (nonNull(task)) {
+                    task.unansweredHeartbeats = 0;
+                }
+                return true;
+            }
+        } catch (Exception e) {
+            Logcat.w(TAG, "Could not handle possible heartbeat message", e);
+        }
+
+        return false;
+    }
+
+    private class HeartbeatTask implements Runnable {
+        private final NIOConnection connection;
+        private final Listener listener;
+        private volatile HashedWheelTimer.Timeout timeout;
+        private volatile boolean cancelled;
+        private int unansweredHeartbeats;
+
+        HeartbeatTask(NIOConnection connection, Listener listener) {
+            this.connection = connection;
+            this.listener = listener;
+        }
+
+        @Override
+        public void run() {
+            if (cancelled || !connection.isConnected()) {
+                return;
+            }
+
+            if (unansweredHeartbeats >= config.maxMissedHeartbeats()) {
+                Logcat.w(TAG, "%d heartbeats unanswered by %s", unansweredHeartbeats, connection.getConnectionId());
+                listener.onHeartbeatsMissed(connection, unansweredHeartbeats);
+                return;
+            }
+
+            try {
+                connection.queueMessageToSend(PostmanMessage.control(Heartbeat.newBuilder()
+                        .setSentNanos(nanoClock.getAsLong())
+                        .build()));
+                unansweredHeartbeats++;
+            } catch (Exception e) {
+                Logcat.w(TAG, "Could not send heartbeat", e);
+            }
+
+            schedule();
+        }
+
+        void schedule() {
+            timeout = timer.schedule(this, config.heartbeatIntervalNanos(), TimeUnit.NANOSECONDS);
+        }
+
+        void cancel() {
+            cancelled = true;
+            HashedWheelTimer.Timeout current = timeout;
+            if (nonNull(current)) {
+                current.cancel();
+            }
+        }
+    }
+}
@@ -0,0 +1,162 @@
+package org.postman.server.nio;
+
+import com.siia.commons.core.log.Logcat;
+import com.siia.commons.core.timing.HashedWheelTimer;
+
+import org.postman.server.PostmanConfig;
+import org.postman.server.PostmanServerEvent.IdleState;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+
+import static java.util.Objects.nonNull;
+
+/**
+ * Tracks read/write inactivity of {@link NIOConnection}s using a {@link HashedWheelTimer} that is advanced
+ * by the event loop. Rather than rescheduling a timeout on every read or write, each check is scheduled once
+ * and on expiry compares the connection's last activity against the configured time, rescheduling itself for
+ * the remaining time if there has been activity in the meantime. This keeps the cost on the read/write path
+ * to a single timestamp.
+ *
+ * Expiry callbacks are run on the thread that advances the timer.
+ */
+class IdleStateMonitor {
+    private static final String TAG = Logcat.getTag();
+
+    interface Listener {
+        /**
+         * Called each time a connection has been inactive for the configured idle time
+         */
+        void onIdle(NIOConnection connection, IdleState idleState);
+
+        /**
+         * Called once when a connection has not read anything within the configured read timeout
+         */
+        void onReadTimeout(NIOConnection connection);
+    }
+
+    private final PostmanConfig config;
+    private final HashedWheelTimer timer;
+    private final LongSupplier nanoClock;
+    private final ConcurrentMap<NIOConnection, List<IdleCheck>> checksByConnection;
+
+    IdleStateMonitor(PostmanConfig config, HashedWheelTimer timer) {
+        this(config, timer, System::nanoTime);
+    }
+
+    IdleStateMonitor(PostmanConfig config, HashedWheelTimer timer, LongSupplier nanoClock) {
+        this.config = config;
+        this.timer = timer;
+        this.nanoClock = nanoClock;
+        this.checksByConnection = new ConcurrentHashMap<>();
+    }
+
+    boolean isEnabled() {
+        return config.isIdleTrackingEnabled();
+    }
+
+    void track(NIOConnection connection, Listener listener) {
+        if (!isEnabled()) {
+            return;
+        }
+
+        List<IdleCheck> checks = new ArrayList<>(4);
+        addCheck(checks, connection, listener, IdleState.READER_IDLE, config.readerIdleTimeNanos(), false);
+        addCheck(checks, connection, listener, IdleState.WRITER_IDLE, config.writerIdleTimeNanos(), false);
+        addCheck(checks, connection, listener, IdleState.ALL_IDLE, config.allIdleTimeNanos(), false);
+        addCheck(checks, connection, listener, IdleState.READER_IDLE, config.readTimeoutNanos(), true);
+        checksByConnection.put(connection, checks);
+        checks.forEach(check -> check.schedule(check.idleTimeNanos));
+    }
+
+    void untrack(NIOConnection connection) {
+        List<IdleCheck> checks = checksByConnection.remove(connection);
+        if (nonNull(checks)) {
+            checks.forEach(IdleCheck::cancel);
+        }
+    }
+
+    /**
+     * Stops tracking all connections, must be called from the thread advancing the timer
+     */
+    void clear() {
+        checksByConnection.clear();
+        timer.clear();
+    }
+
+    private void addCheck(List<IdleCheck> checks, NIOConnection connection, Listener listener,
+                          IdleState idleState, long idleTimeNanos, boolean closeOnExpiry) {
+        if (idleTimeNanos > 0) {
+            checks.add(new IdleCheck(connection, listener, idleState, idleTimeNanos, closeOnExpiry));
+        }
+    }
+
+    private long lastActivityNanos(NIOConnection connection, IdleState idleState) {
+        switch (idleState) {
+            case READER_IDLE:
+                return connection.lastReadNanos();
+            case WRITER_IDLE:
+                return connection.lastWriteNanos();
+            default:
+                return Math.max(connection.lastReadNanos(), connection.lastWriteNanos());
+        }
+    }
+
+    class IdleCheck implements Runnable {
+        private final NIOConnection connection;
+        private final Listener listener;
+        private final IdleState idleState;
+        private final long idleTimeNanos;
+        private final boolean closeOnExpiry;
+        private volatile HashedWheelTimer.Timeout timeout;
+        private volatile boolean cancelled;
+
+        IdleCheck(NIOConnection connection, Listener listener, IdleState idleState, long idleTimeNanos, boolean closeOnExpiry) {
+            this.connection = connection;
+            this.listener = listener;
+            this.idleState = idleState;
+            this.idleTimeNanos = idleTimeNanos;
+            this.closeOnExpiry = closeOnExpiry;
+        }
+
+        @Override
+        public void run() {
+            if (cancelled || !connection.isConnected()) {
+                return;
+            }
+
+            long remainingNanos = idleTimeNanos - (nanoClock.getAsLong() - lastActivityNanos(connection, idleState));
+
+            if (remainingNanos > 0) {
+                schedule(remainingNanos);
+                return;
+            }
+
+            if (closeOnExpiry) {
+                Logcat.v(TAG, connection.getConnectionId(), "Read timeout");
+                listener.onReadTimeout(connection);
+                return;
+            }
+
+            Logcat.v(TAG, connection.getConnectionId(), "Idle %s", idleState);
+            schedule(idleTimeNanos);
+            listener.onIdle(connection, idleState);
+        }
+
+        void schedule(long delayNanos) {
+            timeout = timer.schedule(this, delayNanos, TimeUnit.NANOSECONDS);
+        }
+
+        void cancel() {
+            cancelled = true;
+            HashedWheelTimer.Timeout current = timeout;
+            if (nonNull(current)) {
+                current.cancel();
+            }
+        }
+    }
+}
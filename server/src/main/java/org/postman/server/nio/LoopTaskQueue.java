@@ -0,0 +1,93 @@
+package org.postman.server.nio;
+
+import com.siia.commons.core.log.Logcat;
+
+import org.postman.server.MpscQueue;
+import org.postman.server.SendQueue;
+
+import java.nio.channels.Selector;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static java.util.Objects.nonNull;
+
+/**
+ * Runs tasks submitted from any thread on the thread of an event loop, so that the loop's selection keys are
+ * only ever changed by the loop itself. Tasks are queued on a wait free {@link MpscQueue} and run as a batch, in the
+ * order they were submitted, each time the loop wakes up from selecting.
+ *
+ * Waking the selector is a system call, so it is done at most once per pass of the loop however many threads
+ * submit tasks or call {@link #wakeUp()} in the meantime.
+ */
+class LoopTaskQueue {
+    private static final String TAG = Logcat.getTag();
+
+    private final MpscQueue<Runnable> tasks;
+    private final AtomicBoolean wakeUpPending;
+    private volatile Selector selector;
+    private volatile Thread loopThread;
+
+    LoopTaskQueue() {
+        this.tasks = new MpscQueue<>();
+        this.wakeUpPending = new AtomicBoolean(false);
+    }
+
+    /**
+     * Called on the loop thread before it first selects
+     */
+    void attach(Selector selector) {
+        this.selector = selector;
+        this.loopThread = Thread.currentThread();
+        SendQueue.eventLoopThread(true);
+    }
+
+    /**
+     * Runs the task straight away if called on the loop thread, otherwise queues it and wakes the loop up
+     */
+    void execute(Runnable task) {
+        if (Thread.currentThread() == loopThread) {
+            task.run();
+            return;
+        }
+
+        tasks.offer(task);
+        wakeUp();
+    }
+
+    /**
+     * Wakes the loop up from selecting, unless it has already been woken up for its next pass
+     */
+    void wakeUp() {
+        Selector current = selector;
+        if (nonNull(current) && wakeUpPending.compareAndSet(false, true)) {
+            current.wakeup();
+        }
+    }
+
+    /**
+     * Runs the queued tasks, called by the loop each time it has finished selecting
+     */
+    void runTasks() {
+        //Before taking the tasks, so a task queued after the last one is taken wakes the next select
+        wakeUpPending.set(false);
+
+        tasks.drain(LoopTaskQueue::run);
+    }
+
+    /**
+     * Drops the queued tasks, called on the loop thread once the loop has exited
+     */
+    void clear() {
+        tasks.clear();
+        selector = null;
+        loopThread = null;
+        SendQueue.eventLoopThread(false);
+    }
+
+    private static void run(Runnable task) {
+        try {
+            task.run();
+        } catch (Exception e) {
+            Logcat.e(TAG, "Loop task failed", e);
+        }
+    }
+}
@@ -7,21 +7,31 @@ import com.siia.commons.core.inject.Provider;
 import com.siia.commons.core.log.Logcat;
 
 import org.postman.server.Connection;
+import org.postman.server.ConnectionIds;
+import org.postman.server.FlowControl;
 import org.postman.server.PostmanMessage;
+import org.postman.server.RoundTripTime;
+import org.postman.server.SendQueue;
+import org.postman.server.SlowConsumerPolicy;
+import org.postman.server.StreamDemultiplexer;
+import org.postman.server.StreamMultiplexer;
 
 import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.nio.channels.SelectionKey;
 import java.nio.channels.SocketChannel;
-import java.util.HashMap;
+import java.util.ArrayList;
 import java.util.List;
-import java.util.Map;
 import java.util.Queue;
 import java.util.UUID;
 import java.util.concurrent.ConcurrentLinkedQueue;
-import java.util.stream.Collectors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Consumer;
+import java.util.function.IntPredicate;
+import java.util.function.Predicate;
 
 import static com.siia.commons.core.io.IO.closeQuietly;
+import static java.util.Objects.isNull;
 import static java.util.Objects.nonNull;
 
 /**
@@ -29,23 +39,56 @@ import static java.util.Objects.nonNull;
  * This class does not do any of the actually connection setup but rather represents an already connected
  * connection. See {@link NIOConnectionFactory} for the connection setup.
  * This class uses a {@link ConcurrentLinkedQueue} to hold {@link PostmanMessage}'s that have been read
- * and still need to be sent. Manages the necessary {@link SelectionKey} operations when needing
- * to send messages.
+ * and a {@link SendQueue} for those that still need to be sent. Manages the necessary {@link SelectionKey}
+ * operations when needing to send messages. Once {@link #multiplexStreams(int)} is called messages are
+ * written and read as the frames of a {@link StreamMultiplexer} rather than whole. Messages are only sent while
+ * the peer has granted credit for them, see {@link FlowControl}, which is granted back to the peer as the
+ * messages read are consumed, see {@link #consumed(PostmanMessage)}. Each call to {@link #read()} and
+ * {@link #sendAnyPendingMessages()} stops once the {@link #passBudget(int, int)} is used up, leaving the rest
+ * to the selector to report again. Whole messages are taken from the queue in batches and written with a single
+ * gathering write.
+ *
+ * Once {@link #runOn(LoopTaskQueue)} is called, messages queued from other threads ask the loop to set write
+ * interest rather than changing the selection key themselves, and only while no earlier request is pending.
  *
  */
 class NIOConnection implements Connection {
     private static final String TAG = Logcat.getTag();
     private static final int BUFFER_SIZE = 4096;
+    //The most whole messages taken from the send queue and written with a single gathering write
+    private static final int WRITE_BATCH = 16;
     private final ByteBuffer buffer;
     private final SocketChannel clientSocketChannel;
     private final UUID connectionId;
     private Provider<PostmanMessage> messageProvider;
     private SelectionKey selectionKey;
     private final Queue<PostmanMessage> readMessages;
-    private final Queue<PostmanMessage> messagesToSend;
+    private final SendQueue messagesToSend;
+    private final ByteBuffer[] pendingFrames;
+    private final Predicate<PostmanMessage> takePendingFrame;
+    private int pendingFramesOffset;
+    private int pendingFramesLength;
+    private int pendingFramesBytes;
+    private int pendingFramesMaxLength;
+    private int pendingFramesMaxBytes;
+    private StreamMultiplexer multiplexer;
+    private StreamDemultiplexer demultiplexer;
+    private Consumer<PostmanMessage> readMessage;
+    private ByteBuffer[] pendingStreamFrame;
+    private final RoundTripTime roundTripTime;
+    private final FlowControl flowControl;
+    private final IntPredicate sendableStream;
+    private LoopTaskQueue loopTasks;
+    private final AtomicBoolean writeInterestRequested;
+    private final Runnable setRequestedWriteInterest;
+    private int passBudgetBytes;
+    private int passBudgetMessages;
+    private int messagesReadThisPass;
+    private volatile long lastReadNanos;
+    private volatile long lastWriteNanos;
 
     NIOConnection(SocketChannel clientSocketChannel, Provider<PostmanMessage> messageProvider, SelectionKey clientKey) {
-        this(UUID.randomUUID(), clientSocketChannel, messageProvider, ByteBuffer.allocate(BUFFER_SIZE), clientKey);
+        this(ConnectionIds.next(), clientSocketChannel, messageProvider, ByteBuffer.allocate(BUFFER_SIZE), clientKey);
     }
 
     @VisibleForTesting
@@ -56,11 +99,60 @@ class NIOConnection implements Connection {
         this.messageProvider = messageProvider;
         this.buffer = buffer;
         this.readMessages = new ConcurrentLinkedQueue<>();
-        this.messagesToSend = new ConcurrentLinkedQueue<>();
+        this.messagesToSend = new SendQueue();
+        this.pendingFrames = new ByteBuffer[WRITE_BATCH];
+        this.takePendingFrame = this::takePendingFrame;
         this.selectionKey = selectionKey;
+        this.roundTripTime = new RoundTripTime();
+        this.flowControl = new FlowControl();
+        this.sendableStream = flowControl::canSend;
+        this.lastReadNanos = this.lastWriteNanos = System.nanoTime();
+        this.passBudgetBytes = this.passBudgetMessages = Integer.MAX_VALUE;
+        this.writeInterestRequested = new AtomicBoolean(false);
+        this.setRequestedWriteInterest = () -> {
+            writeInterestRequested.set(false);
+            //Each pass with messages posted, even while the peer is not reading, so the slow consumer policy applies
+            messagesToSend.drainInbox();
+            setWriteInterest();
+        };
+    }
+
+    /**
+     * Sets the loop the connection's selection key belongs to, only called on the loop thread before the
+     * connection is handed to other threads
+     */
+    void runOn(LoopTaskQueue loopTasks) {
+        this.loopTasks = loopTasks;
+        messagesToSend.writtenBy(Thread.currentThread());
+    }
+
+    /**
+     * Limits the bytes and messages read, and written, by each call, 0 if unlimited
+     */
+    void passBudget(int bytes, int messages) {
+        passBudgetBytes = bytes > 0 ? bytes : Integer.MAX_VALUE;
+        passBudgetMessages = messages > 0 ? messages : Integer.MAX_VALUE;
+    }
+
+    /**
+     * Multiplexes the streams of messages sent and received, only called before the connection is first
+     * read or written
+     */
+    void multiplexStreams(int maxFrameSize) {
+        multiplexer = new StreamMultiplexer(messagesToSend, flowControl, maxFrameSize);
+        demultiplexer = new StreamDemultiplexer(messageProvider);
+        readMessage = msg -> {
+            readMessages.offer(msg);
+            messagesReadThisPass++;
+        };
     }
 
     void read() throws IOException {
+        if (nonNull(demultiplexer)) {
+            readFrames();
+            return;
+        }
+
         PostmanMessage currentMessage = readMessages.peek();
 
         if (currentMessage == null || currentMessage.isInitialised()) {
@@ -71,10 +163,13 @@ class NIOConnection implements Connection {
         buffer.clear();
 
         int bytesRead;
+        int bytesReadThisPass = 0;
+        messagesReadThisPass = 0;
 
         while ((bytesRead = clientSocketChannel.read(buffer)) > 0) {
 
             Logcat.v(TAG, connectionId, "read %d bytes", bytesRead);
+            lastReadNanos = System.nanoTime();
             buffer.flip();
 
             while (buffer.hasRemaining()) {
@@ -82,10 +177,44 @@ class NIOConnection implements Connection {
                     //TODO We may have read in less than the frame if a frame over lap occurs here
                     currentMessage = messageProvider.get();
                     readMessages.offer(currentMessage);
+                    messagesReadThisPass++;
                 }
             }
 
             buffer.clear();
+
+            bytesReadThisPass += bytesRead;
+            if (bytesReadThisPass >= passBudgetBytes || messagesReadThisPass >= passBudgetMessages) {
+                Logcat.v(TAG, connectionId, "read budget used up");
+                return;
+            }
+        }
+
+        if (bytesRead == -1) {
+            throw new IOException("Invalid bytes read from channel");
+        }
+    }
+
+    private void readFrames() throws IOException {
+        buffer.clear();
+
+        int bytesRead;
+        int bytesReadThisPass = 0;
+        messagesReadThisPass = 0;
+
+        while ((bytesRead = clientSocketChannel.read(buffer)) > 0) {
+
+            Logcat.v(TAG, connectionId, "read %d bytes", bytesRead);
+            lastReadNanos = System.nanoTime();
+            buffer.flip();
+            demultiplexer.read(buffer, readMessage);
+            buffer.clear();
+
+            bytesReadThisPass += bytesRead;
+            if (bytesReadThisPass >= passBudgetBytes || messagesReadThisPass >= passBudgetMessages) {
+                Logcat.v(TAG, connectionId, "read budget used up");
+                return;
+            }
         }
 
         if (bytesRead == -1) {
@@ -93,6 +222,33 @@ class NIOConnection implements Connection {
         }
     }
 
+    /**
+     * Stops selecting the connection for reads, e.g. while the arena frames are read into is exhausted
+     */
+    void pauseReading() {
+        if (selectionKey.isValid()) {
+            selectionKey.interestOps(selectionKey.interestOps() & ~SelectionKey.OP_READ);
+        }
+    }
+
+    void resumeReading() {
+        if (selectionKey.isValid()) {
+            selectionKey.interestOps(selectionKey.interestOps() | SelectionKey.OP_READ);
+        }
+    }
+
+    /**
+     * @return True if a message is part way through its body, so holds frame memory only freed by reading the rest
+     */
+    boolean isReadingBody() {
+        if (nonNull(demultiplexer)) {
+            return demultiplexer.isReadingBody();
+        }
+
+        PostmanMessage currentMessage = readMessages.peek();
+        return nonNull(currentMessage) && currentMessage.isReadingBody();
+    }
+
     void setWriteInterest() {
         if (selectionKey.isValid()) {
             selectionKey.interestOps(selectionKey.interestOps() | SelectionKey.OP_WRITE);
@@ -120,75 +276,272 @@ class NIOConnection implements Connection {
     }
 
 
+    @Override
+    public long expiredMessages() {
+        return messagesToSend.expiredMessages();
+    }
+
+    @Override
+    public long droppedMessages() {
+        return messagesToSend.droppedMessages();
+    }
+
+    @Override
+    public RoundTripTime roundTripTime() {
+        return roundTripTime;
+    }
+
     @Override
     public boolean isConnected() {
         return clientSocketChannel.isConnected() && selectionKey.isValid();
     }
 
+    boolean hasMessagesToSend() {
+        return pendingFramesOffset < pendingFramesLength || nonNull(pendingStreamFrame) || (nonNull(multiplexer) && multiplexer.isSending())
+                || !messagesToSend.isEmpty();
+    }
+
+    SendQueue sendQueue() {
+        return messagesToSend;
+    }
+
+    FlowControl flowControl() {
+        return flowControl;
+    }
+
+    @Override
+    public void slowConsumerPolicy(SlowConsumerPolicy policy) {
+        messagesToSend.policy(policy);
+    }
+
     SelectionKey selectionKey() {
         return selectionKey;
     }
 
-    private boolean sendMessage(PostmanMessage msg) throws IOException {
-        ByteBuffer out = msg.getFrame();
+    /**
+     * @return The {@link System#nanoTime()} at which data was last read from the socket
+     */
+    long lastReadNanos() {
+        return lastReadNanos;
+    }
+
+    /**
+     * @return The {@link System#nanoTime()} at which data was last written to the socket
+     */
+    long lastWriteNanos() {
+        return lastWriteNanos;
+    }
 
-        int numWritten = 0;
+    /**
+     * Writes the pending frames, all at once with a gathering write when there are more than one
+     *
+     * @return True once every pending frame has been written
+     */
+    private boolean sendPendingFrames() throws IOException {
+        while (selectionKey.isWritable() && selectionKey.isValid() && isConnected()) {
+            while (pendingFramesOffset < pendingFramesLength && !pendingFrames[pendingFramesOffset].hasRemaining()) {
+                pendingFrames[pendingFramesOffset++] = null;
+            }
 
-        while (selectionKey.isWritable() && out.hasRemaining() && selectionKey.isValid() && isConnected()) {
-            int outBytes = clientSocketChannel.write(out);
-            numWritten += outBytes;
-            Logcat.v(TAG, getConnectionId(), "wrote %d / %d bytes", numWritten, out.limit());
+            int frames = pendingFramesLength - pendingFramesOffset;
+            if (frames == 0) {
+                break;
+            }
+
+            long outBytes = frames == 1 ? clientSocketChannel.write(pendingFrames[pendingFramesOffset])
+                    : clientSocketChannel.write(pendingFrames, pendingFramesOffset, frames);
+            if (outBytes == 0) {
+                //The socket buffer is full, wait for the selector to report the channel writable again
+                break;
+            }
+            lastWriteNanos = System.nanoTime();
+            Logcat.v(TAG, getConnectionId(), "wrote %d bytes of %d frame(s)", outBytes, frames);
         }
 
-        return !out.hasRemaining();
+        return pendingFramesOffset == pendingFramesLength;
+    }
+
+    /**
+     * Takes the next batch of messages to send from the queue in one go, up to the rest of the pass budget
+     *
+     * @return False if there was nothing to send
+     */
+    private boolean takePendingFrames(int messagesLeft, int bytesLeft) {
+        pendingFramesOffset = pendingFramesLength = pendingFramesBytes = 0;
+        pendingFramesMaxLength = Math.min(WRITE_BATCH, messagesLeft);
+        pendingFramesMaxBytes = bytesLeft;
+
+        if (pendingFramesMaxLength > 0 && pendingFramesMaxBytes > 0) {
+            messagesToSend.drain(sendableStream, takePendingFrame);
+        }
+        return pendingFramesLength > 0;
+    }
+
+    /**
+     * @return True while the batch has room for another message
+     */
+    private boolean takePendingFrame(PostmanMessage msg) {
+        Logcat.v(TAG, getConnectionId(), "Sending msg : " + msg.toString());
+        ByteBuffer frame = msg.getFrame();
+        //Uses up the credit before the queue checks whether the next message can be sent
+        flowControl.onSent(msg.getStreamId(), frame.remaining());
+        pendingFrames[pendingFramesLength++] = frame;
+        pendingFramesBytes += frame.remaining();
+        return pendingFramesLength < pendingFramesMaxLength && pendingFramesBytes < pendingFramesMaxBytes;
+    }
+
+    private boolean sendFrame(ByteBuffer[] out) throws IOException {
+        ByteBuffer payload = out[out.length - 1];
+
+        while (selectionKey.isWritable() && payload.hasRemaining() && selectionKey.isValid() && isConnected()) {
+            long outBytes = clientSocketChannel.write(out);
+            if (outBytes == 0) {
+                //The socket buffer is full, wait for the selector to report the channel writable again
+                break;
+            }
+            lastWriteNanos = System.nanoTime();
+            Logcat.v(TAG, getConnectionId(), "wrote %d bytes of stream frame", outBytes);
+        }
+
+        return !payload.hasRemaining();
     }
 
     void sendAnyPendingMessages() throws IOException {
-        if (messagesToSend.isEmpty()) {
-            unsetWriteInterest();
+        if (nonNull(multiplexer)) {
+            sendAnyPendingFrames();
             return;
         }
 
-        while (!messagesToSend.isEmpty()) {
-            PostmanMessage msg = messagesToSend.peek();
-            if (nonNull(msg)) {
+        int bytesWrittenThisPass = 0;
+        int messagesWrittenThisPass = 0;
+
+        while (true) {
+            if (pendingFramesOffset == pendingFramesLength && !takePendingFrames(
+                    passBudgetMessages - messagesWrittenThisPass, passBudgetBytes - bytesWrittenThisPass)) {
+                break;
+            }
+
+            if (!sendPendingFrames()) {
+                //Return so that we can continue sending the same frames in the next loop.
+                //TODO We dont support out of order messages yet
+                return;
+            }
+            bytesWrittenThisPass += pendingFramesBytes;
+            messagesWrittenThisPass += pendingFramesLength;
+
+            if (messagesWrittenThisPass >= passBudgetMessages || bytesWrittenThisPass >= passBudgetBytes) {
+                //Write interest is still set so the rest is written in the next pass
+                Logcat.v(TAG, connectionId, "write budget used up");
+                return;
+            }
+        }
 
-                Logcat.v(TAG, getConnectionId(), "Sending msg : " + msg.toString());
-                if (sendMessage(msg)) {
-                    messagesToSend.remove(msg);
-                } else {
-                    //Break out so that we can continue sending the same message in the next loop.
-                    //TODO We dont support out of order messages yet
+        if (isConnected()) {
+            unsetWriteInterest();
+            if (messagesToSend.hasMessage(sendableStream)) {
+                //Queued after the queue was found empty, before write interest was unset
+                setWriteInterest();
+            }
+        }
+
+    }
+
+    private void sendAnyPendingFrames() throws IOException {
+        int bytesWrittenThisPass = 0;
+        int framesWrittenThisPass = 0;
+
+        while (true) {
+            if (isNull(pendingStreamFrame)) {
+                pendingStreamFrame = multiplexer.nextFrame();
+                if (isNull(pendingStreamFrame)) {
                     break;
                 }
+            }
+
+            if (!sendFrame(pendingStreamFrame)) {
+                return;
+            }
+            //The header holds the payload length
+            bytesWrittenThisPass += StreamMultiplexer.FRAME_HEADER_LENGTH + pendingStreamFrame[0].getInt(Integer.BYTES);
+            pendingStreamFrame = null;
 
+            if (++framesWrittenThisPass >= passBudgetMessages || bytesWrittenThisPass >= passBudgetBytes) {
+                Logcat.v(TAG, connectionId, "write budget used up");
+                return;
             }
         }
 
-        if (messagesToSend.isEmpty() && isConnected()) {
+        if (isConnected()) {
             unsetWriteInterest();
+            if (multiplexer.hasFrameToSend()) {
+                //Queued after the queue was found empty, before write interest was unset
+                setWriteInterest();
+            }
         }
-
     }
 
     List<PostmanMessage> filledMessages() {
-        List<PostmanMessage> readyMessages = readMessages.stream().filter(PostmanMessage::isInitialised).collect(Collectors.toList());
-        readMessages.removeAll(readyMessages);
+        //Messages are filled in the order they are queued, so only the last can still be being read
+        List<PostmanMessage> readyMessages = new ArrayList<>();
+        PostmanMessage head;
+        while (nonNull(head = readMessages.peek()) && head.isInitialised()) {
+            readyMessages.add(readMessages.poll());
+        }
+
+        //Paused messages may have been granted credit
+        if (flowControl.isEnabled() && readyMessages.removeIf(this::handleWindowUpdate)) {
+            setWriteInterest();
+        }
         return readyMessages;
     }
 
+    /**
+     * Grants the peer credit back for a message read, once the subscriber has asked for it or the message was
+     * handled without being passed on. Can be called from any thread.
+     */
+    void consumed(PostmanMessage msg) {
+        if (!flowControl.isEnabled()) {
+            return;
+        }
+
+        for (PostmanMessage update : flowControl.consumed(msg)) {
+            if (messagesToSend.post(update) == SendQueue.Result.QUEUED) {
+                requestWriteInterest();
+            }
+        }
+    }
+
+    private boolean handleWindowUpdate(PostmanMessage msg) {
+        if (flowControl.handleMessage(msg)) {
+            msg.release();
+            return true;
+        }
+        return false;
+    }
+
     @Override
-    public void queueMessageToSend(PostmanMessage msg) {
+    public SendQueue.Result queueMessageToSend(PostmanMessage msg) {
         Check.checkState(isConnected(), "Connection is not valid");
 
-        if (!messagesToSend.offer(msg)) {
-            Logcat.e(TAG, "Could not add message [%s] to queue, dropping", msg.toString());
-            return;
+        //Its frame would be read into again once released while still queued
+        SendQueue.Result result = messagesToSend.post(msg.isPooled() ? new PostmanMessage(msg) : msg);
+        if (result == SendQueue.Result.REJECTED || result == SendQueue.Result.CLOSED) {
+            Logcat.v(TAG, "Could not add message [%s] to queue, dropping", msg.toString());
+            return result;
         }
 
-        setWriteInterest();
-        selectionKey.selector().wakeup();
+        requestWriteInterest();
+        return result;
+    }
 
+    private void requestWriteInterest() {
+        if (isNull(loopTasks)) {
+            setWriteInterest();
+            selectionKey.selector().wakeup();
+        } else if (writeInterestRequested.compareAndSet(false, true)) {
+            //Otherwise the pending request sets write interest after this message was queued
+            loopTasks.execute(setRequestedWriteInterest);
+        }
     }
 
     @Override
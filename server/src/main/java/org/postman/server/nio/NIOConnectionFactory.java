@@ -7,17 +7,24 @@ import com.siia.commons.core.inject.Provider;
 import com.siia.commons.core.io.IO;
 import com.siia.commons.core.log.Logcat;
 
+import org.postman.server.DirectArena;
+import org.postman.server.MessagePool;
+import org.postman.server.PostmanConfig;
 import org.postman.server.PostmanMessage;
 
 import java.io.IOException;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.net.ServerSocket;
+import java.net.SocketOption;
 import java.nio.channels.SelectionKey;
+import java.nio.channels.NetworkChannel;
 import java.nio.channels.Selector;
 import java.nio.channels.ServerSocketChannel;
 import java.nio.channels.SocketChannel;
+import java.nio.channels.spi.SelectorProvider;
 import java.util.Optional;
+import java.util.Set;
 
 import static com.siia.commons.core.log.Logcat.v;
 import static com.siia.commons.core.log.Logcat.w;
@@ -33,16 +40,41 @@ class NIOConnectionFactory {
     protected static final int BANDWIDTH_PREFERENCE = 1;
 
     private static final String TAG = Logcat.getTag();
+    private static final String REUSE_PORT = "SO_REUSEPORT";
     private final Provider<PostmanMessage> messageProvider;
+    private final DirectArena arena;
 
+    /**
+     * @param messageProvider Provides the messages read into, those of a {@link MessagePool} with an arena are read
+     *                        into the arena
+     */
     NIOConnectionFactory(Provider<PostmanMessage> messageProvider) {
         this.messageProvider = messageProvider;
+        this.arena = messageProvider instanceof MessagePool ? ((MessagePool) messageProvider).arena() : null;
     }
 
-    Optional<NIOConnection> acceptConnection(@NonNull ServerSocketChannel serverSocketChannel, Selector nioSelector) {
-        SocketChannel clientSocketChannel = null;
+    /**
+     * @return The arena messages are read into, null if they are read onto the heap
+     */
+    DirectArena arena() {
+        return arena;
+    }
+
+    /**
+     * @return The next pending connection of the non blocking server socket, null if there are none pending or
+     * it could not be accepted
+     */
+    SocketChannel acceptPending(@NonNull ServerSocketChannel serverSocketChannel) {
+        try {
+            return serverSocketChannel.accept();
+        } catch (Throwable e) {
+            w(TAG, "Couldnt accept connection channel", e);
+            return null;
+        }
+    }
+
+    Optional<NIOConnection> createConnection(@NonNull SocketChannel clientSocketChannel, Selector nioSelector) {
         try {
-            clientSocketChannel = serverSocketChannel.accept();
             clientSocketChannel.socket().setKeepAlive(true);
             clientSocketChannel.socket().setPerformancePreferences(CONNECTION_TIME_PREFERENCE,
                     LATENCY_PREFERENCE, BANDWIDTH_PREFERENCE);
@@ -50,24 +82,83 @@ class NIOConnectionFactory {
             SelectionKey clientKey = clientSocketChannel.register(nioSelector, SelectionKey.OP_WRITE | SelectionKey.OP_READ);
             return  Optional.of(new NIOConnection(clientSocketChannel, messageProvider, clientKey));
         } catch (Throwable e) {
-            w(TAG, "Couldnt accept connection channel", e);
+            w(TAG, "Couldnt setup connection channel", e);
             IO.closeQuietly(clientSocketChannel);
             return Optional.empty();
         }
 
     }
 
-    SelectionKey bindServerSocket(Selector nioSelector, ServerSocketChannel serverSocketChannel, InetSocketAddress bindAddress) throws IOException {
+    /**
+     * Closes an accepted connection straight away with a reset rather than the normal close handshake, so
+     * that it leaves nothing behind in TIME_WAIT.
+     */
+    void refuseConnection(@NonNull SocketChannel clientSocketChannel) {
+        try {
+            clientSocketChannel.socket().setSoLinger(true, 0);
+        } catch (Throwable e) {
+            w(TAG, "Couldnt set linger on refused connection", e);
+        } finally {
+            IO.closeQuietly(clientSocketChannel);
+        }
+    }
+
+    /**
+     * Binds the server socket using the backlog of the config. When the config has more than one listener
+     * SO_REUSEPORT is enabled first, if supported, so that the other listeners can bind to the same port.
+     */
+    SelectionKey bindServerSocket(Selector nioSelector, ServerSocketChannel serverSocketChannel, InetSocketAddress bindAddress,
+                                  PostmanConfig config) throws IOException {
         ServerSocket serverSocket = serverSocketChannel.socket();
         serverSocket.setPerformancePreferences(CONNECTION_TIME_PREFERENCE,
                 LATENCY_PREFERENCE, BANDWIDTH_PREFERENCE);
-        serverSocket.bind(bindAddress);
+        if (config.listeners() > 1) {
+            Optional<SocketOption<Boolean>> reusePort = reusePortOption(serverSocketChannel);
+            if (reusePort.isPresent()) {
+                serverSocketChannel.setOption(reusePort.get(), true);
+            }
+        }
+        serverSocket.bind(bindAddress, config.acceptBacklog());
         v(TAG, "Server bound to %s:%d", bindAddress.getAddress().getHostAddress(), serverSocket.getLocalPort());
         serverSocketChannel.configureBlocking(false);
         return serverSocketChannel.register(nioSelector,
                 SelectionKey.OP_ACCEPT);
     }
 
+    /**
+     * @return True if server sockets support SO_REUSEPORT, which is only the case on some platforms and JVM
+     * versions, e.g. Linux with Java 9 or later
+     */
+    boolean supportsReusePort(SelectorProvider selectorProvider) {
+        ServerSocketChannel serverSocketChannel = null;
+        try {
+            serverSocketChannel = selectorProvider.openServerSocketChannel();
+            return reusePortOption(serverSocketChannel).isPresent();
+        } catch (IOException e) {
+            w(TAG, "Couldnt check for SO_REUSEPORT support", e);
+            return false;
+        } finally {
+            IO.closeQuietly(serverSocketChannel);
+        }
+    }
+
+    /**
+     * SO_REUSEPORT is looked up by name from the options the channel supports as it is not part of
+     * {@link java.net.StandardSocketOptions} on Android or Java 8
+     */
+    @SuppressWarnings("unchecked")
+    private static Optional<SocketOption<Boolean>> reusePortOption(NetworkChannel channel) {
+        Set<SocketOption<?>> options = channel.supportedOptions();
+        if (options == null) {
+            return Optional.empty();
+        }
+
+        return options.stream()
+                .filter(option -> REUSE_PORT.equals(option.name()) && Boolean.class.equals(option.type()))
+                .map(option -> (SocketOption<Boolean>) option)
+                .findFirst();
+    }
+
     NIOConnection connectToServer(Selector selector, SocketChannel socketChannel, InetAddress serverAddress, int port) throws IOException {
         socketChannel.socket().setKeepAlive(true);
         socketChannel.socket().setPerformancePreferences(CONNECTION_TIME_PREFERENCE,
@@ -3,13 +3,20 @@ package org.postman.server.nio;
 
 import android.support.annotation.NonNull;
 
+import com.google.protobuf.AbstractMessageLite;
 import com.google.protobuf.MessageLite;
 import com.siia.commons.core.io.IO;
 import com.siia.commons.core.log.Logcat;
+import com.siia.commons.core.timing.HashedWheelTimer;
 
+import org.postman.server.DirectArena;
+import org.postman.server.FlowControl;
+import org.postman.server.PendingRequests;
 import org.postman.server.PostmanClient;
 import org.postman.server.PostmanClientEvent;
+import org.postman.server.PostmanConfig;
 import org.postman.server.PostmanMessage;
+import org.postman.server.RoundTripTime;
 
 import java.io.IOException;
 import java.net.InetAddress;
@@ -17,92 +24,206 @@ import java.nio.channels.SelectionKey;
 import java.nio.channels.SocketChannel;
 import java.nio.channels.spi.AbstractSelector;
 import java.nio.channels.spi.SelectorProvider;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Function;
 
 import io.reactivex.BackpressureStrategy;
 import io.reactivex.Flowable;
 import io.reactivex.FlowableEmitter;
 import io.reactivex.Scheduler;
+import io.reactivex.Single;
+import io.reactivex.functions.Consumer;
 
+import static com.siia.commons.core.check.Check.checkState;
 import static com.siia.commons.core.log.Logcat.v;
 import static java.util.Objects.nonNull;
 
 public class NIOPostmanClient implements PostmanClient {
     private static final String TAG = Logcat.getTag();
 
-    private NIOConnection client;
+    private volatile NIOConnection client;
     private AbstractSelector selector;
     private final Scheduler newThreadScheduler;
     private final SelectorProvider selectorProvider;
     private final NIOConnectionFactory nioConnectionFactory;
+    private final PostmanConfig config;
     private final AtomicBoolean shouldLoop;
+    private final LoopTaskQueue loopTasks;
+    private final Runnable wakeUpLoop;
+    private final HashedWheelTimer timer;
+    private final HeartbeatMonitor heartbeatMonitor;
+    private final PendingRequests pendingRequests;
+    private volatile TimeoutException heartbeatTimeout;
+    //Only used by the loop thread
+    private boolean readsPaused;
 
 
 
     NIOPostmanClient(Scheduler newThreadScheduler,
                      SelectorProvider selectorProvider, NIOConnectionFactory nioConnectionFactory) {
+        this(newThreadScheduler, selectorProvider, nioConnectionFactory, PostmanConfig.defaults());
+    }
+
+    NIOPostmanClient(Scheduler newThreadScheduler,
+                     SelectorProvider selectorProvider, NIOConnectionFactory nioConnectionFactory,
+                     PostmanConfig config) {
         this.newThreadScheduler = newThreadScheduler;
         this.selectorProvider = selectorProvider;
         this.nioConnectionFactory = nioConnectionFactory;
+        this.config = config;
         this.shouldLoop = new AtomicBoolean(false);
+        this.loopTasks = new LoopTaskQueue();
+        this.wakeUpLoop = loopTasks::wakeUp;
+        this.timer = new HashedWheelTimer(config.timerTickNanos(), TimeUnit.NANOSECONDS, config.timerTicksPerWheel());
+        this.heartbeatMonitor = new HeartbeatMonitor(config, timer);
+        this.pendingRequests = new PendingRequests(timer);
     }
 
     @Override
     public Flowable<PostmanClientEvent> connect(@NonNull final SocketChannel socketChannel, @NonNull InetAddress host, int port) {
+        return connect(socketChannel, host, port, EventSink::eachTo, this::consumed);
+    }
+
+    @Override
+    public Flowable<List<PostmanClientEvent>> connectBatched(@NonNull SocketChannel socketChannel, @NonNull InetAddress host, int port) {
+        return connect(socketChannel, host, port, EventSink::batchedTo, events -> events.forEach(this::consumed));
+    }
+
+    /**
+     * @param consumed Called with the events the subscriber has asked for, to grant credit back for their messages
+     */
+    private <T> Flowable<T> connect(SocketChannel socketChannel, InetAddress host, int port,
+                                    Function<FlowableEmitter<T>, EventSink<PostmanClientEvent>> eventSinkFactory,
+                                    Consumer<T> consumed) {
         if (isConnected()) {
             return Flowable.error(new IllegalStateException("Already connected"));
         }
 
-        return Flowable.<PostmanClientEvent>create(emitter -> {
+        return Flowable.<T>create(emitter -> {
+            EventSink<PostmanClientEvent> events = eventSinkFactory.apply(emitter);
 
             try {
                 selector = selectorProvider.openSelector();
+                loopTasks.attach(selector);
                 client = nioConnectionFactory.connectToServer(selector, socketChannel, host, port);
+                client.runOn(loopTasks);
+                client.flowControl().limit(config);
+                if (config.maxFrameSize() > 0) {
+                    client.multiplexStreams(config.maxFrameSize());
+                }
             } catch (Throwable e) {
                 Logcat.e(TAG, "Problem connecting to server", e);
                 disconnect();
+                loopTasks.clear();
                 emitter.onError(e);
                 return;
             }
 
-            emitter.onNext(PostmanClientEvent.isConnectedEvent());
+            events.emit(PostmanClientEvent.isConnectedEvent());
+            events.flush();
 
             try {
                 shouldLoop.set(true);
+                heartbeatTimeout = null;
+                readsPaused = false;
+                DirectArena arena = nioConnectionFactory.arena();
+                if (nonNull(arena)) {
+                    arena.whenAvailable(wakeUpLoop);
+                }
+                heartbeatMonitor.track(client, (connection, missedHeartbeats) ->
+                        heartbeatTimeout = new TimeoutException(String.format("%d heartbeats unanswered by server", missedHeartbeats)));
+
                 while (shouldLoop.get()) {
                     v(TAG, "Waiting for selector updates");
-                    int channelsReady = selector.select();
+                    int channelsReady = select();
 
                     if (!selector.isOpen() || !client.isConnected() || !shouldLoop.get()) {
                         //Likely we have shutdown, exit loop
                         break;
                     }
 
+                    loopTasks.runTasks();
+                    resumePausedReads();
+                    timer.advance();
 
-                    if (selector.selectedKeys().isEmpty()) {
-                        Logcat.w(TAG, "Selected keys are empty");
-                        continue;
+                    if (nonNull(heartbeatTimeout)) {
+                        throw heartbeatTimeout;
                     }
 
-                    v(TAG, "%s channel(s) ready in accept loop", channelsReady);
-
-                    processKeyUpdates(emitter);
+                    if (selector.selectedKeys().isEmpty()) {
+                        v(TAG, "Selected keys are empty");
+                    } else {
+                        v(TAG, "%s channel(s) ready in accept loop", channelsReady);
+                        processKeyUpdates(events);
+                    }
 
+                    events.flush();
                 }
                 emitter.onComplete();
             } catch (Throwable e) {
                 emitter.tryOnError(e);
             } finally {
                 disconnect();
+                pendingRequests.failAll(new IOException("Disconnected"));
+                heartbeatMonitor.clear();
+                timer.clear();
+                loopTasks.clear();
+                DirectArena arena = nioConnectionFactory.arena();
+                if (nonNull(arena)) {
+                    arena.removeAvailableListener(wakeUpLoop);
+                }
             }
 
 
         }, BackpressureStrategy.BUFFER)
-                .subscribeOn(newThreadScheduler);
+                .subscribeOn(newThreadScheduler)
+                //Downstream of the buffer, so only once the subscriber has asked for the events
+                .doOnNext(consumed);
+
+    }
+
+    /**
+     * Blocks until the channel is ready or, if there are timeouts pending, until the next tick of the timer.
+     */
+    private int select() throws IOException {
+        long nanosUntilNextTick = timer.nanosUntilNextTick();
 
+        if (nanosUntilNextTick == HashedWheelTimer.NO_PENDING_TIMEOUTS) {
+            return selector.select();
+        }
+
+        long timeoutMillis = TimeUnit.NANOSECONDS.toMillis(nanosUntilNextTick);
+        return timeoutMillis <= 0 ? selector.selectNow() : selector.select(timeoutMillis);
+    }
+
+    /**
+     * Reads stop while the arena messages are read into is exhausted, unless part way through the body of a
+     * message as its frame would otherwise hold on to the arena until the reads resume
+     *
+     * @return True if reads are paused
+     */
+    private boolean pauseReadsIfArenaExhausted() {
+        DirectArena arena = nioConnectionFactory.arena();
+        if (nonNull(arena) && arena.isExhausted() && !client.isReadingBody()) {
+            v(TAG, "Arena exhausted, pausing reads");
+            client.pauseReading();
+            readsPaused = true;
+        }
+        return readsPaused;
     }
 
-    private void processKeyUpdates(FlowableEmitter<PostmanClientEvent> emitter) throws IOException {
+    private void resumePausedReads() {
+        if (readsPaused && !nioConnectionFactory.arena().isExhausted()) {
+            v(TAG, "Arena available, resuming reads");
+            client.resumeReading();
+            readsPaused = false;
+        }
+    }
+
+    private void processKeyUpdates(EventSink<PostmanClientEvent> events) throws IOException {
         for (SelectionKey selectionKey : selector.selectedKeys()) {
 
             if (!selectionKey.isValid()) {
@@ -112,13 +233,22 @@ public class NIOPostmanClient implements PostmanClient {
             v(TAG, "SK : valid=%b read=%b write=%b accept=%b", selectionKey.isValid(), selectionKey.isReadable(),
                     selectionKey.isWritable(), selectionKey.isAcceptable());
 
-            if (selectionKey.isValid() && selectionKey.isReadable()) {
-                client.read();
-
-                client.filledMessages().forEach(msg -> {
-                    Logcat.v(TAG, "Message received [%s]", msg.toString());
-                    emitter.onNext(PostmanClientEvent.newMessage(msg));
-                });
+            if (selectionKey.isValid() && selectionKey.isReadable() && !pauseReadsIfArenaExhausted()) {
+                try {
+                    client.read();
+                } finally {
+                    //Messages read before the connection was closed, e.g. by a draining server, are still passed on
+                    client.filledMessages().forEach(msg -> {
+                        Logcat.v(TAG, "Message received [%s]", msg.toString());
+                        if (heartbeatMonitor.handleMessage(client, msg) || pendingRequests.handleMessage(msg)) {
+                            //Nothing else holds on to heartbeats or responses once handled
+                            client.consumed(msg);
+                            msg.release();
+                        } else {
+                            events.emit(PostmanClientEvent.newMessage(msg));
+                        }
+                    });
+                }
             }
 
             if (selectionKey.isValid() && selectionKey.isWritable()) {
@@ -129,10 +259,20 @@ public class NIOPostmanClient implements PostmanClient {
         selector.selectedKeys().clear();
     }
 
+    /**
+     * Grants credit back for the message of an event once the subscriber has asked for it, see {@link FlowControl}
+     */
+    private void consumed(PostmanClientEvent event) {
+        NIOConnection current = client;
+        if (event.isNewMessageEvent() && nonNull(current)) {
+            current.consumed(event.msg());
+        }
+    }
+
     @Override
     public void sendMessage(@NonNull PostmanMessage msg) {
+        //Wakes the loop up to write the message
         client.queueMessageToSend(msg);
-        selector.wakeup();
     }
 
     @Override
@@ -140,6 +280,15 @@ public class NIOPostmanClient implements PostmanClient {
         sendMessage(new PostmanMessage(msg));
     }
 
+    @Override
+    public <T extends AbstractMessageLite> Single<T> request(@NonNull MessageLite msg, @NonNull Class<T> responseType,
+                                                             long timeout, @NonNull TimeUnit unit) {
+        return pendingRequests.request(msg, responseType, timeout, unit, request -> {
+            checkState(isConnected(), "Not connected");
+            sendMessage(request);
+        });
+    }
+
     @Override
     public void disconnect() {
         shouldLoop.set(false);
@@ -156,4 +305,10 @@ public class NIOPostmanClient implements PostmanClient {
 
     }
 
+    @Override
+    public RoundTripTime roundTripTime() {
+        NIOConnection connection = client;
+        return nonNull(connection) ? connection.roundTripTime() : new RoundTripTime();
+    }
+
 }
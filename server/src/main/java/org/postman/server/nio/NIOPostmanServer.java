@@ -3,65 +3,161 @@ package org.postman.server.nio;
 import android.support.annotation.AnyThread;
 import android.support.annotation.NonNull;
 
+import com.google.protobuf.AbstractMessageLite;
 import com.google.protobuf.MessageLite;
+import com.siia.commons.core.inject.Provider;
 import com.siia.commons.core.log.Logcat;
 
+import org.postman.server.AdmissionControl;
 import org.postman.server.Connection;
+import org.postman.server.MessagePriority;
+import org.postman.server.PostmanConfig;
 import org.postman.server.PostmanMessage;
 import org.postman.server.PostmanServer;
 import org.postman.server.PostmanServerEvent;
+import org.postman.server.RequestCoalescing;
+import org.postman.server.RequestHandlers;
+import org.postman.server.TopicSubscriptions;
 
 import java.net.InetSocketAddress;
+import java.nio.channels.spi.SelectorProvider;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
 import java.util.Optional;
 import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiFunction;
+import java.util.function.Function;
+import java.util.stream.Collectors;
 
 import io.reactivex.Flowable;
+import io.reactivex.Scheduler;
+import io.reactivex.Single;
 import io.reactivex.disposables.CompositeDisposable;
 
+import static java.util.Objects.isNull;
 
+
+/**
+ * A {@link PostmanServer} driven by one {@link ServerEventLoop} per listener. With the default config there
+ * is a single listener, with {@link PostmanConfig#listeners()} greater than 1 and SO_REUSEPORT supported each
+ * listener binds the same port on its own loop thread and each client belongs to the loop that accepted it.
+ * {@link PostmanServerEvent.Type#SERVER_LISTENING} is only reported once, the other events are reported by
+ * each loop for its own clients.
+ */
 public class NIOPostmanServer implements PostmanServer {
     private static final String TAG = Logcat.getTag();
 
-    private final ServerEventLoop serverEventLoop;
+    private final List<ServerEventLoop> serverEventLoops;
+    private final boolean reusePortSupported;
     private final CompositeDisposable disposables;
+    private volatile List<ServerEventLoop> runningEventLoops;
 
     NIOPostmanServer(ServerEventLoop serverEventLoop) {
-        this.serverEventLoop = serverEventLoop;
+        this(Collections.singletonList(serverEventLoop), false);
+    }
+
+    NIOPostmanServer(SelectorProvider selectorProvider, Provider<PostmanMessage> messageProvider,
+                     Scheduler newThreadScheduler, PostmanConfig config) {
+        this(selectorProvider, new NIOConnectionFactory(messageProvider), newThreadScheduler, config);
+    }
+
+    private NIOPostmanServer(SelectorProvider selectorProvider, NIOConnectionFactory nioConnectionFactory,
+                             Scheduler newThreadScheduler, PostmanConfig config) {
+        this(createEventLoops(selectorProvider, nioConnectionFactory, newThreadScheduler, config),
+                config.listeners() > 1 && nioConnectionFactory.supportsReusePort(selectorProvider));
+    }
+
+    /**
+     * @param serverEventLoops The loop for each listener, all sharing the same {@link AdmissionControl},
+     *                         {@link TopicSubscriptions} and {@link RequestHandlers}
+     * @param reusePortSupported False to only ever start the first loop
+     */
+    NIOPostmanServer(List<ServerEventLoop> serverEventLoops, boolean reusePortSupported) {
+        this.serverEventLoops = serverEventLoops;
+        this.reusePortSupported = reusePortSupported;
         this.disposables = new CompositeDisposable();
+        this.runningEventLoops = serverEventLoops.subList(0, 1);
     }
 
     @Override
-    public void broadcastMessage(@NonNull MessageLite msg) {
-        serverEventLoop.getClients().forEach(client -> serverEventLoop.addMessageToQueue(new PostmanMessage(msg), client));
+    public void broadcastMessage(@NonNull MessageLite msg, @NonNull MessagePriority priority) {
+        PostmanMessage message = new PostmanMessage(msg).setPriority(priority);
+        runningEventLoops.forEach(serverEventLoop -> serverEventLoop.getClients()
+                .forEach(client -> serverEventLoop.addMessageToQueue(message, client)));
+    }
+
+    @Override
+    public void publish(@NonNull String topic, @NonNull MessageLite msg) {
+        publish(topic, msg, null);
+    }
+
+    @Override
+    public void publishLatest(@NonNull String topic, @NonNull MessageLite msg) {
+        publish(topic, msg, topic);
+    }
+
+    @Override
+    public void subscribe(@NonNull Connection client, @NonNull String topic) {
+        topicSubscriptions().subscribe(client, topic);
+    }
+
+    @Override
+    public void unsubscribe(@NonNull Connection client, @NonNull String topic) {
+        topicSubscriptions().unsubscribe(client, topic);
+    }
+
+    @Override
+    public <Q extends AbstractMessageLite> void handleRequests(@NonNull Class<Q> requestType,
+                                                               @NonNull Function<Q, Single<? extends MessageLite>> handler,
+                                                               @NonNull RequestCoalescing coalescing) {
+        //The loops share the handlers
+        serverEventLoops.get(0).requestHandlers().register(requestType, handler, coalescing);
     }
 
     @Override
     public void sendMessage(@NonNull PostmanMessage msg, @NonNull Connection client) {
-        serverEventLoop.addMessageToQueue(msg, client);
+        eventLoopOf(client).addMessageToQueue(msg, client);
     }
 
     @Override
     public void sendMessage(@NonNull MessageLite msg, @NonNull Connection client) {
-        serverEventLoop.addMessageToQueue(new PostmanMessage(msg), client);
+        eventLoopOf(client).addMessageToQueue(new PostmanMessage(msg), client);
     }
 
     @Override
     public int numberOfClients() {
-        return serverEventLoop.getClients().size();
+        int clients = 0;
+        for (ServerEventLoop serverEventLoop : runningEventLoops) {
+            clients += serverEventLoop.getClients().size();
+        }
+        return clients;
+    }
+
+    @Override
+    public long refusedConnections() {
+        //The loops share an AdmissionControl
+        return serverEventLoops.get(0).refusedConnections();
     }
 
     @Override
     public void sendMessage(MessageLite msg, UUID connectionId) {
-        Optional<NIOConnection> connection = serverEventLoop.getClients()
-                .parallelStream()
-                .filter(nioConnection -> nioConnection.getConnectionId().equals(connectionId))
-                .findFirst();
+        for (ServerEventLoop serverEventLoop : runningEventLoops) {
+            Optional<NIOConnection> connection = serverEventLoop.getClients()
+                    .parallelStream()
+                    .filter(nioConnection -> nioConnection.getConnectionId().equals(connectionId))
+                    .findFirst();
 
-        if (!connection.isPresent()) {
-            Logcat.w(TAG, "Client %s does not seem to be connected, not sending message", connectionId.toString());
-            return;
+            if (connection.isPresent()) {
+                serverEventLoop.addMessageToQueue(new PostmanMessage(msg), connection.get());
+                return;
+            }
         }
-        serverEventLoop.addMessageToQueue(new PostmanMessage(msg), connection.get());
+
+        Logcat.w(TAG, "Client %s does not seem to be connected, not sending message", connectionId.toString());
     }
 
     @Override
@@ -72,8 +168,26 @@ public class NIOPostmanServer implements PostmanServer {
         }
 
         Logcat.d(TAG, "Starting postman server");
-        return serverEventLoop.startLooping(bindAddress);
+        return startLoops(bindAddress, serverEventLoop -> serverEventLoop.startLooping(bindAddress),
+                (events, listenerEvents) -> events.filter(listenerEvents::passOn).map(listenerEvents::merged));
+
+    }
+
+    @Override
+    public Flowable<List<PostmanServerEvent>> serverStartBatched(@NonNull InetSocketAddress bindAddress) {
+        if (isRunning()) {
+            Logcat.w(TAG, "Server already running");
+            return Flowable.error(new IllegalStateException("Already running"));
+        }
 
+        Logcat.d(TAG, "Starting postman server");
+        return startLoops(bindAddress, serverEventLoop -> serverEventLoop.startLoopingBatched(bindAddress),
+                (batches, listenerEvents) -> batches
+                        .map(batch -> batch.stream()
+                                .filter(listenerEvents::passOn)
+                                .map(listenerEvents::merged)
+                                .collect(Collectors.toList()))
+                        .filter(batch -> !batch.isEmpty()));
     }
 
     @Override
@@ -84,16 +198,176 @@ public class NIOPostmanServer implements PostmanServer {
             return;
         }
 
-        serverEventLoop.shutdownLoop();
+        runningEventLoops.forEach(ServerEventLoop::shutdownLoop);
 
         disposables.clear();
 
     }
 
+    @Override
+    @AnyThread
+    public void stopServer(long drainTimeout, @NonNull TimeUnit unit) {
+        if (!isRunning()) {
+            Logcat.w(TAG, "Server is not running");
+            return;
+        }
+
+        runningEventLoops.forEach(serverEventLoop -> serverEventLoop.drainAndShutdown(drainTimeout, unit));
+    }
+
     @Override
     public boolean isRunning() {
-        return serverEventLoop.isRunning();
+        for (ServerEventLoop serverEventLoop : runningEventLoops) {
+            if (serverEventLoop.isRunning()) {
+                return true;
+            }
+        }
+        return false;
     }
 
+    /**
+     * Starts the first loop and, if SO_REUSEPORT can be used, the loops of the other listeners
+     *
+     * @param mergeListenerEvents Applied to the events of each listener when there are several, to report the
+     *                            server wide events once for the server, see {@link ListenerEvents}
+     */
+    private <T> Flowable<T> startLoops(InetSocketAddress bindAddress,
+                                       Function<ServerEventLoop, Flowable<T>> start,
+                                       BiFunction<Flowable<T>, ListenerEvents, Flowable<T>> mergeListenerEvents) {
+        int listeners = reusePortSupported && bindAddress.getPort() != 0 ? serverEventLoops.size() : 1;
+        if (listeners < serverEventLoops.size()) {
+            Logcat.w(TAG, "SO_REUSEPORT not available, using a single listener rather than %d", serverEventLoops.size());
+        }
+
+        runningEventLoops = serverEventLoops.subList(0, listeners);
 
+        if (listeners == 1) {
+            return start.apply(runningEventLoops.get(0));
+        }
+
+        DrainCounts drainCounts = new DrainCounts(listeners);
+        List<Flowable<T>> events = new ArrayList<>(listeners);
+        for (int i = 0; i < listeners; i++) {
+            events.add(mergeListenerEvents.apply(start.apply(runningEventLoops.get(i)),
+                    new ListenerEvents(i == 0, drainCounts)));
+        }
+        return Flowable.merge(events);
+    }
+
+    private void publish(String topic, MessageLite msg, String conflationKey) {
+        Collection<Connection> subscribers = topicSubscriptions().subscribers(topic);
+        if (subscribers.isEmpty()) {
+            return;
+        }
+
+        PostmanMessage message = isNull(conflationKey) ? new PostmanMessage(msg, topic)
+                : PostmanMessage.conflated(msg, topic, conflationKey);
+        subscribers.forEach(client -> eventLoopOf(client).addMessageToQueue(message, client));
+    }
+
+    private TopicSubscriptions topicSubscriptions() {
+        //The loops share the subscriptions
+        return serverEventLoops.get(0).topicSubscriptions();
+    }
+
+    private ServerEventLoop eventLoopOf(Connection client) {
+        for (ServerEventLoop serverEventLoop : runningEventLoops) {
+            if (serverEventLoop.hasClient(client)) {
+                return serverEventLoop;
+            }
+        }
+        //Not connected, the loop will log and drop the message
+        return runningEventLoops.get(0);
+    }
+
+    private static List<ServerEventLoop> createEventLoops(SelectorProvider selectorProvider,
+                                                          NIOConnectionFactory nioConnectionFactory,
+                                                          Scheduler newThreadScheduler, PostmanConfig config) {
+        List<ServerEventLoop> serverEventLoops = new ArrayList<>(config.listeners());
+        AdmissionControl admissionControl = new AdmissionControl(config,
+                () -> serverEventLoops.stream().mapToInt(serverEventLoop -> serverEventLoop.getClients().size()).sum());
+        TopicSubscriptions topicSubscriptions = new TopicSubscriptions();
+        RequestHandlers requestHandlers = new RequestHandlers();
+        for (int i = 0; i < config.listeners(); i++) {
+            serverEventLoops.add(new ServerEventLoop(selectorProvider, nioConnectionFactory, newThreadScheduler,
+                    config, admissionControl, topicSubscriptions, requestHandlers));
+        }
+        return serverEventLoops;
+    }
+
+    /**
+     * The events of one of several listeners, of which those about the whole server are only reported once:
+     * {@link PostmanServerEvent.Type#SERVER_LISTENING} by the first listener,
+     * {@link PostmanServerEvent.Type#SERVER_DRAINING} once every listener has started draining, and
+     * {@link PostmanServerEvent.Type#SERVER_DRAINED} once every listener has finished, each with the clients of
+     * all the listeners.
+     */
+    private static final class ListenerEvents {
+        private final boolean firstListener;
+        private final DrainCounts drainCounts;
+
+        ListenerEvents(boolean firstListener, DrainCounts drainCounts) {
+            this.firstListener = firstListener;
+            this.drainCounts = drainCounts;
+        }
+
+        boolean passOn(PostmanServerEvent event) {
+            switch (event.type()) {
+                case SERVER_LISTENING:
+                    return firstListener;
+                case SERVER_DRAINING:
+                    return drainCounts.draining(event.pendingClients());
+                case SERVER_DRAINED:
+                    return drainCounts.drained(event.pendingClients());
+                default:
+                    return true;
+            }
+        }
+
+        /**
+         * @return The event for the whole server in place of the listener's, only called for events passed on
+         */
+        PostmanServerEvent merged(PostmanServerEvent event) {
+            switch (event.type()) {
+                case SERVER_DRAINING:
+                    return PostmanServerEvent.serverDraining(drainCounts.drainingClients.get());
+                case SERVER_DRAINED:
+                    return PostmanServerEvent.serverDrained(drainCounts.pendingClients.get());
+                default:
+                    return event;
+            }
+        }
+    }
+
+    /**
+     * Counts the listeners that have started and finished draining, and their clients
+     */
+    private static final class DrainCounts {
+        private final int listeners;
+        private final AtomicInteger drainingListeners = new AtomicInteger();
+        private final AtomicInteger drainingClients = new AtomicInteger();
+        private final AtomicInteger drainedListeners = new AtomicInteger();
+        private final AtomicInteger pendingClients = new AtomicInteger();
+
+        DrainCounts(int listeners) {
+            this.listeners = listeners;
+        }
+
+        /**
+         * @return True for the last listener to start draining
+         */
+        boolean draining(int clients) {
+            //Added before counting the listener, so the last listener sees the clients of every other
+            drainingClients.addAndGet(clients);
+            return drainingListeners.incrementAndGet() == listeners;
+        }
+
+        /**
+         * @return True for the last listener to finish draining
+         */
+        boolean drained(int clients) {
+            pendingClients.addAndGet(clients);
+            return drainedListeners.incrementAndGet() == listeners;
+        }
+    }
 }
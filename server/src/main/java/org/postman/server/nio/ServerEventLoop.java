@@ -1,25 +1,42 @@
 package org.postman.server.nio;
 
 
+import android.support.annotation.VisibleForTesting;
 import android.util.Log;
 
 import com.siia.commons.core.io.IO;
 import com.siia.commons.core.log.Logcat;
+import com.siia.commons.core.timing.HashedWheelTimer;
 
+import org.postman.server.AdmissionControl;
 import org.postman.server.Connection;
+import org.postman.server.DirectArena;
+import org.postman.server.FlowControl;
+import org.postman.server.MpscQueue;
+import org.postman.server.PostmanConfig;
 import org.postman.server.PostmanMessage;
 import org.postman.server.PostmanServerEvent;
+import org.postman.server.RequestHandlers;
+import org.postman.server.SendQueue;
+import org.postman.server.SlowConsumerPolicy;
+import org.postman.server.TopicSubscriptions;
 
 import java.io.IOException;
 import java.net.InetSocketAddress;
 import java.nio.channels.SelectionKey;
 import java.nio.channels.Selector;
 import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
 import java.nio.channels.spi.SelectorProvider;
 import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Function;
 
 
 import io.reactivex.BackpressureStrategy;
@@ -28,47 +45,119 @@ import io.reactivex.FlowableEmitter;
 import io.reactivex.Scheduler;
 import io.reactivex.annotations.NonNull;
 import io.reactivex.disposables.CompositeDisposable;
+import io.reactivex.functions.Consumer;
 
 import static com.siia.commons.core.log.Logcat.d;
 import static com.siia.commons.core.log.Logcat.v;
+import static java.util.Objects.isNull;
 import static java.util.Objects.nonNull;
 
 class ServerEventLoop {
     private static final String TAG = Logcat.getTag();
+    @VisibleForTesting
+    static final int MAX_ACCEPTS_PER_PASS = 64;
 
     private ServerSocketChannel serverSocketChannel;
     private Selector nioSelector;
     private InetSocketAddress bindAddress;
     private SelectorProvider selectorProvider;
-    @SuppressWarnings({"FieldCanBeLocal", "unused"})
     private SelectionKey acceptSelectionKey;
     private Scheduler newThreadScheduler;
     private final AtomicBoolean shouldLoop;
     private final CompositeDisposable disposables;
     private final ConcurrentMap<SelectionKey, NIOConnection> connectedClientsBySelectionKey;
     private final NIOConnectionFactory nioConnectionFactory;
+    private final HashedWheelTimer timer;
+    private final IdleStateMonitor idleStateMonitor;
+    private final HeartbeatMonitor heartbeatMonitor;
+    private final AdmissionControl admissionControl;
+    private final PostmanConfig config;
+    private final TopicSubscriptions topicSubscriptions;
+    private final RequestHandlers requestHandlers;
+    private final MpscQueue<PostmanServerEvent> sendQueueEvents;
+    private final LoopTaskQueue loopTasks;
+    private final Runnable wakeUpLoop;
+    //Only used by the loop thread, the connections not read from until the arena has memory again
+    private final Set<NIOConnection> pausedReads;
+    private final AtomicBoolean drainRequested;
+    private volatile long drainDeadlineNanos;
+    private boolean draining;
 
 
     ServerEventLoop(SelectorProvider selectorProvider,
                     NIOConnectionFactory nioConnectionFactory,
                     Scheduler newThreadScheduler) {
+        this(selectorProvider, nioConnectionFactory, newThreadScheduler, PostmanConfig.defaults());
+    }
+
+    ServerEventLoop(SelectorProvider selectorProvider,
+                    NIOConnectionFactory nioConnectionFactory,
+                    Scheduler newThreadScheduler,
+                    PostmanConfig config) {
+        this(selectorProvider, nioConnectionFactory, newThreadScheduler, config, null, new TopicSubscriptions(),
+                new RequestHandlers());
+    }
+
+    /**
+     * @param admissionControl Shared by the event loops of each listener of a server, or null for this loop
+     *                         to have its own
+     * @param topicSubscriptions Shared by the event loops of each listener of a server
+     * @param requestHandlers Shared by the event loops of each listener of a server
+     */
+    ServerEventLoop(SelectorProvider selectorProvider,
+                    NIOConnectionFactory nioConnectionFactory,
+                    Scheduler newThreadScheduler,
+                    PostmanConfig config,
+                    AdmissionControl admissionControl,
+                    TopicSubscriptions topicSubscriptions,
+                    RequestHandlers requestHandlers) {
         this.selectorProvider = selectorProvider;
         this.nioConnectionFactory = nioConnectionFactory;
         this.newThreadScheduler = newThreadScheduler;
         this.connectedClientsBySelectionKey = new ConcurrentHashMap<>();
         this.disposables = new CompositeDisposable();
+        this.timer = new HashedWheelTimer(config.timerTickNanos(), TimeUnit.NANOSECONDS, config.timerTicksPerWheel());
+        this.idleStateMonitor = new IdleStateMonitor(config, timer);
+        this.heartbeatMonitor = new HeartbeatMonitor(config, timer);
+        this.admissionControl = nonNull(admissionControl) ? admissionControl
+                : new AdmissionControl(config, connectedClientsBySelectionKey::size);
+        this.config = config;
+        this.topicSubscriptions = topicSubscriptions;
+        this.requestHandlers = requestHandlers;
+        this.sendQueueEvents = new MpscQueue<>();
+        this.loopTasks = new LoopTaskQueue();
+        this.wakeUpLoop = loopTasks::wakeUp;
+        this.pausedReads = new HashSet<>();
+        this.drainRequested = new AtomicBoolean(false);
         shouldLoop = new AtomicBoolean(false);
     }
 
     void shutdownLoop() {
         shouldLoop.set(false);
         disposables.clear();
-        connectedClientsBySelectionKey.values().forEach(NIOConnection::disconnect);
+        connectedClientsBySelectionKey.values().forEach(client -> {
+            topicSubscriptions.unsubscribeAll(client);
+            client.disconnect();
+        });
         IO.closeQuietly(serverSocketChannel);
         IO.closeQuietly(nioSelector);
         connectedClientsBySelectionKey.clear();
     }
 
+    /**
+     * Asks the loop to stop accepting clients and shut down once every client's queued messages have been
+     * sent, or the timeout passes. Can be called from any thread.
+     */
+    void drainAndShutdown(long timeout, TimeUnit unit) {
+        drainDeadlineNanos = System.nanoTime() + unit.toNanos(timeout);
+        drainRequested.set(true);
+        loopTasks.wakeUp();
+    }
+
+    long refusedConnections() {
+        return admissionControl.refusedConnections();
+    }
+
     boolean isRunning() {
         return nonNull(serverSocketChannel) && serverSocketChannel.isOpen() && !serverSocketChannel.socket().isClosed();
     }
@@ -85,6 +174,7 @@ class ServerEventLoop {
         }
 
         try {
+            //Wakes the loop up to write the message
             NIOConnection.queueMessageToSend(msg);
         } catch (Throwable e) {
             Logcat.e(TAG, "Could not set write interest for connection selector", e);
@@ -92,50 +182,80 @@ class ServerEventLoop {
             return false;
         }
 
-
-        nioSelector.wakeup();
-
         return true;
 
     }
 
 
     Flowable<PostmanServerEvent> startLooping(@NonNull InetSocketAddress bindAddress) {
+        return loop(bindAddress, EventSink::eachTo, ServerEventLoop::consumed);
+    }
+
+    /**
+     * As {@link #startLooping(InetSocketAddress)} but the events produced by each pass of the loop are
+     * emitted together as a single list.
+     */
+    Flowable<List<PostmanServerEvent>> startLoopingBatched(@NonNull InetSocketAddress bindAddress) {
+        return loop(bindAddress, EventSink::batchedTo, events -> events.forEach(ServerEventLoop::consumed));
+    }
+
+    /**
+     * @param consumed Called with the events the subscriber has asked for, to grant credit back for their messages
+     */
+    private <T> Flowable<T> loop(InetSocketAddress bindAddress,
+                                 Function<FlowableEmitter<T>, EventSink<PostmanServerEvent>> eventSinkFactory,
+                                 Consumer<T> consumed) {
         Logcat.d(TAG, "Initialising Server Event Loop");
         this.bindAddress = bindAddress;
 
-        return Flowable.<PostmanServerEvent>create(emitter -> {
+        return Flowable.<T>create(emitter -> {
             Logcat.d(TAG, "Beginning to listen to clients");
+            EventSink<PostmanServerEvent> events = eventSinkFactory.apply(emitter);
 
             try {
                 initialiseServerSocket();
             } catch (Exception e) {
                 shutdownLoop();
+                loopTasks.clear();
                 emitter.onError(e);
                 return;
             }
 
 
-            emitter.onNext(PostmanServerEvent.serverListening(bindAddress.getPort(), bindAddress.getHostName()));
+            events.emit(PostmanServerEvent.serverListening(bindAddress.getPort(), bindAddress.getHostName()));
+            events.flush();
             try {
+                draining = false;
+                drainRequested.set(false);
                 shouldLoop.set(true);
                 while (shouldLoop.get()) {
                     v(TAG, "Waiting for selector updates");
-                    int channelsReady = nioSelector.select();
+                    int channelsReady = select();
 
                     if (!nioSelector.isOpen() || !isRunning() || !shouldLoop.get()) {
                         break;
                     }
 
+                    loopTasks.runTasks();
+                    resumePausedReads();
+
+                    timer.advance();
+
                     if (nioSelector.selectedKeys().isEmpty()) {
-                        Logcat.w(TAG, "Selected keys are empty");
-                        continue;
+                        v(TAG, "Selected keys are empty");
+                    } else {
+                        v(TAG, "%s channel(s) ready in accept loop", channelsReady);
+                        processKeyUpdates(events);
                     }
 
-                    v(TAG, "%s channel(s) ready in accept loop", channelsReady);
+                    emitSendQueueEvents(events);
 
-                    processKeyUpdates(emitter);
+                    if (drainRequested.get() && drain(events)) {
+                        events.flush();
+                        break;
+                    }
 
+                    events.flush();
                 }
 
                 if (!emitter.isCancelled()) {
@@ -145,14 +265,80 @@ class ServerEventLoop {
                 emitter.tryOnError(e);
             } finally {
                 shutdownLoop();
+                idleStateMonitor.clear();
+                heartbeatMonitor.clear();
+                //Only the loop thread takes from these queues
+                sendQueueEvents.clear();
+                loopTasks.clear();
+                pausedReads.clear();
+                DirectArena arena = nioConnectionFactory.arena();
+                if (nonNull(arena)) {
+                    arena.removeAvailableListener(wakeUpLoop);
+                }
             }
         }, BackpressureStrategy.BUFFER)
-                .subscribeOn(newThreadScheduler);
+                .subscribeOn(newThreadScheduler)
+                //Downstream of the buffer, so only once the subscriber has asked for the events
+                .doOnNext(consumed);
 
     }
 
 
-    private void processKeyUpdates(FlowableEmitter<PostmanServerEvent> emitter) {
+    /**
+     * Blocks until a channel is ready or, if there are timeouts pending, until the next tick of the timer.
+     * While draining it does not block past the drain deadline.
+     */
+    private int select() throws IOException {
+        long timeoutNanos = timer.nanosUntilNextTick();
+
+        if (draining) {
+            long nanosUntilDeadline = Math.max(0, drainDeadlineNanos - System.nanoTime());
+            timeoutNanos = timeoutNanos == HashedWheelTimer.NO_PENDING_TIMEOUTS ? nanosUntilDeadline
+                    : Math.min(timeoutNanos, nanosUntilDeadline);
+        }
+
+        if (timeoutNanos == HashedWheelTimer.NO_PENDING_TIMEOUTS) {
+            return nioSelector.select();
+        }
+
+        long timeoutMillis = TimeUnit.NANOSECONDS.toMillis(timeoutNanos);
+        return timeoutMillis <= 0 ? nioSelector.selectNow() : nioSelector.select(timeoutMillis);
+    }
+
+    /**
+     * Called each pass once a drain has been requested. The first call stops accepting clients, after which
+     * clients are disconnected as their queues empty.
+     *
+     * @return True once all clients are drained or the deadline has passed and the loop should exit
+     */
+    private boolean drain(EventSink<PostmanServerEvent> events) {
+        if (!draining) {
+            draining = true;
+            if (nonNull(acceptSelectionKey)) {
+                acceptSelectionKey.cancel();
+            }
+            d(TAG, "Draining %d client(s)", connectedClientsBySelectionKey.size());
+            events.emit(PostmanServerEvent.serverDraining(connectedClientsBySelectionKey.size()));
+        }
+
+        for (NIOConnection connection : connectedClientsBySelectionKey.values()) {
+            if (!connection.hasMessagesToSend()) {
+                cleanupConnection(connection);
+                events.emit(PostmanServerEvent.clientDisconnected(connection));
+            }
+        }
+
+        int pendingClients = connectedClientsBySelectionKey.size();
+        if (pendingClients == 0 || System.nanoTime() - drainDeadlineNanos >= 0) {
+            d(TAG, "Drained, %d client(s) pending", pendingClients);
+            events.emit(PostmanServerEvent.serverDrained(pendingClients));
+            return true;
+        }
+
+        return false;
+    }
+
+    private void processKeyUpdates(EventSink<PostmanServerEvent> events) {
         for (SelectionKey selectionKey : nioSelector.selectedKeys()) {
 
             NIOConnection connection = connectedClientsBySelectionKey.get(selectionKey);
@@ -161,47 +347,98 @@ class ServerEventLoop {
 
                 if (nonNull(connection)) {
                     cleanupConnection(connection);
-                    emitter.onNext(PostmanServerEvent.clientDisconnected(connection));
+                    events.emit(PostmanServerEvent.clientDisconnected(connection));
                 }
                 return;
             }
             v(TAG, "SK : valid=%b read=%b write=%b accept=%b", selectionKey.isValid(), selectionKey.isReadable(), selectionKey.isWritable(), selectionKey.isAcceptable());
 
             if (selectionKey.isValid() && selectionKey.isAcceptable()) {
-                acceptClientConnection(emitter);
+                acceptClientConnections(events);
             }
 
             if (selectionKey.isValid() && selectionKey.isReadable()) {
-                handleRead(selectionKey, emitter);
+                handleRead(selectionKey, events);
             }
 
             if (selectionKey.isValid() && selectionKey.isWritable()) {
-                handleWrite(selectionKey, emitter);
+                handleWrite(selectionKey, events);
             }
         }
 
         nioSelector.selectedKeys().clear();
     }
 
-    private void handleRead(SelectionKey selectionKey, FlowableEmitter<PostmanServerEvent> emitter) {
+    private void handleRead(SelectionKey selectionKey, EventSink<PostmanServerEvent> events) {
         NIOConnection connection = connectedClientsBySelectionKey.get(selectionKey);
 
+        if (shouldPauseReading(connection)) {
+            v(TAG, "Arena exhausted, pausing reads of %s", connection.getConnectionId());
+            connection.pauseReading();
+            pausedReads.add(connection);
+            return;
+        }
+
         try {
             connection.read();
         } catch (Throwable e) {
             Logcat.e(TAG, "Lost connection", e);
+            //Messages read before the connection was closed are still passed on
+            emitFilledMessages(connection, events);
             cleanupConnection(connection);
-            emitter.onNext(PostmanServerEvent.clientDisconnected(connection));
+            events.emit(PostmanServerEvent.clientDisconnected(connection));
+            return;
+        }
+
+        emitFilledMessages(connection, events);
+    }
+
+    /**
+     * Reads stop while the arena messages are read into is exhausted, other than for connections part way through
+     * the body of a message, as their frames would otherwise hold on to the arena until the reads resume
+     */
+    private boolean shouldPauseReading(NIOConnection connection) {
+        DirectArena arena = nioConnectionFactory.arena();
+        return nonNull(arena) && arena.isExhausted() && !connection.isReadingBody();
+    }
+
+    /**
+     * Resumes the reads paused once the arena has memory again, the arena wakes the loop up when it does
+     */
+    private void resumePausedReads() {
+        if (pausedReads.isEmpty() || nioConnectionFactory.arena().isExhausted()) {
             return;
         }
 
+        v(TAG, "Arena available, resuming reads of %d connection(s)", pausedReads.size());
+        pausedReads.forEach(NIOConnection::resumeReading);
+        pausedReads.clear();
+    }
+
+    private void emitFilledMessages(NIOConnection connection, EventSink<PostmanServerEvent> events) {
         connection.filledMessages().forEach(msg -> {
             Logcat.v(TAG, "Message received [%s]", msg.toString());
-            emitter.onNext(PostmanServerEvent.newMessage(msg, connection));
+            if (heartbeatMonitor.handleMessage(connection, msg) || topicSubscriptions.handleMessage(connection, msg)
+                    || requestHandlers.handleMessage(connection, msg, this::addMessageToQueue)) {
+                //Nothing else holds on to protocol messages or requests once handled
+                connection.consumed(msg);
+                msg.release();
+            } else {
+                events.emit(PostmanServerEvent.newMessage(msg, connection));
+            }
         });
     }
 
-    private void handleWrite(SelectionKey selectionKey, FlowableEmitter<PostmanServerEvent> emitter) {
+    /**
+     * Grants credit back for the message of an event once the subscriber has asked for it, see {@link FlowControl}
+     */
+    private static void consumed(PostmanServerEvent event) {
+        if (event.isNewMessage()) {
+            ((NIOConnection) event.connection()).consumed(event.message());
+        }
+    }
+
+    private void handleWrite(SelectionKey selectionKey, EventSink<PostmanServerEvent> events) {
         NIOConnection connection = connectedClientsBySelectionKey.get(selectionKey);
 
         try {
@@ -209,7 +446,7 @@ class ServerEventLoop {
         } catch (Throwable e) {
             Log.e(TAG, "Problem sending message", e);
             cleanupConnection(connection);
-            emitter.onNext(PostmanServerEvent.clientDisconnected(connection));
+            events.emit(PostmanServerEvent.clientDisconnected(connection));
         }
     }
 
@@ -217,26 +454,84 @@ class ServerEventLoop {
     private void initialiseServerSocket() throws IOException {
 
         nioSelector = selectorProvider.openSelector();
+        loopTasks.attach(nioSelector);
         serverSocketChannel = selectorProvider.openServerSocketChannel();
-        acceptSelectionKey = nioConnectionFactory.bindServerSocket(nioSelector, serverSocketChannel, bindAddress);
+        acceptSelectionKey = nioConnectionFactory.bindServerSocket(nioSelector, serverSocketChannel, bindAddress, config);
+        DirectArena arena = nioConnectionFactory.arena();
+        if (nonNull(arena)) {
+            arena.whenAvailable(wakeUpLoop);
+        }
 
     }
 
-    private void acceptClientConnection(FlowableEmitter<PostmanServerEvent> emitter) {
+    /**
+     * Accepts every pending connection, up to {@link #MAX_ACCEPTS_PER_PASS} so that a connection storm cannot
+     * starve the reads and writes of clients already connected.
+     */
+    private void acceptClientConnections(EventSink<PostmanServerEvent> events) {
+
+        for (int accepted = 0; accepted < MAX_ACCEPTS_PER_PASS; accepted++) {
+            SocketChannel clientSocketChannel = nioConnectionFactory.acceptPending(serverSocketChannel);
+
+            if (isNull(clientSocketChannel)) {
+                return;
+            }
+
+            if (!admissionControl.tryAdmit()) {
+                v(TAG, "Refusing new connection channel, %d refused", admissionControl.refusedConnections());
+                nioConnectionFactory.refuseConnection(clientSocketChannel);
+                continue;
+            }
 
-        d(TAG, "Accepting new connection channel");
+            d(TAG, "Accepting new connection channel");
+
+            nioConnectionFactory.createConnection(clientSocketChannel, nioSelector)
+                    .ifPresent(nioConnection -> {
+                        connectedClientsBySelectionKey.put(nioConnection.selectionKey(), nioConnection);
+                        nioConnection.sendQueue().limit(config, new SendQueueEventPoster(nioConnection));
+                        nioConnection.flowControl().limit(config);
+                        nioConnection.passBudget(config.passBudgetBytes(), config.passBudgetMessages());
+                        nioConnection.runOn(loopTasks);
+                        if (config.maxFrameSize() > 0) {
+                            nioConnection.multiplexStreams(config.maxFrameSize());
+                        }
+                        ConnectionEventEmitter connectionEventEmitter = new ConnectionEventEmitter(events);
+                        idleStateMonitor.track(nioConnection, connectionEventEmitter);
+                        heartbeatMonitor.track(nioConnection, connectionEventEmitter);
+                        events.emit(PostmanServerEvent.newClient(nioConnection));
+                    });
+        }
 
-        nioConnectionFactory.acceptConnection(serverSocketChannel, nioSelector)
-                .ifPresent(nioConnection -> {
-                    connectedClientsBySelectionKey.put(nioConnection.selectionKey(), nioConnection);
-                    emitter.onNext(PostmanServerEvent.newClient(nioConnection));
-                });
+    }
 
+    /**
+     * Emits the watermark events posted by the send queues of clients since the last pass, disconnecting
+     * slow clients with the {@link SlowConsumerPolicy#DISCONNECT} policy
+     */
+    private void emitSendQueueEvents(EventSink<PostmanServerEvent> events) {
+        PostmanServerEvent event;
+        while (nonNull(event = sendQueueEvents.poll())) {
+            NIOConnection connection = (NIOConnection) event.connection();
+            if (!hasClient(connection)) {
+                continue;
+            }
 
+            events.emit(event);
+            if (event.type() == PostmanServerEvent.Type.CLIENT_SEND_QUEUE_HIGH
+                    && connection.sendQueue().policy() == SlowConsumerPolicy.DISCONNECT) {
+                d(TAG, "Disconnecting slow client %s", connection.getConnectionId());
+                cleanupConnection(connection);
+                events.emit(PostmanServerEvent.clientDisconnected(connection));
+            }
+        }
     }
 
     private void cleanupConnection(NIOConnection client) {
         Logcat.v(TAG, "Destroying connection %s", client.getConnectionId());
+        idleStateMonitor.untrack(client);
+        heartbeatMonitor.untrack(client);
+        topicSubscriptions.unsubscribeAll(client);
+        pausedReads.remove(client);
         client.disconnect();
         SelectionKey clientKey = client.selectionKey();
         if (client.selectionKey() != null) {
@@ -249,7 +544,73 @@ class ServerEventLoop {
 
     }
 
+    TopicSubscriptions topicSubscriptions() {
+        return topicSubscriptions;
+    }
+
+    RequestHandlers requestHandlers() {
+        return requestHandlers;
+    }
+
+    boolean hasClient(Connection client) {
+        return client instanceof NIOConnection
+                && connectedClientsBySelectionKey.containsKey(((NIOConnection) client).selectionKey());
+    }
+
     public Collection<NIOConnection> getClients() {
         return connectedClientsBySelectionKey.values();
     }
+
+    /**
+     * Posts the watermark events of a client's send queue, which can be crossed on any thread, to be emitted
+     * by the loop
+     */
+    private class SendQueueEventPoster implements SendQueue.Listener {
+        private final NIOConnection connection;
+
+        SendQueueEventPoster(NIOConnection connection) {
+            this.connection = connection;
+        }
+
+        @Override
+        public void onHighWatermark(SendQueue queue) {
+            sendQueueEvents.offer(PostmanServerEvent.clientSendQueueHigh(connection));
+            loopTasks.wakeUp();
+        }
+
+        @Override
+        public void onLowWatermark(SendQueue queue) {
+            sendQueueEvents.offer(PostmanServerEvent.clientSendQueueLow(connection));
+            loopTasks.wakeUp();
+        }
+    }
+
+    private class ConnectionEventEmitter implements IdleStateMonitor.Listener, HeartbeatMonitor.Listener {
+        private final EventSink<PostmanServerEvent> events;
+
+        ConnectionEventEmitter(EventSink<PostmanServerEvent> events) {
+            this.events = events;
+        }
+
+        @Override
+        public void onIdle(NIOConnection connection, PostmanServerEvent.IdleState idleState) {
+            events.emit(PostmanServerEvent.clientIdle(connection, idleState));
+        }
+
+        @Override
+        public void onReadTimeout(NIOConnection connection) {
+            timeoutConnection(connection);
+        }
+
+        @Override
+        public void onHeartbeatsMissed(NIOConnection connection, int missedHeartbeats) {
+            timeoutConnection(connection);
+        }
+
+        private void timeoutConnection(NIOConnection connection) {
+            cleanupConnection(connection);
+            events.emit(PostmanServerEvent.clientTimedOut(connection));
+            events.emit(PostmanServerEvent.clientDisconnected(connection));
+        }
+    }
 }
\ No newline at end of file
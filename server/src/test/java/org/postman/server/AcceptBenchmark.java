@@ -0,0 +1,94 @@
+package org.postman.server;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.SocketChannel;
+import java.nio.channels.spi.SelectorProvider;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static com.siia.commons.core.io.IO.closeQuietly;
+
+/**
+ * Rough benchmark of how many connections per second a {@link PostmanServer} accepts, run from the main
+ * method of a transport specific benchmark. A number of threads open plain sockets to the server as fast as
+ * they can, simulating clients reconnecting at once, and the rate is measured until the server has reported
+ * every client as joined.
+ *
+ * Each connection uses a file descriptor on both sides so the open file limit may need raising for large
+ * numbers of connections. Not a unit test, numbers should be taken as indicative only.
+ */
+public class AcceptBenchmark {
+    private static final String HOST = "127.0.0.1";
+    private static final int PORT = 12401;
+    private static final long TIMEOUT_SECONDS = 120;
+
+    private final String name;
+    private final int connections;
+    private final int connectingThreads;
+
+    public AcceptBenchmark(String name, int connections, int connectingThreads) {
+        this.name = name;
+        this.connections = connections;
+        this.connectingThreads = connectingThreads;
+    }
+
+    public void run(PostmanServer server) throws IOException, InterruptedException {
+        CountDownLatch listening = new CountDownLatch(1);
+        CountDownLatch joined = new CountDownLatch(connections);
+        server.serverStart(new InetSocketAddress(HOST, PORT)).subscribe(event -> {
+            switch (event.type()) {
+                case SERVER_LISTENING:
+                    listening.countDown();
+                    break;
+                case CLIENT_JOIN:
+                    joined.countDown();
+                    break;
+            }
+        }, Throwable::printStackTrace);
+        await(listening);
+
+        List<SocketChannel> sockets = new ArrayList<>(connections);
+        ExecutorService executor = Executors.newFixedThreadPool(connectingThreads);
+        InetSocketAddress address = new InetSocketAddress(HOST, PORT);
+
+        long start = System.nanoTime();
+        for (int thread = 0; thread < connectingThreads; thread++) {
+            int count = connections / connectingThreads + (thread < connections % connectingThreads ? 1 : 0);
+            executor.execute(() -> {
+                for (int i = 0; i < count; i++) {
+                    try {
+                        SocketChannel socket = SelectorProvider.provider().openSocketChannel();
+                        socket.connect(address);
+                        synchronized (sockets) {
+                            sockets.add(socket);
+                        }
+                    } catch (IOException e) {
+                        e.printStackTrace();
+                    }
+                }
+            });
+        }
+        await(joined);
+        long totalNanos = System.nanoTime() - start;
+
+        executor.shutdown();
+        executor.awaitTermination(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        sockets.forEach(socket -> closeQuietly(socket));
+        server.stopServer();
+
+        System.out.println(String.format("%s: %d connections accepted in %d ms, %.0f accepts/s, %d refused",
+                name, connections, TimeUnit.NANOSECONDS.toMillis(totalNanos), connections / (totalNanos / 1e9),
+                server.refusedConnections()));
+    }
+
+    private static void await(CountDownLatch latch) throws InterruptedException {
+        if (!latch.await(TIMEOUT_SECONDS, TimeUnit.SECONDS)) {
+            throw new IllegalStateException("Benchmark timed out");
+        }
+    }
+}
@@ -0,0 +1,30 @@
+package org.postman.server;
+
+import org.junit.Test;
+
+import java.util.HashSet;
+import java.util.Set;
+import java.util.UUID;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class ConnectionIdsTest {
+
+    @Test
+    public void shouldGenerateVersion4Ids() {
+        UUID id = ConnectionIds.next();
+
+        assertThat(id.version()).isEqualTo(4);
+        assertThat(id.variant()).isEqualTo(2);
+    }
+
+    @Test
+    public void shouldGenerateDistinctIds() {
+        Set<UUID> ids = new HashSet<>();
+        for (int i = 0; i < 10_000; i++) {
+            ids.add(ConnectionIds.next());
+        }
+
+        assertThat(ids).hasSize(10_000);
+    }
+}
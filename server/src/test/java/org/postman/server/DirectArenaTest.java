@@ -0,0 +1,82 @@
+package org.postman.server;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class DirectArenaTest {
+
+    private DirectArena arena;
+
+    @Before
+    public void setup() {
+        arena = new DirectArena(100, 200);
+    }
+
+    @Test
+    public void shouldCarveSlicesOutOfDirectChunk() {
+        DirectArena.Slice first = arena.allocate(40);
+        DirectArena.Slice second = arena.allocate(60);
+
+        assertThat(first.memory().isDirect()).isTrue();
+        assertThat(first.memory().remaining()).isEqualTo(40);
+        assertThat(second.memory().remaining()).isEqualTo(60);
+        assertThat(arena.reservedBytes()).isEqualTo(100);
+    }
+
+    @Test
+    public void shouldNotAllocateFrameBiggerThanChunk() {
+        assertThat(arena.allocate(101)).isNull();
+        assertThat(arena.isExhausted()).isFalse();
+    }
+
+    @Test
+    public void shouldBeExhaustedOnceEveryChunkIsInUse() {
+        arena.allocate(100);
+        arena.allocate(100);
+
+        assertThat(arena.allocate(1)).isNull();
+        assertThat(arena.isExhausted()).isTrue();
+        assertThat(arena.reservedBytes()).isEqualTo(200);
+    }
+
+    @Test
+    public void shouldReuseChunkOnceAllItsSlicesAreFreed() {
+        DirectArena.Slice first = arena.allocate(50);
+        DirectArena.Slice second = arena.allocate(50);
+        arena.allocate(100);
+        assertThat(arena.allocate(1)).isNull();
+
+        first.free();
+        assertThat(arena.isExhausted()).isTrue();
+        second.free();
+
+        assertThat(arena.isExhausted()).isFalse();
+        assertThat(arena.allocate(100)).isNotNull();
+        assertThat(arena.reservedBytes()).isEqualTo(200);
+    }
+
+    @Test
+    public void shouldTellListenersOnceAvailableAgain() {
+        AtomicInteger available = new AtomicInteger();
+        arena.whenAvailable(available::incrementAndGet);
+        DirectArena.Slice slice = arena.allocate(100);
+        arena.allocate(100);
+        arena.allocate(1);
+
+        slice.free();
+
+        assertThat(available.get()).isEqualTo(1);
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void cannotFreeSliceTwice() {
+        DirectArena.Slice slice = arena.allocate(10);
+
+        slice.free();
+        slice.free();
+    }
+}
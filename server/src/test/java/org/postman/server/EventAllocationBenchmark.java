@@ -0,0 +1,87 @@
+package org.postman.server;
+
+import org.postman.server.nio.Test.Ping;
+
+import java.lang.management.ManagementFactory;
+import java.util.UUID;
+
+/**
+ * Rough measure of the bytes allocated creating and reading the events for received messages, the hottest
+ * path through the event loops. Uses the HotSpot per thread allocation counter so only runs on a JVM
+ * that supports it, not on Android.
+ */
+public class EventAllocationBenchmark {
+    private static final int WARMUP = 1_000_000;
+    private static final int ITERATIONS = 5_000_000;
+
+    private static volatile Object sink;
+
+    public static void main(String[] args) {
+        com.sun.management.ThreadMXBean threadMXBean = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long threadId = Thread.currentThread().getId();
+        PostmanMessage msg = new PostmanMessage(Ping.getDefaultInstance());
+        Connection connection = new FakeConnection();
+
+        run(msg, connection, WARMUP);
+
+        long before = threadMXBean.getThreadAllocatedBytes(threadId);
+        run(msg, connection, ITERATIONS);
+        long allocated = threadMXBean.getThreadAllocatedBytes(threadId) - before;
+
+        System.out.println(String.format("%.1f bytes allocated per server and client message event",
+                (double) allocated / ITERATIONS));
+    }
+
+    private static void run(PostmanMessage msg, Connection connection, int iterations) {
+        for (int i = 0; i < iterations; i++) {
+            PostmanServerEvent serverEvent = PostmanServerEvent.newMessage(msg, connection);
+            sink = serverEvent.message();
+            sink = serverEvent.connection();
+            PostmanClientEvent clientEvent = PostmanClientEvent.newMessage(msg);
+            sink = clientEvent.msg();
+        }
+    }
+
+    private static class FakeConnection implements Connection {
+        private final UUID connectionId = UUID.randomUUID();
+        private final RoundTripTime roundTripTime = new RoundTripTime();
+
+        @Override
+        public UUID getConnectionId() {
+            return connectionId;
+        }
+
+        @Override
+        public void disconnect() {
+        }
+
+        @Override
+        public boolean isConnected() {
+            return true;
+        }
+
+        @Override
+        public SendQueue.Result queueMessageToSend(PostmanMessage msg) {
+            return SendQueue.Result.QUEUED;
+        }
+
+        @Override
+        public void slowConsumerPolicy(SlowConsumerPolicy policy) {
+        }
+
+        @Override
+        public long expiredMessages() {
+            return 0;
+        }
+
+        @Override
+        public long droppedMessages() {
+            return 0;
+        }
+
+        @Override
+        public RoundTripTime roundTripTime() {
+            return roundTripTime;
+        }
+    }
+}
@@ -0,0 +1,127 @@
+package org.postman.server;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.postman.server.MessageOuterClass.Heartbeat;
+import org.postman.server.MessageOuterClass.WindowUpdate;
+import org.postman.server.nio.Test.Pong;
+
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class FlowControlTest {
+
+    private FlowControl flowControl;
+
+    @Before
+    public void setup() {
+        flowControl = new FlowControl();
+    }
+
+    @Test
+    public void shouldNeverPauseByDefault() {
+        flowControl.onSent(1, Integer.MAX_VALUE);
+
+        assertThat(flowControl.isEnabled()).isFalse();
+        assertThat(flowControl.canSend(1)).isTrue();
+        assertThat(flowControl.sendable(1, 1000)).isEqualTo(1000);
+        assertThat(flowControl.consumed(pong(1000))).isEmpty();
+    }
+
+    @Test
+    public void shouldPauseConnectionUntilCreditGranted() {
+        flowControl.limit(PostmanConfig.builder().flowControlWindows(100, 0).build());
+
+        flowControl.onSent(PostmanMessage.DEFAULT_STREAM, 150);
+        assertThat(flowControl.canSend(PostmanMessage.DEFAULT_STREAM)).isFalse();
+
+        assertThat(flowControl.handleMessage(windowUpdate(null, 40))).isTrue();
+        assertThat(flowControl.canSend(PostmanMessage.DEFAULT_STREAM)).isFalse();
+        flowControl.handleMessage(windowUpdate(null, 20));
+        assertThat(flowControl.canSend(PostmanMessage.DEFAULT_STREAM)).isTrue();
+        assertThat(flowControl.sendable(PostmanMessage.DEFAULT_STREAM, 64)).isEqualTo(10);
+    }
+
+    @Test
+    public void shouldNeverPauseControlStream() {
+        flowControl.limit(PostmanConfig.builder().flowControlWindows(100, 0).build());
+
+        flowControl.onSent(PostmanMessage.DEFAULT_STREAM, 100);
+        flowControl.onSent(PostmanMessage.CONTROL_STREAM, 1000);
+
+        assertThat(flowControl.canSend(PostmanMessage.CONTROL_STREAM)).isTrue();
+        assertThat(flowControl.sendable(PostmanMessage.CONTROL_STREAM, 1000)).isEqualTo(1000);
+    }
+
+    @Test
+    public void shouldPauseOnlyStreamOutOfCredit() {
+        flowControl.limit(PostmanConfig.builder().maxFrameSize(64).flowControlWindows(0, 100).build());
+
+        flowControl.onSent(1, 100);
+
+        assertThat(flowControl.canSend(1)).isFalse();
+        assertThat(flowControl.canSend(2)).isTrue();
+        flowControl.handleMessage(windowUpdate(1, 100));
+        assertThat(flowControl.sendable(1, 1000)).isEqualTo(100);
+    }
+
+    @Test
+    public void shouldIgnoreStreamWindowWithoutMultiplexing() {
+        flowControl.limit(PostmanConfig.builder().flowControlWindows(0, 100).build());
+
+        flowControl.onSent(1, 1000);
+
+        assertThat(flowControl.isEnabled()).isFalse();
+        assertThat(flowControl.canSend(1)).isTrue();
+    }
+
+    @Test
+    public void shouldGrantConsumedBytesOnceHalfWindowConsumed() throws Exception {
+        flowControl.limit(PostmanConfig.builder().flowControlWindows(1000, 0).build());
+        PostmanMessage msg = pong(300);
+
+        assertThat(flowControl.consumed(msg)).isEmpty();
+        List<PostmanMessage> updates = flowControl.consumed(msg);
+
+        assertThat(updates).hasSize(1);
+        assertThat(updates.get(0).getStreamId()).isEqualTo(PostmanMessage.CONTROL_STREAM);
+        WindowUpdate update = updates.get(0).getProtoObj();
+        assertThat(update.hasStreamId()).isFalse();
+        assertThat(update.getCredit()).isEqualTo(2 * msg.getFrameLength());
+        assertThat(flowControl.consumed(msg)).isEmpty();
+    }
+
+    @Test
+    public void shouldGrantStreamAndConnectionCreditSeparately() throws Exception {
+        flowControl.limit(PostmanConfig.builder().maxFrameSize(64).flowControlWindows(10000, 200).build());
+        PostmanMessage msg = pong(200).setStreamId(3);
+
+        List<PostmanMessage> updates = flowControl.consumed(msg);
+
+        assertThat(updates).hasSize(1);
+        WindowUpdate update = updates.get(0).getProtoObj();
+        assertThat(update.getStreamId()).isEqualTo(3);
+        assertThat(update.getCredit()).isEqualTo(msg.getFrameLength());
+    }
+
+    @Test
+    public void shouldNotCountControlMessages() {
+        flowControl.limit(PostmanConfig.builder().flowControlWindows(2, 0).build());
+
+        assertThat(flowControl.consumed(new PostmanMessage(Heartbeat.newBuilder().setSentNanos(1).build()))).isEmpty();
+        assertThat(flowControl.consumed(windowUpdate(null, 1))).isEmpty();
+    }
+
+    private static PostmanMessage windowUpdate(Integer streamId, int credit) {
+        WindowUpdate.Builder update = WindowUpdate.newBuilder().setCredit(credit);
+        if (streamId != null) {
+            update.setStreamId(streamId);
+        }
+        return new PostmanMessage(update.build());
+    }
+
+    private static PostmanMessage pong(int length) {
+        return new PostmanMessage(Pong.newBuilder().setMsg(new String(new char[length])).build());
+    }
+}
@@ -0,0 +1,199 @@
+package org.postman.server;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.postman.server.nio.Test.Ping;
+import org.postman.server.nio.Test.Pong;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class MessagePoolTest {
+
+    private MessagePool pool;
+
+    @Before
+    public void setup() {
+        pool = new MessagePool(2, 1024, 0);
+    }
+
+    @Test
+    public void shouldReuseReleasedMessage() throws IOException {
+        PostmanMessage msg = read(pool.get(), pong(100));
+
+        msg.release();
+        PostmanMessage next = pool.get();
+
+        assertThat(next).isSameAs(msg);
+        assertThat(next.isInitialised()).isFalse();
+        assertThat(next.getStreamId()).isEqualTo(PostmanMessage.DEFAULT_STREAM);
+    }
+
+    @Test
+    public void shouldReadSmallerMessageIntoSameBytes() throws Exception {
+        PostmanMessage msg = read(pool.get(), pong(100));
+        msg.release();
+
+        PostmanMessage next = read(pool.get(), new PostmanMessage(Ping.getDefaultInstance()));
+
+        assertThat(next.isOfType(Ping.class)).isTrue();
+        assertThat(next.<Ping>getProtoObj()).isEqualTo(Ping.getDefaultInstance());
+        assertThat(next.getFrame()).isEqualTo(new PostmanMessage(Ping.getDefaultInstance()).getFrame());
+        assertThat(next.getFrame().capacity()).isGreaterThan(next.getFrameLength());
+    }
+
+    @Test
+    public void shouldNotKeepMoreThanCapacity() throws IOException {
+        PostmanMessage first = read(pool.get(), pong(1));
+        PostmanMessage second = read(pool.get(), pong(1));
+        PostmanMessage third = read(pool.get(), pong(1));
+
+        first.release();
+        second.release();
+        third.release();
+
+        assertThat(pool.get()).isSameAs(first);
+        assertThat(pool.get()).isSameAs(second);
+        assertThat(pool.get()).isNotSameAs(third);
+    }
+
+    @Test
+    public void shouldDropMessagesWithFramesOverMaxRetained() throws IOException {
+        PostmanMessage msg = read(pool.get(), pong(2000));
+
+        msg.release();
+
+        assertThat(pool.get()).isNotSameAs(msg);
+    }
+
+    @Test
+    public void shouldTakeBackMessagesReleasedOnOtherThreads() throws Exception {
+        PostmanMessage msg = read(pool.get(), pong(1));
+
+        Thread subscriber = new Thread(msg::release);
+        subscriber.start();
+        subscriber.join();
+
+        assertThat(pool.get()).isSameAs(msg);
+    }
+
+    @Test
+    public void copyShouldOutliveReleasedMessage() throws Exception {
+        PostmanMessage msg = read(pool.get(), pong(10));
+        PostmanMessage copy = new PostmanMessage(msg);
+
+        msg.release();
+        read(pool.get(), pong(20));
+
+        assertThat(copy.<Pong>getProtoObj().getMsg()).hasSize(10);
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void cannotReleaseTwice() throws IOException {
+        PostmanMessage msg = read(pool.get(), pong(1));
+
+        msg.release();
+        msg.release();
+    }
+
+    @Test
+    public void releaseShouldDoNothingForMessagesNotFromPool() {
+        PostmanMessage msg = new PostmanMessage(pong(1));
+
+        msg.release();
+
+        assertThat(msg.isInitialised()).isTrue();
+    }
+
+    @Test
+    public void shouldCountMessagesCollectedWithoutBeingReleased() throws Exception {
+        pool = new MessagePool(2, 1024, 1);
+        read(pool.get(), pong(1)).release();
+        read(pool.get(), pong(1));
+
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while (pool.leakedMessages() == 0 && System.nanoTime() < deadline) {
+            System.gc();
+            Thread.sleep(10);
+        }
+
+        //Handed out twice but only released the first time
+        assertThat(pool.leakedMessages()).isEqualTo(1);
+    }
+
+    @Test
+    public void shouldOnlyTakeBackRetainedMessageOnceEveryHolderReleasesIt() throws IOException {
+        PostmanMessage msg = read(pool.get(), pong(1));
+
+        msg.retain();
+        msg.release();
+        assertThat(msg.isInitialised()).isTrue();
+        msg.release();
+
+        assertThat(msg.isInitialised()).isFalse();
+        assertThat(pool.get()).isSameAs(msg);
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void cannotRetainReleasedMessage() throws IOException {
+        PostmanMessage msg = read(pool.get(), pong(1));
+
+        msg.release();
+        msg.retain();
+    }
+
+    @Test
+    public void shouldReadIntoArenaAndFreeItOnRelease() throws Exception {
+        DirectArena arena = oneFrameArena();
+        pool = new MessagePool(2, 1024, 0, arena);
+        PostmanMessage msg = read(pool.get(), pong(20));
+
+        assertThat(msg.getFrame().isDirect()).isTrue();
+        assertThat(msg.<Pong>getProtoObj().getMsg()).hasSize(20);
+        assertThat(read(pool.get(), pong(20)).getFrame().isDirect()).isFalse();
+        assertThat(arena.isExhausted()).isTrue();
+
+        msg.release();
+
+        assertThat(arena.isExhausted()).isFalse();
+        assertThat(read(pool.get(), pong(20)).getFrame().isDirect()).isTrue();
+    }
+
+    @Test
+    public void shouldFreeArenaMemoryOfMessagesCollectedWithoutBeingReleased() throws Exception {
+        DirectArena arena = oneFrameArena();
+        pool = new MessagePool(2, 1024, 0, arena);
+        read(pool.get(), pong(20));
+        read(pool.get(), pong(20));
+        assertThat(arena.isExhausted()).isTrue();
+
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while (pool.leakedMessages() == 0 && System.nanoTime() < deadline) {
+            System.gc();
+            Thread.sleep(10);
+        }
+
+        assertThat(pool.leakedMessages()).isGreaterThan(0);
+        assertThat(arena.isExhausted()).isFalse();
+    }
+
+    private static DirectArena oneFrameArena() {
+        int frameLength = new PostmanMessage(pong(20)).getFrameLength();
+        return new DirectArena(frameLength, frameLength);
+    }
+
+    private static PostmanMessage read(PostmanMessage msg, PostmanMessage from) throws IOException {
+        assertThat(msg.read(from.getFrame())).isTrue();
+        return msg;
+    }
+
+    private static PostmanMessage read(PostmanMessage msg, Pong from) throws IOException {
+        return read(msg, new PostmanMessage(from));
+    }
+
+    private static Pong pong(int length) {
+        return Pong.newBuilder().setMsg(new String(new char[length])).build();
+    }
+}
@@ -0,0 +1,52 @@
+package org.postman.server;
+
+import com.siia.commons.core.inject.Provider;
+
+import org.postman.server.nio.Test.Pong;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+
+/**
+ * Rough measure of the bytes allocated reading messages from a peer, with a new message for each and with
+ * messages from a {@link MessagePool} released once read. Uses the HotSpot per thread allocation counter so only
+ * runs on a JVM that supports it, not on Android.
+ */
+public class MessageReadAllocationBenchmark {
+    private static final int WARMUP = 1_000_000;
+    private static final int ITERATIONS = 5_000_000;
+
+    private static volatile Object sink;
+
+    public static void main(String[] args) throws IOException {
+        ByteBuffer frame = new PostmanMessage(Pong.newBuilder().setMsg("pong").build()).getFrame();
+
+        report("new message", PostmanMessage::new, frame);
+        report("pooled message", new MessagePool(), frame);
+    }
+
+    private static void report(String name, Provider<PostmanMessage> provider, ByteBuffer frame) throws IOException {
+        com.sun.management.ThreadMXBean threadMXBean = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long threadId = Thread.currentThread().getId();
+
+        run(provider, frame, WARMUP);
+
+        long before = threadMXBean.getThreadAllocatedBytes(threadId);
+        run(provider, frame, ITERATIONS);
+        long allocated = threadMXBean.getThreadAllocatedBytes(threadId) - before;
+
+        System.out.println(String.format("%-15s %.1f bytes allocated per message read", name,
+                (double) allocated / ITERATIONS));
+    }
+
+    private static void run(Provider<PostmanMessage> provider, ByteBuffer frame, int iterations) throws IOException {
+        for (int i = 0; i < iterations; i++) {
+            PostmanMessage msg = provider.get();
+            frame.rewind();
+            msg.read(frame);
+            sink = msg;
+            msg.release();
+        }
+    }
+}
@@ -0,0 +1,77 @@
+package org.postman.server;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.function.Consumer;
+
+/**
+ * Rough measure of the throughput of 8 producer threads handing work to a single consumer, the way threads
+ * queuing messages hand tasks to an event loop, comparing the {@link MpscQueue} with the
+ * {@link ConcurrentLinkedQueue} it replaced.
+ */
+public class MpscQueueBenchmark {
+    private static final int PRODUCERS = 8;
+    private static final int PER_PRODUCER = 2_000_000;
+    private static final int ROUNDS = 5;
+
+    private static volatile Object sink;
+
+    public static void main(String[] args) throws InterruptedException {
+        for (int round = 0; round < ROUNDS; round++) {
+            MpscQueue<Integer> mpscQueue = new MpscQueue<>();
+            report("MpscQueue", run(mpscQueue::offer, () -> mpscQueue.drain(MpscQueueBenchmark::consume)));
+
+            Queue<Integer> linkedQueue = new ConcurrentLinkedQueue<>();
+            report("ConcurrentLinkedQueue", run(linkedQueue::offer, () -> {
+                int drained = 0;
+                Integer element;
+                while ((element = linkedQueue.poll()) != null) {
+                    consume(element);
+                    drained++;
+                }
+                return drained;
+            }));
+        }
+    }
+
+    private static long run(Consumer<Integer> offer, Drain drain) throws InterruptedException {
+        CountDownLatch start = new CountDownLatch(1);
+        for (int p = 0; p < PRODUCERS; p++) {
+            Thread producer = new Thread(() -> {
+                Integer element = 1;
+                try {
+                    start.await();
+                } catch (InterruptedException e) {
+                    return;
+                }
+                for (int i = 0; i < PER_PRODUCER; i++) {
+                    offer.accept(element);
+                }
+            });
+            producer.setDaemon(true);
+            producer.start();
+        }
+
+        long startNanos = System.nanoTime();
+        start.countDown();
+        long remaining = (long) PRODUCERS * PER_PRODUCER;
+        while (remaining > 0) {
+            remaining -= drain.drain();
+        }
+        return System.nanoTime() - startNanos;
+    }
+
+    private static void consume(Integer element) {
+        sink = element;
+    }
+
+    private static void report(String queue, long nanos) {
+        System.out.println(String.format("%-22s %.1f million elements/s from %d producers", queue,
+                (double) PRODUCERS * PER_PRODUCER * 1000 / nanos, PRODUCERS));
+    }
+
+    private interface Drain {
+        int drain();
+    }
+}
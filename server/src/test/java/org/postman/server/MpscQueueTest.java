@@ -0,0 +1,95 @@
+package org.postman.server;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class MpscQueueTest {
+
+    private MpscQueue<Integer> queue;
+    private List<Integer> drained;
+
+    @Before
+    public void setup() {
+        queue = new MpscQueue<>();
+        drained = new ArrayList<>();
+    }
+
+    @Test
+    public void shouldPollInOrderOffered() {
+        queue.offer(1);
+        queue.offer(2);
+
+        assertThat(queue.isEmpty()).isFalse();
+        assertThat(queue.poll()).isEqualTo(1);
+        assertThat(queue.poll()).isEqualTo(2);
+        assertThat(queue.poll()).isNull();
+        assertThat(queue.isEmpty()).isTrue();
+    }
+
+    @Test
+    public void shouldDrainWholeBatch() {
+        queue.offer(1);
+        queue.offer(2);
+        queue.offer(3);
+
+        assertThat(queue.drain(drained::add)).isEqualTo(3);
+        assertThat(drained).containsExactly(1, 2, 3);
+        assertThat(queue.isEmpty()).isTrue();
+        assertThat(queue.drain(drained::add)).isZero();
+    }
+
+    @Test
+    public void shouldLeaveElementsOfferedWhileDrainingForNextDrain() {
+        queue.offer(1);
+        queue.offer(2);
+
+        queue.drain(element -> {
+            drained.add(element);
+            queue.offer(element + 10);
+        });
+
+        assertThat(drained).containsExactly(1, 2);
+        queue.drain(drained::add);
+        assertThat(drained).containsExactly(1, 2, 11, 12);
+    }
+
+    @Test
+    public void shouldTakeEverythingFromManyProducers() throws InterruptedException {
+        int producers = 8;
+        int perProducer = 10_000;
+        List<Thread> threads = new ArrayList<>();
+        for (int p = 0; p < producers; p++) {
+            int producer = p;
+            threads.add(new Thread(() -> {
+                for (int i = 0; i < perProducer; i++) {
+                    queue.offer(producer * perProducer + i);
+                }
+            }));
+        }
+        threads.forEach(Thread::start);
+
+        int[] lastByProducer = new int[producers];
+        Arrays.fill(lastByProducer, -1);
+        int taken = 0;
+        while (taken < producers * perProducer) {
+            taken += queue.drain(element -> {
+                int producer = element / perProducer;
+                //Each producer's elements are taken in the order it offered them
+                assertThat(element % perProducer).isEqualTo(lastByProducer[producer] + 1);
+                lastByProducer[producer] = element % perProducer;
+            });
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        assertThat(queue.isEmpty()).isTrue();
+        assertThat(lastByProducer).containsOnly(perProducer - 1);
+    }
+}
@@ -0,0 +1,158 @@
+package org.postman.server;
+
+import com.siia.commons.core.timing.HashedWheelTimer;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.postman.server.MessageOuterClass.RpcError;
+import org.postman.server.nio.Test.Ping;
+import org.postman.server.nio.Test.Pong;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import io.reactivex.Single;
+import io.reactivex.disposables.Disposable;
+import io.reactivex.observers.TestObserver;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class PendingRequestsTest {
+
+    private long now;
+    private HashedWheelTimer timer;
+    private PendingRequests pendingRequests;
+    private List<PostmanMessage> sent;
+
+    @Before
+    public void setup() {
+        now = 0;
+        timer = new HashedWheelTimer(10, TimeUnit.MILLISECONDS, 64, () -> now);
+        pendingRequests = new PendingRequests(timer);
+        sent = new ArrayList<>();
+    }
+
+    @Test
+    public void shouldSendRequestWithIdOnSubscribe() throws Exception {
+        TestObserver<Pong> observer = request().test();
+
+        assertThat(sent).hasSize(1);
+        assertThat(sent.get(0).getRequestId()).isNotEqualTo(PostmanMessage.NO_REQUEST_ID);
+        assertThat(sent.get(0).isOfType(Ping.class)).isTrue();
+        observer.assertNotComplete();
+        assertThat(pendingRequests.size()).isEqualTo(1);
+    }
+
+    @Test
+    public void shouldCompleteEachRequestWithItsResponseInAnyOrder() throws Exception {
+        TestObserver<Pong> first = request().test();
+        TestObserver<Pong> second = request().test();
+
+        assertThat(pendingRequests.handleMessage(response(sent.get(1), "second"))).isTrue();
+        assertThat(pendingRequests.handleMessage(response(sent.get(0), "first"))).isTrue();
+
+        first.assertValue(pong -> pong.getMsg().equals("first"));
+        second.assertValue(pong -> pong.getMsg().equals("second"));
+        assertThat(pendingRequests.size()).isZero();
+        assertThat(timer.pendingTimeouts()).isZero();
+    }
+
+    @Test
+    public void shouldFailRequestWithNoResponseBeforeTimeout() {
+        TestObserver<Pong> observer = request().test();
+
+        advanceTo(90);
+        observer.assertNotTerminated();
+        advanceTo(110);
+
+        observer.assertError(TimeoutException.class);
+        assertThat(pendingRequests.size()).isZero();
+    }
+
+    @Test
+    public void shouldDropResponseArrivingAfterTimeout() throws Exception {
+        TestObserver<Pong> observer = request().test();
+        advanceTo(110);
+
+        assertThat(pendingRequests.handleMessage(response(sent.get(0), "late"))).isTrue();
+        observer.assertError(TimeoutException.class);
+    }
+
+    @Test
+    public void shouldFailRequestAnsweredWithError() throws Exception {
+        TestObserver<Pong> observer = request().test();
+
+        pendingRequests.handleMessage(PostmanMessage.response(RpcError.newBuilder().setMessage("no handler").build(),
+                sent.get(0).getRequestId()));
+
+        observer.assertError(error -> error instanceof RpcException && error.getMessage().equals("no handler"));
+    }
+
+    @Test
+    public void shouldFailRequestAnsweredWithUnexpectedType() throws Exception {
+        TestObserver<Pong> observer = request().test();
+
+        pendingRequests.handleMessage(PostmanMessage.response(Ping.getDefaultInstance(), sent.get(0).getRequestId()));
+
+        observer.assertError(RpcException.class);
+    }
+
+    @Test
+    public void shouldPassOnMessagesThatAreNotResponses() {
+        request().test();
+
+        assertThat(pendingRequests.handleMessage(new PostmanMessage(Pong.newBuilder().setMsg("pong").build()))).isFalse();
+        assertThat(pendingRequests.size()).isEqualTo(1);
+    }
+
+    @Test
+    public void shouldForgetRequestWhenDisposed() {
+        Disposable disposable = request().subscribe(pong -> {}, error -> {});
+
+        disposable.dispose();
+
+        assertThat(pendingRequests.size()).isZero();
+        assertThat(timer.pendingTimeouts()).isZero();
+    }
+
+    @Test
+    public void shouldFailRequestThatCannotBeSent() {
+        TestObserver<Pong> observer = pendingRequests.request(Ping.getDefaultInstance(), Pong.class, 100,
+                TimeUnit.MILLISECONDS, msg -> {
+                    throw new IllegalStateException("Not connected");
+                }).test();
+
+        observer.assertError(IllegalStateException.class);
+        assertThat(pendingRequests.size()).isZero();
+    }
+
+    @Test
+    public void shouldFailAllPendingRequests() {
+        TestObserver<Pong> first = request().test();
+        TestObserver<Pong> second = request().test();
+
+        pendingRequests.failAll(new IOException("Disconnected"));
+
+        first.assertError(IOException.class);
+        second.assertError(IOException.class);
+        assertThat(pendingRequests.size()).isZero();
+    }
+
+    private Single<Pong> request() {
+        return pendingRequests.request(Ping.getDefaultInstance(), Pong.class, 100, TimeUnit.MILLISECONDS, sent::add);
+    }
+
+    private static PostmanMessage response(PostmanMessage request, String msg) throws IOException {
+        PostmanMessage response = new PostmanMessage();
+        response.read(PostmanMessage.response(Pong.newBuilder().setMsg(msg).build(), request.getRequestId()).getFrame());
+        return response;
+    }
+
+    private void advanceTo(long millis) {
+        now = TimeUnit.MILLISECONDS.toNanos(millis);
+        timer.advance();
+    }
+}
@@ -9,6 +9,7 @@ import org.postman.server.nio.Test.Ping;
 import java.io.IOException;
 import java.lang.reflect.InvocationTargetException;
 import java.nio.ByteBuffer;
+import java.nio.ReadOnlyBufferException;
 
 import static org.assertj.core.api.Assertions.assertThat;
 
@@ -102,7 +103,7 @@ public class PostmanMessageTest {
         assertThat(buffer.limit()).isEqualTo(data.length);
         assertThat(buffer.capacity()).isEqualTo(data.length);
         assertThat(buffer.position()).isZero();
-        assertThat(buffer.array()).isEqualTo(data);
+        assertThat(buffer).isEqualTo(ByteBuffer.wrap(data));
 
     }
 
@@ -146,5 +147,79 @@ public class PostmanMessageTest {
         msg.read(buffer);
     }
 
+    @Test
+    public void publishedMessageShouldKeepItsTopicWhenRead() throws IOException {
+        PostmanMessage message = new PostmanMessage(ping, "site/42");
+        PostmanMessage read = new PostmanMessage();
+        read.read(message.getFrame());
+
+        assertThat(read.getTopic()).isEqualTo("site/42");
+        assertThat(read.isOfType(Ping.class)).isTrue();
+    }
+
+    @Test
+    public void messageShouldHaveNoTopicUnlessPublished() throws InvalidProtocolBufferException {
+        assertThat(new PostmanMessage(ping).getTopic()).isNull();
+    }
+
+    @Test
+    public void framesShouldShareBytesButNotPosition() {
+        PostmanMessage message = new PostmanMessage(ping, "topic");
+        ByteBuffer first = message.getFrame();
+        first.position(first.limit());
 
-}
\ No newline at end of file
+        ByteBuffer second = message.getFrame();
+
+        assertThat(second.position()).isZero();
+        assertThat(second).isEqualTo(message.getFrame());
+    }
+
+    @Test(expected = ReadOnlyBufferException.class)
+    public void frameShouldBeReadOnly() {
+        new PostmanMessage(ping, "topic").getFrame().put(0, (byte) 1);
+    }
+
+    @Test
+    public void headerAndBodyShouldBeReadOnlyViewsOfFrame() throws IOException {
+        byte[] data = {0,0,0,3,9,9,1};
+        PostmanMessage message = new PostmanMessage();
+        message.read(ByteBuffer.wrap(data));
+
+        ByteBuffer header = message.getHeader();
+        ByteBuffer body = message.getBody();
+
+        assertThat(header.isReadOnly()).isTrue();
+        assertThat(header.getInt()).isEqualTo(3);
+        assertThat(body.isReadOnly()).isTrue();
+        assertThat(body).isEqualTo(ByteBuffer.wrap(new byte[]{9,9,1}));
+        assertThat(message.getFrameLength()).isEqualTo(data.length);
+    }
+
+    @Test
+    public void copyShouldShareFrame() {
+        PostmanMessage message = new PostmanMessage(ping, "topic");
+
+        PostmanMessage copy = new PostmanMessage(message);
+
+        assertThat(copy.getFrame()).isEqualTo(message.getFrame());
+        assertThat(copy.isInitialised()).isTrue();
+    }
+
+    @Test
+    public void requestAndResponseShouldKeepTheirIdsWhenRead() throws IOException {
+        PostmanMessage request = new PostmanMessage();
+        request.read(PostmanMessage.request(ping, 7).getFrame());
+        PostmanMessage response = new PostmanMessage();
+        response.read(PostmanMessage.response(ping, 7).getFrame());
+
+        assertThat(request.getRequestId()).isEqualTo(7);
+        assertThat(request.getResponseTo()).isEqualTo(PostmanMessage.NO_REQUEST_ID);
+        assertThat(response.getResponseTo()).isEqualTo(7);
+        assertThat(response.getRequestId()).isEqualTo(PostmanMessage.NO_REQUEST_ID);
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void requestCannotUseNoRequestId() {
+        PostmanMessage.request(ping, PostmanMessage.NO_REQUEST_ID);
+    }
+}
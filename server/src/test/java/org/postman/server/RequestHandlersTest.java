@@ -0,0 +1,178 @@
+package org.postman.server;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.postman.server.MessageOuterClass.RpcError;
+import org.postman.server.nio.Test.Ping;
+import org.postman.server.nio.Test.Pong;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import io.reactivex.Single;
+import io.reactivex.subjects.SingleSubject;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.mock;
+
+public class RequestHandlersTest {
+
+    private long now;
+    private int calls;
+    private RequestHandlers requestHandlers;
+    private Connection connection;
+    private List<PostmanMessage> responses;
+
+    @Before
+    public void setup() {
+        now = 0;
+        calls = 0;
+        requestHandlers = new RequestHandlers(() -> now);
+        connection = mock(Connection.class);
+        responses = new ArrayList<>();
+    }
+
+    @Test
+    public void shouldAnswerRequestWithHandlerResponse() throws Exception {
+        requestHandlers.register(Ping.class, ping -> Single.just(Pong.newBuilder().setMsg("pong").build()), RequestCoalescing.none());
+
+        assertThat(handle(PostmanMessage.request(Ping.getDefaultInstance(), 3))).isTrue();
+
+        assertThat(responses).hasSize(1);
+        assertThat(responses.get(0).getResponseTo()).isEqualTo(3);
+        assertThat(responses.get(0).<Pong>getProtoObj().getMsg()).isEqualTo("pong");
+    }
+
+    @Test
+    public void shouldAnswerOnceHandlerCompletes() throws Exception {
+        SingleSubject<Pong> pong = SingleSubject.create();
+        requestHandlers.register(Ping.class, ping -> pong, RequestCoalescing.none());
+
+        handle(PostmanMessage.request(Ping.getDefaultInstance(), 3));
+        assertThat(responses).isEmpty();
+        pong.onSuccess(Pong.newBuilder().setMsg("pong").build());
+
+        assertThat(responses).hasSize(1);
+    }
+
+    @Test
+    public void shouldAnswerWithErrorWhenNoHandler() throws Exception {
+        assertThat(handle(PostmanMessage.request(Ping.getDefaultInstance(), 3))).isTrue();
+
+        assertThat(responses.get(0).getResponseTo()).isEqualTo(3);
+        assertThat(responses.get(0).isOfType(RpcError.class)).isTrue();
+    }
+
+    @Test
+    public void shouldAnswerWithErrorWhenHandlerFails() throws Exception {
+        requestHandlers.register(Ping.class, ping -> Single.error(new IOException("failed")), RequestCoalescing.none());
+
+        handle(PostmanMessage.request(Ping.getDefaultInstance(), 3));
+
+        assertThat(responses.get(0).isOfType(RpcError.class)).isTrue();
+        assertThat(responses.get(0).<RpcError>getProtoObj().getMessage()).contains("failed");
+    }
+
+    @Test
+    public void shouldPassOnMessagesThatAreNotRequests() {
+        requestHandlers.register(Ping.class, ping -> Single.just(Pong.newBuilder().setMsg("pong").build()), RequestCoalescing.none());
+
+        assertThat(handle(new PostmanMessage(Ping.getDefaultInstance()))).isFalse();
+        assertThat(responses).isEmpty();
+    }
+
+    @Test
+    public void identicalRequestsInFlightShouldShareOneHandlerCall() throws Exception {
+        SingleSubject<Pong> pong = SingleSubject.create();
+        requestHandlers.register(Pong.class, request -> {
+            calls++;
+            return request.getMsg().equals("config") ? pong : Single.just(request);
+        }, RequestCoalescing.inFlight());
+
+        handle(PostmanMessage.request(pong("config"), 1));
+        handle(PostmanMessage.request(pong("config"), 2));
+        handle(PostmanMessage.request(pong("other"), 3));
+        assertThat(calls).isEqualTo(2);
+        pong.onSuccess(pong("v2"));
+
+        assertThat(responses).hasSize(3);
+        assertThat(responses.get(0).getResponseTo()).isEqualTo(3);
+        assertThat(responses.get(1).getResponseTo()).isEqualTo(1);
+        assertThat(responses.get(2).getResponseTo()).isEqualTo(2);
+        assertThat(responses.get(2).<Pong>getProtoObj().getMsg()).isEqualTo("v2");
+    }
+
+    @Test
+    public void inFlightRequestsShouldNotShareCompletedResponses() {
+        requestHandlers.register(Pong.class, request -> {
+            calls++;
+            return Single.just(request);
+        }, RequestCoalescing.inFlight());
+
+        handle(PostmanMessage.request(pong("config"), 1));
+        handle(PostmanMessage.request(pong("config"), 2));
+
+        assertThat(calls).isEqualTo(2);
+    }
+
+    @Test
+    public void cachedResponsesShouldBeReusedUntilTheyExpire() throws Exception {
+        requestHandlers.register(Pong.class, request -> {
+            calls++;
+            return Single.just(pong("v" + calls));
+        }, RequestCoalescing.cached(100, TimeUnit.MILLISECONDS, 16));
+
+        handle(PostmanMessage.request(pong("config"), 1));
+        now = TimeUnit.MILLISECONDS.toNanos(99);
+        handle(PostmanMessage.request(pong("config"), 2));
+        now = TimeUnit.MILLISECONDS.toNanos(100);
+        handle(PostmanMessage.request(pong("config"), 3));
+
+        assertThat(calls).isEqualTo(2);
+        assertThat(responses.get(1).getResponseTo()).isEqualTo(2);
+        assertThat(responses.get(1).<Pong>getProtoObj().getMsg()).isEqualTo("v1");
+        assertThat(responses.get(2).<Pong>getProtoObj().getMsg()).isEqualTo("v2");
+    }
+
+    @Test
+    public void cacheShouldDropLeastRecentlyUsedResponses() {
+        requestHandlers.register(Pong.class, request -> {
+            calls++;
+            return Single.just(request);
+        }, RequestCoalescing.cached(1, TimeUnit.MINUTES, 2));
+
+        handle(PostmanMessage.request(pong("a"), 1));
+        handle(PostmanMessage.request(pong("b"), 2));
+        handle(PostmanMessage.request(pong("a"), 3));
+        handle(PostmanMessage.request(pong("c"), 4));
+        handle(PostmanMessage.request(pong("a"), 5));
+        assertThat(calls).isEqualTo(3);
+
+        handle(PostmanMessage.request(pong("b"), 6));
+        assertThat(calls).isEqualTo(4);
+    }
+
+    @Test
+    public void failedResponsesShouldNotBeCached() throws Exception {
+        requestHandlers.register(Pong.class, request -> {
+            calls++;
+            return Single.error(new IOException("failed"));
+        }, RequestCoalescing.cached(1, TimeUnit.MINUTES, 16));
+
+        handle(PostmanMessage.request(pong("config"), 1));
+        handle(PostmanMessage.request(pong("config"), 2));
+
+        assertThat(calls).isEqualTo(2);
+        assertThat(responses.get(1).isOfType(RpcError.class)).isTrue();
+    }
+
+    private static Pong pong(String msg) {
+        return Pong.newBuilder().setMsg(msg).build();
+    }
+
+    private boolean handle(PostmanMessage msg) {
+        return requestHandlers.handleMessage(connection, msg, (response, destination) -> responses.add(response));
+    }
+}
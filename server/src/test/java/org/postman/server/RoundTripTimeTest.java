@@ -0,0 +1,45 @@
+package org.postman.server;
+
+import org.junit.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class RoundTripTimeTest {
+
+    @Test
+    public void shouldHaveNoSamplesInitially() {
+        RoundTripTime roundTripTime = new RoundTripTime();
+        assertThat(roundTripTime.hasSamples()).isFalse();
+        assertThat(roundTripTime.smoothedNanos()).isEqualTo(RoundTripTime.NO_SAMPLES);
+    }
+
+    @Test
+    public void shouldUseFirstSampleForAllStatistics() {
+        RoundTripTime roundTripTime = new RoundTripTime();
+        roundTripTime.record(800);
+        assertThat(roundTripTime.smoothedNanos()).isEqualTo(800);
+        assertThat(roundTripTime.minNanos()).isEqualTo(800);
+        assertThat(roundTripTime.maxNanos()).isEqualTo(800);
+    }
+
+    @Test
+    public void shouldSmoothAndTrackMinAndMax() {
+        RoundTripTime roundTripTime = new RoundTripTime();
+        roundTripTime.record(800);
+        roundTripTime.record(1600);
+        roundTripTime.record(400);
+
+        assertThat(roundTripTime.smoothedNanos()).isEqualTo(837);
+        assertThat(roundTripTime.minNanos()).isEqualTo(400);
+        assertThat(roundTripTime.maxNanos()).isEqualTo(1600);
+        assertThat(roundTripTime.lastNanos()).isEqualTo(400);
+        assertThat(roundTripTime.sampleCount()).isEqualTo(3);
+    }
+
+    @Test
+    public void shouldIgnoreNegativeSamples() {
+        RoundTripTime roundTripTime = new RoundTripTime();
+        roundTripTime.record(-5);
+        assertThat(roundTripTime.hasSamples()).isFalse();
+    }
+}
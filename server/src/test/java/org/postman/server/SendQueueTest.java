@@ -0,0 +1,538 @@
+package org.postman.server;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.postman.server.nio.Test.Ping;
+import org.postman.server.nio.Test.Pong;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class SendQueueTest {
+
+    private SendQueue sendQueue;
+    private int highWatermarks;
+    private int lowWatermarks;
+
+    @Before
+    public void setup() {
+        sendQueue = new SendQueue();
+        highWatermarks = 0;
+        lowWatermarks = 0;
+    }
+
+    @Test
+    public void shouldQueueWithoutLimitByDefault() {
+        for (int i = 0; i < 1000; i++) {
+            assertThat(sendQueue.offer(ping())).isEqualTo(SendQueue.Result.QUEUED);
+        }
+
+        assertThat(sendQueue.size()).isEqualTo(1000);
+        assertThat(sendQueue.isSlowConsumer()).isFalse();
+    }
+
+    @Test
+    public void shouldRejectNewestOnceHighWatermarkReached() {
+        limit(3, 1, SlowConsumerPolicy.DROP_NEWEST);
+        PostmanMessage first = ping();
+        sendQueue.offer(first);
+        sendQueue.offer(ping());
+        sendQueue.offer(ping());
+
+        assertThat(sendQueue.offer(ping())).isEqualTo(SendQueue.Result.REJECTED);
+        assertThat(sendQueue.size()).isEqualTo(3);
+        assertThat(sendQueue.poll()).isSameAs(first);
+        assertThat(sendQueue.droppedMessages()).isEqualTo(1);
+    }
+
+    @Test
+    public void shouldDropOldestOnceHighWatermarkReached() {
+        limit(2, 0, SlowConsumerPolicy.DROP_OLDEST);
+        sendQueue.offer(ping());
+        PostmanMessage second = ping();
+        sendQueue.offer(second);
+
+        assertThat(sendQueue.offer(ping())).isEqualTo(SendQueue.Result.DROPPED_OLDEST);
+        assertThat(sendQueue.size()).isEqualTo(2);
+        assertThat(sendQueue.poll()).isSameAs(second);
+    }
+
+    @Test
+    public void shouldReplaceQueuedMessageOfSameTypeAndTopicWhenConflating() {
+        limit(3, 0, SlowConsumerPolicy.CONFLATE);
+        PostmanMessage price = new PostmanMessage(Pong.newBuilder().setMsg("1").build(), "price/a");
+        PostmanMessage otherTopic = new PostmanMessage(Pong.newBuilder().setMsg("1").build(), "price/b");
+        PostmanMessage otherType = new PostmanMessage(Ping.getDefaultInstance(), "price/a");
+        sendQueue.offer(price);
+        sendQueue.offer(otherTopic);
+        sendQueue.offer(otherType);
+
+        PostmanMessage newPrice = new PostmanMessage(Pong.newBuilder().setMsg("2").build(), "price/a");
+        assertThat(sendQueue.offer(newPrice)).isEqualTo(SendQueue.Result.CONFLATED);
+
+        assertThat(sendQueue.poll()).isSameAs(otherTopic);
+        assertThat(sendQueue.poll()).isSameAs(otherType);
+        assertThat(sendQueue.poll()).isSameAs(newPrice);
+    }
+
+    @Test
+    public void shouldDropOldestWhenNothingToConflate() {
+        limit(2, 0, SlowConsumerPolicy.CONFLATE);
+        sendQueue.offer(new PostmanMessage(Ping.getDefaultInstance(), "a"));
+        sendQueue.offer(new PostmanMessage(Ping.getDefaultInstance(), "b"));
+
+        assertThat(sendQueue.offer(new PostmanMessage(Ping.getDefaultInstance(), "c")))
+                .isEqualTo(SendQueue.Result.DROPPED_OLDEST);
+        assertThat(sendQueue.size()).isEqualTo(2);
+    }
+
+    @Test
+    public void shouldSendLatestMessageForConflationKeyInPlaceOfTheFirst() {
+        PostmanMessage first = gauge("cpu", "1");
+        PostmanMessage other = ping();
+        PostmanMessage latest = gauge("cpu", "2");
+        sendQueue.offer(first);
+        sendQueue.offer(other);
+
+        assertThat(sendQueue.offer(latest)).isEqualTo(SendQueue.Result.CONFLATED);
+
+        assertThat(sendQueue.size()).isEqualTo(2);
+        assertThat(sendQueue.poll()).isSameAs(latest);
+        assertThat(sendQueue.poll()).isSameAs(other);
+        assertThat(sendQueue.poll()).isNull();
+    }
+
+    @Test
+    public void shouldNotConflateMessagesWithDifferentKeys() {
+        sendQueue.offer(gauge("cpu", "1"));
+
+        assertThat(sendQueue.offer(gauge("memory", "1"))).isEqualTo(SendQueue.Result.QUEUED);
+        assertThat(sendQueue.size()).isEqualTo(2);
+    }
+
+    @Test
+    public void shouldQueueConflatedMessageAgainOnceSent() {
+        sendQueue.offer(gauge("cpu", "1"));
+        sendQueue.poll();
+        PostmanMessage next = gauge("cpu", "2");
+
+        assertThat(sendQueue.offer(next)).isEqualTo(SendQueue.Result.QUEUED);
+        assertThat(sendQueue.poll()).isSameAs(next);
+    }
+
+    @Test
+    public void shouldConflateByKeyWhenQueueIsFull() {
+        limit(1, 0, SlowConsumerPolicy.DROP_NEWEST);
+        sendQueue.offer(gauge("cpu", "1"));
+        PostmanMessage latest = gauge("cpu", "2");
+
+        assertThat(sendQueue.offer(latest)).isEqualTo(SendQueue.Result.CONFLATED);
+        assertThat(sendQueue.poll()).isSameAs(latest);
+    }
+
+    @Test
+    public void shouldForgetConflationKeyOfDroppedMessage() {
+        limit(1, 0, SlowConsumerPolicy.DROP_OLDEST);
+        sendQueue.offer(gauge("cpu", "1"));
+        sendQueue.offer(ping());
+        PostmanMessage latest = gauge("cpu", "2");
+
+        assertThat(sendQueue.offer(latest)).isEqualTo(SendQueue.Result.DROPPED_OLDEST);
+        assertThat(sendQueue.poll()).isSameAs(latest);
+    }
+
+    @Test
+    public void shouldTakeFromStreamsInTurn() {
+        PostmanMessage first = ping().setStreamId(1);
+        PostmanMessage second = ping().setStreamId(1);
+        PostmanMessage other = ping();
+        sendQueue.offer(first);
+        sendQueue.offer(second);
+        sendQueue.offer(other);
+
+        assertThat(sendQueue.poll()).isSameAs(first);
+        assertThat(sendQueue.poll()).isSameAs(other);
+        assertThat(sendQueue.poll()).isSameAs(second);
+    }
+
+    @Test
+    public void shouldSkipStreamsNotAcceptedByFilter() {
+        PostmanMessage busy = ping().setStreamId(1);
+        PostmanMessage idle = ping();
+        sendQueue.offer(busy);
+        sendQueue.offer(idle);
+
+        assertThat(sendQueue.poll(streamId -> streamId != 1)).isSameAs(idle);
+        assertThat(sendQueue.poll(streamId -> streamId != 1)).isNull();
+        assertThat(sendQueue.size()).isEqualTo(1);
+    }
+
+    @Test
+    public void shouldDropOldestOfTheSameStream() {
+        limit(2, 0, SlowConsumerPolicy.DROP_OLDEST);
+        PostmanMessage other = ping();
+        sendQueue.offer(other);
+        sendQueue.offer(ping().setStreamId(1));
+        PostmanMessage newest = ping().setStreamId(1);
+
+        sendQueue.offer(newest);
+
+        assertThat(sendQueue.poll()).isSameAs(other);
+        assertThat(sendQueue.poll()).isSameAs(newest);
+    }
+
+    @Test
+    public void shouldDrainLanesByWeightedRoundRobin() {
+        for (int i = 0; i < 10; i++) {
+            sendQueue.offer(ping().setPriority(MessagePriority.LOW));
+            sendQueue.offer(ping().setPriority(MessagePriority.NORMAL));
+            sendQueue.offer(ping().setPriority(MessagePriority.HIGH));
+        }
+
+        for (int round = 0; round < 2; round++) {
+            assertThat(pollPriorities(7)).containsExactly(MessagePriority.HIGH, MessagePriority.HIGH,
+                    MessagePriority.HIGH, MessagePriority.HIGH, MessagePriority.NORMAL, MessagePriority.NORMAL,
+                    MessagePriority.LOW);
+        }
+    }
+
+    @Test
+    public void shouldTakeControlMessageAheadOfQueuedBulkData() {
+        for (int i = 0; i < 100; i++) {
+            sendQueue.offer(ping().setPriority(MessagePriority.LOW));
+        }
+        sendQueue.poll();
+        PostmanMessage heartbeat = PostmanMessage.control(Ping.getDefaultInstance());
+
+        sendQueue.offer(heartbeat);
+
+        assertThat(sendQueue.poll()).isSameAs(heartbeat);
+    }
+
+    @Test
+    public void shouldNeverDropControlMessageForOldest() {
+        limit(2, 0, SlowConsumerPolicy.DROP_OLDEST);
+        PostmanMessage windowUpdate = PostmanMessage.control(Ping.getDefaultInstance());
+        sendQueue.offer(windowUpdate);
+        sendQueue.offer(ping().setPriority(MessagePriority.HIGH));
+        PostmanMessage other = ping().setStreamId(3);
+
+        assertThat(sendQueue.offer(other)).isEqualTo(SendQueue.Result.DROPPED_OLDEST);
+
+        assertThat(sendQueue.poll()).isSameAs(windowUpdate);
+        assertThat(sendQueue.poll()).isSameAs(other);
+        assertThat(sendQueue.poll()).isNull();
+    }
+
+    @Test
+    public void shouldDropOldestOfLeastImportantLane() {
+        limit(2, 0, SlowConsumerPolicy.DROP_OLDEST);
+        PostmanMessage high = ping().setPriority(MessagePriority.HIGH);
+        sendQueue.offer(high);
+        sendQueue.offer(ping().setPriority(MessagePriority.LOW));
+        PostmanMessage normal = ping().setPriority(MessagePriority.NORMAL);
+
+        sendQueue.offer(normal);
+
+        assertThat(sendQueue.poll()).isSameAs(high);
+        assertThat(sendQueue.poll()).isSameAs(normal);
+        assertThat(sendQueue.poll()).isNull();
+    }
+
+    @Test
+    public void shouldSkipAndCountExpiredMessages() throws InterruptedException {
+        sendQueue.offer(ping().setTimeToLive(1, TimeUnit.MILLISECONDS));
+        PostmanMessage fresh = ping().setTimeToLive(1, TimeUnit.MINUTES);
+        sendQueue.offer(fresh);
+        PostmanMessage forever = ping();
+        sendQueue.offer(forever);
+
+        Thread.sleep(5);
+
+        assertThat(sendQueue.poll()).isSameAs(fresh);
+        assertThat(sendQueue.poll()).isSameAs(forever);
+        assertThat(sendQueue.expiredMessages()).isEqualTo(1);
+        assertThat(sendQueue.isEmpty()).isTrue();
+    }
+
+    @Test
+    public void shouldCheckExpiryOfLatestConflatedMessage() throws InterruptedException {
+        sendQueue.offer(gauge("cpu", "1"));
+        sendQueue.offer(gauge("cpu", "2").setTimeToLive(1, TimeUnit.MILLISECONDS));
+
+        Thread.sleep(5);
+
+        assertThat(sendQueue.poll()).isNull();
+        assertThat(sendQueue.expiredMessages()).isEqualTo(1);
+    }
+
+    @Test
+    public void shouldReportWatermarksOncePerCrossing() {
+        limit(3, 1, SlowConsumerPolicy.DISCONNECT);
+
+        for (int i = 0; i < 5; i++) {
+            sendQueue.offer(ping());
+        }
+        assertThat(highWatermarks).isEqualTo(1);
+        assertThat(sendQueue.isSlowConsumer()).isTrue();
+
+        sendQueue.poll();
+        assertThat(lowWatermarks).isZero();
+        sendQueue.poll();
+        assertThat(lowWatermarks).isEqualTo(1);
+        assertThat(sendQueue.isSlowConsumer()).isFalse();
+
+        sendQueue.offer(ping());
+        sendQueue.offer(ping());
+        assertThat(highWatermarks).isEqualTo(2);
+    }
+
+    @Test
+    public void shouldChangePolicyForFurtherMessages() {
+        limit(1, 0, SlowConsumerPolicy.DISCONNECT);
+        sendQueue.offer(ping());
+        assertThat(sendQueue.offer(ping())).isEqualTo(SendQueue.Result.REJECTED);
+
+        sendQueue.policy(SlowConsumerPolicy.DROP_OLDEST);
+
+        assertThat(sendQueue.offer(ping())).isEqualTo(SendQueue.Result.DROPPED_OLDEST);
+    }
+
+    @Test
+    public void shouldBlockUntilWriterDrainsToLowWatermark() throws InterruptedException {
+        limit(2, 0, SlowConsumerPolicy.BLOCK);
+        sendQueue.offer(ping());
+        sendQueue.offer(ping());
+        AtomicReference<SendQueue.Result> result = new AtomicReference<>();
+        CountDownLatch offered = new CountDownLatch(1);
+
+        Thread producer = new Thread(() -> {
+            result.set(sendQueue.offer(ping()));
+            offered.countDown();
+        });
+        producer.start();
+
+        assertThat(offered.await(100, TimeUnit.MILLISECONDS)).isFalse();
+        sendQueue.poll();
+        assertThat(offered.await(100, TimeUnit.MILLISECONDS)).isFalse();
+        sendQueue.poll();
+
+        assertThat(offered.await(1, TimeUnit.SECONDS)).isTrue();
+        assertThat(result.get()).isEqualTo(SendQueue.Result.QUEUED);
+        assertThat(sendQueue.size()).isEqualTo(1);
+    }
+
+    @Test
+    public void shouldRejectInsteadOfBlockingTheWritingThread() {
+        limit(1, 0, SlowConsumerPolicy.BLOCK);
+        sendQueue.poll();
+        sendQueue.offer(ping());
+
+        assertThat(sendQueue.offer(ping())).isEqualTo(SendQueue.Result.REJECTED);
+    }
+
+    @Test
+    public void shouldRejectInsteadOfBlockingTheWritingThreadBeforeItFirstTakes() {
+        limit(1, 0, SlowConsumerPolicy.BLOCK);
+        sendQueue.writtenBy(Thread.currentThread());
+        sendQueue.offer(ping());
+
+        assertThat(sendQueue.offer(ping())).isEqualTo(SendQueue.Result.REJECTED);
+    }
+
+    @Test
+    public void shouldRejectInsteadOfBlockingAnyEventLoop() throws InterruptedException {
+        limit(1, 0, SlowConsumerPolicy.BLOCK);
+        sendQueue.offer(ping());
+        AtomicReference<SendQueue.Result> result = new AtomicReference<>();
+
+        Thread otherLoop = new Thread(() -> {
+            SendQueue.eventLoopThread(true);
+            result.set(sendQueue.offer(ping()));
+            SendQueue.eventLoopThread(false);
+        });
+        otherLoop.start();
+        otherLoop.join(1000);
+
+        assertThat(result.get()).isEqualTo(SendQueue.Result.REJECTED);
+    }
+
+    @Test
+    public void shouldReleaseBlockedProducerWhenCleared() throws InterruptedException {
+        limit(1, 0, SlowConsumerPolicy.BLOCK);
+        sendQueue.offer(ping());
+        AtomicReference<SendQueue.Result> result = new AtomicReference<>();
+        Thread producer = new Thread(() -> result.set(sendQueue.offer(ping())));
+        producer.start();
+
+        sendQueue.clear();
+        producer.join(1000);
+
+        assertThat(result.get()).isEqualTo(SendQueue.Result.CLOSED);
+    }
+
+    @Test
+    public void shouldApplyPolicyToPostedMessagesOnceInboxIsDrained() {
+        limit(2, 0, SlowConsumerPolicy.DROP_NEWEST);
+
+        for (int i = 0; i < 3; i++) {
+            assertThat(sendQueue.post(ping())).isEqualTo(SendQueue.Result.QUEUED);
+        }
+        assertThat(sendQueue.size()).isZero();
+        assertThat(sendQueue.isEmpty()).isFalse();
+
+        sendQueue.drainInbox();
+
+        assertThat(sendQueue.size()).isEqualTo(2);
+        assertThat(sendQueue.droppedMessages()).isEqualTo(1);
+        assertThat(highWatermarks).isEqualTo(1);
+    }
+
+    @Test
+    public void shouldBlockPostingProducerWhileSlowConsumer() throws InterruptedException {
+        limit(1, 0, SlowConsumerPolicy.BLOCK);
+        sendQueue.post(ping());
+        sendQueue.drainInbox();
+        AtomicReference<SendQueue.Result> result = new AtomicReference<>();
+        CountDownLatch posted = new CountDownLatch(1);
+
+        Thread producer = new Thread(() -> {
+            result.set(sendQueue.post(ping()));
+            posted.countDown();
+        });
+        producer.start();
+
+        assertThat(posted.await(100, TimeUnit.MILLISECONDS)).isFalse();
+        sendQueue.poll();
+
+        assertThat(posted.await(1, TimeUnit.SECONDS)).isTrue();
+        assertThat(result.get()).isEqualTo(SendQueue.Result.QUEUED);
+        assertThat(sendQueue.poll()).isNotNull();
+    }
+
+    @Test
+    public void shouldApplyPolicyWhenPostingWhileSlowConsumer() {
+        limit(2, 0, SlowConsumerPolicy.DROP_NEWEST);
+        sendQueue.post(ping());
+        sendQueue.post(ping());
+        sendQueue.drainInbox();
+
+        assertThat(sendQueue.post(ping())).isEqualTo(SendQueue.Result.REJECTED);
+        assertThat(sendQueue.droppedMessages()).isEqualTo(1);
+        assertThat(sendQueue.size()).isEqualTo(2);
+    }
+
+    @Test
+    public void shouldRejectEventLoopPostsWhileSlowConsumer() {
+        limit(1, 0, SlowConsumerPolicy.BLOCK);
+        sendQueue.post(ping());
+        sendQueue.drainInbox();
+
+        SendQueue.eventLoopThread(true);
+        try {
+            assertThat(sendQueue.post(ping())).isEqualTo(SendQueue.Result.REJECTED);
+        } finally {
+            SendQueue.eventLoopThread(false);
+        }
+        sendQueue.drainInbox();
+
+        assertThat(sendQueue.size()).isEqualTo(1);
+    }
+
+    @Test
+    public void shouldOfferAfterMessagesStillInInbox() {
+        PostmanMessage first = ping();
+        PostmanMessage second = ping();
+        PostmanMessage third = ping();
+
+        sendQueue.offer(first);
+        sendQueue.post(second);
+        sendQueue.offer(third);
+
+        assertThat(sendQueue.poll()).isSameAs(first);
+        assertThat(sendQueue.poll()).isSameAs(second);
+        assertThat(sendQueue.poll()).isSameAs(third);
+    }
+
+    @Test
+    public void shouldTakeBatchUntilConsumerIsFull() {
+        PostmanMessage first = ping();
+        PostmanMessage second = ping();
+        PostmanMessage third = ping();
+        sendQueue.post(first);
+        sendQueue.post(second);
+        sendQueue.post(third);
+        List<PostmanMessage> batch = new ArrayList<>();
+
+        int taken = sendQueue.drain(streamId -> true, msg -> batch.add(msg) && batch.size() < 2);
+
+        assertThat(taken).isEqualTo(2);
+        assertThat(batch).containsExactly(first, second);
+        assertThat(sendQueue.poll()).isSameAs(third);
+    }
+
+    @Test
+    public void shouldNotPostToClosedQueue() {
+        sendQueue.close();
+
+        assertThat(sendQueue.post(ping())).isEqualTo(SendQueue.Result.CLOSED);
+    }
+
+    @Test
+    public void shouldTakeQueuedMessagesAfterCloseThenNull() throws InterruptedException {
+        PostmanMessage msg = ping();
+        sendQueue.offer(msg);
+        sendQueue.close();
+
+        assertThat(sendQueue.offer(ping())).isEqualTo(SendQueue.Result.CLOSED);
+        assertThat(sendQueue.take()).isSameAs(msg);
+        assertThat(sendQueue.take()).isNull();
+    }
+
+    @Test
+    public void shouldDropQueuedMessagesWhenCleared() throws InterruptedException {
+        sendQueue.offer(ping());
+        sendQueue.clear();
+
+        assertThat(sendQueue.isEmpty()).isTrue();
+        assertThat(sendQueue.take()).isNull();
+    }
+
+    private void limit(int high, int low, SlowConsumerPolicy policy) {
+        sendQueue.limit(PostmanConfig.builder()
+                .sendQueueWatermarks(high, low)
+                .slowConsumerPolicy(policy)
+                .build(), new SendQueue.Listener() {
+            @Override
+            public void onHighWatermark(SendQueue queue) {
+                highWatermarks++;
+            }
+
+            @Override
+            public void onLowWatermark(SendQueue queue) {
+                lowWatermarks++;
+            }
+        });
+    }
+
+    private List<MessagePriority> pollPriorities(int count) {
+        List<MessagePriority> priorities = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            priorities.add(sendQueue.poll().getPriority());
+        }
+        return priorities;
+    }
+
+    private static PostmanMessage gauge(String key, String value) {
+        return PostmanMessage.conflated(Pong.newBuilder().setMsg(value).build(), null, key);
+    }
+
+    private static PostmanMessage ping() {
+        return new PostmanMessage(Ping.getDefaultInstance());
+    }
+}
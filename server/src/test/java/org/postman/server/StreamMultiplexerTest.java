@@ -0,0 +1,141 @@
+package org.postman.server;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.postman.server.nio.Test.Ping;
+import org.postman.server.nio.Test.Pong;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class StreamMultiplexerTest {
+    private static final int MAX_FRAME_SIZE = 64;
+
+    private SendQueue sendQueue;
+    private StreamMultiplexer multiplexer;
+    private StreamDemultiplexer demultiplexer;
+    private List<PostmanMessage> received;
+
+    @Before
+    public void setup() {
+        sendQueue = new SendQueue();
+        multiplexer = new StreamMultiplexer(sendQueue, new FlowControl(), MAX_FRAME_SIZE);
+        demultiplexer = new StreamDemultiplexer(PostmanMessage::new);
+        received = new ArrayList<>();
+    }
+
+    @Test
+    public void shouldSplitLargeMessageIntoBoundedFrames() {
+        PostmanMessage bulk = bulk(1000);
+        sendQueue.offer(bulk);
+        int frames = 0;
+        int payloadBytes = 0;
+
+        ByteBuffer[] frame;
+        while ((frame = multiplexer.nextFrame()) != null) {
+            assertThat(frame[0].getInt(0)).isEqualTo(1);
+            assertThat(frame[0].getInt(Integer.BYTES)).isEqualTo(frame[1].remaining()).isLessThanOrEqualTo(MAX_FRAME_SIZE);
+            payloadBytes += frame[1].remaining();
+            frames++;
+        }
+
+        assertThat(payloadBytes).isEqualTo(bulk.getFrame().remaining());
+        assertThat(frames).isGreaterThan(1);
+        assertThat(multiplexer.isSending()).isFalse();
+    }
+
+    @Test
+    public void shouldNotHoldUpOtherStreamsBehindLargeMessage() throws Exception {
+        sendQueue.offer(bulk(1000));
+        sendQueue.offer(bulk(1000));
+        sendQueue.offer(new PostmanMessage(Ping.getDefaultInstance()));
+
+        demultiplex(writeAll());
+
+        assertThat(received).hasSize(3);
+        assertThat(received.get(0).isOfType(Ping.class)).isTrue();
+        assertThat(received.get(0).getStreamId()).isEqualTo(PostmanMessage.DEFAULT_STREAM);
+        assertThat(received.get(1).getStreamId()).isEqualTo(1);
+        assertThat(received.get(2).getStreamId()).isEqualTo(1);
+    }
+
+    @Test
+    public void shouldKeepMessagesOfAStreamInOrder() throws Exception {
+        for (int i = 0; i < 5; i++) {
+            sendQueue.offer(new PostmanMessage(Pong.newBuilder().setMsg(i + new String(new char[100])).build()).setStreamId(2));
+        }
+
+        demultiplex(writeAll());
+
+        assertThat(received).hasSize(5);
+        for (int i = 0; i < 5; i++) {
+            assertThat(received.get(i).<Pong>getProtoObj().getMsg()).startsWith(String.valueOf(i));
+        }
+    }
+
+    @Test
+    public void shouldReadFramesSplitAcrossReads() throws Exception {
+        sendQueue.offer(bulk(300));
+        sendQueue.offer(new PostmanMessage(Ping.getDefaultInstance()));
+        byte[] bytes = writeAll();
+
+        for (byte b : bytes) {
+            demultiplexer.read(ByteBuffer.wrap(new byte[]{b}), received::add);
+        }
+
+        assertThat(received).hasSize(2);
+        assertThat(received.get(1).<Pong>getProtoObj().getMsg()).hasSize(300);
+    }
+
+    @Test
+    public void shouldCutFramesToCreditAndPauseStreamsWithout() throws Exception {
+        FlowControl flowControl = new FlowControl();
+        flowControl.limit(PostmanConfig.builder().maxFrameSize(MAX_FRAME_SIZE).flowControlWindows(0, 100).build());
+        multiplexer = new StreamMultiplexer(sendQueue, flowControl, MAX_FRAME_SIZE);
+        sendQueue.offer(bulk(1000));
+        sendQueue.offer(PostmanMessage.control(Ping.getDefaultInstance()));
+
+        assertThat(multiplexer.hasFrameToSend()).isTrue();
+        demultiplex(writeAll());
+
+        assertThat(received).hasSize(1);
+        assertThat(received.get(0).getStreamId()).isEqualTo(PostmanMessage.CONTROL_STREAM);
+        assertThat(flowControl.canSend(1)).isFalse();
+        assertThat(multiplexer.isSending()).isTrue();
+        assertThat(multiplexer.hasFrameToSend()).isFalse();
+    }
+
+    @Test(expected = PostmanMessage.InvalidPostmanMessageException.class)
+    public void shouldRejectFrameWithoutPayload() throws Exception {
+        ByteBuffer header = ByteBuffer.allocate(StreamMultiplexer.FRAME_HEADER_LENGTH);
+        header.putInt(1).putInt(0).flip();
+
+        demultiplexer.read(header, received::add);
+    }
+
+    private byte[] writeAll() {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ByteBuffer[] frame;
+        while ((frame = multiplexer.nextFrame()) != null) {
+            for (ByteBuffer part : frame) {
+                byte[] bytes = new byte[part.remaining()];
+                part.get(bytes);
+                out.write(bytes, 0, bytes.length);
+            }
+        }
+        return out.toByteArray();
+    }
+
+    private void demultiplex(byte[] bytes) throws IOException {
+        demultiplexer.read(ByteBuffer.wrap(bytes), received::add);
+    }
+
+    private static PostmanMessage bulk(int length) {
+        return new PostmanMessage(Pong.newBuilder().setMsg(new String(new char[length])).build()).setStreamId(1);
+    }
+}
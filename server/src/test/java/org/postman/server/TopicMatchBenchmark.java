@@ -0,0 +1,94 @@
+package org.postman.server;
+
+import java.util.UUID;
+
+/**
+ * Rough benchmark of finding the subscribers of a topic in {@link TopicSubscriptions} with many subscriptions,
+ * both for a topic whose subscribers are cached and for topics that are each only published to once.
+ *
+ * Not a unit test, numbers from a single JVM run should be taken as indicative only.
+ */
+public class TopicMatchBenchmark {
+    private static final int SITES = 500;
+    private static final int SENSORS = 100;
+    private static final int ITERATIONS = 2_000_000;
+
+    private static volatile Object sink;
+
+    public static void main(String[] args) {
+        TopicSubscriptions topicSubscriptions = new TopicSubscriptions();
+        int subscriptions = 0;
+        for (int site = 0; site < SITES; site++) {
+            for (int sensor = 0; sensor < SENSORS; sensor++) {
+                topicSubscriptions.subscribe(new FakeConnection(), "site/" + site + "/sensor/" + sensor + "/temp");
+                subscriptions++;
+            }
+            topicSubscriptions.subscribe(new FakeConnection(), "site/" + site + "/sensor/+/temp");
+            topicSubscriptions.subscribe(new FakeConnection(), "site/" + site + "/#");
+            subscriptions += 2;
+        }
+
+        String[] topics = new String[SITES * SENSORS];
+        for (int i = 0; i < topics.length; i++) {
+            topics[i] = "site/" + (i % SITES) + "/sensor/" + (i / SITES) + "/temp";
+        }
+
+        run(topicSubscriptions, topics, ITERATIONS);
+        long hot = run(topicSubscriptions, new String[]{"site/42/sensor/7/temp"}, ITERATIONS);
+        long cold = run(topicSubscriptions, topics, ITERATIONS);
+
+        System.out.println(String.format("%d subscriptions: %d ns per publish to a hot topic, %d ns per publish across %d topics",
+                subscriptions, hot / ITERATIONS, cold / ITERATIONS, topics.length));
+    }
+
+    private static long run(TopicSubscriptions topicSubscriptions, String[] topics, int iterations) {
+        long start = System.nanoTime();
+        for (int i = 0; i < iterations; i++) {
+            sink = topicSubscriptions.subscribers(topics[i % topics.length]);
+        }
+        return System.nanoTime() - start;
+    }
+
+    private static class FakeConnection implements Connection {
+        private final UUID connectionId = ConnectionIds.next();
+        private final RoundTripTime roundTripTime = new RoundTripTime();
+
+        @Override
+        public UUID getConnectionId() {
+            return connectionId;
+        }
+
+        @Override
+        public void disconnect() {
+        }
+
+        @Override
+        public boolean isConnected() {
+            return true;
+        }
+
+        @Override
+        public SendQueue.Result queueMessageToSend(PostmanMessage msg) {
+            return SendQueue.Result.QUEUED;
+        }
+
+        @Override
+        public void slowConsumerPolicy(SlowConsumerPolicy policy) {
+        }
+
+        @Override
+        public long expiredMessages() {
+            return 0;
+        }
+
+        @Override
+        public long droppedMessages() {
+            return 0;
+        }
+
+        @Override
+        public RoundTripTime roundTripTime() {
+            return roundTripTime;
+        }
+    }
+}
@@ -0,0 +1,180 @@
+package org.postman.server;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.runners.MockitoJUnitRunner;
+import org.postman.server.MessageOuterClass.Subscribe;
+import org.postman.server.MessageOuterClass.Unsubscribe;
+import org.postman.server.nio.Test.Ping;
+
+import java.util.Collection;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+@RunWith(MockitoJUnitRunner.class)
+public class TopicSubscriptionsTest {
+    @Mock
+    private Connection first;
+    @Mock
+    private Connection second;
+    private TopicSubscriptions topicSubscriptions;
+
+    @Before
+    public void setup() {
+        topicSubscriptions = new TopicSubscriptions();
+    }
+
+    @Test
+    public void shouldOnlyReturnSubscribersOfTopic() {
+        topicSubscriptions.subscribe(first, "a");
+        topicSubscriptions.subscribe(second, "b");
+
+        assertThat(topicSubscriptions.subscribers("a")).containsExactly(first);
+        assertThat(topicSubscriptions.subscribers("b")).containsExactly(second);
+        assertThat(topicSubscriptions.subscribers("c")).isEmpty();
+    }
+
+    @Test
+    public void shouldRemoveUnsubscribedConnection() {
+        topicSubscriptions.subscribe(first, "a");
+        topicSubscriptions.subscribe(second, "a");
+
+        topicSubscriptions.unsubscribe(first, "a");
+
+        assertThat(topicSubscriptions.subscribers("a")).containsExactly(second);
+    }
+
+    @Test
+    public void shouldRemoveEverySubscriptionOfConnection() {
+        topicSubscriptions.subscribe(first, "a");
+        topicSubscriptions.subscribe(first, "b");
+        topicSubscriptions.subscribe(second, "b");
+
+        topicSubscriptions.unsubscribeAll(first);
+
+        assertThat(topicSubscriptions.subscribers("a")).isEmpty();
+        assertThat(topicSubscriptions.subscribers("b")).containsExactly(second);
+    }
+
+    @Test
+    public void shouldHandleSubscriptionControlMessages() {
+        assertThat(topicSubscriptions.handleMessage(first,
+                new PostmanMessage(Subscribe.newBuilder().setTopic("a").build()))).isTrue();
+        assertThat(topicSubscriptions.subscribers("a")).containsExactly(first);
+
+        assertThat(topicSubscriptions.handleMessage(first,
+                new PostmanMessage(Unsubscribe.newBuilder().setTopic("a").build()))).isTrue();
+        assertThat(topicSubscriptions.subscribers("a")).isEmpty();
+    }
+
+    @Test
+    public void shouldNotHandleOtherMessages() {
+        assertThat(topicSubscriptions.handleMessage(first, new PostmanMessage(Ping.getDefaultInstance()))).isFalse();
+    }
+
+    @Test
+    public void singleLevelWildcardShouldMatchExactlyOneLevel() {
+        topicSubscriptions.subscribe(first, "site/42/sensor/+/temp");
+
+        assertThat(topicSubscriptions.subscribers("site/42/sensor/7/temp")).containsExactly(first);
+        assertThat(topicSubscriptions.subscribers("site/42/sensor/temp")).isEmpty();
+        assertThat(topicSubscriptions.subscribers("site/42/sensor/7/8/temp")).isEmpty();
+    }
+
+    @Test
+    public void multiLevelWildcardShouldMatchAnyNumberOfLevels() {
+        topicSubscriptions.subscribe(first, "site/#");
+
+        assertThat(topicSubscriptions.subscribers("site")).containsExactly(first);
+        assertThat(topicSubscriptions.subscribers("site/42")).containsExactly(first);
+        assertThat(topicSubscriptions.subscribers("site/42/sensor/7/temp")).containsExactly(first);
+        assertThat(topicSubscriptions.subscribers("other/42")).isEmpty();
+    }
+
+    @Test
+    public void wildcardsShouldNotMatchSystemTopics() {
+        topicSubscriptions.subscribe(first, "#");
+        topicSubscriptions.subscribe(second, "$SYS/#");
+
+        assertThat(topicSubscriptions.subscribers("$SYS/clients")).containsExactly(second);
+        assertThat(topicSubscriptions.subscribers("site/42")).containsExactly(first);
+    }
+
+    @Test
+    public void shouldReturnConnectionOnceWhenSeveralSubscriptionsMatch() {
+        topicSubscriptions.subscribe(first, "site/42");
+        topicSubscriptions.subscribe(first, "site/+");
+        topicSubscriptions.subscribe(first, "site/#");
+
+        assertThat(topicSubscriptions.subscribers("site/42")).containsExactly(first);
+    }
+
+    @Test
+    public void shouldNotReturnCachedSubscribersOnceSubscriptionsChange() {
+        topicSubscriptions.subscribe(first, "site/+");
+        assertThat(topicSubscriptions.subscribers("site/42")).containsExactly(first);
+
+        topicSubscriptions.subscribe(second, "site/#");
+        assertThat(topicSubscriptions.subscribers("site/42")).containsOnly(first, second);
+
+        topicSubscriptions.unsubscribe(first, "site/+");
+        assertThat(topicSubscriptions.subscribers("site/42")).containsExactly(second);
+
+        topicSubscriptions.unsubscribeAll(second);
+        assertThat(topicSubscriptions.subscribers("site/42")).isEmpty();
+    }
+
+    @Test
+    public void shouldKeepCachedSubscribersWhenUnrelatedSubscriptionsChange() {
+        topicSubscriptions.subscribe(first, "site/42/#");
+        Collection<Connection> subscribers = topicSubscriptions.subscribers("site/42/temp");
+
+        topicSubscriptions.subscribe(second, "site/7/+");
+        topicSubscriptions.subscribe(second, "other/#");
+        topicSubscriptions.unsubscribe(second, "other/#");
+
+        assertThat(topicSubscriptions.subscribers("site/42/temp")).isSameAs(subscribers);
+    }
+
+    @Test
+    public void shouldNotReturnCachedSubscribersOnceRemovedLevelIsAddedBack() {
+        topicSubscriptions.subscribe(first, "site/7/temp");
+        assertThat(topicSubscriptions.subscribers("site/42")).isEmpty();
+
+        topicSubscriptions.unsubscribe(first, "site/7/temp");
+        topicSubscriptions.subscribe(second, "site/42");
+
+        assertThat(topicSubscriptions.subscribers("site/42")).containsExactly(second);
+    }
+
+    @Test
+    public void shouldEvictLeastRecentlyUsedTopicsOnceCacheIsFull() {
+        topicSubscriptions.subscribe(first, "#");
+        Collection<Connection> used = topicSubscriptions.subscribers("used");
+        Collection<Connection> unused = topicSubscriptions.subscribers("unused");
+
+        for (int i = 0; i < TopicSubscriptions.MAX_CACHED_TOPICS * 2; i++) {
+            topicSubscriptions.subscribers("topic/" + i);
+            assertThat(topicSubscriptions.subscribers("used")).isSameAs(used);
+        }
+
+        assertThat(topicSubscriptions.subscribers("unused")).isNotSameAs(unused).containsExactly(first);
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void shouldRejectMultiLevelWildcardBeforeLastLevel() {
+        topicSubscriptions.subscribe(first, "site/#/temp");
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void shouldRejectWildcardWithinLevel() {
+        topicSubscriptions.subscribe(first, "site/sensor+/temp");
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void shouldRejectPublishingToWildcardTopic() {
+        topicSubscriptions.subscribers("site/+");
+    }
+}
@@ -0,0 +1,120 @@
+package org.postman.server;
+
+import org.postman.server.nio.Test.Ping;
+import org.postman.server.nio.Test.Pong;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.channels.spi.SelectorProvider;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+import io.reactivex.functions.Consumer;
+
+/**
+ * Rough request/response benchmark for a {@link PostmanServer} and {@link PostmanClient} pair, run from
+ * the main method of a transport specific benchmark. Each client sends a ping and waits for the pong before
+ * sending the next, reporting how long connecting took, overall throughput and the latency percentiles.
+ *
+ * Not a unit test, numbers from a single JVM run on a busy machine should be taken as indicative only.
+ */
+public class TransportBenchmark {
+    private static final String HOST = "127.0.0.1";
+    private static final int PORT = 12400;
+    private static final long TIMEOUT_SECONDS = 120;
+
+    private final String name;
+    private final int clients;
+    private final int requestsPerClient;
+
+    public TransportBenchmark(String name, int clients, int requestsPerClient) {
+        this.name = name;
+        this.clients = clients;
+        this.requestsPerClient = requestsPerClient;
+    }
+
+    public void run(PostmanServer server, Supplier<PostmanClient> clientSupplier) throws IOException, InterruptedException {
+        Pong pong = Pong.newBuilder().setMsg(name).build();
+        CountDownLatch listening = new CountDownLatch(1);
+        CountDownLatch joined = new CountDownLatch(clients);
+        server.serverStart(new InetSocketAddress(HOST, PORT)).subscribe(event -> {
+            switch (event.type()) {
+                case SERVER_LISTENING:
+                    listening.countDown();
+                    break;
+                case CLIENT_JOIN:
+                    joined.countDown();
+                    break;
+                case NEW_MESSAGE:
+                    server.sendMessage(pong, event.connection());
+                    break;
+            }
+        }, Throwable::printStackTrace);
+        await(listening);
+
+        long[] latencies = new long[clients * requestsPerClient];
+        CountDownLatch connected = new CountDownLatch(clients);
+        CountDownLatch finished = new CountDownLatch(clients);
+        List<PostmanClient> postmanClients = new ArrayList<>();
+
+        long connectStart = System.nanoTime();
+        for (int i = 0; i < clients; i++) {
+            PostmanClient client = clientSupplier.get();
+            postmanClients.add(client);
+            int offset = i * requestsPerClient;
+            client.connect(SelectorProvider.provider().openSocketChannel(), InetAddress.getByName(HOST), PORT)
+                    .subscribe(new Consumer<PostmanClientEvent>() {
+                        int count;
+                        long sentNanos;
+
+                        @Override
+                        public void accept(PostmanClientEvent event) {
+                            if (event.isNewMessageEvent()) {
+                                latencies[offset + count++] = System.nanoTime() - sentNanos;
+                                if (count == requestsPerClient) {
+                                    finished.countDown();
+                                    return;
+                                }
+                            } else {
+                                connected.countDown();
+                            }
+                            sentNanos = System.nanoTime();
+                            client.sendMessage(Ping.getDefaultInstance());
+                        }
+                    }, Throwable::printStackTrace);
+        }
+        await(connected);
+        await(joined);
+        long connectNanos = System.nanoTime() - connectStart;
+
+        await(finished);
+        long totalNanos = System.nanoTime() - connectStart;
+
+        postmanClients.forEach(PostmanClient::disconnect);
+        server.stopServer();
+
+        Arrays.sort(latencies);
+        System.out.println(String.format("%s: %d clients connected in %d ms, %d requests at %.0f req/s, "
+                        + "latency p50=%d us p99=%d us max=%d us",
+                name, clients, TimeUnit.NANOSECONDS.toMillis(connectNanos), latencies.length,
+                latencies.length / (totalNanos / 1e9),
+                TimeUnit.NANOSECONDS.toMicros(percentile(latencies, 0.5)),
+                TimeUnit.NANOSECONDS.toMicros(percentile(latencies, 0.99)),
+                TimeUnit.NANOSECONDS.toMicros(latencies[latencies.length - 1])));
+    }
+
+    private static long percentile(long[] sorted, double percentile) {
+        return sorted[(int) Math.min(sorted.length - 1, Math.ceil(percentile * sorted.length) - 1)];
+    }
+
+    private static void await(CountDownLatch latch) throws InterruptedException {
+        if (!latch.await(TIMEOUT_SECONDS, TimeUnit.SECONDS)) {
+            throw new IllegalStateException("Benchmark timed out");
+        }
+    }
+}
@@ -0,0 +1,453 @@
+package org.postman.server.blocking;
+
+import net.jodah.concurrentunit.Waiter;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.postman.server.PostmanClientEvent;
+import org.postman.server.PostmanConfig;
+import org.postman.server.PostmanMessage;
+import org.postman.server.PostmanServerEvent;
+import org.postman.server.nio.Test.Ping;
+import org.postman.server.nio.Test.Pong;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.channels.spi.SelectorProvider;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import io.reactivex.Single;
+import io.reactivex.functions.Consumer;
+import io.reactivex.schedulers.Schedulers;
+
+import static java.util.Objects.nonNull;
+import static junit.framework.TestCase.fail;
+
+public class BlockingServerIntegrationTest {
+    private static final String HOST = "127.0.0.1";
+    private static final int PORT = 12346;
+
+    private BlockingPostmanServer postmanServer;
+    private SelectorProvider provider = SelectorProvider.provider();
+    private List<BlockingPostmanClient> clientsToDisconnect;
+    private boolean failTest;
+    private CountDownLatch serverStopped;
+
+    @Before
+    public void setup() {
+        clientsToDisconnect = new ArrayList<>();
+        postmanServer = createServer(PostmanConfig.defaults());
+        failTest = false;
+    }
+
+    @After
+    public void tearDown() throws InterruptedException {
+        clientsToDisconnect.forEach(BlockingPostmanClient::disconnect);
+        postmanServer.stopServer();
+        //The listening socket is only released once the accepting thread has stopped
+        if (nonNull(serverStopped)) {
+            serverStopped.await(3, TimeUnit.SECONDS);
+        }
+    }
+
+    @Test
+    public void serverShouldHandleMultipleClientsConnectingAndDisconnecting() throws IOException, TimeoutException {
+        Waiter joined = new Waiter();
+        Waiter left = new Waiter();
+        startServer(event -> {
+            switch (event.type()) {
+                case SERVER_LISTENING:
+                case CLIENT_JOIN:
+                    joined.resume();
+                    break;
+                case CLIENT_DISCONNECT:
+                    left.resume();
+                    break;
+            }
+        });
+        joined.await(3000);
+
+        connectClient(createPostmanClient(), event -> {});
+        connectClient(createPostmanClient(), event -> {});
+        connectClient(createPostmanClient(), event -> {});
+        joined.await(3000, 3);
+
+        clientsToDisconnect.forEach(BlockingPostmanClient::disconnect);
+        left.await(3000, 3);
+        checkFailSignal();
+    }
+
+    @Test
+    public void clientsShouldExchangeMessagesWithServer() throws IOException, TimeoutException {
+        Waiter waiter = new Waiter();
+        startServer(event -> {
+            switch (event.type()) {
+                case SERVER_LISTENING:
+                    waiter.resume();
+                    break;
+                case NEW_MESSAGE:
+                    postmanServer.sendMessage(Pong.newBuilder().setMsg("pong").build(), event.connection());
+                    break;
+            }
+        });
+        waiter.await(3000);
+
+        BlockingPostmanClient postmanClient = createPostmanClient();
+        connectClient(postmanClient, new Consumer<PostmanClientEvent>() {
+            int count = 0;
+
+            @Override
+            public void accept(PostmanClientEvent event) {
+                switch (event.type()) {
+                    case CONNECTED:
+                        postmanClient.sendMessage(Ping.getDefaultInstance());
+                        break;
+                    case NEW_MESSAGE:
+                        if (++count == 100) {
+                            waiter.resume();
+                        } else {
+                            postmanClient.sendMessage(Ping.getDefaultInstance());
+                        }
+                        break;
+                }
+            }
+        });
+        waiter.await(5000);
+        checkFailSignal();
+    }
+
+    @Test
+    public void serverShouldTimeoutClientsThatDoNotSendAnything() throws IOException, TimeoutException {
+        postmanServer = createServer(PostmanConfig.builder()
+                .readTimeout(100, TimeUnit.MILLISECONDS)
+                .build());
+        Waiter waiter = new Waiter();
+        List<PostmanServerEvent.Type> types = new ArrayList<>();
+        startServer(event -> {
+            switch (event.type()) {
+                case SERVER_LISTENING:
+                    waiter.resume();
+                    break;
+                case CLIENT_TIMEOUT:
+                case CLIENT_DISCONNECT:
+                    types.add(event.type());
+                    waiter.resume();
+                    break;
+            }
+        });
+        waiter.await(3000);
+
+        createPostmanClient()
+                .connect(provider.openSocketChannel(), InetAddress.getByName(HOST), PORT)
+                .subscribe(event -> {}, error -> {}, () -> {});
+        waiter.await(3000, 2);
+
+        if (!types.get(0).equals(PostmanServerEvent.Type.CLIENT_TIMEOUT)
+                || !types.get(1).equals(PostmanServerEvent.Type.CLIENT_DISCONNECT)) {
+            fail("Expected a timeout followed by a disconnect but got " + types);
+        }
+        checkFailSignal();
+    }
+
+    @Test
+    public void serverShouldSendQueuedMessagesBeforeShuttingDownWhenDraining() throws IOException, TimeoutException {
+        Waiter waiter = new Waiter();
+        startServer(event -> {
+            switch (event.type()) {
+                case SERVER_LISTENING:
+                    waiter.resume();
+                    break;
+                case CLIENT_JOIN:
+                    for (int i = 0; i < 200; i++) {
+                        postmanServer.sendMessage(Pong.newBuilder().setMsg(String.valueOf(i)).build(), event.connection());
+                    }
+                    postmanServer.stopServer(3, TimeUnit.SECONDS);
+                    break;
+                case SERVER_DRAINED:
+                    waiter.assertEquals(0, event.pendingClients());
+                    waiter.resume();
+                    break;
+            }
+        });
+        waiter.await(3000);
+
+        createPostmanClient()
+                .connect(provider.openSocketChannel(), InetAddress.getByName(HOST), PORT)
+                .subscribe(new Consumer<PostmanClientEvent>() {
+                    int count = 0;
+
+                    @Override
+                    public void accept(PostmanClientEvent event) {
+                        if (event.isNewMessageEvent() && ++count == 200) {
+                            waiter.resume();
+                        }
+                    }
+                }, error -> {});
+        waiter.await(5000, 2);
+        checkFailSignal();
+    }
+
+    @Test
+    public void serverShouldRefuseClientsOverMaxConnections() throws IOException, TimeoutException, InterruptedException {
+        postmanServer = createServer(PostmanConfig.builder()
+                .maxConnections(1)
+                .build());
+        Waiter waiter = new Waiter();
+        startServer(event -> {
+            switch (event.type()) {
+                case SERVER_LISTENING:
+                case CLIENT_JOIN:
+                    waiter.resume();
+                    break;
+            }
+        });
+        waiter.await(3000);
+
+        connectClient(createPostmanClient(), event -> {});
+        waiter.await(3000);
+
+        createPostmanClient()
+                .connect(provider.openSocketChannel(), InetAddress.getByName(HOST), PORT)
+                .subscribe(event -> {}, error -> {});
+
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(3);
+        while (postmanServer.refusedConnections() == 0 && System.nanoTime() - deadline < 0) {
+            Thread.sleep(10);
+        }
+
+        if (postmanServer.refusedConnections() != 1 || postmanServer.numberOfClients() != 1) {
+            fail("Expected one refused and one connected client but got " + postmanServer.refusedConnections()
+                    + " refused and " + postmanServer.numberOfClients() + " connected");
+        }
+        checkFailSignal();
+    }
+
+    @Test
+    public void clientsShouldOnlyReceiveMessagesPublishedToTheirTopics() throws IOException, TimeoutException {
+        Waiter waiter = new Waiter();
+        startServer(new Consumer<PostmanServerEvent>() {
+            int pings = 0;
+
+            @Override
+            public void accept(PostmanServerEvent event) {
+                switch (event.type()) {
+                    case SERVER_LISTENING:
+                        waiter.resume();
+                        break;
+                    case NEW_MESSAGE:
+                        //Each client subscribes before sending its ping
+                        if (++pings == 2) {
+                            postmanServer.publish("a", Pong.newBuilder().setMsg("a").build());
+                            postmanServer.publish("b", Pong.newBuilder().setMsg("b").build());
+                            postmanServer.publish("c", Pong.newBuilder().setMsg("c").build());
+                        }
+                        break;
+                }
+            }
+        });
+        waiter.await(3000);
+
+        for (String topic : new String[]{"a", "b"}) {
+            BlockingPostmanClient postmanClient = createPostmanClient();
+            connectClient(postmanClient, event -> {
+                if (event.isNewMessageEvent()) {
+                    waiter.assertEquals(topic, event.msg().getTopic());
+                    waiter.assertEquals(topic, event.msg().<Pong>getProtoObj().getMsg());
+                    waiter.resume();
+                } else {
+                    postmanClient.subscribe(topic);
+                    postmanClient.sendMessage(Ping.getDefaultInstance());
+                }
+            });
+        }
+        waiter.await(5000, 2);
+        checkFailSignal();
+    }
+
+    @Test
+    public void pipelinedRequestsShouldEachGetTheirOwnResponse() throws IOException, TimeoutException {
+        Waiter waiter = new Waiter();
+        //Later requests are answered first
+        postmanServer.handleRequests(Pong.class, request -> Single.just(Pong.newBuilder().setMsg(request.getMsg() + "!").build())
+                .delay(100 - Integer.parseInt(request.getMsg()), TimeUnit.MILLISECONDS));
+        startServer(event -> {
+            if (event.type() == PostmanServerEvent.Type.SERVER_LISTENING) {
+                waiter.resume();
+            }
+        });
+        waiter.await(3000);
+
+        BlockingPostmanClient postmanClient = createPostmanClient();
+        connectClient(postmanClient, event -> {
+            if (event.type() == PostmanClientEvent.Type.CONNECTED) {
+                for (int i = 0; i < 100; i++) {
+                    String msg = String.valueOf(i);
+                    postmanClient.request(Pong.newBuilder().setMsg(msg).build(), Pong.class, 3, TimeUnit.SECONDS)
+                            .subscribe(response -> {
+                                waiter.assertEquals(msg + "!", response.getMsg());
+                                waiter.resume();
+                            }, waiter::fail);
+                }
+            }
+        });
+        waiter.await(5000, 100);
+        checkFailSignal();
+    }
+
+    @Test
+    public void requestsShouldFailWhenNotAnsweredInTime() throws IOException, TimeoutException {
+        Waiter waiter = new Waiter();
+        postmanServer.handleRequests(Ping.class, request -> Single.never());
+        startServer(event -> {
+            if (event.type() == PostmanServerEvent.Type.SERVER_LISTENING) {
+                waiter.resume();
+            }
+        });
+        waiter.await(3000);
+
+        BlockingPostmanClient postmanClient = createPostmanClient();
+        connectClient(postmanClient, event -> {
+            if (event.type() == PostmanClientEvent.Type.CONNECTED) {
+                postmanClient.request(Ping.getDefaultInstance(), Pong.class, 200, TimeUnit.MILLISECONDS)
+                        .subscribe(response -> waiter.fail("Expected a timeout"), error -> {
+                            waiter.assertTrue(error instanceof TimeoutException);
+                            waiter.resume();
+                        });
+            }
+        });
+        waiter.await(3000);
+        checkFailSignal();
+    }
+
+    @Test
+    public void multiplexedStreamsShouldDeliverMessagesOnTheirStreams() throws IOException, TimeoutException {
+        PostmanConfig config = PostmanConfig.builder()
+                .maxFrameSize(1024)
+                .build();
+        postmanServer = createServer(config);
+        Waiter waiter = new Waiter();
+        String bulk = new String(new char[200 * 1024]);
+        startServer(event -> {
+            switch (event.type()) {
+                case SERVER_LISTENING:
+                    waiter.resume();
+                    break;
+                case NEW_MESSAGE:
+                    PostmanMessage msg = event.message();
+                    if (msg.isOfType(Ping.class)) {
+                        waiter.assertEquals(PostmanMessage.DEFAULT_STREAM, msg.getStreamId());
+                    } else {
+                        waiter.assertEquals(1, msg.getStreamId());
+                        waiter.assertEquals(bulk, msg.<Pong>getProtoObj().getMsg());
+                        postmanServer.sendMessage(new PostmanMessage(msg.<Pong>getProtoObj()).setStreamId(3), event.connection());
+                    }
+                    waiter.resume();
+                    break;
+            }
+        });
+        waiter.await(3000);
+
+        BlockingPostmanClient postmanClient = new BlockingPostmanClient(Schedulers.io(), PostmanMessage::new, config);
+        clientsToDisconnect.add(postmanClient);
+        connectClient(postmanClient, event -> {
+            switch (event.type()) {
+                case CONNECTED:
+                    postmanClient.sendMessage(new PostmanMessage(Pong.newBuilder().setMsg(bulk).build()).setStreamId(1));
+                    postmanClient.sendMessage(Ping.getDefaultInstance());
+                    break;
+                case NEW_MESSAGE:
+                    waiter.assertEquals(3, event.msg().getStreamId());
+                    waiter.assertEquals(bulk, event.msg().<Pong>getProtoObj().getMsg());
+                    waiter.resume();
+                    break;
+            }
+        });
+        waiter.await(5000, 3);
+        checkFailSignal();
+    }
+
+    @Test
+    public void flowControlShouldDeliverEverythingThroughSmallWindows() throws IOException, TimeoutException {
+        PostmanConfig config = PostmanConfig.builder()
+                .maxFrameSize(1024)
+                .flowControlWindows(8 * 1024, 2 * 1024)
+                .build();
+        postmanServer = createServer(config);
+        Waiter waiter = new Waiter();
+        int messages = 100;
+        List<String> received = new ArrayList<>();
+        startServer(event -> {
+            switch (event.type()) {
+                case SERVER_LISTENING:
+                    waiter.resume();
+                    break;
+                case NEW_MESSAGE:
+                    received.add(event.message().<Pong>getProtoObj().getMsg());
+                    if (received.size() == messages) {
+                        waiter.resume();
+                    }
+                    break;
+            }
+        });
+        waiter.await(3000);
+
+        BlockingPostmanClient postmanClient = new BlockingPostmanClient(Schedulers.io(), PostmanMessage::new, config);
+        clientsToDisconnect.add(postmanClient);
+        connectClient(postmanClient, event -> {
+            if (event.type() == PostmanClientEvent.Type.CONNECTED) {
+                for (int i = 0; i < messages; i++) {
+                    postmanClient.sendMessage(new PostmanMessage(Pong.newBuilder()
+                            .setMsg(i + new String(new char[1000]))
+                            .build()).setStreamId(1 + i % 2));
+                }
+            }
+        });
+        waiter.await(5000);
+        checkFailSignal();
+    }
+
+    private void checkFailSignal() {
+        if (failTest) {
+            fail("Fail test signal true, error received");
+        }
+    }
+
+    private BlockingPostmanServer createServer(PostmanConfig config) {
+        return new BlockingPostmanServer(provider, PostmanMessage::new, Schedulers.io(), config);
+    }
+
+    private BlockingPostmanClient createPostmanClient() {
+        BlockingPostmanClient postmanClient = new BlockingPostmanClient(Schedulers.io(), PostmanMessage::new, PostmanConfig.defaults());
+        clientsToDisconnect.add(postmanClient);
+        return postmanClient;
+    }
+
+    private void startServer(Consumer<PostmanServerEvent> eventHandler) {
+        CountDownLatch stopped = new CountDownLatch(1);
+        serverStopped = stopped;
+        postmanServer.serverStart(new InetSocketAddress(HOST, PORT))
+                .observeOn(Schedulers.computation())
+                .subscribe(eventHandler, error -> {
+                    failTest = true;
+                    error.printStackTrace();
+                    stopped.countDown();
+                }, stopped::countDown);
+    }
+
+    private void connectClient(BlockingPostmanClient postmanClient, Consumer<PostmanClientEvent> eventHandler) throws IOException {
+        postmanClient.connect(provider.openSocketChannel(), InetAddress.getByName(HOST), PORT)
+                .observeOn(Schedulers.computation())
+                .subscribe(eventHandler, error -> {
+                    if (postmanClient.isConnected()) {
+                        failTest = true;
+                        error.printStackTrace();
+                    }
+                });
+    }
+}
@@ -0,0 +1,25 @@
+package org.postman.server.blocking;
+
+import org.postman.server.PostmanConfig;
+import org.postman.server.PostmanMessage;
+import org.postman.server.TransportBenchmark;
+
+import java.nio.channels.spi.SelectorProvider;
+
+import io.reactivex.schedulers.Schedulers;
+
+/**
+ * Runs the {@link TransportBenchmark} against {@link BlockingPostmanServer} and {@link BlockingPostmanClient}.
+ * Compare with {@link org.postman.server.nio.NIOTransportBenchmark}.
+ */
+public class BlockingTransportBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        int clients = args.length > 0 ? Integer.parseInt(args[0]) : 100;
+        int requests = args.length > 1 ? Integer.parseInt(args[1]) : 1000;
+
+        new TransportBenchmark("blocking", clients, requests).run(
+                new BlockingPostmanServer(SelectorProvider.provider(), PostmanMessage::new, Schedulers.io(), PostmanConfig.defaults()),
+                () -> new BlockingPostmanClient(Schedulers.io(), PostmanMessage::new, PostmanConfig.defaults()));
+    }
+}
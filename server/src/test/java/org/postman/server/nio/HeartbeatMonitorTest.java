@@ -0,0 +1,127 @@
+package org.postman.server.nio;
+
+import com.siia.commons.core.timing.HashedWheelTimer;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mock;
+import org.mockito.runners.MockitoJUnitRunner;
+import org.postman.server.MessageOuterClass.Heartbeat;
+import org.postman.server.MessageOuterClass.HeartbeatAck;
+import org.postman.server.PostmanConfig;
+import org.postman.server.PostmanMessage;
+import org.postman.server.RoundTripTime;
+import org.postman.server.nio.Test.Ping;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+@RunWith(MockitoJUnitRunner.class)
+public class HeartbeatMonitorTest {
+
+    private long now;
+    private HashedWheelTimer timer;
+    private HeartbeatMonitor monitor;
+    private RoundTripTime roundTripTime;
+    @Mock
+    private NIOConnection connection;
+    @Mock
+    private HeartbeatMonitor.Listener listener;
+
+    @Before
+    public void setup() {
+        now = 0;
+        timer = new HashedWheelTimer(10, TimeUnit.MILLISECONDS, 64, () -> now);
+        roundTripTime = new RoundTripTime();
+        when(connection.isConnected()).thenReturn(true);
+        when(connection.roundTripTime()).thenReturn(roundTripTime);
+        monitor = new HeartbeatMonitor(PostmanConfig.builder()
+                .heartbeatInterval(100, TimeUnit.MILLISECONDS)
+                .maxMissedHeartbeats(2)
+                .build(), timer, () -> now);
+    }
+
+    @Test
+    public void shouldSendHeartbeatEachInterval() throws Exception {
+        monitor.track(connection, listener);
+
+        advanceTo(100);
+        advanceTo(200);
+
+        ArgumentCaptor<PostmanMessage> captor = ArgumentCaptor.forClass(PostmanMessage.class);
+        verify(connection, times(2)).queueMessageToSend(captor.capture());
+        assertThat(captor.getValue().isOfType(Heartbeat.class)).isTrue();
+        assertThat(captor.getValue().<Heartbeat>getProtoObj().getSentNanos()).isEqualTo(TimeUnit.MILLISECONDS.toNanos(200));
+    }
+
+    @Test
+    public void shouldNotifyListenerWhenHeartbeatsMissed() {
+        monitor.track(connection, listener);
+
+        advanceTo(100);
+        advanceTo(200);
+        verify(listener, never()).onHeartbeatsMissed(connection, 2);
+
+        advanceTo(300);
+        verify(listener).onHeartbeatsMissed(connection, 2);
+    }
+
+    @Test
+    public void shouldResetMissedHeartbeatsAndRecordRoundTripTimeWhenAcknowledged() {
+        monitor.track(connection, listener);
+
+        advanceTo(100);
+        advanceTo(200);
+        now = TimeUnit.MILLISECONDS.toNanos(230);
+        boolean handled = monitor.handleMessage(connection, new PostmanMessage(HeartbeatAck.newBuilder()
+                .setSentNanos(TimeUnit.MILLISECONDS.toNanos(200))
+                .build()));
+        advanceTo(300);
+
+        assertThat(handled).isTrue();
+        verify(listener, never()).onHeartbeatsMissed(any(NIOConnection.class), any(Integer.class));
+        assertThat(roundTripTime.lastNanos()).isEqualTo(TimeUnit.MILLISECONDS.toNanos(30));
+    }
+
+    @Test
+    public void shouldAnswerHeartbeatEvenIfDisabled() throws Exception {
+        HeartbeatMonitor disabled = new HeartbeatMonitor(PostmanConfig.defaults(), timer);
+
+        boolean handled = disabled.handleMessage(connection, new PostmanMessage(Heartbeat.newBuilder().setSentNanos(42).build()));
+
+        ArgumentCaptor<PostmanMessage> captor = ArgumentCaptor.forClass(PostmanMessage.class);
+        verify(connection).queueMessageToSend(captor.capture());
+        assertThat(handled).isTrue();
+        assertThat(captor.getValue().<HeartbeatAck>getProtoObj().getSentNanos()).isEqualTo(42);
+    }
+
+    @Test
+    public void shouldPassOnApplicationMessages() {
+        assertThat(monitor.handleMessage(connection, new PostmanMessage(Ping.getDefaultInstance()))).isFalse();
+        verify(connection, never()).queueMessageToSend(any(PostmanMessage.class));
+    }
+
+    @Test
+    public void shouldStopSendingOnceUntracked() {
+        monitor.track(connection, listener);
+        monitor.untrack(connection);
+
+        advanceTo(500);
+
+        verify(connection, never()).queueMessageToSend(any(PostmanMessage.class));
+        assertThat(timer.pendingTimeouts()).isZero();
+    }
+
+    private void advanceTo(long millis) {
+        now = TimeUnit.MILLISECONDS.toNanos(millis);
+        timer.advance();
+    }
+}
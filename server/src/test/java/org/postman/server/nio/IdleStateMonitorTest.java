@@ -0,0 +1,150 @@
+package org.postman.server.nio;
+
+import com.siia.commons.core.timing.HashedWheelTimer;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.runners.MockitoJUnitRunner;
+import org.postman.server.PostmanConfig;
+import org.postman.server.PostmanServerEvent.IdleState;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+@RunWith(MockitoJUnitRunner.class)
+public class IdleStateMonitorTest {
+
+    private long now;
+    private HashedWheelTimer timer;
+    @Mock
+    private NIOConnection connection;
+    @Mock
+    private IdleStateMonitor.Listener listener;
+
+    @Before
+    public void setup() {
+        now = 0;
+        timer = new HashedWheelTimer(10, TimeUnit.MILLISECONDS, 64, () -> now);
+        when(connection.isConnected()).thenReturn(true);
+    }
+
+    @Test
+    public void shouldNotTrackIfDisabled() {
+        IdleStateMonitor monitor = createMonitor(PostmanConfig.defaults());
+        monitor.track(connection, listener);
+        assertNoPendingTimeouts();
+    }
+
+    @Test
+    public void shouldReportReaderIdle() {
+        IdleStateMonitor monitor = createMonitor(PostmanConfig.builder().readerIdleTime(100, TimeUnit.MILLISECONDS).build());
+        monitor.track(connection, listener);
+
+        advanceTo(90);
+        verify(listener, never()).onIdle(connection, IdleState.READER_IDLE);
+
+        advanceTo(100);
+        verify(listener).onIdle(connection, IdleState.READER_IDLE);
+    }
+
+    @Test
+    public void shouldReportIdleAgainAfterAnotherIdlePeriod() {
+        IdleStateMonitor monitor = createMonitor(PostmanConfig.builder().writerIdleTime(100, TimeUnit.MILLISECONDS).build());
+        monitor.track(connection, listener);
+
+        for (int time = 0; time <= 200; time += 10) {
+            advanceTo(time);
+        }
+
+        verify(listener, times(2)).onIdle(connection, IdleState.WRITER_IDLE);
+    }
+
+    @Test
+    public void shouldRescheduleIfThereWasActivity() {
+        IdleStateMonitor monitor = createMonitor(PostmanConfig.builder().readerIdleTime(100, TimeUnit.MILLISECONDS).build());
+        monitor.track(connection, listener);
+
+        when(connection.lastReadNanos()).thenReturn(TimeUnit.MILLISECONDS.toNanos(60));
+        advanceTo(100);
+        verify(listener, never()).onIdle(connection, IdleState.READER_IDLE);
+
+        advanceTo(160);
+        verify(listener).onIdle(connection, IdleState.READER_IDLE);
+    }
+
+    @Test
+    public void shouldUseLatestActivityForAllIdle() {
+        IdleStateMonitor monitor = createMonitor(PostmanConfig.builder().allIdleTime(100, TimeUnit.MILLISECONDS).build());
+        monitor.track(connection, listener);
+
+        when(connection.lastWriteNanos()).thenReturn(TimeUnit.MILLISECONDS.toNanos(50));
+        advanceTo(100);
+        verify(listener, never()).onIdle(connection, IdleState.ALL_IDLE);
+
+        advanceTo(150);
+        verify(listener).onIdle(connection, IdleState.ALL_IDLE);
+    }
+
+    @Test
+    public void shouldReportReadTimeoutOnlyOnce() {
+        IdleStateMonitor monitor = createMonitor(PostmanConfig.builder().readTimeout(100, TimeUnit.MILLISECONDS).build());
+        monitor.track(connection, listener);
+
+        advanceTo(100);
+        advanceTo(200);
+        advanceTo(300);
+
+        verify(listener).onReadTimeout(connection);
+        assertNoPendingTimeouts();
+    }
+
+    @Test
+    public void shouldStopReportingOnceUntracked() {
+        IdleStateMonitor monitor = createMonitor(PostmanConfig.builder()
+                .readerIdleTime(100, TimeUnit.MILLISECONDS)
+                .readTimeout(200, TimeUnit.MILLISECONDS)
+                .build());
+        monitor.track(connection, listener);
+
+        advanceTo(50);
+        monitor.untrack(connection);
+        advanceTo(500);
+
+        verify(listener, never()).onIdle(connection, IdleState.READER_IDLE);
+        verify(listener, never()).onReadTimeout(connection);
+        assertNoPendingTimeouts();
+    }
+
+    @Test
+    public void shouldStopReportingOnceDisconnected() {
+        IdleStateMonitor monitor = createMonitor(PostmanConfig.builder().readerIdleTime(100, TimeUnit.MILLISECONDS).build());
+        monitor.track(connection, listener);
+        when(connection.isConnected()).thenReturn(false);
+
+        advanceTo(500);
+
+        verify(listener, never()).onIdle(connection, IdleState.READER_IDLE);
+        assertNoPendingTimeouts();
+    }
+
+    private IdleStateMonitor createMonitor(PostmanConfig config) {
+        return new IdleStateMonitor(config, timer, () -> now);
+    }
+
+    private void advanceTo(long millis) {
+        now = TimeUnit.MILLISECONDS.toNanos(millis);
+        timer.advance();
+    }
+
+    private void assertNoPendingTimeouts() {
+        timer.advance();
+        assertThat(timer.pendingTimeouts()).isZero();
+    }
+}
@@ -0,0 +1,81 @@
+package org.postman.server.nio;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.nio.channels.spi.SelectorProvider;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.mock;
+
+public class LoopTaskQueueTest {
+
+    private LoopTaskQueue loopTasks;
+    private TestSelector selector;
+    private List<Integer> ran;
+
+    @Before
+    public void setup() {
+        loopTasks = new LoopTaskQueue();
+        selector = new TestSelector(mock(SelectorProvider.class));
+        ran = new ArrayList<>();
+    }
+
+    @Test
+    public void shouldRunTaskStraightAwayOnLoopThread() {
+        loopTasks.attach(selector);
+
+        loopTasks.execute(() -> ran.add(1));
+
+        assertThat(ran).containsExactly(1);
+        assertThat(selector.wakeupCount).isZero();
+    }
+
+    @Test
+    public void shouldRunTasksFromOtherThreadsInOrderWhenLoopRunsThem() throws InterruptedException {
+        loopTasks.attach(selector);
+
+        Thread producer = new Thread(() -> {
+            for (int i = 0; i < 100; i++) {
+                int task = i;
+                loopTasks.execute(() -> ran.add(task));
+            }
+        });
+        producer.start();
+        producer.join();
+
+        assertThat(ran).isEmpty();
+        loopTasks.runTasks();
+        assertThat(ran).hasSize(100).startsWith(0, 1, 2).endsWith(99);
+    }
+
+    @Test
+    public void shouldWakeSelectorOncePerPass() throws InterruptedException {
+        loopTasks.attach(selector);
+
+        Thread producer = new Thread(() -> {
+            loopTasks.execute(() -> ran.add(1));
+            loopTasks.execute(() -> ran.add(2));
+            loopTasks.wakeUp();
+        });
+        producer.start();
+        producer.join();
+        assertThat(selector.wakeupCount).isEqualTo(1);
+
+        loopTasks.runTasks();
+        loopTasks.wakeUp();
+
+        assertThat(selector.wakeupCount).isEqualTo(2);
+    }
+
+    @Test
+    public void shouldNotWakeBeforeLoopHasSelector() {
+        loopTasks.wakeUp();
+        loopTasks.execute(() -> ran.add(1));
+
+        assertThat(ran).isEmpty();
+        assertThat(selector.wakeupCount).isZero();
+    }
+}
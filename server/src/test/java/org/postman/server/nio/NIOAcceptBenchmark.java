@@ -0,0 +1,27 @@
+package org.postman.server.nio;
+
+import org.postman.server.AcceptBenchmark;
+import org.postman.server.PostmanConfig;
+import org.postman.server.PostmanMessage;
+
+import java.nio.channels.spi.SelectorProvider;
+
+import io.reactivex.schedulers.Schedulers;
+
+/**
+ * Runs the {@link AcceptBenchmark} against {@link NIOPostmanServer}.
+ */
+public class NIOAcceptBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        int connections = args.length > 0 ? Integer.parseInt(args[0]) : 5000;
+        int threads = args.length > 1 ? Integer.parseInt(args[1]) : 8;
+        PostmanConfig config = PostmanConfig.builder()
+                .acceptBacklog(1024)
+                .build();
+
+        new AcceptBenchmark("nio", connections, threads).run(
+                new NIOPostmanServer(new ServerEventLoop(SelectorProvider.provider(),
+                        new NIOConnectionFactory(PostmanMessage::new), Schedulers.newThread(), config)));
+    }
+}
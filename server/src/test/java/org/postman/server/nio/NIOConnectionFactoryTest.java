@@ -8,14 +8,17 @@ import org.junit.runner.RunWith;
 import org.mockito.Mock;
 import org.mockito.runners.MockitoJUnitRunner;
 import org.postman.server.Connection;
+import org.postman.server.PostmanConfig;
 import org.postman.server.PostmanMessage;
 
 import java.io.IOException;
 import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.net.SocketOption;
 import java.nio.channels.SelectionKey;
 import java.nio.channels.spi.SelectorProvider;
+import java.util.Collections;
 
 import static org.assertj.core.api.Assertions.assertThat;
 import static org.mockito.Mockito.verify;
@@ -35,6 +38,17 @@ public class NIOConnectionFactoryTest {
     private TestSocketChannel sockChannel;
     @Mock
     private Socket socket;
+    private static final SocketOption<Boolean> REUSE_PORT = new SocketOption<Boolean>() {
+        @Override
+        public String name() {
+            return "SO_REUSEPORT";
+        }
+
+        @Override
+        public Class<Boolean> type() {
+            return Boolean.class;
+        }
+    };
 
     @Before
     public void setup() {
@@ -48,7 +62,7 @@ public class NIOConnectionFactoryTest {
 
     @Test
     public void shouldSetPerfSettingsWhenBindingSocket() throws IOException {
-        nioConnectionFactory.bindServerSocket(selector, serverSocketChannel, bindAddress);
+        nioConnectionFactory.bindServerSocket(selector, serverSocketChannel, bindAddress, PostmanConfig.defaults());
         verify(serverSocket).setPerformancePreferences(NIOConnectionFactory.CONNECTION_TIME_PREFERENCE,
                 NIOConnectionFactory.LATENCY_PREFERENCE, NIOConnectionFactory.BANDWIDTH_PREFERENCE);
 
@@ -57,20 +71,75 @@ public class NIOConnectionFactoryTest {
 
     @Test
     public void shouldBindToGivenAddress() throws IOException {
-        nioConnectionFactory.bindServerSocket(selector, serverSocketChannel, bindAddress);
-        verify(serverSocket).bind(bindAddress);
+        nioConnectionFactory.bindServerSocket(selector, serverSocketChannel, bindAddress, PostmanConfig.defaults());
+        verify(serverSocket).bind(bindAddress, 0);
+    }
+
+    @Test
+    public void shouldBindWithGivenBacklog() throws IOException {
+        nioConnectionFactory.bindServerSocket(selector, serverSocketChannel, bindAddress, PostmanConfig.builder().acceptBacklog(1024).build());
+        verify(serverSocket).bind(bindAddress, 1024);
     }
 
     @Test
     public void shouldConfigureSocketToBlocking() throws IOException {
-        nioConnectionFactory.bindServerSocket(selector, serverSocketChannel, bindAddress);
+        nioConnectionFactory.bindServerSocket(selector, serverSocketChannel, bindAddress, PostmanConfig.defaults());
         assertThat(serverSocketChannel.blocking).isFalse();
     }
 
     @Test
     public void shouldRegisterSocketForAccepting() throws IOException {
-        nioConnectionFactory.bindServerSocket(selector, serverSocketChannel, bindAddress);
+        nioConnectionFactory.bindServerSocket(selector, serverSocketChannel, bindAddress, PostmanConfig.defaults());
         assertThat(selector.registrationOps.get(serverSocketChannel)).isEqualTo(SelectionKey.OP_ACCEPT);
         assertThat(selector.registrationCount).isEqualTo(1);
     }
-}
\ No newline at end of file
+
+    @Test
+    public void shouldEnableReusePortWhenBindingOneOfSeveralListeners() throws IOException {
+        serverSocketChannel.supportedOptions = Collections.singleton(REUSE_PORT);
+        nioConnectionFactory.bindServerSocket(selector, serverSocketChannel, bindAddress,
+                PostmanConfig.builder().listeners(2).build());
+        assertThat(serverSocketChannel.options).containsEntry(REUSE_PORT, true);
+    }
+
+    @Test
+    public void shouldNotEnableReusePortForSingleListener() throws IOException {
+        serverSocketChannel.supportedOptions = Collections.singleton(REUSE_PORT);
+        nioConnectionFactory.bindServerSocket(selector, serverSocketChannel, bindAddress, PostmanConfig.defaults());
+        assertThat(serverSocketChannel.options).isEmpty();
+    }
+
+    @Test
+    public void shouldBindWithoutReusePortWhenUnsupported() throws IOException {
+        nioConnectionFactory.bindServerSocket(selector, serverSocketChannel, bindAddress,
+                PostmanConfig.builder().listeners(2).build());
+        assertThat(serverSocketChannel.options).isEmpty();
+        verify(serverSocket).bind(bindAddress, 0);
+    }
+
+    @Test
+    public void shouldResetAndCloseRefusedConnections() throws IOException {
+        nioConnectionFactory.refuseConnection(sockChannel);
+        verify(socket).setSoLinger(true, 0);
+        assertThat(sockChannel.closed).isTrue();
+        assertThat(selector.registrationCount).isEqualTo(0);
+    }
+
+    @Test
+    public void shouldReturnPendingConnection() {
+        assertThat(nioConnectionFactory.acceptPending(serverSocketChannel)).isSameAs(sockChannel);
+    }
+
+    @Test
+    public void shouldReturnNullIfPendingConnectionCannotBeAccepted() {
+        serverSocketChannel.throwOnAccept = true;
+        assertThat(nioConnectionFactory.acceptPending(serverSocketChannel)).isNull();
+    }
+
+    @Test
+    public void shouldRegisterCreatedConnectionForReadingAndWriting() {
+        assertThat(nioConnectionFactory.createConnection(sockChannel, selector).isPresent()).isTrue();
+        assertThat(selector.registrationOps.get(sockChannel)).isEqualTo(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+        assertThat(sockChannel.blocking).isFalse();
+    }
+}
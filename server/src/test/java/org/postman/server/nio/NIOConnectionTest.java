@@ -4,9 +4,10 @@ import com.siia.commons.core.inject.Provider;
 
 import org.junit.Before;
 import org.junit.Test;
-import org.mockito.InOrder;
 import org.mockito.Mock;
+import org.postman.server.MessagePriority;
 import org.postman.server.PostmanMessage;
+import org.postman.server.nio.Test.Ping;
 
 import java.io.IOException;
 import java.net.Socket;
@@ -18,8 +19,9 @@ import java.nio.channels.spi.SelectorProvider;
 import java.util.UUID;
 
 import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Matchers.any;
 import static org.mockito.Matchers.anyInt;
-import static org.mockito.Mockito.inOrder;
+import static org.mockito.Matchers.eq;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.reset;
@@ -62,6 +64,9 @@ public class NIOConnectionTest {
     @Before
     public void setUp() {
         initMocks(this);
+        when(msg.getPriority()).thenReturn(MessagePriority.NORMAL);
+        when(msg2.getPriority()).thenReturn(MessagePriority.NORMAL);
+        when(msg3.getPriority()).thenReturn(MessagePriority.NORMAL);
         buffer = ByteBuffer.allocate(BUFFER_1_SIZE);
         buffer2 = ByteBuffer.allocate(BUFFER_2_SIZE);
         connection = new NIOConnection(id, clientSocketChannel, provider, buffer, key);
@@ -374,6 +379,21 @@ public class NIOConnectionTest {
 
     }
 
+    @Test
+    public void shouldQueueCopyAtPriorityLeavingSharedMessageUnchanged() {
+        when(key.isValid()).thenReturn(true);
+        when(clientSocketChannel.isConnected()).thenReturn(true);
+        when(key.selector()).thenReturn(selector);
+        PostmanMessage shared = new PostmanMessage(Ping.getDefaultInstance());
+
+        connection.queueMessageToSend(shared, MessagePriority.HIGH);
+
+        assertThat(shared.getPriority()).isEqualTo(MessagePriority.NORMAL);
+        PostmanMessage queued = connection.sendQueue().poll();
+        assertThat(queued).isNotSameAs(shared);
+        assertThat(queued.getPriority()).isEqualTo(MessagePriority.HIGH);
+    }
+
     @Test
     public void shouldSendMessage() throws IOException {
         when(key.isValid()).thenReturn(true);
@@ -405,30 +425,72 @@ public class NIOConnectionTest {
         when(key.readyOps()).thenReturn(SelectionKey.OP_WRITE);
         when(clientSocketChannel.isConnected()).thenReturn(true);
 
-        when(clientSocketChannel.write(buffer)).then(invocation -> {
+        when(clientSocketChannel.write(any(ByteBuffer[].class), eq(0), eq(2))).then(invocation -> {
             buffer.position(buffer.limit());
-            return buffer.limit();
-        });
-
-        when(clientSocketChannel.write(buffer2)).then(invocation -> {
             buffer2.position(buffer2.limit());
-            return buffer2.limit();
+            return (long) buffer.limit() + buffer2.limit();
         });
 
         connection.queueMessageToSend(msg);
         connection.queueMessageToSend(msg2);
         connection.sendAnyPendingMessages();
 
-        buffer.rewind();
-        buffer2.rewind();
-
         verify(key, times(2)).interestOps(SelectionKey.OP_WRITE);
         verify(key).interestOps(0);
-        verify(clientSocketChannel).write(buffer);
-        verify(clientSocketChannel).write(buffer2);
+        //Both in a single gathering write
+        verify(clientSocketChannel).write(any(ByteBuffer[].class), eq(0), eq(2));
+        verify(clientSocketChannel, never()).write(any(ByteBuffer.class));
+
+    }
+
+
+    @Test
+    public void shouldStopReadingOnceMessageBudgetUsedUp() throws IOException {
+        connection.passBudget(0, 1);
+        when(provider.get()).thenReturn(msg).thenReturn(msg2);
+        when(clientSocketChannel.read(buffer)).then(invocation -> {
+            buffer.position(buffer.limit());
+            return buffer.limit();
+        });
+        when(msg.read(buffer)).then(invocation -> {
+            buffer.position(buffer.limit());
+            return true;
+        });
+
+        connection.read();
 
+        verify(clientSocketChannel, times(1)).read(buffer);
+        verify(msg2, never()).read(buffer);
     }
 
+    @Test
+    public void shouldLeaveRestForNextPassOnceWriteBudgetUsedUp() throws IOException {
+        connection.passBudget(0, 1);
+        when(key.isValid()).thenReturn(true);
+        when(msg.getFrame()).thenReturn(buffer);
+        when(key.selector()).thenReturn(selector);
+        when(msg2.getFrame()).thenReturn(buffer2);
+        when(key.readyOps()).thenReturn(SelectionKey.OP_WRITE);
+        when(clientSocketChannel.isConnected()).thenReturn(true);
+        when(clientSocketChannel.write(buffer)).then(invocation -> {
+            buffer.position(buffer.limit());
+            return buffer.limit();
+        });
+        when(clientSocketChannel.write(buffer2)).then(invocation -> {
+            buffer2.position(buffer2.limit());
+            return buffer2.limit();
+        });
+        connection.queueMessageToSend(msg);
+        connection.queueMessageToSend(msg2);
+
+        connection.sendAnyPendingMessages();
+        assertThat(buffer.hasRemaining()).isFalse();
+        assertThat(buffer2.position()).isZero();
+        verify(key, never()).interestOps(0);
+
+        connection.sendAnyPendingMessages();
+        assertThat(buffer2.hasRemaining()).isFalse();
+    }
 
     @Test
     public void shouldSendMessageOverMultipleInvocations() throws IOException {
@@ -464,17 +526,16 @@ public class NIOConnectionTest {
         when(key.readyOps()).thenReturn(SelectionKey.OP_WRITE);
         when(clientSocketChannel.isConnected()).thenReturn(true);
 
-        when(clientSocketChannel.write(buffer)).then(invocation -> {
+        when(clientSocketChannel.write(any(ByteBuffer[].class), eq(0), eq(2))).then(invocation -> {
             buffer.position(buffer.limit() / 2);
-            return buffer.limit() / 2;
+            return (long) buffer.limit() / 2;
         }).then(invocation -> {
+            //The second message is only written once the first is finished
+            assertThat(buffer2.position()).isZero();
+            int written = buffer.remaining() + buffer2.remaining();
             buffer.position(buffer.limit());
-            return buffer.limit();
-        });
-
-        when(clientSocketChannel.write(buffer2)).then(invocation -> {
             buffer2.position(buffer2.limit());
-            return buffer2.limit();
+            return (long) written;
         });
 
 
@@ -483,14 +544,9 @@ public class NIOConnectionTest {
         connection.sendAnyPendingMessages();
 
         verify(key).interestOps(0);
-        InOrder inOrder = inOrder(clientSocketChannel);
-
-        buffer.rewind();
-        inOrder.verify(clientSocketChannel).write(buffer);
-        buffer.position(buffer.limit() / 2);
-        inOrder.verify(clientSocketChannel).write(buffer);
-        buffer2.rewind();
-        inOrder.verify(clientSocketChannel).write(buffer2);
+        verify(clientSocketChannel, times(2)).write(any(ByteBuffer[].class), eq(0), eq(2));
+        assertThat(buffer.hasRemaining()).isFalse();
+        assertThat(buffer2.hasRemaining()).isFalse();
 
     }
 
@@ -6,6 +6,7 @@ import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.mockito.Mock;
 import org.mockito.runners.MockitoJUnitRunner;
+import org.postman.server.FlowControl;
 import org.postman.server.PostmanClientEvent;
 import org.postman.server.PostmanMessage;
 
@@ -14,11 +15,14 @@ import java.net.InetAddress;
 import java.nio.channels.SelectionKey;
 import java.nio.channels.SocketChannel;
 import java.nio.channels.spi.SelectorProvider;
+import java.util.Collections;
+import java.util.List;
 
 import io.reactivex.schedulers.TestScheduler;
 import io.reactivex.subscribers.TestSubscriber;
 
 import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Matchers.any;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
@@ -114,6 +118,22 @@ public class NIOPostmanClientTest {
 
     }
 
+    @Test
+    public void shouldEmitMessagesReadTogetherAsOneBatch() throws IOException {
+        setupMocksForConnecting();
+        selector.addSelectionKeyToReturn(selectionKey);
+        when(selectionKey.isValid()).thenReturn(true);
+        when(selectionKey.readyOps()).thenReturn(SelectionKey.OP_READ);
+        when(connection.filledMessages()).thenReturn(Lists.newArrayList(msg, msg2));
+        TestSubscriber<List<PostmanClientEvent>> testSubscriber = client.connectBatched(socketChannel, serverAddress, port).test();
+        scheduler.triggerActions();
+        testSubscriber.assertNoErrors()
+                .assertValueCount(2)
+                .assertValueAt(0, Collections.singletonList(PostmanClientEvent.isConnectedEvent()))
+                .assertValueAt(1, Lists.newArrayList(PostmanClientEvent.newMessage(msg), PostmanClientEvent.newMessage(msg2)))
+                .assertComplete();
+    }
+
     @Test
     public void shouldSendMessages() throws IOException {
         setupMocksForConnecting();
@@ -129,12 +149,14 @@ public class NIOPostmanClientTest {
     }
 
     @Test
-    public void shouldAddMessageToConnectionAndWakeupSelector() throws IOException {
+    public void shouldAddMessageToConnectionWhichWakesUpSelector() throws IOException {
         setupMocksForConnecting();
         client.connect(socketChannel, serverAddress, port).test();
         scheduler.triggerActions();
         client.sendMessage(msg);
-        assertThat(selector.wakeupCount).isEqualTo(1);
+        //Left to the connection, which asks the loop to set write interest
+        assertThat(selector.wakeupCount).isZero();
+        verify(connection).runOn(any(LoopTaskQueue.class));
         verify(connection).queueMessageToSend(msg);
     }
 
@@ -143,6 +165,7 @@ public class NIOPostmanClientTest {
         when(selectorProvider.openSelector()).thenReturn(selector);
         when(nioConnectionFactory.connectToServer(selector, socketChannel, serverAddress, port)).thenReturn(connection);
         when(connection.isConnected()).thenReturn(true);
+        when(connection.flowControl()).thenReturn(new FlowControl());
     }
 
 }
\ No newline at end of file
@@ -0,0 +1,73 @@
+package org.postman.server.nio;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.runners.MockitoJUnitRunner;
+import org.postman.server.PostmanServerEvent;
+
+import java.net.InetSocketAddress;
+import java.util.Arrays;
+
+import io.reactivex.processors.PublishProcessor;
+import io.reactivex.subscribers.TestSubscriber;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.when;
+
+@RunWith(MockitoJUnitRunner.class)
+public class NIOPostmanServerTest {
+    private NIOPostmanServer postmanServer;
+    @Mock
+    private ServerEventLoop firstLoop;
+    @Mock
+    private ServerEventLoop secondLoop;
+    private final PublishProcessor<PostmanServerEvent> firstLoopEvents = PublishProcessor.create();
+    private final PublishProcessor<PostmanServerEvent> secondLoopEvents = PublishProcessor.create();
+    private final InetSocketAddress bindAddress = new InetSocketAddress("127.0.0.1", 22222);
+
+    @Before
+    public void setup() {
+        when(firstLoop.startLooping(any())).thenReturn(firstLoopEvents);
+        when(secondLoop.startLooping(any())).thenReturn(secondLoopEvents);
+        postmanServer = new NIOPostmanServer(Arrays.asList(firstLoop, secondLoop), true);
+    }
+
+    @Test
+    public void shouldReportListeningOnceForSeveralListeners() {
+        TestSubscriber<PostmanServerEvent> events = postmanServer.serverStart(bindAddress).test();
+
+        firstLoopEvents.onNext(PostmanServerEvent.serverListening(22222, "127.0.0.1"));
+        secondLoopEvents.onNext(PostmanServerEvent.serverListening(22222, "127.0.0.1"));
+
+        events.assertValueCount(1);
+    }
+
+    @Test
+    public void shouldReportDrainingOnceEveryListenerIsDraining() {
+        TestSubscriber<PostmanServerEvent> events = postmanServer.serverStart(bindAddress).test();
+
+        firstLoopEvents.onNext(PostmanServerEvent.serverDraining(3));
+        events.assertNoValues();
+        secondLoopEvents.onNext(PostmanServerEvent.serverDraining(2));
+
+        events.assertValueCount(1);
+        assertThat(events.values().get(0).type()).isEqualTo(PostmanServerEvent.Type.SERVER_DRAINING);
+        assertThat(events.values().get(0).pendingClients()).isEqualTo(5);
+    }
+
+    @Test
+    public void shouldReportDrainedOnceEveryListenerHasFinished() {
+        TestSubscriber<PostmanServerEvent> events = postmanServer.serverStart(bindAddress).test();
+
+        secondLoopEvents.onNext(PostmanServerEvent.serverDrained(1));
+        events.assertNoValues();
+        firstLoopEvents.onNext(PostmanServerEvent.serverDrained(0));
+
+        events.assertValueCount(1);
+        assertThat(events.values().get(0).type()).isEqualTo(PostmanServerEvent.Type.SERVER_DRAINED);
+        assertThat(events.values().get(0).pendingClients()).isEqualTo(1);
+    }
+}
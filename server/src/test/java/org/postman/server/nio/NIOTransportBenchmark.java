@@ -0,0 +1,25 @@
+package org.postman.server.nio;
+
+import org.postman.server.PostmanMessage;
+import org.postman.server.TransportBenchmark;
+
+import java.nio.channels.spi.SelectorProvider;
+
+import io.reactivex.schedulers.Schedulers;
+
+/**
+ * Runs the {@link TransportBenchmark} against {@link NIOPostmanServer} and {@link NIOPostmanClient}.
+ * Compare with {@link org.postman.server.blocking.BlockingTransportBenchmark}.
+ */
+public class NIOTransportBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        SelectorProvider provider = SelectorProvider.provider();
+        int clients = args.length > 0 ? Integer.parseInt(args[0]) : 100;
+        int requests = args.length > 1 ? Integer.parseInt(args[1]) : 1000;
+
+        new TransportBenchmark("nio", clients, requests).run(
+                new NIOPostmanServer(new ServerEventLoop(provider, new NIOConnectionFactory(PostmanMessage::new), Schedulers.newThread())),
+                () -> new NIOPostmanClient(Schedulers.newThread(), provider, new NIOConnectionFactory(PostmanMessage::new)));
+    }
+}
@@ -7,8 +7,11 @@ import org.junit.runner.RunWith;
 import org.mockito.InOrder;
 import org.mockito.Mock;
 import org.mockito.runners.MockitoJUnitRunner;
+import org.postman.server.FlowControl;
+import org.postman.server.PostmanConfig;
 import org.postman.server.PostmanMessage;
 import org.postman.server.PostmanServerEvent;
+import org.postman.server.SendQueue;
 
 import java.io.IOException;
 import java.net.InetSocketAddress;
@@ -16,6 +19,8 @@ import java.net.ServerSocket;
 import java.net.Socket;
 import java.nio.channels.SelectionKey;
 import java.nio.channels.spi.SelectorProvider;
+import java.util.Collections;
+import java.util.List;
 import java.util.Optional;
 
 import io.reactivex.schedulers.TestScheduler;
@@ -25,6 +30,7 @@ import static org.assertj.core.api.Assertions.assertThat;
 import static org.mockito.Mockito.doThrow;
 import static org.mockito.Mockito.inOrder;
 import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
@@ -67,6 +73,8 @@ public class ServerEventLoopTest {
         testSubscriber = new TestSubscriber<>();
         serverEventLoop = new ServerEventLoop(selectorProvider, nioConnectionFactory, scheduler);
         serverSelector = new TestSelector(selectorProvider, msg, nioConnection, acceptSelectionKey, serverEventLoop);
+        when(nioConnection.sendQueue()).thenReturn(new SendQueue());
+        when(nioConnection.flowControl()).thenReturn(new FlowControl());
 
     }
 
@@ -75,7 +83,7 @@ public class ServerEventLoopTest {
     @Test
     public void shouldSendErrorThroughAndShutdownIfProblemWhenBinding() throws IOException {
         setupBindingMockCalls();
-        doThrow(IOException.class).when(nioConnectionFactory).bindServerSocket(serverSelector, serverSocketChannel, bindAddress);
+        doThrow(IOException.class).when(nioConnectionFactory).bindServerSocket(serverSelector, serverSocketChannel, bindAddress, PostmanConfig.defaults());
         startLooping(false);
         testSubscriber.assertError(IOException.class);
     }
@@ -84,7 +92,7 @@ public class ServerEventLoopTest {
     public void shouldBindServerSocketUsingFactory() throws IOException {
         setupBindingMockCalls();
         startLooping(false);
-        verify(nioConnectionFactory).bindServerSocket(serverSelector, serverSocketChannel, bindAddress);
+        verify(nioConnectionFactory).bindServerSocket(serverSelector, serverSocketChannel, bindAddress, PostmanConfig.defaults());
     }
 
     @Test
@@ -125,13 +133,51 @@ public class ServerEventLoopTest {
 
     }
 
+    @Test
+    public void shouldAcceptAllPendingClientConnectionsInOnePass() throws IOException {
+        setupForAcceptingClient();
+        when(nioConnectionFactory.acceptPending(serverSocketChannel))
+                .thenReturn(clientSocketChannel, clientSocketChannel, clientSocketChannel, null);
+        setupBindingMockCalls();
+        startLooping(true);
+
+        verify(nioConnectionFactory, times(4)).acceptPending(serverSocketChannel);
+        testSubscriber.assertValueCount(4);
+    }
+
+    @Test
+    public void shouldStopAcceptingClientConnectionsAfterBudgetForPass() throws IOException {
+        setupForAcceptingClient();
+        when(nioConnectionFactory.acceptPending(serverSocketChannel)).thenReturn(clientSocketChannel);
+        setupBindingMockCalls();
+        startLooping(true);
+
+        verify(nioConnectionFactory, times(ServerEventLoop.MAX_ACCEPTS_PER_PASS)).acceptPending(serverSocketChannel);
+    }
+
+    @Test
+    public void shouldRefuseClientConnectionsOverMaxConnections() throws IOException {
+        serverEventLoop = new ServerEventLoop(selectorProvider, nioConnectionFactory, scheduler,
+                PostmanConfig.builder().maxConnections(1).build());
+        setupForAcceptingClient();
+        when(nioConnectionFactory.acceptPending(serverSocketChannel))
+                .thenReturn(clientSocketChannel, clientSocketChannel, null);
+        setupBindingMockCalls();
+        startLooping(true);
+
+        verify(nioConnectionFactory).createConnection(clientSocketChannel, serverSelector);
+        verify(nioConnectionFactory).refuseConnection(clientSocketChannel);
+        testSubscriber.assertValueCount(2);
+        assertThat(serverEventLoop.refusedConnections()).isEqualTo(1);
+    }
+
     @Test
     public void shouldHandleErrorsWhenAcceptingClientConnection() throws IOException {
-        serverSocketChannel.throwOnAccept = true;
         serverSelector.addSelectionKeyToReturn(acceptSelectionKey);
         when(acceptSelectionKey.isValid()).thenReturn(true);
         when(acceptSelectionKey.readyOps()).thenReturn(SelectionKey.OP_ACCEPT);
-        when(nioConnectionFactory.acceptConnection(serverSocketChannel, serverSelector)).thenReturn(Optional.empty());
+        when(nioConnectionFactory.acceptPending(serverSocketChannel)).thenReturn(clientSocketChannel, null);
+        when(nioConnectionFactory.createConnection(clientSocketChannel, serverSelector)).thenReturn(Optional.empty());
         setupBindingMockCalls();
         startLooping(true);
         testSubscriber.assertValueCount(1);
@@ -245,15 +291,39 @@ public class ServerEventLoopTest {
         inOrder.verify(nioConnection).queueMessageToSend(msg);
         inOrder.verify(nioConnection).sendAnyPendingMessages();
 
-        assertThat(serverSelector.wakeupCount).isEqualTo(1);
+        //Left to the connection, which asks the loop to set write interest
+        assertThat(serverSelector.wakeupCount).isZero();
+
+    }
+
+    @Test
+    public void shouldEmitEventsFromEachPassAsOneBatch() throws IOException {
+        setupForAcceptingClient();
+
+        serverSelector.addSelectionKeyToReturn(clientSelectionKey);
+        when(clientSelectionKey.isValid()).thenReturn(true);
+        when(clientSelectionKey.readyOps()).thenReturn(SelectionKey.OP_READ);
+        when(nioConnection.filledMessages()).thenReturn(Lists.newArrayList(msg, msg));
+
+        setupBindingMockCalls();
+        TestSubscriber<List<PostmanServerEvent>> batchSubscriber = serverEventLoop.startLoopingBatched(bindAddress).test();
+        scheduler.triggerActions();
 
+        batchSubscriber.assertNoErrors()
+                .assertComplete()
+                .assertValueCount(3)
+                .assertValueAt(0, Collections.singletonList(PostmanServerEvent.serverListening(bindAddress.getPort(), bindAddress.getHostString())))
+                .assertValueAt(1, batch -> batch.size() == 1 && batch.get(0).type() == PostmanServerEvent.Type.CLIENT_JOIN)
+                .assertValueAt(2, Lists.newArrayList(PostmanServerEvent.newMessage(msg, nioConnection),
+                        PostmanServerEvent.newMessage(msg, nioConnection)));
     }
 
     private void setupForAcceptingClient() {
         serverSelector.addSelectionKeyToReturn(acceptSelectionKey);
         when(acceptSelectionKey.isValid()).thenReturn(true);
         when(acceptSelectionKey.readyOps()).thenReturn(SelectionKey.OP_ACCEPT);
-        when(nioConnectionFactory.acceptConnection(serverSocketChannel, serverSelector)).thenReturn(Optional.of(nioConnection));
+        when(nioConnectionFactory.acceptPending(serverSocketChannel)).thenReturn(clientSocketChannel, null);
+        when(nioConnectionFactory.createConnection(clientSocketChannel, serverSelector)).thenReturn(Optional.of(nioConnection));
         when(nioConnection.selectionKey()).thenReturn(clientSelectionKey);
     }
 
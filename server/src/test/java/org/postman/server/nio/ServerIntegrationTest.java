@@ -2,13 +2,20 @@ package org.postman.server.nio;
 
 import android.support.annotation.NonNull;
 
+import com.siia.commons.core.concurrency.ConcurrencyUtils;
+import com.siia.commons.core.constants.TimeConstant;
+
 import net.jodah.concurrentunit.Waiter;
 
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
 import org.postman.server.Connection;
+import org.postman.server.DirectArena;
+import org.postman.server.MessageOuterClass.WindowUpdate;
 import org.postman.server.PostmanClientEvent;
+import org.postman.server.PostmanConfig;
+import org.postman.server.MessagePool;
 import org.postman.server.PostmanMessage;
 import org.postman.server.PostmanServerEvent;
 import org.postman.server.nio.Test.Ping;
@@ -18,6 +25,8 @@ import org.reactivestreams.Subscription;
 import java.io.IOException;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
 import java.nio.channels.spi.SelectorProvider;
 import java.util.ArrayList;
 import java.util.Collection;
@@ -25,13 +34,22 @@ import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.UUID;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
 
 import io.reactivex.FlowableSubscriber;
+import io.reactivex.Single;
 import io.reactivex.functions.Consumer;
 import io.reactivex.schedulers.Schedulers;
 
 import static java.util.Objects.isNull;
+import static org.assertj.core.api.Assertions.assertThat;
 import static junit.framework.TestCase.fail;
 
 /**
@@ -90,6 +108,226 @@ public class ServerIntegrationTest {
 
     }
 
+    @Test
+    public void serverWithSeveralListenersShouldExchangeMessagesWithEachClient() throws IOException, TimeoutException {
+        postmanServer = new NIOPostmanServer(provider, PostmanMessage::new, Schedulers.newThread(),
+                PostmanConfig.builder().listeners(4).build());
+        Waiter waiter = new Waiter();
+        startServer(event -> {
+            switch (event.type()) {
+                case SERVER_LISTENING:
+                    waiter.resume();
+                    break;
+                case NEW_MESSAGE:
+                    postmanServer.sendMessage(Pong.newBuilder().setMsg("pong").build(), event.connection());
+                    break;
+            }
+        });
+        waiter.await(3000);
+
+        for (int i = 0; i < 8; i++) {
+            NIOPostmanClient postmanClient = createPostmanClient();
+            connectClient(postmanClient, event -> {
+                if (event.isNewMessageEvent()) {
+                    waiter.resume();
+                } else {
+                    postmanClient.sendMessage(Ping.getDefaultInstance());
+                }
+            });
+        }
+        waiter.await(5000, 8);
+
+        assertThat(postmanServer.numberOfClients()).isEqualTo(8);
+        checkFailSignal();
+    }
+
+    @Test
+    public void clientsShouldOnlyReceiveMessagesPublishedToTheirTopics() throws IOException, TimeoutException {
+        Waiter waiter = new Waiter();
+        startServer(new Consumer<PostmanServerEvent>() {
+            int pings = 0;
+
+            @Override
+            public void accept(PostmanServerEvent event) {
+                switch (event.type()) {
+                    case SERVER_LISTENING:
+                        waiter.resume();
+                        break;
+                    case NEW_MESSAGE:
+                        //Each client subscribes before sending its ping
+                        if (++pings == 2) {
+                            postmanServer.publish("a", Pong.newBuilder().setMsg("a").build());
+                            postmanServer.publish("b", Pong.newBuilder().setMsg("b").build());
+                            postmanServer.publish("c", Pong.newBuilder().setMsg("c").build());
+                        }
+                        break;
+                }
+            }
+        });
+        waiter.await(3000);
+
+        for (String topic : new String[]{"a", "b"}) {
+            NIOPostmanClient postmanClient = createPostmanClient();
+            connectClient(postmanClient, event -> {
+                if (event.isNewMessageEvent()) {
+                    waiter.assertEquals(topic, event.msg().getTopic());
+                    waiter.assertEquals(topic, event.msg().<Pong>getProtoObj().getMsg());
+                    waiter.resume();
+                } else {
+                    postmanClient.subscribe(topic);
+                    postmanClient.sendMessage(Ping.getDefaultInstance());
+                }
+            });
+        }
+        waiter.await(5000, 2);
+        checkFailSignal();
+    }
+
+    @Test
+    public void pipelinedRequestsShouldEachGetTheirOwnResponse() throws IOException, TimeoutException {
+        Waiter waiter = new Waiter();
+        //Later requests are answered first
+        postmanServer.handleRequests(Pong.class, request -> Single.just(Pong.newBuilder().setMsg(request.getMsg() + "!").build())
+                .delay(100 - Integer.parseInt(request.getMsg()), TimeUnit.MILLISECONDS));
+        startServer(event -> {
+            if (event.type() == PostmanServerEvent.Type.SERVER_LISTENING) {
+                waiter.resume();
+            }
+        });
+        waiter.await(3000);
+
+        NIOPostmanClient postmanClient = createPostmanClient();
+        connectClient(postmanClient, event -> {
+            if (event.type() == PostmanClientEvent.Type.CONNECTED) {
+                for (int i = 0; i < 100; i++) {
+                    String msg = String.valueOf(i);
+                    postmanClient.request(Pong.newBuilder().setMsg(msg).build(), Pong.class, 3, TimeUnit.SECONDS)
+                            .subscribe(response -> {
+                                waiter.assertEquals(msg + "!", response.getMsg());
+                                waiter.resume();
+                            }, waiter::fail);
+                }
+            }
+        });
+        waiter.await(5000, 100);
+        checkFailSignal();
+    }
+
+    @Test
+    public void requestsAndResponsesShouldBeReleasedToTheirPools() throws Exception {
+        MessagePool serverPool = new MessagePool(4, 1024, 1);
+        MessagePool clientPool = new MessagePool(4, 1024, 1);
+        postmanServer = new NIOPostmanServer(new ServerEventLoop(provider, new NIOConnectionFactory(serverPool),
+                Schedulers.newThread()));
+        Waiter waiter = new Waiter();
+        //The last response comes after its request has timed out
+        postmanServer.handleRequests(Pong.class, request -> Single.just(Pong.newBuilder().setMsg(request.getMsg() + "!").build())
+                .delay("late".equals(request.getMsg()) ? 200 : 0, TimeUnit.MILLISECONDS));
+        startServer(event -> {
+            if (event.type() == PostmanServerEvent.Type.SERVER_LISTENING) {
+                waiter.resume();
+            }
+        });
+        waiter.await(3000);
+
+        NIOPostmanClient postmanClient = new NIOPostmanClient(Schedulers.newThread(), provider,
+                new NIOConnectionFactory(clientPool));
+        clientsToDisconnect.add(postmanClient);
+        connectClient(postmanClient, event -> {
+            if (event.type() == PostmanClientEvent.Type.CONNECTED) {
+                for (int i = 0; i < 20; i++) {
+                    postmanClient.request(Pong.newBuilder().setMsg(String.valueOf(i)).build(), Pong.class, 3, TimeUnit.SECONDS)
+                            .subscribe(response -> waiter.resume(), waiter::fail);
+                }
+                postmanClient.request(Pong.newBuilder().setMsg("late").build(), Pong.class, 50, TimeUnit.MILLISECONDS)
+                        .subscribe(response -> waiter.fail("Response should be late"), error -> waiter.resume());
+            }
+        });
+        waiter.await(5000, 21);
+        //The late response is dropped once it arrives
+        Thread.sleep(400);
+
+        for (int i = 0; i < 5; i++) {
+            System.gc();
+            Thread.sleep(20);
+        }
+        assertThat(serverPool.leakedMessages()).isZero();
+        assertThat(clientPool.leakedMessages()).isZero();
+        checkFailSignal();
+    }
+
+    @Test
+    public void pooledMessagesShouldBeSentIntactWhenReleasedOnceQueued() throws IOException, TimeoutException {
+        postmanServer = new NIOPostmanServer(new ServerEventLoop(provider,
+                new NIOConnectionFactory(new MessagePool(4, 1024, 1)), Schedulers.newThread()));
+        Waiter waiter = new Waiter();
+        int messages = 200;
+        startServer(event -> {
+            switch (event.type()) {
+                case SERVER_LISTENING:
+                    waiter.resume();
+                    break;
+                case NEW_MESSAGE:
+                    //Relayed then released straight away, while still queued
+                    postmanServer.sendMessage(event.message(), event.connection());
+                    event.message().release();
+                    break;
+            }
+        });
+        waiter.await(3000);
+
+        NIOPostmanClient postmanClient = createPostmanClient();
+        List<String> echoed = new CopyOnWriteArrayList<>();
+        connectClient(postmanClient, event -> {
+            switch (event.type()) {
+                case CONNECTED:
+                    for (int i = 0; i < messages; i++) {
+                        postmanClient.sendMessage(Pong.newBuilder().setMsg(String.valueOf(i)).build());
+                    }
+                    break;
+                case NEW_MESSAGE:
+                    echoed.add(event.msg().<Pong>getProtoObj().getMsg());
+                    if (echoed.size() == messages) {
+                        waiter.resume();
+                    }
+                    break;
+            }
+        });
+        waiter.await(5000);
+
+        List<String> sent = new ArrayList<>();
+        for (int i = 0; i < messages; i++) {
+            sent.add(String.valueOf(i));
+        }
+        assertThat(echoed).containsExactlyElementsOf(sent);
+        checkFailSignal();
+    }
+
+    @Test
+    public void requestsShouldFailWhenNotAnsweredInTime() throws IOException, TimeoutException {
+        Waiter waiter = new Waiter();
+        postmanServer.handleRequests(Ping.class, request -> Single.never());
+        startServer(event -> {
+            if (event.type() == PostmanServerEvent.Type.SERVER_LISTENING) {
+                waiter.resume();
+            }
+        });
+        waiter.await(3000);
+
+        NIOPostmanClient postmanClient = createPostmanClient();
+        connectClient(postmanClient, event -> {
+            if (event.type() == PostmanClientEvent.Type.CONNECTED) {
+                postmanClient.request(Ping.getDefaultInstance(), Pong.class, 200, TimeUnit.MILLISECONDS)
+                        .subscribe(response -> waiter.fail("Expected a timeout"), error -> {
+                            waiter.assertTrue(error instanceof TimeoutException);
+                            waiter.resume();
+                        });
+            }
+        });
+        waiter.await(3000);
+        checkFailSignal();
+    }
+
     private void checkFailSignal() {
         if (failTest) {
             fail("Fail test signal true, error received");
@@ -225,6 +463,199 @@ public class ServerIntegrationTest {
 
     }
 
+    @Test
+    public void releasedMessagesShouldBeReadIntoAgainWithoutMixingThemUp() throws IOException, TimeoutException {
+        postmanServer = new NIOPostmanServer(new ServerEventLoop(provider,
+                new NIOConnectionFactory(new MessagePool(4, 1024, 1)),
+                Schedulers.newThread()));
+        Waiter waiter = new Waiter();
+        int messages = 500;
+        startServer(new Consumer<PostmanServerEvent>() {
+            int received;
+
+            @Override
+            public void accept(PostmanServerEvent event) {
+                switch (event.type()) {
+                    case SERVER_LISTENING:
+                        waiter.resume();
+                        break;
+                    case NEW_MESSAGE:
+                        try {
+                            Pong pong = event.message().getProtoObj();
+                            waiter.assertEquals(pongText(received++), pong.getMsg());
+                        } catch (Exception e) {
+                            waiter.fail(e);
+                        }
+                        event.message().release();
+                        if (received == messages) {
+                            waiter.resume();
+                        }
+                        break;
+                }
+            }
+        });
+        waiter.await();
+
+        NIOPostmanClient postmanClient = createPostmanClient();
+        connectClient(postmanClient, event -> {
+            if (event.type() == PostmanClientEvent.Type.CONNECTED) {
+                for (int i = 0; i < messages; i++) {
+                    postmanClient.sendMessage(Pong.newBuilder().setMsg(pongText(i)).build());
+                }
+            }
+        });
+        waiter.await(10000);
+        checkFailSignal();
+    }
+
+    @Test
+    public void readsShouldResumeOnceArenaMemoryIsReleasedOnAnotherThread() throws Exception {
+        DirectArena arena = new DirectArena(512, 1024);
+        postmanServer = new NIOPostmanServer(new ServerEventLoop(provider,
+                new NIOConnectionFactory(new MessagePool(4, 1024, 1, arena)),
+                Schedulers.newThread()));
+        ExecutorService subscriber = Executors.newSingleThreadExecutor();
+        Waiter waiter = new Waiter();
+        int messages = 500;
+        startServer(new Consumer<PostmanServerEvent>() {
+            int received;
+
+            @Override
+            public void accept(PostmanServerEvent event) {
+                switch (event.type()) {
+                    case SERVER_LISTENING:
+                        waiter.resume();
+                        break;
+                    case NEW_MESSAGE:
+                        PostmanMessage msg = event.message();
+                        try {
+                            Pong pong = msg.getProtoObj();
+                            waiter.assertEquals(pongText(received++), pong.getMsg());
+                        } catch (Exception e) {
+                            waiter.fail(e);
+                        }
+                        //Released slower than they are read, so the arena runs out
+                        subscriber.execute(() -> {
+                            LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(1));
+                            msg.release();
+                        });
+                        if (received == messages) {
+                            waiter.resume();
+                        }
+                        break;
+                }
+            }
+        });
+        waiter.await();
+
+        try {
+            NIOPostmanClient postmanClient = createPostmanClient();
+            connectClient(postmanClient, event -> {
+                if (event.type() == PostmanClientEvent.Type.CONNECTED) {
+                    for (int i = 0; i < messages; i++) {
+                        postmanClient.sendMessage(Pong.newBuilder().setMsg(pongText(i)).build());
+                    }
+                }
+            });
+            waiter.await(10000);
+            checkFailSignal();
+            assertThat(arena.reservedBytes()).isEqualTo(1024);
+        } finally {
+            subscriber.shutdownNow();
+        }
+    }
+
+    private static String pongText(int i) {
+        //Lengths vary so later messages are read into the bytes of both longer and shorter ones
+        return i + new String(new char[i % 37]).replace('\0', 'x');
+    }
+
+    @Test
+    public void heartbeatsShouldMeasureRoundTripTimeOnBothSides() throws IOException, TimeoutException {
+        PostmanConfig config = PostmanConfig.builder()
+                .heartbeatInterval(50, TimeUnit.MILLISECONDS)
+                .timerTick(10, TimeUnit.MILLISECONDS)
+                .build();
+        postmanServer = new NIOPostmanServer(new ServerEventLoop(provider,
+                new NIOConnectionFactory(PostmanMessage::new),
+                Schedulers.newThread(), config));
+        Waiter waiter = new Waiter();
+        List<Connection> connections = new ArrayList<>();
+        startServer(event -> {
+            switch (event.type()) {
+                case CLIENT_JOIN:
+                    connections.add(event.connection());
+                case SERVER_LISTENING:
+                    waiter.resume();
+                    break;
+                case NEW_MESSAGE:
+                    waiter.fail("Heartbeats should not be passed on as messages");
+                    break;
+            }
+        });
+        waiter.await();
+
+        NIOPostmanClient postmanClient = new NIOPostmanClient(Schedulers.newThread(), provider,
+                new NIOConnectionFactory(PostmanMessage::new), config);
+        clientsToDisconnect.add(postmanClient);
+        connectClient(postmanClient, event -> {
+            if (event.isNewMessageEvent()) {
+                waiter.fail("Heartbeats should not be passed on as messages");
+            }
+        });
+        waiter.await(3000);
+
+        ConcurrencyUtils.tryAction(() -> postmanClient.roundTripTime().sampleCount() > 1 &&
+                connections.get(0).roundTripTime().sampleCount() > 1, TimeConstant.RETRY_DELAY, 10);
+
+        assertThat(postmanClient.roundTripTime().hasSamples()).isTrue();
+        assertThat(connections.get(0).roundTripTime().hasSamples()).isTrue();
+        checkFailSignal();
+    }
+
+    @Test
+    public void serverShouldSendQueuedMessagesBeforeShuttingDownWhenDraining() throws IOException, TimeoutException {
+        Waiter waiter = new Waiter();
+        List<PostmanServerEvent.Type> types = new ArrayList<>();
+        startServer(event -> {
+            types.add(event.type());
+            switch (event.type()) {
+                case SERVER_LISTENING:
+                    waiter.resume();
+                    break;
+                case CLIENT_JOIN:
+                    for (int i = 0; i < 200; i++) {
+                        postmanServer.sendMessage(Pong.newBuilder().setMsg(String.valueOf(i)).build(), event.connection());
+                    }
+                    postmanServer.stopServer(3, TimeUnit.SECONDS);
+                    break;
+                case SERVER_DRAINED:
+                    waiter.assertEquals(0, event.pendingClients());
+                    waiter.resume();
+                    break;
+            }
+        });
+        waiter.await(3000);
+
+        NIOPostmanClient postmanClient = createPostmanClient();
+        postmanClient.connect(provider.openSocketChannel(), InetAddress.getByName(HOST), 12345)
+                .subscribe(new Consumer<PostmanClientEvent>() {
+                    int count = 0;
+
+                    @Override
+                    public void accept(PostmanClientEvent event) {
+                        if (event.isNewMessageEvent() && ++count == 200) {
+                            waiter.resume();
+                        }
+                    }
+                }, error -> System.out.println("Client disconnected by server"));
+        waiter.await(5000, 2);
+
+        assertThat(types).containsSubsequence(PostmanServerEvent.Type.CLIENT_JOIN, PostmanServerEvent.Type.SERVER_DRAINING,
+                PostmanServerEvent.Type.CLIENT_DISCONNECT, PostmanServerEvent.Type.SERVER_DRAINED);
+        checkFailSignal();
+    }
+
     private void pingingClients(Waiter waiter) throws IOException {
         NIOPostmanClient postmanClient = createPostmanClient();
         connectClient(postmanClient, new Consumer<PostmanClientEvent>() {
@@ -276,6 +707,263 @@ public class ServerIntegrationTest {
 
     }
 
+    @Test
+    public void serverShouldDisconnectClientThatDoesNotReadItsMessages() throws IOException, TimeoutException {
+        PostmanConfig config = PostmanConfig.builder()
+                .sendQueueWatermarks(8, 2)
+                .build();
+        postmanServer = new NIOPostmanServer(new ServerEventLoop(provider,
+                new NIOConnectionFactory(PostmanMessage::new),
+                Schedulers.newThread(), config));
+        Waiter waiter = new Waiter();
+        List<PostmanServerEvent.Type> types = new ArrayList<>();
+        PostmanMessage largeMessage = new PostmanMessage(Pong.newBuilder().setMsg(new String(new char[64 * 1024])).build());
+        startServer(event -> {
+            types.add(event.type());
+            switch (event.type()) {
+                case SERVER_LISTENING:
+                case CLIENT_DISCONNECT:
+                    waiter.resume();
+                    break;
+                case CLIENT_JOIN:
+                    Schedulers.io().scheduleDirect(() -> {
+                        for (int i = 0; i < 1000 && event.connection().isConnected(); i++) {
+                            postmanServer.sendMessage(largeMessage, event.connection());
+                        }
+                    });
+                    break;
+            }
+        });
+        waiter.await(3000);
+
+        SocketChannel slowClient = provider.openSocketChannel();
+        slowClient.connect(new InetSocketAddress(HOST, 12345));
+        try {
+            waiter.await(5000);
+        } finally {
+            slowClient.close();
+        }
+
+        assertThat(types).containsSubsequence(PostmanServerEvent.Type.CLIENT_JOIN,
+                PostmanServerEvent.Type.CLIENT_SEND_QUEUE_HIGH, PostmanServerEvent.Type.CLIENT_DISCONNECT);
+        checkFailSignal();
+    }
+
+    @Test
+    public void multiplexedStreamsShouldDeliverMessagesOnTheirStreams() throws IOException, TimeoutException {
+        PostmanConfig config = PostmanConfig.builder()
+                .maxFrameSize(1024)
+                .build();
+        postmanServer = new NIOPostmanServer(new ServerEventLoop(provider,
+                new NIOConnectionFactory(PostmanMessage::new),
+                Schedulers.newThread(), config));
+        Waiter waiter = new Waiter();
+        String bulk = new String(new char[200 * 1024]);
+        startServer(event -> {
+            switch (event.type()) {
+                case SERVER_LISTENING:
+                    waiter.resume();
+                    break;
+                case NEW_MESSAGE:
+                    PostmanMessage msg = event.message();
+                    if (msg.isOfType(Ping.class)) {
+                        waiter.assertEquals(PostmanMessage.DEFAULT_STREAM, msg.getStreamId());
+                    } else {
+                        waiter.assertEquals(1, msg.getStreamId());
+                        waiter.assertEquals(bulk, msg.<Pong>getProtoObj().getMsg());
+                        postmanServer.sendMessage(new PostmanMessage(msg.<Pong>getProtoObj()).setStreamId(3), event.connection());
+                    }
+                    waiter.resume();
+                    break;
+            }
+        });
+        waiter.await(3000);
+
+        NIOPostmanClient postmanClient = new NIOPostmanClient(Schedulers.newThread(), provider,
+                new NIOConnectionFactory(PostmanMessage::new), config);
+        clientsToDisconnect.add(postmanClient);
+        connectClient(postmanClient, event -> {
+            switch (event.type()) {
+                case CONNECTED:
+                    postmanClient.sendMessage(new PostmanMessage(Pong.newBuilder().setMsg(bulk).build()).setStreamId(1));
+                    postmanClient.sendMessage(Ping.getDefaultInstance());
+                    break;
+                case NEW_MESSAGE:
+                    waiter.assertEquals(3, event.msg().getStreamId());
+                    waiter.assertEquals(bulk, event.msg().<Pong>getProtoObj().getMsg());
+                    waiter.resume();
+                    break;
+            }
+        });
+        waiter.await(5000, 3);
+        checkFailSignal();
+    }
+
+    @Test
+    public void serverShouldCarryOnReadingAndWritingInLaterPassesOnceBudgetUsedUp() throws IOException, TimeoutException {
+        PostmanConfig config = PostmanConfig.builder()
+                .passBudget(1, 1)
+                .build();
+        postmanServer = new NIOPostmanServer(new ServerEventLoop(provider,
+                new NIOConnectionFactory(PostmanMessage::new),
+                Schedulers.newThread(), config));
+        Waiter waiter = new Waiter();
+        int messages = 100;
+        startServer(event -> {
+            switch (event.type()) {
+                case SERVER_LISTENING:
+                    waiter.resume();
+                    break;
+                case NEW_MESSAGE:
+                    postmanServer.sendMessage(event.message(), event.connection());
+                    break;
+            }
+        });
+        waiter.await(3000);
+
+        NIOPostmanClient postmanClient = createPostmanClient();
+        List<String> echoed = new ArrayList<>();
+        connectClient(postmanClient, event -> {
+            switch (event.type()) {
+                case CONNECTED:
+                    for (int i = 0; i < messages; i++) {
+                        postmanClient.sendMessage(Pong.newBuilder().setMsg(String.valueOf(i)).build());
+                    }
+                    break;
+                case NEW_MESSAGE:
+                    echoed.add(event.msg().<Pong>getProtoObj().getMsg());
+                    if (echoed.size() == messages) {
+                        waiter.resume();
+                    }
+                    break;
+            }
+        });
+        waiter.await(5000);
+
+        assertThat(echoed).hasSize(messages).startsWith("0", "1", "2").endsWith("99");
+        checkFailSignal();
+    }
+
+    @Test
+    public void serverShouldPauseSendingUntilClientGrantsCredit() throws IOException, TimeoutException, InterruptedException {
+        int window = 4096;
+        PostmanConfig config = PostmanConfig.builder()
+                .flowControlWindows(window, 0)
+                .build();
+        postmanServer = new NIOPostmanServer(new ServerEventLoop(provider,
+                new NIOConnectionFactory(PostmanMessage::new),
+                Schedulers.newThread(), config));
+        Waiter waiter = new Waiter();
+        PostmanMessage message = new PostmanMessage(Pong.newBuilder().setMsg(new String(new char[1000])).build());
+        startServer(event -> {
+            switch (event.type()) {
+                case SERVER_LISTENING:
+                    waiter.resume();
+                    break;
+                case CLIENT_JOIN:
+                    for (int i = 0; i < 20; i++) {
+                        postmanServer.sendMessage(message, event.connection());
+                    }
+                    break;
+            }
+        });
+        waiter.await(3000);
+
+        List<PostmanMessage> received = new ArrayList<>();
+        SocketChannel client = provider.openSocketChannel();
+        try {
+            client.connect(new InetSocketAddress(HOST, 12345));
+            client.configureBlocking(false);
+
+            readMessages(client, received, 500);
+            //Sent while there was credit left, so the window can be overshot by one message
+            int withinWindow = (window + message.getFrameLength() - 1) / message.getFrameLength();
+            assertThat(received).hasSize(withinWindow);
+
+            ByteBuffer update = new PostmanMessage(WindowUpdate.newBuilder().setCredit(20 * window).build()).getFrame();
+            while (update.hasRemaining()) {
+                client.write(update);
+            }
+            readMessages(client, received, 500);
+            assertThat(received).hasSize(20);
+        } finally {
+            client.close();
+        }
+        checkFailSignal();
+    }
+
+    @Test
+    public void serverShouldPauseSendingWhileClientSubscriberFallsBehind() throws IOException, TimeoutException, InterruptedException {
+        PostmanConfig config = PostmanConfig.builder()
+                .flowControlWindows(4096, 0)
+                .build();
+        postmanServer = new NIOPostmanServer(new ServerEventLoop(provider,
+                new NIOConnectionFactory(PostmanMessage::new),
+                Schedulers.newThread(), config));
+        Waiter waiter = new Waiter();
+        List<NIOConnection> connections = new CopyOnWriteArrayList<>();
+        PostmanMessage message = new PostmanMessage(Pong.newBuilder().setMsg(new String(new char[1000])).build());
+        startServer(event -> {
+            switch (event.type()) {
+                case SERVER_LISTENING:
+                    waiter.resume();
+                    break;
+                case CLIENT_JOIN:
+                    connections.add((NIOConnection) event.connection());
+                    for (int i = 0; i < 100; i++) {
+                        postmanServer.sendMessage(message, event.connection());
+                    }
+                    break;
+            }
+        });
+        waiter.await(3000);
+
+        CountDownLatch slowSubscriber = new CountDownLatch(1);
+        AtomicInteger received = new AtomicInteger();
+        NIOPostmanClient postmanClient = new NIOPostmanClient(Schedulers.newThread(), provider,
+                new NIOConnectionFactory(PostmanMessage::new), config);
+        clientsToDisconnect.add(postmanClient);
+        postmanClient.connect(provider.openSocketChannel(), InetAddress.getByName(HOST), 12345)
+                .observeOn(Schedulers.newThread(), false, 1)
+                .subscribe(event -> {
+                    slowSubscriber.await();
+                    if (event.isNewMessageEvent() && received.incrementAndGet() == 100) {
+                        waiter.resume();
+                    }
+                }, error -> failTest = true);
+
+        ConcurrencyUtils.tryAction(() -> connections.size() == 1, TimeConstant.RETRY_DELAY, 10);
+        Thread.sleep(500);
+        //Only granted credit back once the subscriber asks for the messages
+        assertThat(connections.get(0).sendQueue().size()).isGreaterThan(90);
+
+        slowSubscriber.countDown();
+        waiter.await(5000);
+        assertThat(connections.get(0).sendQueue().size()).isZero();
+        checkFailSignal();
+    }
+
+    private static void readMessages(SocketChannel client, List<PostmanMessage> received, long millis)
+            throws IOException, InterruptedException {
+        ByteBuffer buffer = ByteBuffer.allocate(4096);
+        PostmanMessage current = new PostmanMessage();
+        long deadline = System.currentTimeMillis() + millis;
+        while (System.currentTimeMillis() < deadline) {
+            buffer.clear();
+            if (client.read(buffer) <= 0) {
+                Thread.sleep(10);
+                continue;
+            }
+            buffer.flip();
+            while (buffer.hasRemaining()) {
+                if (current.read(buffer)) {
+                    received.add(current);
+                    current = new PostmanMessage();
+                }
+            }
+        }
+    }
+
     @NonNull
     private NIOPostmanClient createPostmanClient() {
         NIOPostmanClient postmanClient = new NIOPostmanClient(Schedulers.newThread(), provider, new NIOConnectionFactory(PostmanMessage::new));
@@ -7,6 +7,9 @@ import java.net.SocketOption;
 import java.nio.channels.ServerSocketChannel;
 import java.nio.channels.SocketChannel;
 import java.nio.channels.spi.SelectorProvider;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
 import java.util.Set;
 
 public class TestServerSocketChannel extends ServerSocketChannel {
@@ -16,6 +19,8 @@ public class TestServerSocketChannel extends ServerSocketChannel {
     public boolean blocking;
     public boolean closed;
     public boolean throwOnAccept;
+    public Set<SocketOption<?>> supportedOptions = Collections.emptySet();
+    public Map<SocketOption<?>, Object> options = new HashMap<>();
 
     protected TestServerSocketChannel(ServerSocket mockSocket, SelectorProvider provider, SocketChannel mockSocketChannel) {
         super(provider);
@@ -30,7 +35,8 @@ public class TestServerSocketChannel extends ServerSocketChannel {
 
     @Override
     public <T> ServerSocketChannel setOption(SocketOption<T> name, T value) throws IOException {
-        return null;
+        options.put(name, value);
+        return this;
     }
 
     @Override
@@ -40,7 +46,7 @@ public class TestServerSocketChannel extends ServerSocketChannel {
 
     @Override
     public Set<SocketOption<?>> supportedOptions() {
-        return null;
+        return supportedOptions;
     }
 
     @Override